@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that ConfigurationFile instances created from the same
+ * unmodified file share its cached tokens and evaluate to the same entries,
+ * that a modified file is read again, and that constant entries are
+ * evaluated once while other entries are evaluated on every call.  Reports
+ * the average time to create a ConfigurationFile and to get its entries.
+ *
+ * @build SourceCache
+ * @run main/othervm
+ *     -Dnet.jini.config.ConfigurationFile.sourceCacheSize=8
+ *     SourceCache
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationException;
+import net.jini.config.ConfigurationFile;
+
+public class SourceCache {
+
+    private static final int ROUNDS = 2000;
+
+    public static void main(String[] args) throws Exception {
+	File file = File.createTempFile("SourceCache", ".config");
+	file.deleteOnExit();
+	String path = file.getPath();
+	StringBuilder sb = new StringBuilder();
+	sb.append("import java.util.ArrayList;\n");
+	sb.append("test {\n");
+	sb.append("    name = \"first\";\n");
+	sb.append("    number = 42;\n");
+	sb.append("    array = new String[] { \"a\", \"b\" };\n");
+	sb.append("    list = new ArrayList();\n");
+	sb.append("    data = $data;\n");
+	for (int i = 0; i < 200; i++) {
+	    sb.append("    entry").append(i).append(" = \"value")
+		.append(i).append("\" + ").append(i).append(";\n");
+	}
+	sb.append("}\n");
+	write(file, sb.toString());
+
+	Configuration first = config(path);
+	Configuration second = config(path);
+	check(first, "first");
+	check(second, "first");
+	for (int i = 0; i < 200; i++) {
+	    String name = "entry" + i;
+	    expect(first.getEntry("test", name, String.class),
+		   second.getEntry("test", name, String.class));
+	}
+
+	/* Constants are evaluated once, other entries on every call */
+	if (first.getEntry("test", "name", String.class) !=
+	    first.getEntry("test", "name", String.class))
+	{
+	    throw new RuntimeException("constant evaluated again");
+	}
+	if (first.getEntry("test", "list", Object.class) ==
+	    first.getEntry("test", "list", Object.class))
+	{
+	    throw new RuntimeException("new expression not evaluated again");
+	}
+	if (!Arrays.equals(
+		(String[]) first.getEntry("test", "array", String[].class),
+		new String[] { "a", "b" }))
+	{
+	    throw new RuntimeException("wrong array");
+	}
+	Object data = new Object();
+	expect(data, first.getEntry("test", "data", Object.class,
+					Configuration.NO_DEFAULT, data));
+
+	/* Overrides still apply to a cached source */
+	Configuration override = new ConfigurationFile(
+	    new String[] { path, "test.name=\"override\"" });
+	check(override, "override");
+
+	/* A modified file is read again */
+	write(file, sb.toString().replace("\"first\"", "\"second changed\""));
+	check(config(path), "second changed");
+
+	long start = System.nanoTime();
+	for (int i = 0; i < ROUNDS; i++) {
+	    config(path);
+	}
+	System.err.println("average create: " +
+			   (System.nanoTime() - start) / ROUNDS + "ns");
+	Configuration c = config(path);
+	start = System.nanoTime();
+	for (int i = 0; i < ROUNDS; i++) {
+	    c.getEntry("test", "entry" + (i % 200), String.class);
+	    c.getEntry("test", "number", int.class);
+	}
+	System.err.println("average getEntry: " +
+			   (System.nanoTime() - start) / (2 * ROUNDS) + "ns");
+	System.err.println("TEST PASSED");
+    }
+
+    private static Configuration config(String path)
+	throws ConfigurationException
+    {
+	return new ConfigurationFile(new String[] { path });
+    }
+
+    private static void check(Configuration config, String name)
+	throws ConfigurationException
+    {
+	expect(name, config.getEntry("test", "name", String.class));
+	expect(Integer.valueOf(42),
+	       config.getEntry("test", "number", int.class));
+	expect("value7" + 7, config.getEntry("test", "entry7", String.class));
+    }
+
+    private static void expect(Object expected, Object actual) {
+	if (!expected.equals(actual)) {
+	    throw new RuntimeException(
+		"expected " + expected + ", found " + actual);
+	}
+    }
+
+    private static void write(File file, String contents) throws IOException {
+	Writer out = new FileWriter(file);
+	try {
+	    out.write(contents);
+	} finally {
+	    out.close();
+	}
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that BasicInvocationDispatcher dispatches each call
+ * to the method with the hash the client sent, for a remote interface
+ * with many methods, including overloads, and rejects an unknown hash.
+ * Reports the average time per call, the time to look up a method hash
+ * in the dispatcher's table against a HashMap of boxed hashes, and the
+ * time to invoke a method through Method.invoke against a MethodHandle.
+ *
+ * @build MethodTable
+ * @run main/othervm MethodTable
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import net.jini.core.constraint.InvocationConstraints;
+import net.jini.export.Exporter;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicInvocationDispatcher;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.ServerCapabilities;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+import org.apache.river.jeri.internal.runtime.Util;
+
+public class MethodTable {
+
+    public interface Many extends Remote {
+	int a() throws RemoteException;
+	int b() throws RemoteException;
+	int c() throws RemoteException;
+	int d() throws RemoteException;
+	int e() throws RemoteException;
+	int f() throws RemoteException;
+	int g() throws RemoteException;
+	int h() throws RemoteException;
+	int a(int x) throws RemoteException;
+	int a(long x) throws RemoteException;
+	int a(String x) throws RemoteException;
+	int a(int x, int y) throws RemoteException;
+	int b(int x) throws RemoteException;
+	int c(int x) throws RemoteException;
+	int d(int x) throws RemoteException;
+	int e(int x) throws RemoteException;
+	int f(int x) throws RemoteException;
+    }
+
+    public static class Impl implements Many {
+	Impl() { }
+	public int a() { return 0; }
+	public int b() { return 1; }
+	public int c() { return 2; }
+	public int d() { return 3; }
+	public int e() { return 4; }
+	public int f() { return 5; }
+	public int g() { return 6; }
+	public int h() { return 7; }
+	public int a(int x) { return 8 + x; }
+	public int a(long x) { return 9 + (int) x; }
+	public int a(String x) { return 10 + x.length(); }
+	public int a(int x, int y) { return 11 + x + y; }
+	public int b(int x) { return 12 + x; }
+	public int c(int x) { return 13 + x; }
+	public int d(int x) { return 14 + x; }
+	public int e(int x) { return 15 + x; }
+	public int f(int x) { return 16 + x; }
+    }
+
+    private static final int CALLS = 10000;
+
+    private static final int LOOKUPS = 2000000;
+
+    /**
+     * The exporter does not keep the impl alive, so the test stores it
+     * here after unexporting it to keep it reachable until then.
+     */
+    private static volatile Object reachable;
+
+    public static void main(String[] args) throws Throwable {
+	Exporter exporter =
+	    new BasicJeriExporter(TcpServerEndpoint.getInstance(0),
+				  new BasicILFactory(), false, false);
+	Impl impl = new Impl();
+	try {
+	    Many stub = (Many) exporter.export(impl);
+	    check(stub);
+	    long start = System.nanoTime();
+	    for (int i = 0; i < CALLS; i++) {
+		stub.a(i, 0);
+	    }
+	    System.err.println("average call time (us): " +
+			       (System.nanoTime() - start) / CALLS / 1000);
+	} finally {
+	    exporter.unexport(true);
+	    reachable = impl;
+	}
+	checkUnknownHash();
+	compareLookups();
+	compareInvokes();
+	System.err.println("TEST PASSED");
+    }
+
+    private static void check(Many stub) throws RemoteException {
+	int[] results = {
+	    stub.a(), stub.b(), stub.c(), stub.d(), stub.e(), stub.f(),
+	    stub.g(), stub.h(), stub.a(0), stub.a(0L), stub.a(""),
+	    stub.a(0, 0), stub.b(0), stub.c(0), stub.d(0), stub.e(0),
+	    stub.f(0)
+	};
+	for (int i = 0; i < results.length; i++) {
+	    if (results[i] != i) {
+		throw new RuntimeException("TEST FAILED: call " + i +
+		    " dispatched to wrong method: " + Arrays.toString(results));
+	    }
+	}
+    }
+
+    /** Unmarshals a method hash that no remote method has. */
+    private static class Dispatcher extends BasicInvocationDispatcher {
+	private final Impl impl = new Impl();
+	private final Collection context = Arrays.asList(new Object[0]);
+
+	Dispatcher(Collection methods) throws Exception {
+	    super(methods, new ServerCapabilities() {
+		public InvocationConstraints checkConstraints(
+		    InvocationConstraints constraints)
+		{
+		    return InvocationConstraints.EMPTY;
+		}
+	    }, null, null, null);
+	}
+
+	Method unmarshal(long hash) throws Exception {
+	    return unmarshal(hashStream(hash));
+	}
+
+	Method unmarshal(ObjectInputStream in) throws Exception {
+	    return unmarshalMethod(impl, in, context);
+	}
+    }
+
+    /**
+     * Looks up method hashes in a HashMap of boxed hashes, as the
+     * dispatcher did before it had its own table.
+     */
+    private static class HashMapDispatcher extends Dispatcher {
+	private final Map<Long, Method> methods = new HashMap<Long, Method>();
+
+	HashMapDispatcher(Collection<Method> methods) throws Exception {
+	    super(methods);
+	    for (Method m : methods) {
+		this.methods.put(Long.valueOf(Util.getMethodHash(m)), m);
+	    }
+	}
+
+	protected Method unmarshalMethod(Remote impl,
+					 ObjectInputStream in,
+					 Collection context)
+	    throws IOException, NoSuchMethodException
+	{
+	    Method method = methods.get(Long.valueOf(in.readLong()));
+	    if (method == null) {
+		throw new NoSuchMethodException("unrecognized method hash");
+	    }
+	    return method;
+	}
+    }
+
+    /** Returns a stream whose readLong always returns the given hash. */
+    private static ObjectInputStream hashStream(final long hash)
+	throws IOException
+    {
+	return new ObjectInputStream(
+	    new ByteArrayInputStream(streamHeader())) {
+	    public long readLong() {
+		return hash;
+	    }
+	};
+    }
+
+    /**
+     * Reports the time to look up each method of Many by hash in the
+     * dispatcher's table and in a HashMap of boxed hashes.
+     */
+    private static void compareLookups() throws Exception {
+	Collection<Method> methods = Arrays.asList(Many.class.getMethods());
+	Dispatcher[] dispatchers = {
+	    new Dispatcher(methods), new HashMapDispatcher(methods)
+	};
+	String[] names = { "table", "HashMap" };
+	ObjectInputStream[] streams = new ObjectInputStream[methods.size()];
+	int i = 0;
+	for (Method m : methods) {
+	    streams[i++] = hashStream(Util.getMethodHash(m));
+	}
+	for (int round = 0; round < 3; round++) {
+	    for (int d = 0; d < dispatchers.length; d++) {
+		long start = System.nanoTime();
+		for (int n = 0; n < LOOKUPS; n++) {
+		    if (dispatchers[d].unmarshal(
+			    streams[n % streams.length]) == null)
+		    {
+			throw new RuntimeException("TEST FAILED: no method");
+		    }
+		}
+		System.err.println("round " + round + ", " + names[d] +
+		    " lookup time (ns): " +
+		    (System.nanoTime() - start) / LOOKUPS);
+	    }
+	}
+    }
+
+    /**
+     * Reports the time to invoke a(int, int) on an impl through
+     * Method.invoke and through a MethodHandle adapted to take the impl
+     * and an argument array, the form a per method invoker built at
+     * export time would have.
+     */
+    private static void compareInvokes() throws Throwable {
+	Method m = Many.class.getMethod("a", int.class, int.class);
+	MethodHandle h = MethodHandles.publicLookup().unreflect(m)
+	    .asSpreader(Object[].class, 2)
+	    .asType(MethodType.methodType(
+		Object.class, Object.class, Object[].class));
+	Object impl = new Impl();
+	Object[] args = { Integer.valueOf(1), Integer.valueOf(2) };
+	for (int round = 0; round < 3; round++) {
+	    long sum = 0;
+	    long start = System.nanoTime();
+	    for (int n = 0; n < LOOKUPS; n++) {
+		sum += ((Integer) m.invoke(impl, args)).intValue();
+	    }
+	    long reflect = System.nanoTime() - start;
+	    start = System.nanoTime();
+	    for (int n = 0; n < LOOKUPS; n++) {
+		sum += ((Integer) (Object) h.invokeExact(impl, args)).intValue();
+	    }
+	    long handle = System.nanoTime() - start;
+	    if (sum != 2L * LOOKUPS * 14) {
+		throw new RuntimeException("TEST FAILED: wrong results " + sum);
+	    }
+	    System.err.println("round " + round +
+		", Method.invoke time (ns): " + reflect / LOOKUPS +
+		", MethodHandle.invokeExact time (ns): " + handle / LOOKUPS);
+	}
+    }
+
+    private static void checkUnknownHash() throws Exception {
+	Dispatcher d = new Dispatcher(Arrays.asList(Many.class.getMethods()));
+	try {
+	    Method m = d.unmarshal(42L);
+	    throw new RuntimeException("TEST FAILED: unknown hash returned " + m);
+	} catch (NoSuchMethodException e) {
+	}
+    }
+
+    private static byte[] streamHeader() throws IOException {
+	ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	new ObjectOutputStream(bout).close();
+	return bout.toByteArray();
+    }
+}
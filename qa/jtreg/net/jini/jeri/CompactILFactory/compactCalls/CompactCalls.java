@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that proxies and dispatchers from CompactILFactory
+ * pass arguments, results and exceptions of remote methods with only
+ * compact types, and of other remote methods, unchanged, including
+ * through a proxy copied with new constraints.  Reports the heap bytes
+ * allocated per call with CompactILFactory and with BasicILFactory.
+ *
+ * @build CompactCalls
+ * @run main/othervm CompactCalls
+ */
+
+import java.lang.management.ManagementFactory;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Date;
+import net.jini.core.constraint.RemoteMethodControl;
+import net.jini.export.Exporter;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.CompactILFactory;
+import net.jini.jeri.InvocationLayerFactory;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+
+public class CompactCalls {
+
+    public interface Echo extends Remote {
+	long echo(long x) throws RemoteException;
+	double echo(double x) throws RemoteException;
+	String echo(String s) throws RemoteException;
+	Uuid echo(Uuid u) throws RemoteException;
+	byte[] echo(byte[] b) throws RemoteException;
+	int[] echo(int[] a) throws RemoteException;
+	char[] echo(char[] a) throws RemoteException;
+	String[] echo(String[] a) throws RemoteException;
+	Uuid[] echo(Uuid[] a) throws RemoteException;
+	int sum(int x, long y, short z, byte w, boolean b)
+	    throws RemoteException;
+	void fail(String message) throws RemoteException, AppException;
+	Object echo(Object o) throws RemoteException;
+    }
+
+    public static class AppException extends Exception {
+	public AppException(String message) { super(message); }
+    }
+
+    public static class EchoImpl implements Echo {
+	EchoImpl() { }
+	public long echo(long x) { return x; }
+	public double echo(double x) { return x; }
+	public String echo(String s) { return s; }
+	public Uuid echo(Uuid u) { return u; }
+	public byte[] echo(byte[] b) { return b; }
+	public int[] echo(int[] a) { return a; }
+	public char[] echo(char[] a) { return a; }
+	public String[] echo(String[] a) { return a; }
+	public Uuid[] echo(Uuid[] a) { return a; }
+	public int sum(int x, long y, short z, byte w, boolean b) {
+	    return x + (int) y + z + w + (b ? 1 : 0);
+	}
+	public void fail(String message) throws AppException {
+	    throw new AppException(message);
+	}
+	public Object echo(Object o) { return o; }
+    }
+
+    private static final int CALLS = 20000;
+
+    /** the exported remote object, kept strongly reachable */
+    private static EchoImpl impl;
+
+    public static void main(String[] args) throws Exception {
+	Exporter exporter =
+	    new BasicJeriExporter(TcpServerEndpoint.getInstance(0),
+				  new CompactILFactory(), false, false);
+	impl = new EchoImpl();
+	try {
+	    Echo proxy = (Echo) exporter.export(impl);
+	    check(proxy);
+	    check((Echo) ((RemoteMethodControl) proxy).setConstraints(null));
+	} finally {
+	    exporter.unexport(true);
+	}
+	if (ManagementFactory.getThreadMXBean() instanceof
+	    com.sun.management.ThreadMXBean)
+	{
+	    System.err.println("factory  bytes allocated per call");
+	    System.err.println("compact  " + measure(new CompactILFactory()));
+	    System.err.println("basic  " + measure(new BasicILFactory()));
+	}
+	System.err.println("TEST PASSED");
+    }
+
+    private static void check(Echo proxy) throws Exception {
+	StringBuilder sb = new StringBuilder("\u0000a\u00e9\u20ac");
+	while (sb.length() < 70000) {
+	    sb.append(sb);
+	}
+	String longString = sb.toString();
+	Uuid uuid = UuidFactory.generate();
+	byte[] bytes = new byte[3000];
+	for (int i = 0; i < bytes.length; i++) {
+	    bytes[i] = (byte) i;
+	}
+	Date date = new Date();
+
+	expect(proxy.echo(Long.MIN_VALUE) == Long.MIN_VALUE, "long");
+	expect(proxy.echo(-0.5d) == -0.5d, "double");
+	expect(proxy.echo("hello").equals("hello"), "string");
+	expect(proxy.echo(longString).equals(longString), "long string");
+	expect(proxy.echo((String) null) == null, "null string");
+	expect(proxy.echo(uuid).equals(uuid), "uuid");
+	expect(Arrays.equals(proxy.echo(bytes), bytes), "byte[]");
+	expect(Arrays.equals(proxy.echo(new int[] { 1, -2, 3 }),
+			     new int[] { 1, -2, 3 }), "int[]");
+	expect(Arrays.equals(proxy.echo("\u20acx".toCharArray()),
+			     "\u20acx".toCharArray()), "char[]");
+	expect(proxy.echo((int[]) null) == null, "null int[]");
+	String[] strings = { "a", null, longString };
+	expect(Arrays.equals(proxy.echo(strings), strings), "String[]");
+	Uuid[] uuids = { uuid, null };
+	expect(Arrays.equals(proxy.echo(uuids), uuids), "Uuid[]");
+	expect(proxy.sum(1, 2L, (short) 3, (byte) 4, true) == 11, "sum");
+	try {
+	    proxy.fail("expected");
+	    throw new RuntimeException("TEST FAILED: no exception");
+	} catch (AppException e) {
+	    expect(e.getMessage().equals("expected"), "exception");
+	}
+	expect(proxy.echo((Object) date).equals(date), "Object");
+	expect(proxy.echo((Object) uuids) instanceof Uuid[], "Object Uuid[]");
+    }
+
+    private static void expect(boolean ok, String what) {
+	if (!ok) {
+	    throw new RuntimeException("TEST FAILED: " + what);
+	}
+    }
+
+    private static long measure(InvocationLayerFactory ilf) throws Exception {
+	Exporter exporter =
+	    new BasicJeriExporter(TcpServerEndpoint.getInstance(0),
+				  ilf, false, false);
+	impl = new EchoImpl();
+	try {
+	    Echo proxy = (Echo) exporter.export(impl);
+	    Uuid uuid = UuidFactory.generate();
+	    for (int i = 0; i < CALLS; i++) {		// warm up
+		proxy.echo(uuid);
+	    }
+	    long before = allocatedBytes();
+	    for (int i = 0; i < CALLS; i++) {
+		proxy.echo(uuid);
+	    }
+	    return (allocatedBytes() - before) / CALLS;
+	} finally {
+	    exporter.unexport(true);
+	}
+    }
+
+    /** Returns the bytes allocated so far by all live threads. */
+    private static long allocatedBytes() {
+	com.sun.management.ThreadMXBean bean =
+	    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	long total = 0;
+	for (long bytes :
+		 bean.getThreadAllocatedBytes(bean.getAllThreadIds()))
+	{
+	    if (bytes > 0) {
+		total += bytes;
+	    }
+	}
+	return total;
+    }
+}
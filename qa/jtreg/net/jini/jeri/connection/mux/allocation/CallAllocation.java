@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Measures the heap bytes allocated, by all threads, per small
+ * remote call round trip over a multiplexed connection, for connections
+ * over socket channels and over plain sockets.  The number of calls to
+ * measure may be given as an argument.
+ *
+ * @build CallAllocation
+ * @run main/othervm CallAllocation 20000
+ */
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import javax.net.SocketFactory;
+import net.jini.export.Exporter;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.InvocationLayerFactory;
+import net.jini.jeri.ServerEndpoint;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+
+public class CallAllocation {
+
+    /** the impl, stored once unexported so it stays reachable till then */
+    private static volatile Object reachable;
+
+    public interface Echo extends Remote {
+	int echo(int i) throws RemoteException;
+    }
+
+    public static class EchoImpl implements Echo {
+	EchoImpl() { }
+	public int echo(int i) { return i; }
+    }
+
+    /**
+     * Creates sockets with channels, so that the client side of the
+     * connection uses non-blocking I/O too.
+     */
+    private static class ChannelSF extends SocketFactory
+	implements Serializable
+    {
+	ChannelSF() { }
+	public Socket createSocket() throws IOException {
+	    return SocketChannel.open().socket();
+	}
+	public Socket createSocket(String host, int port) throws IOException {
+	    Socket s = createSocket();
+	    s.connect(new InetSocketAddress(host, port));
+	    return s;
+	}
+	public Socket createSocket(String host, int port,
+				   InetAddress localAddr,
+				   int localPort)
+	    throws IOException
+	{
+	    Socket s = createSocket();
+	    s.bind(new InetSocketAddress(localAddr, localPort));
+	    s.connect(new InetSocketAddress(host, port));
+	    return s;
+	}
+	public Socket createSocket(InetAddress host, int port)
+	    throws IOException
+	{
+	    Socket s = createSocket();
+	    s.connect(new InetSocketAddress(host, port));
+	    return s;
+	}
+	public Socket createSocket(InetAddress host, int port,
+				   InetAddress localAddr,
+				   int localPort)
+	    throws IOException
+	{
+	    Socket s = createSocket();
+	    s.bind(new InetSocketAddress(localAddr, localPort));
+	    s.connect(new InetSocketAddress(host, port));
+	    return s;
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+	if (!(ManagementFactory.getThreadMXBean() instanceof
+	      com.sun.management.ThreadMXBean))
+	{
+	    System.err.println("thread allocation counts not supported, " +
+			       "nothing to measure");
+	    return;
+	}
+	System.err.println("connection  bytes allocated per call");
+	System.err.println("channel  " + measure(new ChannelSF(), calls));
+	System.err.println("socket  " + measure(null, calls));
+	System.err.println("TEST PASSED");
+    }
+
+    private static long measure(SocketFactory sf, int calls)
+	throws Exception
+    {
+	ServerEndpoint se = TcpServerEndpoint.getInstance("localhost", 0, sf, null);
+	InvocationLayerFactory ilf =
+	    new BasicILFactory(null, null, EchoImpl.class.getClassLoader());
+	Exporter exporter = new BasicJeriExporter(se, ilf, false, false);
+	EchoImpl impl = new EchoImpl();
+	try {
+	    Echo proxy = (Echo) exporter.export(impl);
+	    for (int i = 0; i < calls; i++) {		// warm up
+		proxy.echo(i);
+	    }
+	    long before = allocatedBytes();
+	    for (int i = 0; i < calls; i++) {
+		if (proxy.echo(i) != i) {
+		    throw new RuntimeException("wrong result");
+		}
+	    }
+	    return (allocatedBytes() - before) / calls;
+	} finally {
+	    exporter.unexport(true);
+	    reachable = impl;
+	}
+    }
+
+    /** Returns the bytes allocated so far by all live threads. */
+    private static long allocatedBytes() {
+	com.sun.management.ThreadMXBean bean =
+	    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	long total = 0;
+	for (long bytes :
+		 bean.getThreadAllocatedBytes(bean.getAllThreadIds()))
+	{
+	    if (bytes > 0) {
+		total += bytes;
+	    }
+	}
+	return total;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that, with class descriptor caching enabled on both
+ * ends of a connection, calls after the first few send much less data
+ * than the first, that a call that fails while marshalling a class
+ * descriptor does not keep the descriptors numbered after it from being
+ * cached, and that concurrent calls over the connection still return
+ * the right results.
+ *
+ * @build DescriptorCache
+ * @run main/othervm -Dorg.apache.river.jeri.descriptorCache=true
+ *     DescriptorCache
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.SocketFactory;
+import net.jini.export.Exporter;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.InvocationLayerFactory;
+import net.jini.jeri.ServerEndpoint;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+
+public class DescriptorCache {
+
+    private static final int THREADS = 8;
+    private static final int CALLS = 500;
+
+    /** bytes written by client sockets */
+    private static final AtomicLong written = new AtomicLong();
+
+    /**
+     * The exporter does not keep the impl alive, so the test stores it
+     * here after unexporting it to keep it reachable until then.
+     */
+    private static volatile Object reachable;
+
+    public interface Echo extends Remote {
+	Value echo(Value v) throws RemoteException;
+	Object echoObject(Object o) throws RemoteException;
+    }
+
+    public static class EchoImpl implements Echo {
+	EchoImpl() { }
+	public Value echo(Value v) { return v; }
+	public Object echoObject(Object o) { return o; }
+    }
+
+    public static class Value implements Serializable {
+	private static final long serialVersionUID = 1L;
+	final int firstNumericComponent;
+	final long secondNumericComponent;
+	final String descriptiveLabelText;
+	final Part containedPartReference;
+
+	Value(int i) {
+	    firstNumericComponent = i;
+	    secondNumericComponent = i * 31L;
+	    descriptiveLabelText = "v" + i;
+	    containedPartReference = new Part(i);
+	}
+
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof Value)) {
+		return false;
+	    }
+	    Value v = (Value) obj;
+	    return firstNumericComponent == v.firstNumericComponent &&
+		secondNumericComponent == v.secondNumericComponent &&
+		descriptiveLabelText.equals(v.descriptiveLabelText) &&
+		containedPartReference.partIdentifierNumber ==
+		    v.containedPartReference.partIdentifierNumber;
+	}
+
+	public int hashCode() {
+	    return firstNumericComponent;
+	}
+    }
+
+    public static class Part implements Serializable {
+	private static final long serialVersionUID = 1L;
+	final int partIdentifierNumber;
+	final double partMeasurementValue;
+
+	Part(int i) {
+	    partIdentifierNumber = i;
+	    partMeasurementValue = i / 2.0;
+	}
+    }
+
+    /**
+     * Fails to serialize, after its class descriptor has been written,
+     * so the call passing it is aborted.
+     */
+    public static class Unwritable implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+	    throw new IOException("not written");
+	}
+    }
+
+    /** A class first written after an aborted call. */
+    public static class Later implements Serializable {
+	private static final long serialVersionUID = 1L;
+	final int laterComponentValue;
+	final String laterDescriptiveText;
+
+	Later(int i) {
+	    laterComponentValue = i;
+	    laterDescriptiveText = "later" + i;
+	}
+
+	public boolean equals(Object obj) {
+	    return obj instanceof Later &&
+		((Later) obj).laterComponentValue == laterComponentValue;
+	}
+
+	public int hashCode() {
+	    return laterComponentValue;
+	}
+    }
+
+    /** Counts the bytes written by the sockets it creates. */
+    private static class CountingSF extends SocketFactory
+	implements Serializable
+    {
+	CountingSF() { }
+	public Socket createSocket() throws IOException {
+	    return new Socket() {
+		public OutputStream getOutputStream() throws IOException {
+		    return new FilterOutputStream(super.getOutputStream()) {
+			public void write(int b) throws IOException {
+			    out.write(b);
+			    written.incrementAndGet();
+			}
+			public void write(byte[] b, int off, int len)
+			    throws IOException
+			{
+			    out.write(b, off, len);
+			    written.addAndGet(len);
+			}
+		    };
+		}
+	    };
+	}
+	public Socket createSocket(String host, int port) throws IOException {
+	    throw new UnsupportedOperationException();
+	}
+	public Socket createSocket(String host, int port,
+				   InetAddress localAddr, int localPort)
+	{
+	    throw new UnsupportedOperationException();
+	}
+	public Socket createSocket(InetAddress host, int port) {
+	    throw new UnsupportedOperationException();
+	}
+	public Socket createSocket(InetAddress host, int port,
+				   InetAddress localAddr, int localPort)
+	{
+	    throw new UnsupportedOperationException();
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	ServerEndpoint se =
+	    TcpServerEndpoint.getInstance("localhost", 0, new CountingSF(),
+					  null);
+	InvocationLayerFactory ilf =
+	    new BasicILFactory(null, null, EchoImpl.class.getClassLoader());
+	Exporter exporter = new BasicJeriExporter(se, ilf, false, false);
+	EchoImpl impl = new EchoImpl();
+	try {
+	    final Echo proxy = (Echo) exporter.export(impl);
+
+	    long before = written.get();
+	    check(proxy, 0);
+	    long first = written.get() - before;
+	    for (int i = 1; i < 10; i++) {
+		check(proxy, i);
+	    }
+	    before = written.get();
+	    for (int i = 0; i < 100; i++) {
+		check(proxy, i);
+	    }
+	    long later = (written.get() - before) / 100;
+	    System.err.println("bytes written by first call: " + first +
+			       ", by later calls: " + later);
+	    if (later * 2 > first) {
+		throw new RuntimeException("TEST FAILED: class descriptors " +
+					   "not cached");
+	    }
+
+	    checkAborted(proxy);
+
+	    final List<Throwable> failures = new ArrayList<Throwable>();
+	    Thread[] threads = new Thread[THREADS];
+	    for (int t = 0; t < THREADS; t++) {
+		final int base = t * CALLS;
+		threads[t] = new Thread() {
+		    public void run() {
+			try {
+			    for (int i = 0; i < CALLS; i++) {
+				check(proxy, base + i);
+			    }
+			} catch (Throwable e) {
+			    synchronized (failures) {
+				failures.add(e);
+			    }
+			}
+		    }
+		};
+		threads[t].start();
+	    }
+	    for (int t = 0; t < THREADS; t++) {
+		threads[t].join();
+	    }
+	    if (!failures.isEmpty()) {
+		throw new RuntimeException("TEST FAILED: concurrent call " +
+					   "failed", failures.get(0));
+	    }
+	} finally {
+	    exporter.unexport(true);
+	    reachable = impl;
+	}
+	System.err.println("TEST PASSED");
+    }
+
+    /**
+     * Aborts a call after the descriptor of Unwritable is written, never
+     * to be sent again, then checks that Later, numbered after it, is
+     * written by number once the server has it.
+     */
+    private static void checkAborted(Echo proxy) throws RemoteException {
+	try {
+	    proxy.echoObject(new Unwritable());
+	    throw new RuntimeException("TEST FAILED: Unwritable written");
+	} catch (RemoteException e) {
+	    if (!(e.getCause() instanceof IOException) ||
+		!"not written".equals(e.getCause().getMessage()))
+	    {
+		throw e;
+	    }
+	}
+	long before = written.get();
+	checkObject(proxy, new Later(0));
+	long first = written.get() - before;
+	for (int i = 1; i < 10; i++) {
+	    checkObject(proxy, new Later(i));
+	}
+	before = written.get();
+	for (int i = 0; i < 100; i++) {
+	    checkObject(proxy, new Later(i));
+	}
+	long later = (written.get() - before) / 100;
+	System.err.println("after an aborted call, bytes written by first " +
+			   "call: " + first + ", by later calls: " + later);
+	if (later * 2 > first) {
+	    throw new RuntimeException("TEST FAILED: class descriptors " +
+				       "not cached after an aborted call");
+	}
+    }
+
+    private static void checkObject(Echo proxy, Object o)
+	throws RemoteException
+    {
+	if (!o.equals(proxy.echoObject(o))) {
+	    throw new RuntimeException("TEST FAILED: wrong object returned");
+	}
+    }
+
+    private static void check(Echo proxy, int i) throws RemoteException {
+	Value v = new Value(i);
+	if (!v.equals(proxy.echo(v))) {
+	    throw new RuntimeException("TEST FAILED: wrong value returned");
+	}
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that with org.apache.river.thread.virtualThreads
+ * set, incoming remote calls over a multiplexed connection are
+ * dispatched in virtual threads when the runtime supports them, and in
+ * platform threads of the user thread group when it does not, and that
+ * calls blocked together, and calls made from a dispatched call, all
+ * complete either way.
+ *
+ * @build VirtualThreadCalls
+ * @run main/othervm -Dorg.apache.river.thread.virtualThreads=true
+ *      VirtualThreadCalls
+ */
+
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.jini.export.Exporter;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.InvocationLayerFactory;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+
+public class VirtualThreadCalls {
+
+    /** calls blocked in the server at the same time */
+    private static final int BLOCKED_CALLS = 100;
+
+    /** thread group of platform threads in the user thread pool */
+    private static final String USER_GROUP = "(JSK) Runtime";
+
+    /** Thread.isVirtual, or null if the runtime has no virtual threads */
+    private static final Method isVirtual;
+    static {
+	Method m = null;
+	try {
+	    m = Thread.class.getMethod("isVirtual");
+	} catch (NoSuchMethodException e) {
+	}
+	isVirtual = m;
+    }
+
+    /** the impls, stored once unexported so they stay reachable till then */
+    private static volatile Object reachable;
+
+    public interface Where extends Remote {
+	/** Describes the thread the call was dispatched in */
+	String where() throws RemoteException;
+
+	/** Describes the thread a call to other was dispatched in */
+	String relay(Where other) throws RemoteException;
+
+	/**
+	 * Waits for BLOCKED_CALLS calls to this method to arrive, returning
+	 * false if they do not arrive within a minute
+	 */
+	boolean rendezvous() throws RemoteException;
+    }
+
+    public static class WhereImpl implements Where {
+	private final CountDownLatch arrived =
+	    new CountDownLatch(BLOCKED_CALLS);
+
+	WhereImpl() { }
+
+	public String where() {
+	    return describe(Thread.currentThread());
+	}
+
+	public String relay(Where other) throws RemoteException {
+	    String here = where();
+	    String there = other.where();
+	    return here.equals(there) ? here : here + " then " + there;
+	}
+
+	public boolean rendezvous() {
+	    arrived.countDown();
+	    try {
+		return arrived.await(60, TimeUnit.SECONDS);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return false;
+	    }
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	String expected = isVirtual != null ? "virtual" : USER_GROUP;
+	System.err.println("runtime " + System.getProperty("java.version") +
+			   ", expecting calls in " + expected + " threads");
+	Exporter exporter = exporter();
+	Exporter otherExporter = exporter();
+	WhereImpl impl = new WhereImpl();
+	WhereImpl otherImpl = new WhereImpl();
+	final Where proxy = (Where) exporter.export(impl);
+	Where other = (Where) otherExporter.export(otherImpl);
+	try {
+
+	    check("call", proxy.where(), expected);
+
+	    // An outbound call made from a dispatched call
+	    check("relayed call", proxy.relay(other), expected);
+
+	    // Calls that only return once all of them are dispatched
+	    final List<Throwable> failures = new ArrayList<Throwable>();
+	    List<Thread> callers = new ArrayList<Thread>();
+	    for (int i = 0; i < BLOCKED_CALLS; i++) {
+		callers.add(new Thread() {
+		    public void run() {
+			try {
+			    if (!proxy.rendezvous()) {
+				throw new RuntimeException(
+				    "calls not dispatched together");
+			    }
+			} catch (Throwable t) {
+			    synchronized (failures) {
+				failures.add(t);
+			    }
+			}
+		    }
+		});
+	    }
+	    for (Thread t : callers) {
+		t.start();
+	    }
+	    for (Thread t : callers) {
+		t.join();
+	    }
+	    if (!failures.isEmpty()) {
+		throw new RuntimeException("TEST FAILED: blocked call failed",
+					   failures.get(0));
+	    }
+	    System.err.println(BLOCKED_CALLS + " blocked calls: ok");
+	} finally {
+	    exporter.unexport(true);
+	    otherExporter.unexport(true);
+	    reachable = new Object[] { impl, otherImpl };
+	}
+	System.err.println("TEST PASSED");
+    }
+
+    private static Exporter exporter() {
+	InvocationLayerFactory ilf =
+	    new BasicILFactory(null, null, WhereImpl.class.getClassLoader());
+	return new BasicJeriExporter(
+	    TcpServerEndpoint.getInstance("localhost", 0), ilf, false, false);
+    }
+
+    /**
+     * Returns "virtual" for a virtual thread, else the name of the
+     * thread's group.
+     */
+    private static String describe(Thread thread) {
+	try {
+	    if (isVirtual != null &&
+		((Boolean) isVirtual.invoke(thread)).booleanValue())
+	    {
+		return "virtual";
+	    }
+	} catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+	ThreadGroup group = thread.getThreadGroup();
+	return group == null ? "no group" : group.getName();
+    }
+
+    private static void check(String what, String where, String expected) {
+	System.err.println(what + " dispatched in " + where + " thread");
+	if (!where.equals(expected)) {
+	    throw new RuntimeException("TEST FAILED: " + what +
+				       " dispatched in " + where +
+				       " thread, expected " + expected);
+	}
+    }
+}
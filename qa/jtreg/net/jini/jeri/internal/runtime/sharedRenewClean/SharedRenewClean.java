@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that client-side DGC does not start a thread per
+ * endpoint it holds references to, that its DgcClient MXBean counts the
+ * endpoints and references held, and that clean calls are made for
+ * references that become unreachable.
+ *
+ * @build SharedRenewClean
+ * @run main/othervm SharedRenewClean
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ServerSocketFactory;
+import net.jini.export.Exporter;
+import net.jini.io.MarshalledInstance;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+
+public class SharedRenewClean {
+
+    private static final int ENDPOINTS = 50;
+
+    public interface Ping extends Remote {
+	void ping() throws RemoteException;
+    }
+
+    public static class PingImpl implements Ping {
+	PingImpl() { }
+	public void ping() { }
+    }
+
+    /**
+     * Server socket factories that are equal only if their ids are, so
+     * that each endpoint gets a listen endpoint, and port, of its own.
+     */
+    private static class SSF extends ServerSocketFactory {
+	private final int id;
+	SSF(int id) { this.id = id; }
+	public ServerSocket createServerSocket() throws IOException {
+	    return new ServerSocket();
+	}
+	public ServerSocket createServerSocket(int port) throws IOException {
+	    return new ServerSocket(port);
+	}
+	public ServerSocket createServerSocket(int port, int backlog)
+	    throws IOException
+	{
+	    return new ServerSocket(port, backlog);
+	}
+	public ServerSocket createServerSocket(int port, int backlog,
+					       InetAddress addr)
+	    throws IOException
+	{
+	    return new ServerSocket(port, backlog, addr);
+	}
+	public int hashCode() { return id; }
+	public boolean equals(Object obj) {
+	    return obj instanceof SSF && ((SSF) obj).id == id;
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+	ObjectName name = new ObjectName("org.apache.river.jeri:type=DgcClient");
+
+	List<Exporter> exporters = new ArrayList<Exporter>();
+	List<PingImpl> impls = new ArrayList<PingImpl>();
+	List<MarshalledInstance> stubs = new ArrayList<MarshalledInstance>();
+	for (int i = 0; i < ENDPOINTS; i++) {
+	    Exporter exporter = new BasicJeriExporter(
+		TcpServerEndpoint.getInstance(null, 0, null, new SSF(i)),
+		new BasicILFactory(),
+		true, false);
+	    PingImpl impl = new PingImpl();
+	    stubs.add(new MarshalledInstance(exporter.export(impl)));
+	    exporters.add(exporter);
+	    impls.add(impl);
+	}
+
+	try {
+	    List<Ping> proxies = new ArrayList<Ping>();
+	    for (MarshalledInstance mi : stubs) {
+		Ping proxy = (Ping) mi.get(false);	// registers DGC refs
+		proxy.ping();
+		proxies.add(proxy);
+	    }
+	    int dgcThreads = 0;
+	    for (Thread t : Thread.getAllStackTraces().keySet()) {
+		// NewThreadAction prefixes thread names with "(JSK) "
+		if (t.getName().contains("RenewClean")) {
+		    dgcThreads++;
+		}
+	    }
+	    System.err.println("DGC threads: " + dgcThreads);
+
+	    int endpoints =
+		((Integer) mbs.getAttribute(name, "EndpointCount")).intValue();
+	    int refs =
+		((Integer) mbs.getAttribute(name, "ReferenceCount")).intValue();
+	    System.err.println("endpoints: " + endpoints + ", references: " +
+			       refs + ", mean dirty call latency (ms): " +
+			       mbs.getAttribute(name, "MeanDirtyCallLatency"));
+	    if (endpoints != ENDPOINTS || refs != ENDPOINTS) {
+		throw new RuntimeException("TEST FAILED: expected " +
+		    ENDPOINTS + " endpoints and references");
+	    }
+	    if (dgcThreads == 0) {
+		throw new RuntimeException("TEST FAILED: no DGC threads found");
+	    }
+	    // the reaper, the scheduler, and the few pool threads left from
+	    // the dirty calls, which are made one after another
+	    if (dgcThreads > 5) {
+		throw new RuntimeException("TEST FAILED: " + dgcThreads +
+					   " DGC threads for " + ENDPOINTS +
+					   " endpoints");
+	    }
+
+	    proxies = null;
+	    long deadline = System.currentTimeMillis() + 30000;
+	    while (((Integer) mbs.getAttribute(name, "ReferenceCount"))
+		       .intValue() > 0)
+	    {
+		if (System.currentTimeMillis() > deadline) {
+		    throw new RuntimeException("TEST FAILED: references " +
+			"still held: " +
+			mbs.getAttribute(name, "ReferenceCount"));
+		}
+		System.gc();
+		Thread.sleep(200);
+	    }
+	    System.err.println("TEST PASSED");
+	} finally {
+	    for (Exporter exporter : exporters) {
+		exporter.unexport(true);
+	    }
+	}
+    }
+}
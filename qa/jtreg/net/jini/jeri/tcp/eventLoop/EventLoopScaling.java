@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Measures the number of live threads and the 99th percentile
+ * latency of remote calls as the number of mostly idle connections to a
+ * TcpServerEndpoint in event loop mode grows, and verifies that the
+ * thread count does not grow with the connection count.  The connection
+ * counts to measure may be given as arguments.
+ *
+ * @build EventLoopScaling
+ * @run main/othervm -Dorg.apache.river.jeri.tcp.eventLoop=true
+ *     -Dorg.apache.river.jeri.connection.mux.server.dispatchThreads=16
+ *     EventLoopScaling 50 200 800
+ */
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.SocketFactory;
+import net.jini.export.Exporter;
+import net.jini.io.MarshalledInstance;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.InvocationLayerFactory;
+import net.jini.jeri.ServerEndpoint;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+
+public class EventLoopScaling {
+
+    private static final int CALLS = 2000;
+
+    /** the impl, stored once unexported so it stays reachable till then */
+    private static volatile Object reachable;
+
+    public interface Ping extends Remote {
+	void ping() throws RemoteException;
+    }
+
+    public static class PingImpl implements Ping {
+	PingImpl() { }
+	public void ping() { }
+    }
+
+    /**
+     * Creates sockets with channels, so that client connections are
+     * serviced by selector threads too.  Does not override equals, so
+     * each copy of a proxy gets a connection of its own.
+     */
+    private static class SF extends SocketFactory implements Serializable {
+	SF() { }
+	public Socket createSocket() throws IOException {
+	    return SocketChannel.open().socket();
+	}
+	public Socket createSocket(String host, int port) throws IOException {
+	    Socket s = createSocket();
+	    s.connect(new InetSocketAddress(host, port));
+	    return s;
+	}
+	public Socket createSocket(String host, int port,
+				   InetAddress localAddr,
+				   int localPort)
+	    throws IOException
+	{
+	    Socket s = createSocket();
+	    s.bind(new InetSocketAddress(localAddr, localPort));
+	    s.connect(new InetSocketAddress(host, port));
+	    return s;
+	}
+	public Socket createSocket(InetAddress host, int port)
+	    throws IOException
+	{
+	    Socket s = createSocket();
+	    s.connect(new InetSocketAddress(host, port));
+	    return s;
+	}
+	public Socket createSocket(InetAddress host, int port,
+				   InetAddress localAddr,
+				   int localPort)
+	    throws IOException
+	{
+	    Socket s = createSocket();
+	    s.bind(new InetSocketAddress(localAddr, localPort));
+	    s.connect(new InetSocketAddress(host, port));
+	    return s;
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	int[] counts = new int[args.length > 0 ? args.length : 3];
+	for (int i = 0; i < counts.length; i++) {
+	    counts[i] = args.length > 0 ? Integer.parseInt(args[i])
+					: 50 << (2 * i);
+	}
+	Arrays.sort(counts);
+
+	ServerEndpoint se =
+	    TcpServerEndpoint.getInstance("localhost", 0, new SF(), null);
+	InvocationLayerFactory ilf =
+	    new BasicILFactory(null, null, PingImpl.class.getClassLoader());
+	Exporter exporter = new BasicJeriExporter(se, ilf, false, false);
+	PingImpl impl = new PingImpl();
+	MarshalledInstance mi =
+	    new MarshalledInstance(exporter.export(impl));
+
+	List<Ping> proxies = new ArrayList<Ping>();
+	int[] threads = new int[counts.length];
+	System.err.println("connections  threads  p99 latency (us)");
+	try {
+	    for (int i = 0; i < counts.length; i++) {
+		while (proxies.size() < counts[i]) {
+		    Ping proxy = (Ping) mi.get(false);
+		    proxy.ping();		// open its connection
+		    proxies.add(proxy);
+		}
+		long[] latency = new long[CALLS];
+		for (int c = 0; c < CALLS; c++) {
+		    Ping proxy = proxies.get(c % proxies.size());
+		    long start = System.nanoTime();
+		    proxy.ping();
+		    latency[c] = System.nanoTime() - start;
+		}
+		Arrays.sort(latency);
+		threads[i] =
+		    ManagementFactory.getThreadMXBean().getThreadCount();
+		System.err.println(counts[i] + "  " + threads[i] + "  " +
+				   latency[CALLS * 99 / 100] / 1000);
+	    }
+	} finally {
+	    exporter.unexport(true);
+	    reachable = impl;
+	}
+
+	int growth = threads[threads.length - 1] - threads[0];
+	int added = counts[counts.length - 1] - counts[0];
+	if (growth > added / 10) {
+	    throw new RuntimeException("thread count grew by " + growth +
+				       " for " + added + " connections");
+	}
+	System.err.println("TEST PASSED");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that ClassLoading remembers the codebases it has
+ * verified to provide content integrity for all threads, counts the
+ * verifications it performs and skips, does not remember codebases that
+ * fail verification, and verifies codebases again after they are
+ * invalidated, which requires RuntimePermission("setFactory").  The
+ * test's integrity verifier trusts only its own codebase, and counts how
+ * often it is asked.
+ *
+ * @build VerifiedCodebaseCache
+ * @run main/othervm VerifiedCodebaseCache
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.Permission;
+import java.security.Policy;
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.jini.loader.ClassLoading;
+import net.jini.security.IntegrityVerifier;
+
+public class VerifiedCodebaseCache {
+
+    private static final int THREADS = 8;
+
+    private static final ClassLoader verifierLoader =
+	VerifiedCodebaseCache.class.getClassLoader();
+
+    /** the codebase the test's integrity verifier trusts */
+    private static String codebase;
+
+    /** number of calls to the test's integrity verifier */
+    private static final AtomicInteger verifications = new AtomicInteger();
+
+    public static class TestVerifier implements IntegrityVerifier {
+	public TestVerifier() { }
+
+	public boolean providesIntegrity(URL url) {
+	    verifications.incrementAndGet();
+	    return url.toString().equals(codebase);
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	File classes = new File(System.getProperty("test.classes", "."));
+	codebase = classes.toURI().toString();
+	File services = new File(classes, "META-INF/services");
+	services.mkdirs();
+	OutputStream out = new FileOutputStream(
+	    new File(services, IntegrityVerifier.class.getName()));
+	out.write((TestVerifier.class.getName() + "\n").getBytes("UTF-8"));
+	out.close();
+
+	load(codebase);
+	check(0, 1, "first load");
+
+	Thread[] threads = new Thread[THREADS];
+	final Exception[] failure = new Exception[1];
+	for (int i = 0; i < THREADS; i++) {
+	    threads[i] = new Thread() {
+		public void run() {
+		    try {
+			load(codebase);
+		    } catch (Exception e) {
+			failure[0] = e;
+		    }
+		}
+	    };
+	    threads[i].start();
+	}
+	for (int i = 0; i < THREADS; i++) {
+	    threads[i].join();
+	}
+	if (failure[0] != null) {
+	    throw failure[0];
+	}
+	check(THREADS, 1, "load in other threads");
+
+	ClassLoading.invalidateVerifiedCodebases(codebase);
+	load(codebase);
+	check(THREADS, 2, "load after invalidating codebase");
+	load(codebase);
+	check(THREADS + 1, 2, "load again");
+
+	ClassLoading.invalidateVerifiedCodebases(null);
+	load(codebase);
+	check(THREADS + 1, 3, "load after invalidating all");
+
+	/* http: URLs do not provide integrity, so are never remembered */
+	String unverified = "http://localhost:1/";
+	for (int i = 0; i < 2; i++) {
+	    ClassLoading.loadClass(unverified, "VerifiedCodebaseCache",
+				   null, true, verifierLoader);
+	}
+	check(THREADS + 1, 5, "load from codebase failing verification");
+	if (verifications.get() != 5) {
+	    throw new RuntimeException("TEST FAILED: " + verifications +
+				       " calls to integrity verifier");
+	}
+
+	/* Invalidating needs the permission that replacing the provider
+	 * needs */
+	Policy.setPolicy(new Policy() {
+	    public boolean implies(ProtectionDomain domain, Permission p) {
+		return !p.equals(new RuntimePermission("setFactory"));
+	    }
+	});
+	System.setSecurityManager(new SecurityManager());
+	try {
+	    ClassLoading.invalidateVerifiedCodebases(null);
+	    throw new RuntimeException("TEST FAILED: invalidated without " +
+				       "permission");
+	} catch (SecurityException e) {
+	} finally {
+	    System.setSecurityManager(null);
+	}
+
+	System.err.println("TEST PASSED");
+    }
+
+    private static void load(String codebase) throws Exception {
+	Class c = ClassLoading.loadClass(codebase, "VerifiedCodebaseCache",
+					 verifierLoader, true, verifierLoader);
+	if (c != VerifiedCodebaseCache.class) {
+	    throw new RuntimeException("TEST FAILED: loaded " + c);
+	}
+    }
+
+    private static void check(long hits, long misses, String what) {
+	long h = ClassLoading.getVerifiedCodebaseHits();
+	long m = ClassLoading.getVerifiedCodebaseMisses();
+	System.err.println(what + ": " + h + " hits, " + m + " misses");
+	if (h != hits || m != misses) {
+	    throw new RuntimeException("TEST FAILED: " + what);
+	}
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that PreferredClassLoader reads JAR files at HTTP URLs
+ * from the on-disk JAR cache: a JAR file is downloaded once, stored under
+ * its digest, revalidated with a conditional request, and evicted when the
+ * cache is over its size limit, while classes keep their HTTP code source.
+ * Concurrent loads from a new URL fetch the JAR file once.
+ *
+ * @build CachedJarFiles Payload
+ * @run main/othervm CachedJarFiles
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import net.jini.loader.pref.PreferredClassLoader;
+
+public class CachedJarFiles {
+
+    /** the served JAR file and its entity tag */
+    private static volatile byte[] jar;
+    private static volatile String etag;
+
+    /** responses sent with content, and without */
+    private static int full = 0;
+    private static int notModified = 0;
+
+    public static void main(String[] args) throws Exception {
+	File dir = File.createTempFile("jarCache", "");
+	dir.delete();
+	System.setProperty("net.jini.loader.pref.jarCache", dir.getPath());
+	System.setProperty("net.jini.loader.pref.jarCacheSize", "1");
+	setJar(false);
+
+	HttpServer server = HttpServer.create(
+	    new InetSocketAddress("127.0.0.1", 0), 0);
+	server.createContext("/", new HttpHandler() {
+	    public void handle(HttpExchange exchange) throws IOException {
+		serve(exchange);
+	    }
+	});
+	server.start();
+	try {
+	    String base = "http://127.0.0.1:" +
+		server.getAddress().getPort() + "/";
+	    URL url = new URL(base + "payload.jar");
+
+	    load(url);
+	    check(1, 0, "first load");
+	    load(url);
+	    check(1, 0, "second load");
+	    loadConcurrently(new URL(base + "payload.jar?copy"), 4);
+	    check(2, 0, "concurrent loads from another URL");
+	    expect(fetching().isEmpty(), "fetch locks released");
+	    expect(jarFiles(dir) == 1, "one copy of identical JAR files");
+
+	    forgetVerified();
+	    load(url);
+	    check(2, 1, "load after restart");
+
+	    setJar(true);
+	    forgetVerified();
+	    load(url);
+	    check(3, 1, "load after change");
+	    expect(jarFiles(dir) == 1, "old JAR file evicted");
+
+	    try {
+		PreferredClassLoader.newInstance(
+		    new URL[] { new URL(base + "missing.jar") },
+		    CachedJarFiles.class.getClassLoader(), null, false)
+		    .loadClass("Missing");
+		throw new RuntimeException("TEST FAILED: class loaded");
+	    } catch (ClassNotFoundException e) {
+	    }
+	} finally {
+	    server.stop(0);
+	}
+	System.err.println("TEST PASSED");
+    }
+
+    /**
+     * Loads Payload, which the JAR file's preferred list makes preferred,
+     * and checks that it is defined from the JAR file at the URL.
+     */
+    private static void load(URL url) throws Exception {
+	PreferredClassLoader loader = PreferredClassLoader.newInstance(
+	    new URL[] { url }, CachedJarFiles.class.getClassLoader(),
+	    null, false);
+	Class c = loader.loadClass("Payload");
+	expect(c.getClassLoader() == loader, "Payload preferred");
+	expect(c.getProtectionDomain().getCodeSource().getLocation()
+	       .toString().equals(url.toString()), "code source");
+    }
+
+    /** Loads Payload from the URL in several threads at once. */
+    private static void loadConcurrently(final URL url, int threads)
+	throws Exception
+    {
+	final Exception[] failed = new Exception[1];
+	Thread[] t = new Thread[threads];
+	for (int i = 0; i < threads; i++) {
+	    t[i] = new Thread() {
+		public void run() {
+		    try {
+			load(url);
+		    } catch (Exception e) {
+			synchronized (failed) {
+			    failed[0] = e;
+			}
+		    }
+		}
+	    };
+	    t[i].start();
+	}
+	for (int i = 0; i < threads; i++) {
+	    t[i].join();
+	}
+	synchronized (failed) {
+	    if (failed[0] != null) {
+		throw failed[0];
+	    }
+	}
+    }
+
+    private static synchronized void check(int f, int n, String what) {
+	System.err.println(what + ": " + full + " full, " + notModified +
+			   " not modified");
+	expect(full == f && notModified == n, what);
+    }
+
+    private static void expect(boolean ok, String what) {
+	if (!ok) {
+	    throw new RuntimeException("TEST FAILED: " + what);
+	}
+    }
+
+    private static void serve(HttpExchange exchange) throws IOException {
+	byte[] content = jar;
+	String tag = etag;
+	try {
+	    if (!exchange.getRequestURI().getPath().equals("/payload.jar")) {
+		exchange.sendResponseHeaders(404, -1);
+	    } else if (tag.equals(
+		    exchange.getRequestHeaders().getFirst("If-None-Match")))
+	    {
+		synchronized (CachedJarFiles.class) {
+		    notModified++;
+		}
+		exchange.getResponseHeaders().set("ETag", tag);
+		exchange.sendResponseHeaders(304, -1);
+	    } else {
+		synchronized (CachedJarFiles.class) {
+		    full++;
+		}
+		exchange.getResponseHeaders().set("ETag", tag);
+		exchange.sendResponseHeaders(200, content.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(content);
+		out.close();
+	    }
+	} finally {
+	    exchange.close();
+	}
+    }
+
+    /** Makes the served JAR file, with an extra entry if changed. */
+    private static void setJar(boolean changed) throws IOException {
+	ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	JarOutputStream out = new JarOutputStream(bout);
+	out.putNextEntry(new JarEntry("META-INF/PREFERRED.LIST"));
+	out.write(("PreferredResources-Version: 1.0\n" +
+		   "Preferred: true\n").getBytes("UTF-8"));
+	out.putNextEntry(new JarEntry("Payload.class"));
+	InputStream in = CachedJarFiles.class.getResourceAsStream(
+	    Payload.class.getName() + ".class");
+	byte[] buf = new byte[1024];
+	for (int n; (n = in.read(buf)) != -1; ) {
+	    out.write(buf, 0, n);
+	}
+	in.close();
+	if (changed) {
+	    out.putNextEntry(new JarEntry("changed"));
+	}
+	out.close();
+	jar = bout.toByteArray();
+	etag = changed ? "\"2\"" : "\"1\"";
+    }
+
+    private static int jarFiles(File dir) {
+	int count = 0;
+	File[] files = dir.listFiles();
+	for (int i = 0; i < files.length; i++) {
+	    if (files[i].getName().endsWith(".jar")) {
+		count++;
+	    }
+	}
+	return count;
+    }
+
+    /** Returns the JAR cache's map of fetches in progress. */
+    private static Map fetching() throws Exception {
+	Field f = Class.forName("net.jini.loader.pref.JarCache")
+	    .getDeclaredField("locks");
+	f.setAccessible(true);
+	return (Map) f.get(null);
+    }
+
+    /**
+     * Makes the JAR cache forget which files it has verified, as if this
+     * were a new JVM.
+     */
+    private static void forgetVerified() throws Exception {
+	Field f = Class.forName("net.jini.loader.pref.JarCache")
+	    .getDeclaredField("current");
+	f.setAccessible(true);
+	((Map) f.get(null)).clear();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that a JAR file replaced in the on-disk JAR cache
+ * after it was verified is never opened: the replacement is detected when
+ * the JAR file is next opened in the same JVM, removed, and the JAR file
+ * is fetched again, for both HTTP and HTTPMD URLs.
+ *
+ * @build TamperedJarFile Payload
+ * @run main/othervm
+ *	-Djava.protocol.handler.pkgs=net.jini.url
+ *	TamperedJarFile
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import net.jini.loader.pref.PreferredClassLoader;
+
+public class TamperedJarFile {
+
+    /** the served JAR file, which prefers Payload */
+    private static byte[] jar;
+
+    /** responses sent with content */
+    private static int full = 0;
+
+    public static void main(String[] args) throws Exception {
+	File dir = File.createTempFile("jarCache", "");
+	dir.delete();
+	System.setProperty("net.jini.loader.pref.jarCache", dir.getPath());
+	jar = makeJar(true);
+	byte[] tampered = makeJar(false);
+
+	HttpServer server = HttpServer.create(
+	    new InetSocketAddress("127.0.0.1", 0), 0);
+	server.createContext("/", new HttpHandler() {
+	    public void handle(HttpExchange exchange) throws IOException {
+		serve(exchange);
+	    }
+	});
+	server.start();
+	try {
+	    String base = "127.0.0.1:" + server.getAddress().getPort() +
+		"/payload.jar";
+	    String md5 = hex(MessageDigest.getInstance("MD5").digest(jar));
+	    URL[] urls = {
+		new URL("http://" + base),
+		new URL("httpmd://" + base + ";md5=" + md5)
+	    };
+	    for (int i = 0; i < urls.length; i++) {
+		int before = full();
+		load(urls[i]);
+		expect(full() == before + 1, "fetched " + urls[i]);
+		File[] cached = jarFiles(dir);
+		for (int j = 0; j < cached.length; j++) {
+		    write(cached[j], tampered);
+		}
+		load(urls[i]);
+		expect(full() == before + 2,
+		       "fetched again after tampering " + urls[i]);
+		load(urls[i]);
+		expect(full() == before + 2, "cached copy used " + urls[i]);
+	    }
+	} finally {
+	    server.stop(0);
+	}
+	System.err.println("TEST PASSED");
+    }
+
+    /**
+     * Loads Payload, which only the served JAR file makes preferred, and
+     * checks that it is defined by the loader.
+     */
+    private static void load(URL url) throws Exception {
+	PreferredClassLoader loader = PreferredClassLoader.newInstance(
+	    new URL[] { url }, TamperedJarFile.class.getClassLoader(),
+	    null, false);
+	Class c = loader.loadClass("Payload");
+	expect(c.getClassLoader() == loader, "Payload preferred from " + url);
+    }
+
+    private static synchronized int full() {
+	return full;
+    }
+
+    private static void expect(boolean ok, String what) {
+	if (!ok) {
+	    throw new RuntimeException("TEST FAILED: " + what);
+	}
+    }
+
+    private static void serve(HttpExchange exchange) throws IOException {
+	try {
+	    if (!exchange.getRequestURI().getPath().startsWith("/payload.jar"))
+	    {
+		exchange.sendResponseHeaders(404, -1);
+	    } else {
+		synchronized (TamperedJarFile.class) {
+		    full++;
+		}
+		exchange.sendResponseHeaders(200, jar.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(jar);
+		out.close();
+	    }
+	} finally {
+	    exchange.close();
+	}
+    }
+
+    /** Makes a JAR file holding Payload, preferred or not. */
+    private static byte[] makeJar(boolean preferred) throws IOException {
+	ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	JarOutputStream out = new JarOutputStream(bout);
+	out.putNextEntry(new JarEntry("META-INF/PREFERRED.LIST"));
+	out.write(("PreferredResources-Version: 1.0\n" +
+		   "Preferred: " + preferred + "\n").getBytes("UTF-8"));
+	out.putNextEntry(new JarEntry("Payload.class"));
+	InputStream in = TamperedJarFile.class.getResourceAsStream(
+	    Payload.class.getName() + ".class");
+	byte[] buf = new byte[1024];
+	for (int n; (n = in.read(buf)) != -1; ) {
+	    out.write(buf, 0, n);
+	}
+	in.close();
+	out.close();
+	return bout.toByteArray();
+    }
+
+    private static File[] jarFiles(File dir) {
+	return dir.listFiles(new java.io.FileFilter() {
+	    public boolean accept(File f) {
+		return f.getName().endsWith(".jar");
+	    }
+	});
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+	OutputStream out = new FileOutputStream(file);
+	try {
+	    out.write(content);
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static String hex(byte[] digest) {
+	StringBuilder sb = new StringBuilder();
+	for (int i = 0; i < digest.length; i++) {
+	    sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+	    sb.append(Character.forDigit(digest[i] & 0xf, 16));
+	}
+	return sb.toString();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that the cache of checked permissions kept by
+ * CombinerSecurityManager stays within its configured size while many
+ * different SocketPermission's are checked, and keeps answering the
+ * permission checks that are repeated.  Reports the average time of
+ * remote calls with the security manager installed, before and during
+ * the flood of different checks, and the cache hit rate and evictions.
+ * The checks are made in a context of their own, checks in the context
+ * the security manager was created in aren't cached.
+ *
+ * @build CheckedCache
+ * @run main/othervm/policy=security.policy/secure=org.apache.river.api.security.CombinerSecurityManager
+ *     -Dorg.apache.river.api.security.CombinerSecurityManager.checkedCacheSize=512
+ *     CheckedCache
+ */
+
+import java.net.SocketPermission;
+import java.net.URL;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.PropertyPermission;
+import net.jini.export.Exporter;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+import org.apache.river.api.security.CombinerSecurityManager;
+
+public class CheckedCache {
+
+    private static final int CALLS = 5000;
+    private static final int FLOOD = 20000;
+
+    /** A context distinct from the security manager's own. */
+    private static AccessControlContext context;
+
+    public interface Ping extends Remote {
+	int ping(int x) throws RemoteException;
+    }
+
+    public static class PingImpl implements Ping {
+	PingImpl() { }
+	public int ping(int x) {
+	    // A permission check on the server for every call.
+	    AccessController.doPrivileged(new PrivilegedAction<Object>() {
+		public Object run() {
+		    return System.getProperty("user.dir");
+		}
+	    }, context);
+	    return x;
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	SecurityManager s = System.getSecurityManager();
+	if (!(s instanceof CombinerSecurityManager)) {
+	    throw new RuntimeException(
+		"CombinerSecurityManager not installed: " + s);
+	}
+	final CombinerSecurityManager sm = (CombinerSecurityManager) s;
+	// The policy is consulted for this domain, it has no permissions
+	// of its own.
+	context = new AccessControlContext(new ProtectionDomain[] {
+	    new ProtectionDomain(
+		new CodeSource(new URL("file:/checked/cache/"),
+			       (Certificate[]) null),
+		null, null, null)
+	});
+	Exporter exporter = new BasicJeriExporter(
+	    TcpServerEndpoint.getInstance(0), new BasicILFactory());
+	PingImpl impl = new PingImpl();
+	final Ping proxy = (Ping) exporter.export(impl);
+	try {
+	    calls(proxy, CALLS); // warm up
+	    long avg = calls(proxy, CALLS);
+	    System.err.println("average call: " + avg + "ns");
+
+	    final Permission[] hot = new Permission[16];
+	    for (int i = 0; i < hot.length; i++) {
+		hot[i] = new PropertyPermission("checked.cache." + i, "read");
+	    }
+	    long hits = sm.getCheckedCacheHits();
+	    long misses = sm.getCheckedCacheMisses();
+	    long start = System.nanoTime();
+	    AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+		public Object run() throws RemoteException {
+		    for (int i = 0; i < FLOOD; i++) {
+			// Literal addresses avoid DNS lookups.
+			sm.checkPermission(new SocketPermission(
+			    "10.0." + (i >>> 8 & 0xff) + "." + (i & 0xff) +
+			    ":1024", "connect"));
+			sm.checkPermission(hot[i % hot.length]);
+			if (i % 4 == 0) {
+			    proxy.ping(i);
+			}
+		    }
+		    return null;
+		}
+	    }, context);
+	    long flood = (System.nanoTime() - start) / FLOOD;
+	    hits = sm.getCheckedCacheHits() - hits;
+	    misses = sm.getCheckedCacheMisses() - misses;
+	    System.err.println("average iteration during flood: " + flood +
+			       "ns, hits: " + hits + ", misses: " + misses +
+			       ", evictions: " + sm.getCheckedCacheEvictions() +
+			       ", overall hit rate: " + sm.getCheckedCacheHitRate());
+
+	    if (misses < FLOOD || hits < FLOOD) {
+		throw new RuntimeException(
+		    "checks didn't use the cache, hits: " + hits +
+		    ", misses: " + misses);
+	    }
+	    if (sm.getCheckedCacheEvictions() < FLOOD - 512) {
+		throw new RuntimeException(
+		    "cache not bounded, evictions: " +
+		    sm.getCheckedCacheEvictions());
+	    }
+	    /*
+	     * Every SocketPermission misses, the hot permissions and the
+	     * permission checks of the calls should nearly all hit.
+	     */
+	    if (misses > FLOOD + FLOOD / 10) {
+		throw new RuntimeException(
+		    "repeated checks were flushed from the cache, misses: " +
+		    misses);
+	    }
+	    avg = calls(proxy, CALLS);
+	    System.err.println("average call after flood: " + avg + "ns");
+	} finally {
+	    exporter.unexport(true);
+	}
+	System.err.println("TEST PASSED");
+    }
+
+    /** Returns the average time of a remote call in nanoseconds. */
+    private static long calls(Ping proxy, int n) throws RemoteException {
+	long start = System.nanoTime();
+	for (int i = 0; i < n; i++) {
+	    if (proxy.ping(i) != i) {
+		throw new RuntimeException("wrong result");
+	    }
+	}
+	return (System.nanoTime() - start) / n;
+    }
+}
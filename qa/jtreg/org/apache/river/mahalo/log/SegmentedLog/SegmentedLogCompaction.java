@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that compacting a SegmentedLogManager's shared log
+ * deletes the segments of invalidated logs and copies the records of live
+ * logs forward, that recovery after a crash rebuilds exactly the live
+ * logs, and that a record torn at the end of a segment is dropped while
+ * the records before it, and records written after recovery, are kept.
+ *
+ * @build SegmentedLogCompaction
+ * @run main/othervm SegmentedLogCompaction
+ */
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.river.mahalo.log.ClientLog;
+import org.apache.river.mahalo.log.LogRecord;
+import org.apache.river.mahalo.log.LogRecovery;
+import org.apache.river.mahalo.log.SegmentedLogManager;
+
+public class SegmentedLogCompaction {
+
+    /** Small enough that every batch or two starts a new segment */
+    private static final long SEGMENT_SIZE = 200;
+    private static final long LIVE = 1;
+
+    private static class Rec implements LogRecord {
+	private static final long serialVersionUID = 1L;
+	final String value;
+
+	Rec(String value) {
+	    this.value = value;
+	}
+
+	public String toString() {
+	    return value;
+	}
+    }
+
+    /** Collects the recovered records of each log. */
+    private static class Recovered implements LogRecovery {
+	final Map<Long,List<String>> logs = new HashMap<Long,List<String>>();
+
+	public void recover(long cookie, LogRecord rec) {
+	    List<String> recs = logs.get(Long.valueOf(cookie));
+	    if (recs == null) {
+		recs = new ArrayList<String>();
+		logs.put(Long.valueOf(cookie), recs);
+	    }
+	    recs.add(rec.toString());
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	File dir = File.createTempFile("SegmentedLogCompaction", "");
+	dir.delete();
+	dir.mkdirs();
+
+	SegmentedLogManager mgr = open(dir, new Recovered());
+	ClientLog live = mgr.logFor(LIVE);
+	live.write(new Rec("L0"));
+	for (long cookie = 100; cookie < 120; cookie++) {
+	    ClientLog log = mgr.logFor(cookie);
+	    log.write(new Rec("D" + cookie + "a"));
+	    log.write(new Rec("D" + cookie + "b"));
+	    log.invalidate();
+	}
+	live.write(new Rec("L1"));
+	for (long cookie = 200; cookie < 210; cookie++) {
+	    ClientLog log = mgr.logFor(cookie);
+	    log.write(new Rec("D" + cookie));
+	    log.invalidate();
+	}
+	int before = segments(dir).length;
+	if (before < 10) {
+	    throw new RuntimeException(
+		"TEST FAILED: only " + before + " segments written");
+	}
+
+	/* The oldest segment holds a live record and the ones behind it
+	 * are dead, so it is compacted and everything up to the segment
+	 * holding the copy is deleted. */
+	compact(mgr);
+	File[] after = segments(dir);
+	System.err.println("segments: " + before + " before compaction, " +
+			   after.length + " after");
+	if (new File(dir, "Segment.0").exists() || after.length >= before / 2)
+	{
+	    throw new RuntimeException("TEST FAILED: dead segments kept: " +
+				       Arrays.asList(after));
+	}
+
+	/* Crash: recover from the files without closing the manager */
+	Recovered recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, "L0", "L1");
+	live = mgr.logFor(LIVE);
+	live.write(new Rec("L2"));
+	live.write(new Rec("L3"));
+
+	/* Tear the last record, as a crash while writing it would */
+	File last = lastNonEmpty(dir);
+	RandomAccessFile raf = new RandomAccessFile(last, "rw");
+	try {
+	    raf.setLength(raf.length() - 5);
+	} finally {
+	    raf.close();
+	}
+	recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, "L0", "L1", "L2");
+
+	/* Records written after the torn one are recovered */
+	mgr.logFor(LIVE).write(new Rec("L4"));
+	recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, "L0", "L1", "L2", "L4");
+	mgr.destroy();
+	dir.delete();
+	System.err.println("TEST PASSED");
+    }
+
+    /**
+     * Creates and recovers a manager, stopping its compaction thread so
+     * the test decides when compaction runs.
+     */
+    private static SegmentedLogManager open(File dir, Recovered recovered)
+	throws Exception
+    {
+	SegmentedLogManager mgr =
+	    new SegmentedLogManager(recovered, dir.getPath(), SEGMENT_SIZE);
+	mgr.recover();
+	Field f = SegmentedLogManager.class.getDeclaredField("compactor");
+	f.setAccessible(true);
+	Thread compactor = (Thread) f.get(mgr);
+	compactor.interrupt();
+	compactor.join();
+	return mgr;
+    }
+
+    private static void compact(SegmentedLogManager mgr) throws Exception {
+	Method m = SegmentedLogManager.class.getDeclaredMethod("compact");
+	m.setAccessible(true);
+	try {
+	    m.invoke(mgr);
+	} catch (InvocationTargetException e) {
+	    throw (Exception) e.getCause();
+	}
+    }
+
+    private static void expect(Recovered recovered, String... values) {
+	Map<Long,List<String>> expected = new HashMap<Long,List<String>>();
+	expected.put(Long.valueOf(LIVE), Arrays.asList(values));
+	if (!expected.equals(recovered.logs)) {
+	    throw new RuntimeException("TEST FAILED: expected " + expected +
+				       ", recovered " + recovered.logs);
+	}
+    }
+
+    private static File[] segments(File dir) {
+	File[] files = dir.listFiles();
+	List<File> segments = new ArrayList<File>();
+	for (File f : files) {
+	    if (f.getName().startsWith("Segment.")) {
+		segments.add(f);
+	    }
+	}
+	return segments.toArray(new File[segments.size()]);
+    }
+
+    private static File lastNonEmpty(File dir) {
+	File last = null;
+	long number = -1;
+	for (File f : segments(dir)) {
+	    long n = Long.parseLong(f.getName().substring("Segment.".length()));
+	    if (f.length() > 0 && n > number) {
+		number = n;
+		last = f;
+	    }
+	}
+	return last;
+    }
+}
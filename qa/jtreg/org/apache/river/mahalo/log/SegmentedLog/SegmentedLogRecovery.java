@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that a SegmentedLogManager recovering after a crash
+ * during the migration of MultiLogManager log files neither recovers nor
+ * copies a migrated record twice, including when only some of the records
+ * were copied, and that a log whose records cannot be read back is
+ * invalidated, so records of it left after compaction are not recovered.
+ *
+ * @build SegmentedLogRecovery
+ * @run main/othervm SegmentedLogRecovery
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.river.mahalo.log.ClientLog;
+import org.apache.river.mahalo.log.LogRecord;
+import org.apache.river.mahalo.log.LogRecovery;
+import org.apache.river.mahalo.log.MultiLogManager;
+import org.apache.river.mahalo.log.SegmentedLogManager;
+
+public class SegmentedLogRecovery {
+
+    /** Small enough that every batch or two starts a new segment */
+    private static final long SEGMENT_SIZE = 200;
+    private static final long MIGRATED = 7;
+    private static final long UNREADABLE = 9;
+    private static final long LIVE = 1;
+
+    private static class Rec implements LogRecord {
+	private static final long serialVersionUID = 1L;
+	final String value;
+
+	Rec(String value) {
+	    this.value = value;
+	}
+
+	public String toString() {
+	    return value;
+	}
+    }
+
+    /** A record that cannot be read back while <code>poisoned</code>. */
+    private static class Poison extends Rec {
+	private static final long serialVersionUID = 1L;
+	static volatile boolean poisoned = false;
+	/** Fills a segment on its own */
+	final char[] padding = new char[(int) SEGMENT_SIZE];
+
+	Poison(String value) {
+	    super(value);
+	}
+
+	private void readObject(ObjectInputStream in)
+	    throws IOException, ClassNotFoundException
+	{
+	    in.defaultReadObject();
+	    if (poisoned)
+		throw new InvalidObjectException("poisoned");
+	}
+    }
+
+    /** Collects the recovered records of each log. */
+    private static class Recovered implements LogRecovery {
+	final Map<Long,List<String>> logs = new HashMap<Long,List<String>>();
+
+	public void recover(long cookie, LogRecord rec) {
+	    List<String> recs = logs.get(Long.valueOf(cookie));
+	    if (recs == null) {
+		recs = new ArrayList<String>();
+		logs.put(Long.valueOf(cookie), recs);
+	    }
+	    recs.add(rec.toString());
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	migration();
+	unreadable();
+	System.err.println("TEST PASSED");
+    }
+
+    private static void migration() throws Exception {
+	File dir = tempDir();
+	MultiLogManager multi =
+	    new MultiLogManager(new Recovered(), dir.getPath());
+	multi.recover();
+	ClientLog legacy = multi.logFor(MIGRATED);
+	legacy.write(new Rec("M0"));
+	legacy.write(new Rec("M1"));
+	legacy.write(new Rec("M2"));
+	File file = new File(dir, "Log." + MIGRATED);
+	byte[] saved = read(file);
+
+	Recovered recovered = new Recovered();
+	SegmentedLogManager mgr = open(dir, recovered);
+	expect(recovered, MIGRATED, "M0", "M1", "M2");
+	if (file.exists())
+	    throw new RuntimeException("TEST FAILED: log file not deleted");
+
+	/* Crash after the records were copied but before the file was
+	 * deleted: the copies are recovered and the file is not copied
+	 * again. */
+	write(file, saved);
+	recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, MIGRATED, "M0", "M1", "M2");
+	recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, MIGRATED, "M0", "M1", "M2");
+
+	/* Crash part way through the copy: only the missing records are
+	 * copied from the file. */
+	File last = lastNonEmpty(dir);
+	RandomAccessFile raf = new RandomAccessFile(last, "rw");
+	try {
+	    raf.setLength(raf.length() - 5);
+	} finally {
+	    raf.close();
+	}
+	write(file, saved);
+	recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, MIGRATED, "M0", "M1", "M2");
+	recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, MIGRATED, "M0", "M1", "M2");
+	mgr.destroy();
+	delete(dir);
+    }
+
+    private static void unreadable() throws Exception {
+	File dir = tempDir();
+	SegmentedLogManager mgr = open(dir, new Recovered());
+	ClientLog log = mgr.logFor(UNREADABLE);
+	log.write(new Poison("U0"));
+	log.write(new Rec("U1"));
+	mgr.logFor(LIVE).write(new Rec("L0"));
+
+	/* The first record can't be read, so the log is skipped */
+	Poison.poisoned = true;
+	Recovered recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, LIVE, "L0");
+
+	/* Compaction deletes the segment of the unreadable record and
+	 * keeps the one shared with the live log */
+	compact(mgr);
+	if (new File(dir, "Segment.0").exists()) {
+	    throw new RuntimeException("TEST FAILED: segment not deleted: " +
+				       Arrays.asList(dir.list()));
+	}
+	Poison.poisoned = false;
+	recovered = new Recovered();
+	mgr = open(dir, recovered);
+	expect(recovered, LIVE, "L0");
+	mgr.destroy();
+	delete(dir);
+    }
+
+    /**
+     * Creates and recovers a manager, stopping its compaction thread so
+     * the test decides when compaction runs.
+     */
+    private static SegmentedLogManager open(File dir, Recovered recovered)
+	throws Exception
+    {
+	SegmentedLogManager mgr =
+	    new SegmentedLogManager(recovered, dir.getPath(), SEGMENT_SIZE);
+	mgr.recover();
+	Field f = SegmentedLogManager.class.getDeclaredField("compactor");
+	f.setAccessible(true);
+	Thread compactor = (Thread) f.get(mgr);
+	compactor.interrupt();
+	compactor.join();
+	return mgr;
+    }
+
+    private static void compact(SegmentedLogManager mgr) throws Exception {
+	Method m = SegmentedLogManager.class.getDeclaredMethod("compact");
+	m.setAccessible(true);
+	try {
+	    m.invoke(mgr);
+	} catch (InvocationTargetException e) {
+	    throw (Exception) e.getCause();
+	}
+    }
+
+    private static void expect(Recovered recovered, long cookie,
+			       String... values)
+    {
+	Map<Long,List<String>> expected = new HashMap<Long,List<String>>();
+	expected.put(Long.valueOf(cookie), Arrays.asList(values));
+	if (!expected.equals(recovered.logs)) {
+	    throw new RuntimeException("TEST FAILED: expected " + expected +
+				       ", recovered " + recovered.logs);
+	}
+    }
+
+    private static File tempDir() throws IOException {
+	File dir = File.createTempFile("SegmentedLogRecovery", "");
+	dir.delete();
+	dir.mkdirs();
+	return dir;
+    }
+
+    private static void delete(File dir) {
+	File[] files = dir.listFiles();
+	if (files != null) {
+	    for (File f : files) {
+		f.delete();
+	    }
+	}
+	dir.delete();
+    }
+
+    private static byte[] read(File file) throws IOException {
+	byte[] data = new byte[(int) file.length()];
+	FileInputStream in = new FileInputStream(file);
+	try {
+	    int n = 0;
+	    while (n < data.length) {
+		int r = in.read(data, n, data.length - n);
+		if (r < 0)
+		    throw new IOException("unexpected end of " + file);
+		n += r;
+	    }
+	} finally {
+	    in.close();
+	}
+	return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+	FileOutputStream out = new FileOutputStream(file);
+	try {
+	    out.write(data);
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static File lastNonEmpty(File dir) {
+	File last = null;
+	long number = -1;
+	for (File f : dir.listFiles()) {
+	    if (!f.getName().startsWith("Segment."))
+		continue;
+	    long n = Long.parseLong(f.getName().substring("Segment.".length()));
+	    if (f.length() > 0 && n > number) {
+		number = n;
+		last = f;
+	    }
+	}
+	return last;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that a snaplogstore in group commit mode switches to
+ * a new log file when the maximum number of operations per file is
+ * reached, without the thread writing the batch waiting on itself, while
+ * several threads log operations that must be forced to disk, and that
+ * the operations are recovered from the log files afterwards.
+ *
+ * @build GroupCommitRollover
+ * @run main/othervm GroupCommitRollover
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationFile;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+import org.apache.river.outrigger.LogOps;
+import org.apache.river.outrigger.Recover;
+import org.apache.river.outrigger.StoredObject;
+import org.apache.river.outrigger.StoredResource;
+import org.apache.river.outrigger.snaplogstore.LogStore;
+
+public class GroupCommitRollover {
+
+    private static final int THREADS = 8;
+    private static final int OPS = 200;
+    private static final long TIMEOUT = 60000;
+
+    /** Remembers the session id and top level Uuid recovered. */
+    private static class Recovered implements Recover {
+	long sessionId;
+	Uuid uuid;
+
+	public void recoverSessionId(long sessionId) {
+	    this.sessionId = sessionId;
+	}
+	public void recoverJoinState(StoredObject state) { }
+	public void recoverWrite(StoredResource entry, Long txnId) { }
+	public void recoverTake(Uuid cookie, Long txnId) { }
+	public void recoverRegister(StoredResource registration, String type,
+				    StoredObject[] templates)
+	{
+	}
+	public void recoverTransaction(Long txnId, StoredObject transaction) { }
+	public void recoverUuid(Uuid uuid) {
+	    this.uuid = uuid;
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	File dir = File.createTempFile("GroupCommitRollover", "");
+	dir.delete();
+	Configuration config = new ConfigurationFile(new String[] {
+	    "-",
+	    "org.apache.river.outrigger.persistenceDirectory=\"" +
+		dir.getPath().replace("\\", "\\\\") + "\"",
+	    "org.apache.river.outrigger.maxOps=2",
+	    "org.apache.river.outrigger.groupCommitLog=true"
+	});
+
+	LogStore store = new LogStore(config);
+	boolean hung = false;
+	try {
+	    final LogOps log = store.setupStore(new Recovered());
+	    final Throwable[] failure = new Throwable[1];
+	    List<Thread> threads = new ArrayList<Thread>();
+	    for (int i = 0; i < THREADS; i++) {
+		final int id = i;
+		Thread t = new Thread("logger-" + i) {
+		    public void run() {
+			try {
+			    for (int j = 0; j < OPS; j++) {
+				log.bootOp(System.currentTimeMillis(),
+					   id * OPS + j);
+			    }
+			} catch (Throwable e) {
+			    synchronized (failure) {
+				failure[0] = e;
+			    }
+			}
+		    }
+		};
+		t.setDaemon(true);
+		t.start();
+		threads.add(t);
+	    }
+	    long deadline = System.currentTimeMillis() + TIMEOUT;
+	    for (Thread t : threads) {
+		t.join(Math.max(1, deadline - System.currentTimeMillis()));
+		if (t.isAlive()) {
+		    hung = true;
+		    for (StackTraceElement e : t.getStackTrace()) {
+			System.err.println("\tat " + e);
+		    }
+		    throw new RuntimeException(
+			"TEST FAILED: " + t.getName() + " hung");
+		}
+	    }
+	    synchronized (failure) {
+		if (failure[0] != null) {
+		    throw new RuntimeException("TEST FAILED", failure[0]);
+		}
+	    }
+	    log.bootOp(System.currentTimeMillis(), 4242);
+	    log.uuidOp(UuidFactory.create(17, 42));
+	} finally {
+	    // closing waits for the batch being written
+	    if (!hung) {
+		store.close();
+	    }
+	}
+	String[] logs = dir.list();
+	System.err.println("files: " + logs.length);
+
+	store = new LogStore(config);
+	try {
+	    Recovered recovered = new Recovered();
+	    store.setupStore(recovered);
+	    if (recovered.sessionId != 4242 ||
+		!UuidFactory.create(17, 42).equals(recovered.uuid))
+	    {
+		throw new RuntimeException("TEST FAILED: recovered session " +
+					   recovered.sessionId + ", uuid " +
+					   recovered.uuid);
+	    }
+	    store.destroy();
+	} catch (RuntimeException e) {
+	    store.close();
+	    throw e;
+	}
+	System.err.println("TEST PASSED");
+    }
+}
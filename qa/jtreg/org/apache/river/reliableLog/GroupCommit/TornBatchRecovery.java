@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* @test
+ * @summary Verifies that ReliableLog in group commit mode recovers every
+ * update of completed batches, in order, and none of the updates of a
+ * batch torn by a crash before or while its length header was written.
+ *
+ * @run main/othervm TornBatchRecovery
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.river.reliableLog.LogHandler;
+import org.apache.river.reliableLog.ReliableLog;
+
+public class TornBatchRecovery {
+
+    private static final int THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 50;
+
+    /** Records the updates applied during recovery. */
+    private static class Handler extends LogHandler {
+	final List<Object> applied = new ArrayList<Object>();
+
+	public void snapshot(OutputStream out) {
+	}
+
+	public void recover(InputStream in) {
+	}
+
+	public void applyUpdate(Object update) {
+	    applied.add(update);
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	File dir = new File(System.getProperty("test.scratch", "."),
+			    "TornBatchRecovery.log");
+	deleteAll(dir);
+	try {
+	    concurrentUpdates(dir);
+	    tornBatchWithoutHeader(dir);
+	    tornBatchWithHeader(dir);
+	    System.err.println("TEST PASSED");
+	} finally {
+	    deleteAll(dir);
+	}
+    }
+
+    /**
+     * Many threads append and sync concurrently; every update must be
+     * recovered, and each thread's updates in the order it made them.
+     */
+    private static void concurrentUpdates(File dir) throws Exception {
+	final ReliableLog log = new ReliableLog(dir.getPath(), new Handler(), true);
+	log.snapshot();
+	final Exception[] failure = new Exception[1];
+	Thread[] threads = new Thread[THREADS];
+	for (int t = 0; t < THREADS; t++) {
+	    final int id = t;
+	    threads[t] = new Thread() {
+		public void run() {
+		    try {
+			for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+			    log.sync(log.append(id + ":" + i));
+			}
+		    } catch (Exception e) {
+			synchronized (failure) {
+			    failure[0] = e;
+			}
+		    }
+		}
+	    };
+	    threads[t].start();
+	}
+	for (int t = 0; t < THREADS; t++) {
+	    threads[t].join();
+	}
+	if (failure[0] != null) {
+	    throw failure[0];
+	}
+	log.close();
+
+	List<Object> applied = recover(dir);
+	if (applied.size() != THREADS * UPDATES_PER_THREAD) {
+	    throw new RuntimeException("expected " + THREADS * UPDATES_PER_THREAD
+				       + " updates, recovered " + applied.size());
+	}
+	int[] next = new int[THREADS];
+	for (Object o : applied) {
+	    String[] s = ((String) o).split(":");
+	    int t = Integer.parseInt(s[0]);
+	    if (Integer.parseInt(s[1]) != next[t]++) {
+		throw new RuntimeException("update out of order: " + o);
+	    }
+	}
+    }
+
+    /**
+     * A batch whose data reached the disk but whose first length header
+     * did not must be ignored, and discarded once the log is reopened.
+     */
+    private static void tornBatchWithoutHeader(File dir) throws Exception {
+	snapshotWith(dir, "a", "b");
+	long end = logEnd(dir);
+	byte[] second = record("d");
+	/* the state left by a crash after the first force of a batch of
+	 * "c" and "d": the header of "c" is still zero
+	 */
+	ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	batch.write(new byte[4]);
+	batch.write(pad(record("c")));
+	batch.write(intBytes(second.length));
+	batch.write(pad(second));
+	batch.write(new byte[4]);
+	writeAt(dir, end, batch.toByteArray());
+
+	check(recoverAndAppend(dir, "e"), "a", "b", "e");
+	check(recover(dir), "a", "b", "e");
+    }
+
+    /**
+     * A batch whose header claims more data than the file holds, as
+     * after a crash that lost part of an unforced batch, must be ignored.
+     */
+    private static void tornBatchWithHeader(File dir) throws Exception {
+	snapshotWith(dir, "a", "b");
+	long end = logEnd(dir);
+	byte[] rec = record("c");
+	ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	batch.write(intBytes(rec.length));
+	batch.write(rec, 0, rec.length / 2);
+	writeAt(dir, end, batch.toByteArray());
+
+	check(recoverAndAppend(dir, "d"), "a", "b", "d");
+	check(recover(dir), "a", "b", "d");
+    }
+
+    /** Starts a new log version holding the given updates. */
+    private static void snapshotWith(File dir, String... updates)
+	throws Exception
+    {
+	deleteAll(dir);
+	ReliableLog log = new ReliableLog(dir.getPath(), new Handler(), true);
+	log.snapshot();
+	for (String u : updates) {
+	    log.append(u);
+	}
+	log.sync(updates.length);
+	log.close();
+    }
+
+    private static List<Object> recover(File dir) throws Exception {
+	Handler handler = new Handler();
+	ReliableLog log = new ReliableLog(dir.getPath(), handler, true);
+	log.recover();
+	log.close();
+	return handler.applied;
+    }
+
+    private static List<Object> recoverAndAppend(File dir, String update)
+	throws Exception
+    {
+	Handler handler = new Handler();
+	ReliableLog log = new ReliableLog(dir.getPath(), handler, true);
+	log.recover();
+	log.update(update, true);
+	log.close();
+	handler.applied.add(update);
+	return handler.applied;
+    }
+
+    /** Returns the offset of the zero length header ending the log. */
+    private static long logEnd(File dir) throws Exception {
+	ReliableLog log = new ReliableLog(dir.getPath(), new Handler(), true);
+	log.recover();
+	long end = log.logSize();
+	log.close();
+	return end;
+    }
+
+    private static void writeAt(File dir, long offset, byte[] data)
+	throws Exception
+    {
+	RandomAccessFile raf = new RandomAccessFile(logFile(dir), "rw");
+	try {
+	    raf.seek(offset);
+	    raf.write(data);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    private static File logFile(File dir) {
+	File[] files = dir.listFiles();
+	for (int i = 0; i < files.length; i++) {
+	    if (files[i].getName().startsWith("Logfile.")) {
+		return files[i];
+	    }
+	}
+	throw new RuntimeException("no log file in " + dir);
+    }
+
+    /** Returns an update as LogHandler.writeUpdate would record it. */
+    private static byte[] record(Object value) throws Exception {
+	ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	ObjectOutputStream out = new ObjectOutputStream(bout);
+	out.writeObject(value);
+	out.flush();
+	return bout.toByteArray();
+    }
+
+    private static byte[] pad(byte[] b) {
+	return Arrays.copyOf(b, (b.length + 3) & ~3);
+    }
+
+    private static byte[] intBytes(int val) {
+	return new byte[] { (byte) (val >> 24), (byte) (val >> 16),
+			    (byte) (val >> 8), (byte) val };
+    }
+
+    private static void check(List<Object> applied, Object... expected) {
+	if (!applied.equals(Arrays.asList(expected))) {
+	    throw new RuntimeException("expected " + Arrays.asList(expected) +
+				       ", recovered " + applied);
+	}
+    }
+
+    private static void deleteAll(File dir) {
+	File[] files = dir.listFiles();
+	if (files != null) {
+	    for (int i = 0; i < files.length; i++) {
+		files[i].delete();
+	    }
+	}
+	dir.delete();
+    }
+}
@@ -18,6 +18,7 @@
 
 package org.apache.river.thread;
 
+import java.security.AccessController;
 import java.security.Permission;
 import java.security.PrivilegedAction;
 
@@ -44,6 +45,14 @@ import java.security.PrivilegedAction;
  * class loader and other thread-specific state (such as priority)
  * that they were started with.
  *
+ * If the system property
+ * <code>org.apache.river.thread.virtualThreads</code> is
+ * <code>true</code> and the runtime supports virtual threads, the pool
+ * for executing tasks with user code, which includes dispatching
+ * incoming remote calls, runs each task in a new virtual thread instead
+ * of a pooled platform thread.  Otherwise, or on older runtimes, both
+ * pools use platform threads.
+ *
  * @author Sun Microsystems, Inc.
  **/
 public final class GetThreadPoolAction implements PrivilegedAction<Executor> {
@@ -53,8 +62,7 @@ public final class GetThreadPoolAction implements PrivilegedAction<Executor> {
 	new ThreadPool(NewThreadAction.systemThreadGroup);
 
     /** pool of threads for executing tasks with user code */
-    private static final ThreadPool userThreadPool =
-	new ThreadPool(NewThreadAction.userThreadGroup);
+    private static final ThreadPool userThreadPool = createUserThreadPool();
 
     private static final Permission getSystemThreadPoolPermission =
 	new ThreadPoolPermission("getSystemThreadPool");
@@ -77,6 +85,23 @@ public final class GetThreadPoolAction implements PrivilegedAction<Executor> {
 	this.user = user;
     }
 
+    private static ThreadPool createUserThreadPool() {
+	boolean virtual = AccessController.doPrivileged(
+	    new PrivilegedAction<Boolean>() {
+		public Boolean run() {
+		    return Boolean.valueOf(Boolean.getBoolean(
+			"org.apache.river.thread.virtualThreads"));
+		}
+	    }).booleanValue();
+	if (virtual) {
+	    ThreadPool pool = ThreadPool.virtualThreadPool();
+	    if (pool != null) {
+		return pool;
+	    }
+	}
+	return new ThreadPool(NewThreadAction.userThreadGroup);
+    }
+
     public Executor run() {
         if (user){
             getUserThreadPoolPermission.checkGuard(this);
@@ -20,7 +20,6 @@ package org.apache.river.thread;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -36,7 +35,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class ReadersWriter {
     private int waitingWriters;
     private final AtomicInteger waitingPriorityWriters;
-    private final ReadWriteLock lock;
+    private final ReentrantReadWriteLock lock;
     private final Lock readLock;
     private final Lock writeLock;
     private final Condition waitingPriorityWriter;
@@ -112,6 +111,14 @@ public class ReadersWriter {
         }
     }
 
+    /**
+     * Returns true if the calling thread holds the write lock, eg to
+     * decide whether it may signal a Condition created by newCondition().
+     */
+    public boolean isWriteLockedByCurrentThread() {
+        return lock.isWriteLockedByCurrentThread();
+    }
+
     /** Release a (regular or priority) write lock. */
     public void writeUnlock() {
 	// should be in a locked state or an exception will be thrown.
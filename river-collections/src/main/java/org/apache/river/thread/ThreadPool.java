@@ -18,6 +18,8 @@
 
 package org.apache.river.thread;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.concurrent.ExecutorService;
@@ -43,6 +45,12 @@ import java.util.logging.Logger;
  * of the task it is currently executing, or "Idle" if it is currently
  * idle.
  *
+ * A ThreadPool created by {@link #virtualThreadPool} instead runs each
+ * task in a new virtual thread, so that tasks which spend most of their
+ * time blocked, such as long polling remote calls, do not each hold an
+ * operating system thread.  Virtual threads are always daemon threads,
+ * and belong to no thread group of their own.
+ *
  * <p>This implementation uses the {@link Logger} named
  * <code>org.apache.river.thread.ThreadPool</code> to
  * log information at the following levels:
@@ -55,6 +63,9 @@ import java.util.logging.Logger;
  * <tr> <td> {@link Level#WARNING WARNING} <td> uncaught exception in
  * worker thread
  *
+ * <tr> <td> {@link Level#CONFIG CONFIG} <td> virtual threads requested
+ * but not supported by the runtime
+ *
  * </table>
  *
  * @author	Sun Microsystems, Inc.
@@ -96,6 +107,10 @@ final class ThreadPool implements Executor, java.util.concurrent.Executor {
     
     ThreadPool(ThreadGroup threadGroup){
         this(Executors.newCachedThreadPool(new TPThreadFactory(threadGroup))); // Final field freeze
+    }
+ 
+    private ThreadPool(ExecutorService es){
+        this.es = es;
 //      Thread not started until after constructor completes
 //      this escaping occurs safely anyway because of final field freeze.
         AccessController.doPrivileged(new PrivilegedAction(){
@@ -107,9 +122,40 @@ final class ThreadPool implements Executor, java.util.concurrent.Executor {
             }
         });
     }
- 
-    private ThreadPool(ExecutorService es){
-        this.es = es;
+
+    /**
+     * Returns a ThreadPool that executes each task in a new virtual
+     * thread, or null if the runtime does not support virtual threads.
+     * The virtual thread API is found reflectively, so this class
+     * remains usable on runtimes that predate it.
+     */
+    static ThreadPool virtualThreadPool() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, NewThreadAction.NAME_PREFIX + "virtual-", 0L);
+            ThreadFactory factory = (ThreadFactory)
+                builderClass.getMethod("factory").invoke(builder);
+            Method perTask = Executors.class.getMethod(
+                "newThreadPerTaskExecutor", ThreadFactory.class);
+            return new ThreadPool((ExecutorService)
+                perTask.invoke(null, new VirtualThreadFactory(factory)));
+        } catch (ClassNotFoundException e) {
+            logVirtualThreadsUnsupported(e);
+        } catch (NoSuchMethodException e) {
+            logVirtualThreadsUnsupported(e);
+        } catch (IllegalAccessException e) {
+            logVirtualThreadsUnsupported(e);
+        } catch (InvocationTargetException e) {
+            logVirtualThreadsUnsupported(e.getCause());
+        }
+        return null;
+    }
+
+    private static void logVirtualThreadsUnsupported(Throwable t) {
+        logger.log(Level.CONFIG,
+            "virtual threads not supported, using platform threads", t);
     }
     
     private Thread shutdownHook(){
@@ -196,10 +242,24 @@ final class ThreadPool implements Executor, java.util.concurrent.Executor {
     }
     
     /**
-     * Thread stack size hint given to jvm to minimise memory consumption
-     * as this executor can create many threads, tasks executed are relatively
-     * simple and don't need much memory.  The jvm is free to ignore this hint.
+     * Gives each virtual thread the system class loader as its context
+     * class loader, as NewThreadAction does for platform threads, so it
+     * does not inherit that of whichever thread submitted its task.
      */
+    private static class VirtualThreadFactory implements ThreadFactory {
+        private final ThreadFactory factory;
+
+        VirtualThreadFactory(ThreadFactory factory){
+            this.factory = factory;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = factory.newThread(r);
+            t.setContextClassLoader(ClassLoader.getSystemClassLoader());
+            return t;
+        }
+    }
+
     private static class TPThreadFactory implements ThreadFactory {
         /** thread group that this pool's threads execute in */
         final ThreadGroup threadGroup;
@@ -19,6 +19,9 @@
 package net.jini.jeri;
 
 import org.apache.river.action.GetBooleanAction;
+import org.apache.river.jeri.internal.runtime.CachingMarshalInputStream;
+import org.apache.river.jeri.internal.runtime.CachingMarshalOutputStream;
+import org.apache.river.jeri.internal.runtime.ClassDescriptorCache;
 import org.apache.river.jeri.internal.runtime.Util;
 import org.apache.river.jeri.internal.runtime.WeakKey;
 import org.apache.river.logging.Levels;
@@ -55,10 +58,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -181,11 +184,11 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
     /** True if permConstructor has a Method parameter. */
     private final boolean permUsesMethod;
     
-    /** Map from Method to Permission. */
+    /** Concurrent map from Method to Permission. */
     private final Map permissions;
     
-    /** Map from Long method hash to Method, for all remote methods. */
-    private final Map methods;
+    /** Table from method hash to Method, for all remote methods. */
+    private final MethodTable methods;
 
     /** Map from WeakKey(Subject) to ProtectionDomain. */
     private static final Map domains = new HashMap();
@@ -275,7 +278,7 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 	if (serverCapabilities == null) {
 	    throw new NullPointerException();
 	}
-	this.methods = new HashMap();
+	this.methods = new MethodTable(methods.size());
 	this.loader = loader;
 	for (Iterator iter = methods.iterator(); iter.hasNext(); ) {
 	    Object m = iter.next();
@@ -285,7 +288,7 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 		throw new IllegalArgumentException(
 		    "methods must contain only Methods");
 	    }
-	    this.methods.put(Long.valueOf(Util.getMethodHash((Method) m)), m);
+	    this.methods.put(Util.getMethodHash((Method) m), (Method) m);
 	}
 	this.serverConstraints = serverConstraints;
 	if (permissionClass != null) {
@@ -298,7 +301,7 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 	     permConstructor.getParameterTypes()[0] == Method.class);
 	permissions = (permConstructor == null ?
 		       null :
-		       new IdentityHashMap(methods.size() + 2));
+		       new ConcurrentHashMap(methods.size() + 2));
 	try {
 	    if (serverConstraints == null) {
 		checkConstraints(serverCapabilities,
@@ -539,15 +542,17 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 		    ros.close();
 		    return;
 	    }
-	    switch (rin.read()) {
-	    case 0:
-		integrity = false;
-		break;
-	    case -1:
+	    int flags = rin.read();
+	    if (flags == -1) {
 		throw new EOFException();
-	    default:
-		integrity = true;
 	    }
+	    if ((flags & ClassDescriptorCache.READS_CACHED) != 0) {
+		ClassDescriptorCache.Call call = getDescriptorCall(context);
+		if (call != null) {
+		    call.setPeerReadsCached();
+		}
+	    }
+	    integrity = (flags & ~ClassDescriptorCache.READS_CACHED) != 0;
 	} catch (Throwable t) {
 	    if (logger.isLoggable(Levels.FAILED)) {
 		logLocalThrow(impl, null, t);
@@ -704,6 +709,8 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
      * and <code>verifierLoader</code>, the boolean <code>integrity</code>
      * for <code>verifyCodebaseIntegrity</code>, and an unmodifiable view
      * of <code>context</code> for the <code>context</code> collection.
+     * If the request's connection caches class descriptors, the stream
+     * returned also reads a request that uses the cache.
      * The {@link MarshalInputStream#useCodebaseAnnotations
      * useCodebaseAnnotations} method is invoked on the created stream
      * before it is returned.
@@ -739,10 +746,18 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 	}
 	
 	Collection unmodContext = Collections.unmodifiableCollection(context);
-	MarshalInputStream in =
-	    new MarshalInputStream(request.getRequestInputStream(),
-				   streamLoader, integrity,
-				   streamLoader, unmodContext);
+	ClassDescriptorCache.Call call = getDescriptorCall(context);
+	MarshalInputStream in;
+	if (call != null) {
+	    in = new CachingMarshalInputStream(request.getRequestInputStream(),
+					       streamLoader, integrity,
+					       streamLoader, unmodContext,
+					       call.getCache());
+	} else {
+	    in = new MarshalInputStream(request.getRequestInputStream(),
+					streamLoader, integrity,
+					streamLoader, unmodContext);
+	}
 	in.useCodebaseAnnotations();
 	return in;
     }
@@ -761,7 +776,10 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
      * return a new {@link MarshalOutputStream} instance constructed with
      * the output stream obtained from the <code>request</code> as
      * specified above and an unmodifiable view of the given
-     * <code>context</code> collection.
+     * <code>context</code> collection.  If the request's connection
+     * caches class descriptors, and the client has shown it reads
+     * responses that use the cache, the stream returned writes class
+     * descriptors the other end already has by number.
      *
      * <p>A subclass can override this method to control how the marshal output
      * stream is created or implemented.
@@ -790,8 +808,29 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 	}
 	OutputStream out = request.getResponseOutputStream();
 	Collection unmodContext = Collections.unmodifiableCollection(context);
+	ClassDescriptorCache.Call call = getDescriptorCall(context);
+	if (call != null && call.peerReadsCached()) {
+	    return new CachingMarshalOutputStream(out, unmodContext,
+						  call.getCache());
+	}
 	return new MarshalOutputStream(out, unmodContext);
     }
+
+    /**
+     * Returns the class descriptor cache context element in the server
+     * context of a request, or <code>null</code> if the request's
+     * connection has no cache or this dispatcher's class creates its
+     * own marshal streams.
+     */
+    private ClassDescriptorCache.Call getDescriptorCall(Collection context) {
+	if (!ClassDescriptorCache.ENABLED ||
+	    !ClassDescriptorCache.usesDefaultStreams(
+		getClass(), BasicInvocationDispatcher.class))
+	{
+	    return null;
+	}
+	return ClassDescriptorCache.getCall(context);
+    }
 							  
     /**
      * Checks that the client has permission to invoke the specified method on
@@ -839,10 +878,7 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 	if (permConstructor == null) {
 	    return;
 	}
-	Permission perm;
-	synchronized (permissions) {
-	    perm = (Permission) permissions.get(method);
-	}
+	Permission perm = (Permission) permissions.get(method);
 	if (perm == null) {
 	    try {
 		perm = (Permission) permConstructor.newInstance(new Object[]{
@@ -859,9 +895,7 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 	    } catch (Exception e) {
 		throw new RuntimeException("unexpected exception", e);
 	    }
-	    synchronized (permissions) {
-		permissions.put(method, perm);
-	    }
+	    permissions.put(method, perm);
 	}
 	checkClientPermission(perm);
     }
@@ -989,7 +1023,7 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 	    throw new NullPointerException();
 	}
 	long hash = in.readLong();
-	Method method = (Method) methods.get(Long.valueOf(hash));
+	Method method = methods.get(hash);
 	if (method == null) {
 	    throw new NoSuchMethodException(
 	     "unrecognized method hash: method not supported by remote object");
@@ -1328,6 +1362,53 @@ public class BasicInvocationDispatcher implements InvocationDispatcher {
 	logger.log(lr);
     }
 
+    /**
+     * Open addressing hash table from method hash to Method, filled by
+     * the constructor and read without locking or boxing thereafter.
+     * The table is at most half full, so every probe sequence ends at an
+     * empty slot.
+     */
+    private static final class MethodTable {
+	private final long[] hashes;
+	private final Method[] methods;	// null for empty slots
+	private final int mask;
+
+	MethodTable(int size) {
+	    int capacity = 2;
+	    while (capacity < size * 2) {
+		capacity <<= 1;
+	    }
+	    hashes = new long[capacity];
+	    methods = new Method[capacity];
+	    mask = capacity - 1;
+	}
+
+	private int index(long hash) {
+	    int h = (int) (hash ^ (hash >>> 32));
+	    return (h ^ (h >>> 16)) & mask;
+	}
+
+	/** Adds a method, replacing any method with the same hash. */
+	void put(long hash, Method method) {
+	    int i = index(hash);
+	    while (methods[i] != null && hashes[i] != hash) {
+		i = (i + 1) & mask;
+	    }
+	    hashes[i] = hash;
+	    methods[i] = method;
+	}
+
+	/** Returns the method with the given hash, or null. */
+	Method get(long hash) {
+	    for (int i = index(hash); methods[i] != null; i = (i + 1) & mask) {
+		if (hashes[i] == hash) {
+		    return methods[i];
+		}
+	    }
+	    return null;
+	}
+    }
+
     /**
      * Return the current client subject or <code>null</code> if not
      * currently executing a remote call.
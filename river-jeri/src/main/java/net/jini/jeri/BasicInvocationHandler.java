@@ -18,6 +18,9 @@
 
 package net.jini.jeri;
 
+import org.apache.river.jeri.internal.runtime.CachingMarshalInputStream;
+import org.apache.river.jeri.internal.runtime.CachingMarshalOutputStream;
+import org.apache.river.jeri.internal.runtime.ClassDescriptorCache;
 import org.apache.river.jeri.internal.runtime.Util;
 import org.apache.river.logging.Levels;
 import java.io.EOFException;
@@ -183,6 +186,13 @@ public class BasicInvocationHandler
     /** method constraint cache values (unused entries are null) */
     private transient InvocationConstraints[] constraintCache;
 
+    /**
+     * true once a response has been read in the class descriptor
+     * caching format, showing that the remote object's dispatcher also
+     * reads requests in that format
+     */
+    private transient volatile boolean serverReadsCached;
+
     /**
      * Creates a new <code>BasicInvocationHandler</code> with the
      * specified <code>ObjectEndpoint</code> and server constraints.
@@ -763,7 +773,9 @@ public class BasicInvocationHandler
 	    OutputStream ros = request.getRequestOutputStream();
 
 	    ros.write(0x00);			// marshalling protocol version
-	    ros.write(integrity ? 0x01 : 0x00);	// integrity
+	    ros.write((integrity ? 0x01 : 0x00) |	// integrity
+		      (getDescriptorCall(request) != null ?
+		       ClassDescriptorCache.READS_CACHED : 0x00));
 
 	    context = new ArrayList(1);
 	    Util.populateContext(context, integrity);
@@ -984,7 +996,11 @@ public class BasicInvocationHandler
      * to return a new {@link MarshalOutputStream} instance
      * constructed with the output stream obtained from
      * <code>request</code> as specified above and an unmodifiable
-     * view of the supplied <code>context</code> collection.
+     * view of the supplied <code>context</code> collection.  If the
+     * request's connection caches class descriptors, and the remote
+     * object has shown it reads requests that use the cache, the
+     * stream returned writes class descriptors the other end already
+     * has by number.
      *
      * <p>A subclass can override this method to control how the
      * marshal input stream is created or implemented.
@@ -1010,6 +1026,13 @@ public class BasicInvocationHandler
 	}
 	OutputStream out = request.getRequestOutputStream();
 	Collection unmodContext = Collections.unmodifiableCollection(context);
+	if (serverReadsCached) {
+	    ClassDescriptorCache.Call call = getDescriptorCall(request);
+	    if (call != null) {
+		return new CachingMarshalOutputStream(out, unmodContext,
+						      call.getCache());
+	    }
+	}
 	return new MarshalOutputStream(out, unmodContext);
     }
 							  
@@ -1028,7 +1051,9 @@ public class BasicInvocationHandler
      * this method's <code>integrity</code> argument for
      * <code>verifyCodebaseIntegrity</code>, and an unmodifiable view
      * of <code>context</code> for the <code>context</code>
-     * collection.  The {@link
+     * collection.  If the request's connection caches class
+     * descriptors, the stream returned also reads a response that uses
+     * the cache.  The {@link
      * MarshalInputStream#useCodebaseAnnotations
      * useCodebaseAnnotations} method is invoked on the created stream
      * before it is returned.
@@ -1065,14 +1090,44 @@ public class BasicInvocationHandler
 	}
 	ClassLoader proxyLoader = getProxyLoader(proxy.getClass());
 	Collection unmodContext = Collections.unmodifiableCollection(context);
-	MarshalInputStream in =
-	    new MarshalInputStream(request.getResponseInputStream(),
-				   proxyLoader, integrity, proxyLoader,
-				   unmodContext);
+	ClassDescriptorCache.Call call = getDescriptorCall(request);
+	MarshalInputStream in;
+	if (call != null) {
+	    CachingMarshalInputStream cin =
+		new CachingMarshalInputStream(request.getResponseInputStream(),
+					      proxyLoader, integrity,
+					      proxyLoader, unmodContext,
+					      call.getCache());
+	    if (cin.isCached()) {
+		serverReadsCached = true;
+	    }
+	    in = cin;
+	} else {
+	    in = new MarshalInputStream(request.getResponseInputStream(),
+					proxyLoader, integrity, proxyLoader,
+					unmodContext);
+	}
 	in.useCodebaseAnnotations();
 	return in;
     }
 
+    /**
+     * Returns the class descriptor cache context element of a request,
+     * or <code>null</code> if its connection has no cache or this
+     * handler's class creates its own marshal streams.
+     */
+    private ClassDescriptorCache.Call getDescriptorCall(
+	OutboundRequest request)
+    {
+	if (!ClassDescriptorCache.ENABLED ||
+	    !ClassDescriptorCache.usesDefaultStreams(
+		getClass(), BasicInvocationHandler.class))
+	{
+	    return null;
+	}
+	return ClassDescriptorCache.getCall(request);
+    }
+
     /**
      * Returns the class loader for the specified proxy class.
      */
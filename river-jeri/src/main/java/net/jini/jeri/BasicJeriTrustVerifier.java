@@ -273,7 +273,8 @@ public class BasicJeriTrustVerifier implements TrustVerifier {
      * return <code>true</code> if all of the following are true:
      * <ul>
      * <li>The specified invocation handler's class is equal to
-     * <code>BasicInvocationHandler</code>. 
+     * <code>BasicInvocationHandler</code>, or to the class of the
+     * invocation handlers created by {@link CompactILFactory}. 
      * <li>Invoking the {@link #checkInvocationHandlerContent
      * checkInvocationHandlerContent} method with the specified handler
      * and the specified context returns <code>true</code>. 
@@ -303,7 +304,9 @@ public class BasicJeriTrustVerifier implements TrustVerifier {
 				TrustVerifier.Context ctx)
 	throws RemoteException
     {
-	if (handler.getClass() != BasicInvocationHandler.class) {
+	if (handler.getClass() != BasicInvocationHandler.class &&
+	    handler.getClass() != CompactInvocationHandler.class)
+	{
 	    return false;
 	}
 	
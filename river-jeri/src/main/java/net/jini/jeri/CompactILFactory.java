@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jini.jeri;
+
+import java.lang.reflect.InvocationHandler;
+import java.rmi.Remote;
+import java.rmi.server.ExportException;
+import java.util.Collection;
+import net.jini.core.constraint.MethodConstraints;
+
+/**
+ * Invocation layer factory for remote objects exported to use Jini
+ * extensible remote invocation (Jini ERI) that produces proxies and
+ * dispatchers that marshal calls to some remote methods in a compact
+ * binary form.
+ *
+ * <p>A remote method is marshalled in the compact form if each of its
+ * parameter types and its return type is a primitive type,
+ * <code>void</code>, <code>String</code>, {@link net.jini.id.Uuid}, an
+ * array of a primitive type, <code>String[]</code>, or
+ * <code>Uuid[]</code>.  Its arguments and result are then written
+ * without class descriptors or object handles, with fewer and smaller
+ * allocations than a {@link net.jini.io.MarshalOutputStream} makes; an
+ * exception thrown by such a method is still written as a serialized
+ * object.  Calls to all other remote methods are marshalled exactly as
+ * for {@link BasicILFactory}.
+ *
+ * <p>The invocation handlers this factory creates are subclasses of
+ * {@link BasicInvocationHandler}, and the invocation dispatchers are
+ * subclasses of {@link BasicInvocationDispatcher}, that override only
+ * how marshal streams are created.  A stream in the compact form starts
+ * with a magic number of its own, so each end of a call can tell which
+ * form the other end wrote.  {@link BasicJeriTrustVerifier} trusts
+ * these invocation handlers as it does <code>BasicInvocationHandler</code>
+ * instances.
+ *
+ * @since 3.0
+ **/
+public class CompactILFactory extends BasicILFactory {
+
+    /**
+     * Creates a <code>CompactILFactory</code> instance with no server
+     * constraints, no permission class, and a <code>null</code> class
+     * loader.
+     **/
+    public CompactILFactory() {
+	super();
+    }
+
+    /**
+     * Creates a <code>CompactILFactory</code> with the specified server
+     * constraints, permission class, and a <code>null</code> class
+     * loader.
+     *
+     * @param	serverConstraints the server constraints, or <code>null</code>
+     * @param	permissionClass the permission class, or <code>null</code>
+     * @throws	IllegalArgumentException if the permission class is
+     *		abstract, is not a subclass of {@link
+     *		java.security.Permission}, or does not have a public
+     *		constructor that has either one <code>String</code>
+     *		parameter or one {@link java.lang.reflect.Method}
+     *		parameter and has no declared exceptions
+     **/
+    public CompactILFactory(MethodConstraints serverConstraints,
+			    Class permissionClass)
+    {
+	this(serverConstraints, permissionClass, null);
+    }
+
+    /**
+     * Creates a <code>CompactILFactory</code> with the specified server
+     * constraints, permission class, and class loader, which are used
+     * as they are by {@link BasicILFactory}.
+     *
+     * @param	serverConstraints the server constraints, or <code>null</code>
+     * @param	permissionClass the permission class, or <code>null</code>
+     * @param	loader the class loader, or <code>null</code>
+     * @throws	IllegalArgumentException if the permission class is
+     *		abstract, is not a subclass of {@link
+     *		java.security.Permission}, or does not have a public
+     *		constructor that has either one <code>String</code>
+     *		parameter or one {@link java.lang.reflect.Method}
+     *		parameter and has no declared exceptions
+     **/
+    public CompactILFactory(MethodConstraints serverConstraints,
+			    Class permissionClass,
+			    ClassLoader loader)
+    {
+	super(serverConstraints, permissionClass, loader);
+    }
+
+    /**
+     * Returns an invocation handler to use with a {@link
+     * java.lang.reflect.Proxy} instance implementing the specified
+     * interfaces, communicating with the specified remote object using
+     * the specified object endpoint.
+     *
+     * <p><code>CompactILFactory</code> implements this method to return
+     * a <code>BasicInvocationHandler</code> subclass instance that
+     * marshals calls to remote methods with only compact types in the
+     * compact form, constructed with the specified object endpoint and
+     * this factory's server constraints.
+     *
+     * @throws	NullPointerException {@inheritDoc}
+     **/
+    protected InvocationHandler createInvocationHandler(Class[] interfaces,
+							Remote impl,
+							ObjectEndpoint oe)
+	throws ExportException
+    {
+	for (int i = interfaces.length; --i >= 0; ) {
+	    if (interfaces[i] == null) {
+		throw new NullPointerException();
+	    }
+	}
+	if (impl == null) {
+	    throw new NullPointerException();
+	}
+	return new CompactInvocationHandler(oe, getServerConstraints());
+    }
+
+    /**
+     * Returns an invocation dispatcher to receive incoming remote calls
+     * for the specified methods to the specified remote object, for a
+     * server and transport with the specified capabilities.
+     *
+     * <p><code>CompactILFactory</code> implements this method to return
+     * a <code>BasicInvocationDispatcher</code> subclass instance that
+     * reads calls marshalled in either form, and marshals the results
+     * of remote methods with only compact types in the compact form,
+     * constructed with the specified methods, server capabilities, and
+     * this factory's server constraints, permission class, and class
+     * loader.
+     *
+     * @throws 	NullPointerException {@inheritDoc}
+     * @throws	IllegalArgumentException {@inheritDoc}
+     **/
+    protected InvocationDispatcher
+        createInvocationDispatcher(Collection methods,
+				   Remote impl,
+				   ServerCapabilities caps)
+        throws ExportException
+    {
+	if (impl == null) {
+	    throw new NullPointerException("impl is null");
+	}
+	return new CompactInvocationDispatcher(methods, caps,
+					       getServerConstraints(),
+					       getPermissionClass(),
+					       getClassLoader());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jini.jeri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.rmi.server.ExportException;
+import java.util.Collection;
+import net.jini.core.constraint.InvocationConstraints;
+import net.jini.core.constraint.MethodConstraints;
+import net.jini.io.UnsupportedConstraintException;
+import org.apache.river.jeri.internal.runtime.CompactObjectInputStream;
+import org.apache.river.jeri.internal.runtime.CompactObjectOutputStream;
+
+/**
+ * The invocation dispatcher created by {@link CompactILFactory}: a
+ * <code>BasicInvocationDispatcher</code> that unmarshals requests in
+ * whichever form the client wrote them, and marshals the results of
+ * remote methods with only compact types with a {@link
+ * CompactObjectOutputStream}.
+ *
+ * @since 3.0
+ **/
+final class CompactInvocationDispatcher extends BasicInvocationDispatcher {
+
+    /**
+     * Creates an invocation dispatcher as {@link
+     * BasicInvocationDispatcher#BasicInvocationDispatcher
+     * BasicInvocationDispatcher} does.
+     **/
+    CompactInvocationDispatcher(Collection methods,
+				ServerCapabilities serverCapabilities,
+				MethodConstraints serverConstraints,
+				Class permissionClass,
+				ClassLoader loader)
+	throws ExportException
+    {
+	super(methods, serverCapabilities, serverConstraints,
+	      permissionClass, loader);
+    }
+
+    /**
+     * Returns a {@link CompactObjectInputStream} if the request is in
+     * the compact form, using the superclass's stream to read any
+     * objects of other than compact types, and otherwise returns the
+     * superclass's stream.
+     **/
+    protected ObjectInputStream
+        createMarshalInputStream(final Object impl,
+				 final InboundRequest request,
+				 final boolean integrity,
+				 final Collection context)
+	throws IOException
+    {
+	return CompactObjectInputStream.create(
+	    request.getRequestInputStream(),
+	    new CompactObjectInputStream.Fallback() {
+		public ObjectInputStream newStream(InputStream in)
+		    throws IOException
+		{
+		    return CompactInvocationDispatcher.super
+			.createMarshalInputStream(
+			    impl, new Request(request, in, null),
+			    integrity, context);
+		}
+	    });
+    }
+
+    /**
+     * Returns a {@link CompactObjectOutputStream} if all the types of
+     * <code>method</code> are compact, using the superclass's stream to
+     * write any objects of other types, and otherwise returns the
+     * superclass's stream.
+     **/
+    protected ObjectOutputStream
+        createMarshalOutputStream(final Object impl,
+				  final Method method,
+				  final InboundRequest request,
+				  final Collection context)
+	throws IOException
+    {
+	if (impl == null) {
+	    throw new NullPointerException();
+	}
+	if (method == null || !CompactObjectOutputStream.isCompact(method)) {
+	    return super.createMarshalOutputStream(impl, method, request,
+						   context);
+	}
+	return CompactObjectOutputStream.create(
+	    request.getResponseOutputStream(),
+	    new CompactObjectOutputStream.Fallback() {
+		public ObjectOutputStream newStream(OutputStream out)
+		    throws IOException
+		{
+		    return CompactInvocationDispatcher.super
+			.createMarshalOutputStream(
+			    impl, method, new Request(request, null, out),
+			    context);
+		}
+	    });
+    }
+
+    /**
+     * An inbound request that substitutes the streams of another.
+     */
+    private static final class Request implements InboundRequest {
+	private final InboundRequest request;
+	private final InputStream in;
+	private final OutputStream out;
+
+	Request(InboundRequest request, InputStream in, OutputStream out) {
+	    this.request = request;
+	    this.in = in;
+	    this.out = out;
+	}
+
+	public void checkPermissions() {
+	    request.checkPermissions();
+	}
+
+	public InvocationConstraints checkConstraints(
+	    InvocationConstraints constraints)
+	    throws UnsupportedConstraintException
+	{
+	    return request.checkConstraints(constraints);
+	}
+
+	public void populateContext(Collection context) {
+	    request.populateContext(context);
+	}
+
+	public InputStream getRequestInputStream() {
+	    return in;
+	}
+
+	public OutputStream getResponseOutputStream() {
+	    return out;
+	}
+
+	public void abort() {
+	    request.abort();
+	}
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jini.jeri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import net.jini.core.constraint.InvocationConstraints;
+import net.jini.core.constraint.MethodConstraints;
+import org.apache.river.jeri.internal.runtime.CompactObjectInputStream;
+import org.apache.river.jeri.internal.runtime.CompactObjectOutputStream;
+
+/**
+ * The invocation handler created by {@link CompactILFactory}: a
+ * <code>BasicInvocationHandler</code> that marshals calls to remote
+ * methods with only compact types with a {@link
+ * CompactObjectOutputStream}, and unmarshals their results in whichever
+ * form the server wrote them.
+ *
+ * @since 3.0
+ **/
+final class CompactInvocationHandler extends BasicInvocationHandler {
+
+    private static final long serialVersionUID = 4470211541379541938L;
+
+    /**
+     * Creates a new <code>CompactInvocationHandler</code> with the
+     * specified <code>ObjectEndpoint</code> and server constraints.
+     *
+     * @param	oe the <code>ObjectEndpoint</code> for this invocation handler
+     * @param	serverConstraints the server constraints, or <code>null</code>
+     * @throws	NullPointerException if <code>oe</code> is <code>null</code>
+     **/
+    CompactInvocationHandler(ObjectEndpoint oe,
+			     MethodConstraints serverConstraints)
+    {
+	super(oe, serverConstraints);
+    }
+
+    /**
+     * Creates a new <code>CompactInvocationHandler</code> with the
+     * specified client constraints and with the same
+     * <code>ObjectEndpoint</code> and server constraints as the given
+     * other <code>CompactInvocationHandler</code>, for use by {@link
+     * #setClientConstraints setClientConstraints}.
+     *
+     * @param	other the <code>CompactInvocationHandler</code> to obtain
+     *		the <code>ObjectEndpoint</code> and server constraints from
+     * @param	clientConstraints the client constraints, or
+     *		<code>null</code>
+     * @throws	NullPointerException if <code>other</code> is
+     *		<code>null</code>
+     **/
+    public CompactInvocationHandler(CompactInvocationHandler other,
+				    MethodConstraints clientConstraints)
+    {
+	super(other, clientConstraints);
+    }
+
+    /**
+     * Returns a {@link CompactObjectOutputStream} if all the types of
+     * <code>method</code> are compact, using the superclass's stream to
+     * write any objects of other types, and otherwise returns the
+     * superclass's stream.
+     **/
+    protected ObjectOutputStream
+        createMarshalOutputStream(final Object proxy,
+				  final Method method,
+				  final OutboundRequest request,
+				  final Collection context)
+	throws IOException
+    {
+	if (proxy == null || method == null) {
+	    throw new NullPointerException();
+	}
+	if (!CompactObjectOutputStream.isCompact(method)) {
+	    return super.createMarshalOutputStream(proxy, method, request,
+						   context);
+	}
+	return CompactObjectOutputStream.create(
+	    request.getRequestOutputStream(),
+	    new CompactObjectOutputStream.Fallback() {
+		public ObjectOutputStream newStream(OutputStream out)
+		    throws IOException
+		{
+		    return CompactInvocationHandler.super
+			.createMarshalOutputStream(
+			    proxy, method, new Request(request, null, out),
+			    context);
+		}
+	    });
+    }
+
+    /**
+     * Returns a {@link CompactObjectInputStream} if all the types of
+     * <code>method</code> are compact and the response is in the
+     * compact form, using the superclass's stream to read any objects of
+     * other types, and otherwise returns the superclass's stream.
+     **/
+    protected ObjectInputStream
+        createMarshalInputStream(final Object proxy,
+				 final Method method,
+				 final OutboundRequest request,
+				 final boolean integrity,
+				 final Collection context)
+	throws IOException
+    {
+	if (method == null) {
+	    throw new NullPointerException();
+	}
+	if (!CompactObjectOutputStream.isCompact(method)) {
+	    return super.createMarshalInputStream(proxy, method, request,
+						  integrity, context);
+	}
+	if (Proxy.getInvocationHandler(proxy) != this) {
+	    throw new IllegalArgumentException("not proxy for this");
+	}
+	return CompactObjectInputStream.create(
+	    request.getResponseInputStream(),
+	    new CompactObjectInputStream.Fallback() {
+		public ObjectInputStream newStream(InputStream in)
+		    throws IOException
+		{
+		    return CompactInvocationHandler.super
+			.createMarshalInputStream(
+			    proxy, method, new Request(request, in, null),
+			    integrity, context);
+		}
+	    });
+    }
+
+    /**
+     * An outbound request that substitutes the streams of another.
+     */
+    private static final class Request implements OutboundRequest {
+	private final OutboundRequest request;
+	private final InputStream in;
+	private final OutputStream out;
+
+	Request(OutboundRequest request, InputStream in, OutputStream out) {
+	    this.request = request;
+	    this.in = in;
+	    this.out = out;
+	}
+
+	public void populateContext(Collection context) {
+	    request.populateContext(context);
+	}
+
+	public InvocationConstraints getUnfulfilledConstraints() {
+	    return request.getUnfulfilledConstraints();
+	}
+
+	public OutputStream getRequestOutputStream() {
+	    return out;
+	}
+
+	public InputStream getResponseInputStream() {
+	    return in;
+	}
+
+	public boolean getDeliveryStatus() {
+	    return request.getDeliveryStatus();
+	}
+
+	public void abort() {
+	    request.abort();
+	}
+    }
+}
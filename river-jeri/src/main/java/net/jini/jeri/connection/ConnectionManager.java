@@ -209,7 +209,7 @@ public final class ConnectionManager {
                         int n = mux.requestsInProgress();
                         if (n == 0) {
                             idle.add(mux.getConnection());
-                        } else if (n < OutboundMux.MAX_REQUESTS) {
+                        } else if (n < mux.maxRequests()) {
                             active.add(mux.getConnection());
                         }
                     } catch (IOException e) {
@@ -509,9 +509,10 @@ public final class ConnectionManager {
             return in;
         }
 
-        /* delegate to the connection */
+        /* delegate to both the underlying request and the connection */
         @Override
         public void populateContext(Collection context) {
+            req.populateContext(context);
             c.populateContext(handle, context);
         }
 
@@ -768,7 +769,9 @@ public final class ConnectionManager {
      * OutboundRequest#getUnfulfilledConstraints
      * getUnfulfilledConstraints} methods of the <code>OutboundRequest</code>
      * are implemented by delegating to the corresponding method of the
-     * connection passing <code>handle</code> and the other arguments (if any).
+     * connection passing <code>handle</code> and the other arguments (if any);
+     * <code>populateContext</code> first adds any context of the multiplexed
+     * request itself.
      *
      * </blockquote>
      *
@@ -289,6 +289,13 @@ import net.jini.security.proxytrust.TrustEquivalence;
  * This implementation recognizes the following system properties: <p>
  * 
  * <ul>
+ * <li> <code>org.apache.river.jeri.ssl.handshakeWait</code> - The maximum
+ *	number of milliseconds a new connection waits for another connection
+ *	with the same client subject, principals and constraints to finish its
+ *	TLS/SSL handshake, so that it can resume the session that handshake
+ *	establishes rather than performing a full handshake. Connections
+ *	without a client subject never wait. The default is <code>50</code>. A
+ *	value of <code>0</code> disables waiting.
  * <li> <code>org.apache.river.jeri.ssl.maxClientSessionDuration</code> - The
  *	maximum number of milliseconds a client-side TLS/SSL session should be
  *	used. The default is 23.5 hours. The value should be smaller than the
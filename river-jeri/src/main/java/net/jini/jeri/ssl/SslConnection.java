@@ -99,6 +99,12 @@ class SslConnection extends Utilities implements Connection {
     /** The authentication manager. */
     private final ClientAuthManager authManager;
 
+    /**
+     * True once the SSLContext has been returned for use by other
+     * connections after the first handshake.
+     */
+    private volatile boolean contextReleased;
+
     /** The socket */
     volatile SSLSocket sslSocket;
 
@@ -135,8 +141,17 @@ class SslConnection extends Utilities implements Connection {
 	this.callContext = callContext;
 	SSLContextInfo info = getClientSSLContextInfo(callContext);
 	sslContext = info.sslContext;
-	sslSocketFactory = sslContext.getSocketFactory();
 	authManager = (ClientAuthManager) info.authManager;
+	boolean created = false;
+	try {
+	    sslSocketFactory = sslContext.getSocketFactory();
+	    created = true;
+	} finally {
+	    if (!created) {
+		contextReleased = true;
+		discardClientSSLContextInfo(callContext, sslContext);
+	    }
+	}
     }
 
     /**
@@ -150,67 +165,82 @@ class SslConnection extends Utilities implements Connection {
      *	       have the proper AuthenticationPermission
      */
     final void establishCallContext() throws IOException {
-	Exception exception;
+	boolean established = false;
 	try {
-	    establishNewSocket();
-	    if (callContext.clientAuthRequired
-		&& !authManager.getClientAuthenticated())
-	    {
-		Exception credExcept =
-		    authManager.getClientCredentialException();
-		/*
-		 * Don't throw the exception that occurred when getting client
-		 * credentials if the caller doesn't have access to the
-		 * subject.
-		 */
-		SecurityManager sm = System.getSecurityManager();
-		if (sm != null) {
-		    try {
-			sm.checkPermission(getSubjectPermission);
-		    } catch (SecurityException e) {
-			credExcept = null;
+	    Exception exception;
+	    try {
+		establishNewSocket();
+		if (callContext.clientAuthRequired
+		    && !authManager.getClientAuthenticated())
+		{
+		    Exception credExcept =
+			authManager.getClientCredentialException();
+		    /*
+		     * Don't throw the exception that occurred when getting
+		     * client credentials if the caller doesn't have access to
+		     * the subject.
+		     */
+		    SecurityManager sm = System.getSecurityManager();
+		    if (sm != null) {
+			try {
+			    sm.checkPermission(getSubjectPermission);
+			} catch (SecurityException e) {
+			    credExcept = null;
+			}
+		    }
+		    if (credExcept instanceof SecurityException) {
+			exception = (SecurityException) credExcept;
+		    } else {
+			exception = new UnsupportedConstraintException(
+			    "Client not authenticated", credExcept);
 		    }
-		}
-		if (credExcept instanceof SecurityException) {
-		    exception = (SecurityException) credExcept;
 		} else {
-		    exception = new UnsupportedConstraintException(
-			"Client not authenticated", credExcept);
+		    if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE,
+				   "new connection for {0}\ncreates {1}",
+				   new Object[] { callContext, this });
+		    }
+		    established = true;
+		    return;
 		}
+	    } catch (SSLProtocolException e) {
+		/*
+		 * Don't throw an UnsupportedConstraintException -- this is a
+		 * problem within the SSL implementation.
+		 */
+		exception = e;
+	    } catch (SSLException e) {
+		exception =
+		    new UnsupportedConstraintException(e.getMessage(), e);
+	    } catch (IOException e) {
+		exception = e;
+	    } catch (SecurityException e) {
+		exception = e;
+	    }
+	    if (logger.isLoggable(Levels.FAILED)) {
+		logThrow(logger, Levels.FAILED,
+			 SslConnection.class, "establishCallContext",
+			 "new connection for {0}\nthrows",
+			 new Object[] { callContext },
+			 exception);
+	    }
+	    if (exception instanceof IOException) {
+		throw (IOException) exception;
 	    } else {
-		if (logger.isLoggable(Level.FINE)) {
-		    logger.log(Level.FINE,
-			       "new connection for {0}\ncreates {1}",
-			       new Object[] { callContext, this });
-		}
-		return;
+		throw (SecurityException) exception;
 	    }
-	} catch (SSLProtocolException e) {
+	} finally {
 	    /*
-	     * Don't throw an UnsupportedConstraintException -- this is a
-	     * problem within the SSL implementation.
+	     * Discard the SSLContext on any failure, including runtime
+	     * exceptions and errors, so that it is not left in use.
 	     */
-	    exception = e;
-	} catch (SSLException e) {
-	    exception = new UnsupportedConstraintException(e.getMessage(), e);
-	} catch (IOException e) {
-	    exception = e;
-	} catch (SecurityException e) {
-	    exception = e;
-	}
-	if (logger.isLoggable(Levels.FAILED)) {
-	    logThrow(logger, Levels.FAILED,
-		     SslConnection.class, "establishCallContext",
-		     "new connection for {0}\nthrows",
-		     new Object[] { callContext },
-		     exception);
-	}
-	closeSocket();
-
-	if (exception instanceof IOException) {
-	    throw (IOException) exception;
-	} else {
-	    throw (SecurityException) exception;
+	    if (!established) {
+		closeSocket();
+		if (!contextReleased) {
+		    contextReleased = true;
+		    discardClientSSLContextInfo(callContext, sslContext);
+		}
+	    }
 	}
     }
 
@@ -252,7 +282,10 @@ class SslConnection extends Utilities implements Connection {
 	session = sslSocket.getSession();
 	activeCipherSuite = session.getCipherSuite();
 	sslSocket.setEnableSessionCreation(false);
-	releaseClientSSLContextInfo(callContext, sslContext, authManager);
+	if (!contextReleased) {
+	    contextReleased = true;
+	    releaseClientSSLContextInfo(callContext, sslContext, authManager);
+	}
     }
 
     /**
@@ -45,6 +45,8 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.SocketFactory;
@@ -108,12 +110,15 @@ class SslEndpointImpl extends Utilities implements ConnectionEndpoint {
      */
     boolean disableSocketConnect;
 
-    /** A cache for recently computed connection contexts. */
-    private ConnectionContextCache[] connectionContextCache =
-	new ConnectionContextCache[CACHE_SIZE];
-
-    /** Next index for a connectionContextCache miss; counts down, not up. */
-    private int cacheNext;
+    /**
+     * A cache for recently computed connection contexts, keyed by
+     * constraints and client principals, from which the least recently
+     * used entry is evicted when it grows beyond CACHE_SIZE entries.
+     */
+    private final ConcurrentMap<ConnectionContextKey,ConnectionContextCache>
+	connectionContextCache =
+	    new ConcurrentHashMap<ConnectionContextKey,ConnectionContextCache>(
+		CACHE_SIZE * 2);
 
     /** The connection manager for this endpoint or null if not yet set. */
     ConnManager connectionManager;
@@ -688,21 +693,50 @@ class SslEndpointImpl extends Utilities implements ConnectionEndpoint {
     }
 
     /**
-     * Defines a structure to cache a ConnectionContexts for specific
-     * constraints and client principals.
+     * The constraints and client principals that a list of
+     * ConnectionContexts is cached for.
      */
-    private static final class ConnectionContextCache {
-	final InvocationConstraints constraints;
-	final Set clientPrincipals;
-	final List connectionContexts;
+    private static final class ConnectionContextKey {
+	private final InvocationConstraints constraints;
+	private final Set clientPrincipals;
+	private final int hash;
 
-	ConnectionContextCache(InvocationConstraints constraints,
-			       Set clientPrincipals,
-			       List connectionContexts)
+	ConnectionContextKey(InvocationConstraints constraints,
+			     Set clientPrincipals)
 	{
 	    this.constraints = constraints;
 	    this.clientPrincipals = clientPrincipals;
+	    hash = constraints.hashCode() ^ clientPrincipals.hashCode();
+	}
+
+	public int hashCode() {
+	    return hash;
+	}
+
+	public boolean equals(Object obj) {
+	    if (obj == this) {
+		return true;
+	    } else if (!(obj instanceof ConnectionContextKey)) {
+		return false;
+	    }
+	    ConnectionContextKey other = (ConnectionContextKey) obj;
+	    return hash == other.hash &&
+		constraints.equals(other.constraints) &&
+		clientPrincipals.equals(other.clientPrincipals);
+	}
+    }
+
+    /**
+     * Defines a structure to cache a ConnectionContexts for specific
+     * constraints and client principals, with the time it was last used.
+     */
+    private static final class ConnectionContextCache {
+	final List connectionContexts;
+	volatile long lastUsed;
+
+	ConnectionContextCache(List connectionContexts) {
 	    this.connectionContexts = connectionContexts;
+	    lastUsed = System.nanoTime();
 	}
     }
 
@@ -713,17 +747,13 @@ class SslEndpointImpl extends Utilities implements ConnectionEndpoint {
     private List getConnectionContexts(InvocationConstraints constraints,
 				       Set clientPrincipals)
     {
-	synchronized (connectionContextCache) {
-	    for (int i = CACHE_SIZE; --i >= 0; ) {
-		ConnectionContextCache cache = connectionContextCache[i];
-		if (cache != null &&
-		    cache.constraints.equals(constraints) &&
-		    cache.clientPrincipals.equals(clientPrincipals))
-		{
-		    logger.log(Level.FINEST, "used connection cache");
-		    return cache.connectionContexts;
-		}
-	    }
+	ConnectionContextKey key =
+	    new ConnectionContextKey(constraints, clientPrincipals);
+	ConnectionContextCache cache = connectionContextCache.get(key);
+	if (cache != null) {
+	    cache.lastUsed = System.nanoTime();
+	    logger.log(Level.FINEST, "used connection cache");
+	    return cache.connectionContexts;
 	}
 	Set serverPrincipals = getServerPrincipals(constraints);
 	if (serverPrincipals == null) {
@@ -733,14 +763,22 @@ class SslEndpointImpl extends Utilities implements ConnectionEndpoint {
 	    computeConnectionContexts(
 		getSupportedCipherSuites(), clientPrincipals, serverPrincipals,
 		constraints));
-	synchronized (connectionContextCache) {
-	    connectionContextCache[cacheNext] =
-		new ConnectionContextCache(
-		    constraints, clientPrincipals, contexts);
-	    if (cacheNext == 0) {
-		cacheNext = CACHE_SIZE;
-	    }
-	    cacheNext--;
+	connectionContextCache.put(key, new ConnectionContextCache(contexts));
+	while (connectionContextCache.size() > CACHE_SIZE) {
+	    Map.Entry<ConnectionContextKey,ConnectionContextCache> eldest = null;
+	    for (Map.Entry<ConnectionContextKey,ConnectionContextCache> entry
+		     : connectionContextCache.entrySet())
+	    {
+		if (eldest == null ||
+		    entry.getValue().lastUsed - eldest.getValue().lastUsed < 0)
+		{
+		    eldest = entry;
+		}
+	    }
+	    if (eldest == null) {
+		break;
+	    }
+	    connectionContextCache.remove(eldest.getKey(), eldest.getValue());
 	}
 	return contexts;
     }
@@ -18,6 +18,7 @@
 
 package net.jini.jeri.ssl;
 
+import org.apache.river.action.GetLongAction;
 import org.apache.river.action.GetPropertyAction;
 import org.apache.river.collection.WeakSoftTable;
 import java.lang.ref.ReferenceQueue;
@@ -226,6 +227,19 @@ abstract class Utilities {
     private static final String sslProtocol = (String) Security.doPrivileged(
 	new GetPropertyAction("org.apache.river.jeri.ssl.sslProtocol", "TLS"));
 
+    /**
+     * The maximum number of milliseconds a new client connection waits for
+     * another connection to finish its handshake with an SSLContext it could
+     * use, rather than creating a new SSLContext, which has no sessions to
+     * resume.  Resuming a session saves roughly the difference between a full
+     * and an abbreviated handshake, about 50 milliseconds over loopback, so
+     * waiting longer than that only delays the connection.
+     */
+    private static final long handshakeWait =
+	((Long) Security.doPrivileged(
+	    new GetLongAction("org.apache.river.jeri.ssl.handshakeWait",
+			      50))).longValue();
+
     /** Permission needed to access the current subject. */
     static final AuthPermission getSubjectPermission =
 	new AuthPermission("getSubject");
@@ -523,6 +537,12 @@ abstract class Utilities {
     private final static class Value extends WeakSoftTable.SoftValue {
 	final AuthManager authManager;
 
+	/**
+	 * Whether a client connection has exclusive access to the SSL context
+	 * for its handshake, guarded by sslContextMap.
+	 */
+	boolean inUse;
+
 	/**
 	 * Creates a value for the associated key containing the specified SSL
 	 * context and auth manager.
@@ -536,6 +556,7 @@ abstract class Utilities {
 	private Value(Value value, ReferenceQueue queue) {
 	    super(value, queue);
 	    this.authManager = value.authManager;
+	    this.inUse = value.inUse;
 	}
 
 	public WeakSoftTable.RemovableReference copy(ReferenceQueue queue) {
@@ -553,7 +574,13 @@ abstract class Utilities {
      * socket factories.  Each client connection has exclusive access to an
      * SSLContext while the opening an SSL connection and should return the
      * SSLContextInfo by calling releaseClientSSLContextInfo when the
-     * connection handshake is done, unless the handshake fails.
+     * connection handshake is done, or discardClientSSLContextInfo if the
+     * handshake fails.  If every SSLContext for the call context is in use,
+     * waits up to handshakeWait milliseconds for one to be returned, so that
+     * the connection can resume a session cached by that SSLContext rather
+     * than performing a full handshake with a new one.  Only contexts that
+     * authenticated the client are reused, so there is no wait if the call
+     * context has no client subject.
      *
      * @param callContext the client call context
      * @return an SSLContextInfo containing an SSLContext and ClientAuthManager
@@ -564,13 +591,21 @@ abstract class Utilities {
     static SSLContextInfo getClientSSLContextInfo(CallContext callContext) {
 	ClientKey key = new ClientKey(callContext);
 	synchronized (sslContextMap) {
-	    for (int i = 0; true; i++) {
-		Value value = (Value) sslContextMap.get(key, i);
-		if (value == null) {
-		    break;
-		}
-		SSLContext sslContext = value.getSSLContext();
-		if (sslContext != null) {
+	    long deadline = 0;
+	    while (true) {
+		boolean busy = false;
+		for (int i = 0; true; i++) {
+		    Value value = (Value) sslContextMap.get(key, i);
+		    if (value == null) {
+			break;
+		    }
+		    SSLContext sslContext = value.getSSLContext();
+		    if (sslContext == null) {
+			continue;
+		    } else if (value.inUse) {
+			busy = true;
+			continue;
+		    }
 		    ClientAuthManager authManager =
 			(ClientAuthManager) value.authManager;
 		    try {
@@ -580,7 +615,7 @@ abstract class Utilities {
 		    } catch (UnsupportedConstraintException e) {
 			continue;
 		    }
-		    sslContextMap.remove(key, i);
+		    value.inUse = true;
 		    if (clientLogger.isLoggable(Level.FINEST)) {
 			clientLogger.log(
 			    Level.FINEST,
@@ -590,6 +625,24 @@ abstract class Utilities {
 		    }
 		    return new SSLContextInfo(sslContext, authManager);
 		}
+		if (!busy
+		    || handshakeWait <= 0
+		    || callContext.clientSubject == null)
+		{
+		    break;
+		}
+		long now = System.currentTimeMillis();
+		if (deadline == 0) {
+		    deadline = now + handshakeWait;
+		} else if (now >= deadline) {
+		    break;
+		}
+		try {
+		    sslContextMap.wait(deadline - now);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    break;
+		}
 	    }
 	}
 	/* Create a new SSL context */
@@ -619,6 +672,12 @@ abstract class Utilities {
 	    throw initializationError(e, "initializing SSL context");
 	}
 
+	Value value = new Value(key, sslContext, authManager);
+	value.inUse = true;
+	synchronized (sslContextMap) {
+	    sslContextMap.add(key, value);
+	}
+
 	if (clientLogger.isLoggable(Level.FINEST)) {
 	    clientLogger.log(Level.FINEST,
 			     "get client SSL context for {0}\nreturns new {1}",
@@ -709,7 +768,45 @@ abstract class Utilities {
     {
 	ClientKey key = new ClientKey(callContext);
 	synchronized (sslContextMap) {
-	    sslContextMap.add(key, new Value(key, sslContext, authManager));
+	    int i = indexOf(key, sslContext);
+	    if (i < 0) {
+		sslContextMap.add(key, new Value(key, sslContext, authManager));
+	    } else {
+		((Value) sslContextMap.get(key, i)).inUse = false;
+	    }
+	    sslContextMap.notifyAll();
+	}
+    }
+
+    /**
+     * Removes a client's SSLContext, whose handshake failed, from the
+     * SSLContextMap.
+     */
+    static void discardClientSSLContextInfo(CallContext callContext,
+					    SSLContext sslContext)
+    {
+	ClientKey key = new ClientKey(callContext);
+	synchronized (sslContextMap) {
+	    int i = indexOf(key, sslContext);
+	    if (i >= 0) {
+		sslContextMap.remove(key, i);
+	    }
+	    sslContextMap.notifyAll();
+	}
+    }
+
+    /**
+     * Returns the index of the value for an SSLContext in the SSLContextMap,
+     * or -1 if it is not there.  Called with sslContextMap locked.
+     */
+    private static int indexOf(ClientKey key, SSLContext sslContext) {
+	for (int i = 0; true; i++) {
+	    Value value = (Value) sslContextMap.get(key, i);
+	    if (value == null) {
+		return -1;
+	    } else if (value.getSSLContext() == sslContext) {
+		return i;
+	    }
 	}
     }
 
@@ -19,6 +19,7 @@
 package net.jini.jeri.tcp;
 
 import org.apache.river.action.GetBooleanAction;
+import org.apache.river.jeri.internal.runtime.SelectionManager;
 import org.apache.river.jeri.internal.runtime.Util;
 import org.apache.river.logging.Levels;
 import org.apache.river.logging.LogUtil;
@@ -34,6 +35,8 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketPermission;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.security.AccessControlContext;
@@ -132,6 +135,14 @@ public final class TcpServerEndpoint implements ServerEndpoint {
     private static final boolean useNIO =		// default false
 	((Boolean) AccessController.doPrivileged(new GetBooleanAction(
 	    "org.apache.river.jeri.tcp.useNIO"))).booleanValue();
+
+    /**
+     * whether or not to accept connections on selector threads shared
+     * by all listen operations, rather than a thread for each
+     */
+    private static final boolean eventLoop =		// default false
+	((Boolean) AccessController.doPrivileged(new GetBooleanAction(
+	    "org.apache.river.jeri.tcp.eventLoop"))).booleanValue();
     
     private static final LocalHost LOCAL_HOST = new LocalHost(null, null);
 
@@ -637,7 +648,7 @@ public final class TcpServerEndpoint implements ServerEndpoint {
 	    if (ssf != null) {
 		serverSocket = ssf.createServerSocket(port);
 	    } else {
-		if (useNIO) {
+		if (useNIO || eventLoop) {
 		    serverSocket = ServerSocketChannel.open().socket();
 		    serverSocket.bind(new InetSocketAddress(port));
 		} else {
@@ -713,8 +724,8 @@ public final class TcpServerEndpoint implements ServerEndpoint {
 	private final SecurityContext securityContext;
 	private final ListenCookie cookie;
 
-	private long acceptFailureTime = 0L;	// local to accept thread
-	private int acceptFailureCount;		// local to accept thread
+	private long acceptFailureTime = 0L;	// local to accepting thread
+	private int acceptFailureCount;		// local to accepting thread
 
 	private final Object lock = new Object();
 	private boolean closed = false;
@@ -732,9 +743,24 @@ public final class TcpServerEndpoint implements ServerEndpoint {
 	}
 
 	/**
-	 * Starts the accept loop.
+	 * Starts the accept loop, or if in event loop mode and the
+	 * server socket has a channel, registers interest in accepting
+	 * connections with a shared SelectionManager.
 	 **/
-	void startAccepting() {
+	void startAccepting() throws IOException {
+	    ServerSocketChannel channel = serverSocket.getChannel();
+	    if (eventLoop && channel != null) {
+		try {
+		    startSelecting(channel);
+		} catch (IOException e) {
+		    try {
+			serverSocket.close();
+		    } catch (IOException ignore) {
+		    }
+		    throw e;
+		}
+		return;
+	    }
 	    systemThreadPool.execute(new Runnable() {
 		public void run() {
 		    try {
@@ -769,26 +795,7 @@ public final class TcpServerEndpoint implements ServerEndpoint {
 		Socket socket = null;
 		try {
 		    socket = serverSocket.accept();
-		    if (logger.isLoggable(Level.FINE)) {
-			logger.log(Level.FINE,
-			    "accepted socket {0} from server socket {1}",
-			    new Object[]{ socket, serverSocket });
-		    }
-
-		    setSocketOptions(socket);
-
-		    final ServerConnection serverConnection =
-			new ServerConnectionImpl(socket);
-
-		    AccessController.doPrivileged(securityContext.wrap(
-			new PrivilegedAction() {
-			    public Object run() {
-				serverConnectionManager.handleConnection(
-				    serverConnection, requestDispatcher);
-				return null;
-			    }
-			}), securityContext.getAccessControlContext());
-
+		    handleAccepted(socket);
 		} catch (Throwable t) {
 		    try {
 			/*
@@ -856,6 +863,138 @@ public final class TcpServerEndpoint implements ServerEndpoint {
 	    }
 	}
 
+	/**
+	 * Hands a newly accepted socket to the ServerConnectionManager.
+	 **/
+	private void handleAccepted(Socket socket) {
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.log(Level.FINE,
+		    "accepted socket {0} from server socket {1}",
+		    new Object[]{ socket, serverSocket });
+	    }
+
+	    setSocketOptions(socket);
+
+	    final ServerConnection serverConnection =
+		new ServerConnectionImpl(socket);
+
+	    AccessController.doPrivileged(securityContext.wrap(
+		new PrivilegedAction() {
+		    public Object run() {
+			serverConnectionManager.handleConnection(
+			    serverConnection, requestDispatcher);
+			return null;
+		    }
+		}), securityContext.getAccessControlContext());
+	}
+
+	/**
+	 * Registers the non-blocking server socket channel with a shared
+	 * SelectionManager, so that connections are accepted by its
+	 * select thread whenever they are pending.  Interest is renewed
+	 * after each batch of connections has been accepted; after a
+	 * failure it is renewed by a system thread, once the failure has
+	 * been throttled as in the accept loop.
+	 **/
+	private void startSelecting(final ServerSocketChannel channel)
+	    throws IOException
+	{
+	    channel.configureBlocking(false);
+	    final SelectionManager.Key key =
+		SelectionManager.getInstance().register(channel,
+		    new SelectionManager.SelectionHandler() {
+			public void handleSelection(int readyMask,
+						    SelectionManager.Key key)
+			{
+			    Object result = acceptPending(channel);
+			    if (result == null) {
+				renewAccept(key);
+			    } else if (result != channel) {
+				renewAcceptLater(key, (Throwable) result);
+			    }
+			}
+		    });
+	    key.renewInterestMask(SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Accepts every connection pending on the non-blocking server
+	 * socket channel.  Returns null if there are no more pending
+	 * connections, the channel if this listen operation has been
+	 * stopped, or else the exception or error thrown by the accept.
+	 **/
+	private Object acceptPending(ServerSocketChannel channel) {
+	    while (true) {
+		Socket socket = null;
+		try {
+		    SocketChannel accepted = channel.accept();
+		    if (accepted == null) {
+			return null;
+		    }
+		    socket = accepted.socket();
+		    handleAccepted(socket);
+		} catch (Throwable t) {
+		    try {
+			synchronized (lock) {
+			    if (closed) {
+				return channel;
+			    }
+			}
+
+			try {
+			    if (logger.isLoggable(Level.WARNING)) {
+				LogUtil.logThrow(logger, Level.WARNING,
+				    TcpServerEndpoint.class,
+				    "acceptPending",
+				    "accept for {0} throws",
+				    new Object[] { serverSocket }, t);
+			    }
+			} catch (Throwable tt) {
+			}
+		    } finally {
+			if (socket != null) {
+			    try {
+				socket.close();
+			    } catch (IOException e) {
+			    }
+			}
+		    }
+		    if (t instanceof Exception ||
+			t instanceof OutOfMemoryError ||
+			t instanceof NoClassDefFoundError)
+		    {
+			return t;
+		    }
+		    throw (Error) t;
+		}
+	    }
+	}
+
+	private void renewAccept(SelectionManager.Key key) {
+	    try {
+		key.renewInterestMask(SelectionKey.OP_ACCEPT);
+	    } catch (ClosedChannelException e) {
+		// listen operation stopped
+	    }
+	}
+
+	/**
+	 * Renews interest in accepting connections from a system thread
+	 * after a failed accept, so that the throttling delay does not
+	 * hold up the select thread.
+	 **/
+	private void renewAcceptLater(final SelectionManager.Key key,
+				      final Throwable failure)
+	{
+	    systemThreadPool.execute(new Runnable() {
+		public void run() {
+		    if (continueAfterAcceptFailure(failure)) {
+			renewAccept(key);
+		    }
+		}
+	    }, toString() + " accept retry");
+	}
+
 	/**
 	 * Stops this listen operation.
 	 **/
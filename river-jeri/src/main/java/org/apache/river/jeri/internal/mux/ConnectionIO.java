@@ -20,6 +20,11 @@ package org.apache.river.jeri.internal.mux;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 /**
  * ConnectionIO is an abstraction over a bi-directional byte stream
@@ -46,9 +51,25 @@ import java.nio.ByteBuffer;
  */
 abstract class ConnectionIO {
 
+    /** capacity of message header buffers, enough for any header */
+    static final int HEADER_SIZE = 8;
+
+    /** most message header buffers a connection keeps for reuse */
+    private static final int HEADER_POOL_SIZE = 32;
+
     /** the Mux object associated with this instance */
     final Mux mux;
 
+    /**
+     * header buffers allocated by newHeader for reuse, whether free or
+     * in use; guarded by freeHeaders
+     */
+    private final Set<ByteBuffer> pooledHeaders =
+	Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+    /** pooled header buffers not in use, guarded by itself */
+    private final Deque<ByteBuffer> freeHeaders = new ArrayDeque<ByteBuffer>();
+
     /**
      * Constructs a new instance.  The supplied Mux object is used in
      * the following ways:
@@ -122,4 +143,41 @@ abstract class ConnectionIO {
      * have been incremented to its limit (which will not have changed).
      */
     abstract IOFuture futureSend(ByteBuffer first, ByteBuffer second);
+
+    /**
+     * Returns an empty buffer of HEADER_SIZE bytes for a message header.
+     * Buffers are reused once they have been written, so a header must
+     * only be passed as the first (or only) buffer of a single "send"
+     * method invocation.  Header buffers are direct if direct buffers
+     * are useful to the Mux.
+     */
+    final ByteBuffer newHeader() {
+	synchronized (freeHeaders) {
+	    ByteBuffer header = freeHeaders.pollLast();
+	    if (header != null) {
+		header.clear();
+		return header;
+	    }
+	    header = mux.directBuffersUseful() ?
+		ByteBuffer.allocateDirect(HEADER_SIZE) :
+		ByteBuffer.allocate(HEADER_SIZE);
+	    if (pooledHeaders.size() < HEADER_POOL_SIZE) {
+		pooledHeaders.add(header);
+	    }
+	    return header;
+	}
+    }
+
+    /**
+     * Returns the supplied buffer to the header pool if it was obtained
+     * from newHeader; does nothing otherwise.  Implementations invoke
+     * this method once for each buffer they have completely written.
+     */
+    final void written(ByteBuffer buffer) {
+	synchronized (freeHeaders) {
+	    if (pooledHeaders.contains(buffer)) {
+		freeHeaders.addLast(buffer);
+	    }
+	}
+    }
 }
@@ -19,6 +19,8 @@
 package org.apache.river.jeri.internal.mux;
 
 import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An IOFuture represents an I/O operation that may or may not have
@@ -29,6 +31,14 @@ import java.io.IOException;
  */
 final class IOFuture {
 
+    /**
+     * lock guarding the state below; a ReentrantLock rather than a
+     * monitor, so that a virtual thread waiting for a write does not
+     * pin its carrier thread
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition completed = lock.newCondition();
+
     private boolean done = false;
     boolean data = false;
     private int position = -1;
@@ -54,43 +64,63 @@ final class IOFuture {
      * interrupted while waiting for the I/O to complete.
      * @return true if data remaining.
      */
-    synchronized boolean waitUntilDone()
+    boolean waitUntilDone()
 	throws IOException, InterruptedException
     {
-	while (!done) {
-	    wait();
-	}
-	if (exception != null) {
-	    exception.fillInStackTrace();
-	    throw exception;
+	lock.lock();
+	try {
+	    while (!done) {
+		completed.await();
+	    }
+	    if (exception != null) {
+		exception.fillInStackTrace();
+		throw exception;
+	    }
+	    return data;
+	} finally {
+	    lock.unlock();
 	}
-        return data;
     }
     
-    synchronized int getPosition(){
-        return position;
+    int getPosition(){
+	lock.lock();
+	try {
+	    return position;
+	} finally {
+	    lock.unlock();
+	}
     }
     
     /**
      * Signals that this I/O operation has completed successfully.
      */
-    synchronized void done() {
-	assert !done;
-        data = false;
-	done = true;
-	notifyAll();
+    void done() {
+	lock.lock();
+	try {
+	    assert !done;
+	    data = false;
+	    done = true;
+	    completed.signalAll();
+	} finally {
+	    lock.unlock();
+	}
     }
     
     /**
      * Signals that this I/O operation has remaining data.
      * @param position 
      */
-    synchronized void done(int position){
-        assert !done;
-        done = true;
-        data = true;
-        this.position = position;
-        notifyAll();
+    void done(int position){
+	lock.lock();
+	try {
+	    assert !done;
+	    done = true;
+	    data = true;
+	    this.position = position;
+	    completed.signalAll();
+	} finally {
+	    lock.unlock();
+	}
     }
 
     /**
@@ -99,19 +129,25 @@ final class IOFuture {
      *
      * @param	e detail of the I/O operation's failure
      */
-    synchronized void done(IOException e) {
-	if (done) {
-	    /*
-	     * This shouldn't normally happen, but it's difficult to prevent
-	     * in bizarre failure scenarios (like an OutOfMemoryError).
-	     */
-	    return;
-	}
-	if (e == null) {
-	    throw new NullPointerException();
+    void done(IOException e) {
+	lock.lock();
+	try {
+	    if (done) {
+		/*
+		 * This shouldn't normally happen, but it's difficult to
+		 * prevent in bizarre failure scenarios (like an
+		 * OutOfMemoryError).
+		 */
+		return;
+	    }
+	    if (e == null) {
+		throw new NullPointerException();
+	    }
+	    this.exception = e;
+	    done = true;
+	    completed.signalAll();
+	} finally {
+	    lock.unlock();
 	}
-	this.exception = e;
-	done = true;
-	notifyAll();
     }
 }
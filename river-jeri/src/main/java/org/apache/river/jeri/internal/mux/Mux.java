@@ -18,6 +18,7 @@
 
 package org.apache.river.jeri.internal.mux;
 
+import org.apache.river.jeri.internal.runtime.ClassDescriptorCache;
 import org.apache.river.jeri.internal.runtime.HexDumpEncoder;
 import org.apache.river.thread.Executor;
 import org.apache.river.thread.GetThreadPoolAction;
@@ -32,6 +33,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.security.AccessController;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Deque;
 import java.util.LinkedList;
@@ -49,9 +51,17 @@ abstract class Mux {
     static final int CLIENT = 0;
     static final int SERVER = 1;
 
+    /** highest session ID of a version 1 connection */
     static final int MAX_SESSION_ID = 0x7F;
     public static final int MAX_REQUESTS = MAX_SESSION_ID + 1;
 
+    /**
+     * highest session ID of a version 2 connection: IDs above
+     * MAX_SESSION_ID are sent with the reserved high bit of the session
+     * ID byte set, followed by a second byte with the low bits of the ID
+     */
+    static final int MAX_SESSION_ID_V2 = 0x7FFF;
+
     static final int NoOperation	= 0x00;	// 00000000
     static final int Shutdown		= 0x02; // 00000010
     static final int Ping		= 0x04; // 00000100
@@ -71,12 +81,15 @@ abstract class Mux {
     static final int Data_ackRequired		= 0x02;
 
     static final int ClientConnectionHeader_negotiate	= 0x01;
+    static final int ClientConnectionHeader_descriptorCache = 0x02;
+    static final int ServerConnectionHeader_descriptorCache = 0x02;
 
     private static final byte[] magic = {
 	(byte) 'J', (byte) 'm', (byte) 'u', (byte) 'x'	// 0x4A6D7578
     };
 
-    private static final int VERSION = 0x01;
+    /** highest protocol version supported; version 1 is negotiated down to */
+    private static final int VERSION = 0x02;
 
     /**
      * pool of threads for executing tasks in system thread group:
@@ -135,8 +148,18 @@ abstract class Mux {
     String muxDownMessage;
     Throwable muxDownCause;
 
+    /** protocol version in use, set once the connection headers have been exchanged */
+    volatile int protocolVersion = 1;
+
+    /**
+     * class descriptors cached for calls over this connection, set once
+     * the connection headers have been exchanged if both ends agreed
+     */
+    volatile ClassDescriptorCache descriptorCache = null;
+
     final BitSet busySessions = new BitSet();
-    final Session [] sessions = new Session[MAX_SESSION_ID + 1];
+    /** sessions indexed by ID, grown as higher IDs are used */
+    Session [] sessions = new Session[MAX_SESSION_ID + 1];
 
     private int expectedPingCookie = -1;
     
@@ -265,6 +288,16 @@ abstract class Mux {
 	    "remote endpoint attempted to open session");
     }
 
+    /**
+     * This method is invoked internally after data has been delivered
+     * to the identified session, and is intended to be overridden by
+     * subclasses.
+     *
+     * This method must NOT be invoked while synchronized on muxLock.
+     */
+    void handleDataReceived(int sessionID) {
+    }
+
     /**
      *
      * This method is intended to be invoked by subclasses only.
@@ -277,8 +310,13 @@ abstract class Mux {
 	assert !muxDown;
 	assert !busySessions.get(sessionID);
 //	assert sessions.get(Byte.valueOf(sessionID)) == null;
-	assert sessions[sessionID] == null;
+	assert sessionID >= sessions.length || sessions[sessionID] == null;
 
+	if (sessionID >= sessions.length) {
+	    sessions = Arrays.copyOf(sessions,
+		Math.min(Math.max(sessions.length * 2, sessionID + 1),
+			 MAX_SESSION_ID_V2 + 1));
+	}
 	busySessions.set(sessionID);
 //	Throwable t = new Throwable();
 //	System.out.println("Setting sessionID: "+ sessionID);
@@ -387,11 +425,13 @@ abstract class Mux {
     final void asyncSendClientConnectionHeader() {
 	assert role == CLIENT;
 
-	ByteBuffer header = ByteBuffer.allocate(8);
+	ByteBuffer header = connectionIO.newHeader();
 	header.put(magic)
 	      .put((byte) VERSION)
 	      .putShort((short) (initialInboundRation >> 8))
-	      .put((byte) 0)
+	      .put((byte) (ClientConnectionHeader_negotiate |
+			   (ClassDescriptorCache.ENABLED ?
+			    ClientConnectionHeader_descriptorCache : 0)))
 	      .flip();
 	connectionIO.asyncSend(header);
     }
@@ -402,11 +442,12 @@ abstract class Mux {
     final void asyncSendServerConnectionHeader() {
 	assert role == SERVER;
 
-	ByteBuffer header = ByteBuffer.allocate(8);
+	ByteBuffer header = connectionIO.newHeader();
 	header.put(magic)
-	      .put((byte) VERSION)
+	      .put((byte) protocolVersion)
 	      .putShort((short) (initialInboundRation >> 8))
-	      .put((byte) 0)
+	      .put((byte) (descriptorCache != null ?
+			   ServerConnectionHeader_descriptorCache : 0))
 	      .flip();
 	connectionIO.asyncSend(header);
     }
@@ -427,7 +468,7 @@ abstract class Mux {
      * be mutated even after this method has returned.
      */
     final void asyncSendNoOperation(ByteBuffer buffer) {
-	ByteBuffer header = ByteBuffer.allocate(4);
+	ByteBuffer header = connectionIO.newHeader();
 	header.put((byte) NoOperation)
 	      .put((byte) 0);
 
@@ -452,7 +493,7 @@ abstract class Mux {
 	ByteBuffer data = (message != null ?
 			   getUTF8BufferFromString(message) : null);
 
-	ByteBuffer header = ByteBuffer.allocate(4);
+	ByteBuffer header = connectionIO.newHeader();
 	header.put((byte) Shutdown)
 	      .put((byte) 0);
 
@@ -474,7 +515,7 @@ abstract class Mux {
     final void asyncSendPing(int cookie) {
 	assert cookie >= 0 && cookie <= 0xFFFF;
 
-	ByteBuffer header = ByteBuffer.allocate(4);
+	ByteBuffer header = connectionIO.newHeader();
 	header.put((byte) Ping)
               .put((byte) 0)
 	      .putShort((short) cookie)
@@ -488,7 +529,7 @@ abstract class Mux {
     final void asyncSendPingAck(int cookie) {
 	assert cookie >= 0 && cookie <= 0xFFFF;
 
-	ByteBuffer header = ByteBuffer.allocate(4);
+	ByteBuffer header = connectionIO.newHeader();
 	header.put((byte) PingAck)
 	      .put((byte) 0)
 	      .putShort((short) cookie)
@@ -505,7 +546,7 @@ abstract class Mux {
 	ByteBuffer data = (message != null ?
 			   getUTF8BufferFromString(message) : null);
 
-	ByteBuffer header = ByteBuffer.allocate(4);
+	ByteBuffer header = connectionIO.newHeader();
 	header.put((byte) Error)
 	      .put((byte) 0);
 
@@ -529,7 +570,7 @@ abstract class Mux {
     final IOFuture futureSendError(String message) {
 	ByteBuffer data = getUTF8BufferFromString(message);
 
-	ByteBuffer header = ByteBuffer.allocate(4);
+	ByteBuffer header = connectionIO.newHeader();
 	header.put((byte) Error)
 	      .put((byte) 0);
 
@@ -541,23 +582,51 @@ abstract class Mux {
 
     /**
      * Sends an IncrementRation message for the specified "sessionID" and
-     * the specified "increment".
+     * at most the specified "increment", returning the increment sent.
+     *
+     * An increment too large for the 16-bit field is sent with the
+     * smallest shift that makes it fit, rounded down to a multiple of
+     * the shifted unit.  An increment larger than 0xFFFF shifted by the
+     * largest shift, 14, is cut down to that.
      */
-    final void asyncSendIncrementRation(/*****int op, *****/int sessionID,
-					int increment)
-    {
-	final int op = IncrementRation;
-//	assert (op & 0xF1) == IncrementRation;	// validate operation code
-//	assert (op & 0xE0) == 0;		// NYI: support use of shift
-	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID;
-	assert increment >= 0 && increment <= 0xFFFF;
+    final int asyncSendIncrementRation(int sessionID, int increment) {
+	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID_V2;
+	assert increment >= 0;
 
-	ByteBuffer header = ByteBuffer.allocate(4);
-	header.put((byte) op)
-	      .put((byte) sessionID)
-	      .putShort((short) increment)
+	int shift = 0;
+	while ((increment >>> shift) > 0xFFFF &&
+	       shift < IncrementRation_shift)
+	{
+	    shift += 2;
+	}
+	final int units = Math.min(increment >>> shift, 0xFFFF);
+	final int op = IncrementRation | shift;
+
+	ByteBuffer header = sessionHeader(op, sessionID);
+	header.putShort((short) units)
 	      .flip();
 	connectionIO.asyncSend(header);
+	return units << shift;
+    }
+
+    /**
+     * Returns a pooled header buffer holding the first byte and session
+     * ID of a message for the specified "sessionID", with room for the
+     * 16-bit field that follows them.  Session IDs above MAX_SESSION_ID,
+     * which are only used over version 2 connections, take two bytes.
+     */
+    private ByteBuffer sessionHeader(int op, int sessionID) {
+	if (sessionID <= MAX_SESSION_ID) {
+	    ByteBuffer header = connectionIO.newHeader();
+	    header.put((byte) op)
+		  .put((byte) sessionID);
+	    return header;
+	}
+	ByteBuffer header = connectionIO.newHeader();
+	header.put((byte) op)
+	      .put((byte) (0x80 | (sessionID >> 8)))
+	      .put((byte) sessionID);
+	return header;
     }
 
     /**
@@ -575,11 +644,9 @@ abstract class Mux {
      */
     final void asyncSendAbort(int op, int sessionID, ByteBuffer data) {
 	assert (op & 0xFD) == Abort;		// validate operation code
-	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID;
+	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID_V2;
 
-	ByteBuffer header = ByteBuffer.allocate(4);
-	header.put((byte) op)
-	      .put((byte) sessionID);
+	ByteBuffer header = sessionHeader(op, sessionID);
 
 	if (data != null) {
 	    assert data.remaining() <= 0xFFFF;
@@ -597,12 +664,10 @@ abstract class Mux {
      * Sends a Close message for the specified "sessionID".
      */
     final void asyncSendClose(int sessionID) {
-	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID;
+	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID_V2;
 
-	ByteBuffer header = ByteBuffer.allocate(4);
-	header.put((byte) Close)
-	      .put((byte) sessionID)
-	      .putShort((short) 0)
+	ByteBuffer header = sessionHeader(Close, sessionID);
+	header.putShort((short) 0)
 	      .flip();
 	connectionIO.asyncSend(header);
     }
@@ -611,12 +676,10 @@ abstract class Mux {
      * Sends an Acknowledgment message for the specified "sessionID".
      */
     final void asyncSendAcknowledgment(int sessionID) {
-	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID;
+	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID_V2;
 
-	ByteBuffer header = ByteBuffer.allocate(4);
-	header.put((byte) Acknowledgment)
-	      .put((byte) sessionID)
-	      .putShort((short) 0)
+	ByteBuffer header = sessionHeader(Acknowledgment, sessionID);
+	header.putShort((short) 0)
 	      .flip();
 	connectionIO.asyncSend(header);
     }
@@ -643,11 +706,9 @@ abstract class Mux {
 	assert (op & 0xE1) == Data;	// validate operation code
 	assert (op & Data_eof) != 0 ||	// close and ackRequired require eof
 	    (op & Data_close & Data_ackRequired) == 0;
-	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID;
+	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID_V2;
 
-	ByteBuffer header = ByteBuffer.allocate(4);
-	header.put((byte) op)
-	      .put((byte) sessionID);
+	ByteBuffer header = sessionHeader(op, sessionID);
 
 	if (data != null) {
 	    assert data.remaining() <= 0xFFFF;
@@ -688,13 +749,11 @@ abstract class Mux {
 	assert (op & 0xE1) == Data;	// verify operation code
 	assert (op & Data_eof) != 0 ||	// close and ackRequired require eof
 	    (op & Data_close & Data_ackRequired) == 0;
-	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID;
+	assert sessionID >= 0 && sessionID <= MAX_SESSION_ID_V2;
 	assert data.remaining() <= 0xFFFF;
 
-	ByteBuffer header = ByteBuffer.allocate(4);
-	header.put((byte) op)
-	      .put((byte) sessionID)
-	      .putShort((short) data.remaining())
+	ByteBuffer header = sessionHeader(op, sessionID);
+	header.putShort((short) data.remaining())
 	      .flip();
 	return connectionIO.futureSend(header, data);
     }
@@ -769,6 +828,15 @@ abstract class Mux {
 
 	synchronized (muxLock) {
 	    initialOutboundRation = ration;
+	    if (version > 1) {
+		// answer with the highest version both ends support
+		protocolVersion = Math.min(version, VERSION);
+	    }
+	    if ((flags & ClientConnectionHeader_descriptorCache) != 0 &&
+		ClassDescriptorCache.ENABLED)
+	    {
+		descriptorCache = new ClassDescriptorCache();
+	    }
 	    asyncSendServerConnectionHeader();
 
 	    if (version == 0) {
@@ -818,6 +886,12 @@ abstract class Mux {
 		throw new ProtocolException(
 		    "unexpected protocol version: " + version);
 	    }
+	    protocolVersion = version;
+	    if ((flags & ServerConnectionHeader_descriptorCache) != 0 &&
+		ClassDescriptorCache.ENABLED)
+	    {
+		descriptorCache = new ClassDescriptorCache();
+	    }
 
 	    clientConnectionReady = true;
 	    muxLock.notifyAll();
@@ -862,10 +936,9 @@ abstract class Mux {
 
 	int op = (buffer.get() & 0xFF);
 	if ((op & 0xE1) == Data) {
-	    int sessionID = (buffer.get() & 0xFF);
-	    if (sessionID > MAX_SESSION_ID) {
-		throw new ProtocolException("bad message header: " +
-		    toHexString(buffer.getInt(headerPosition)));
+	    int sessionID = readSessionID(buffer, headerPosition);
+	    if (sessionID < 0) {
+		return false;		// wait for complete header to arrive
 	    }
 	    currentOp = op;
 	    currentSessionID = sessionID;
@@ -880,10 +953,9 @@ abstract class Mux {
 	    return true;
 
 	} else if ((op & 0xF1) == IncrementRation) {
-	    int sessionID = (buffer.get() & 0xFF);
-	    if (sessionID > MAX_SESSION_ID) {
-		throw new ProtocolException("bad message header: " +
-		    toHexString(buffer.getInt(headerPosition)));
+	    int sessionID = readSessionID(buffer, headerPosition);
+	    if (sessionID < 0) {
+		return false;		// wait for complete header to arrive
 	    }
 	    int increment = (buffer.getShort() & 0xFFFF);
 	    int shift = op & IncrementRation_shift;
@@ -892,10 +964,9 @@ abstract class Mux {
 	    return true;
 
 	} else if ((op & 0xFD) == Abort) {
-	    int sessionID = (buffer.get() & 0xFF);
-	    if (sessionID > MAX_SESSION_ID) {
-		throw new ProtocolException("bad message header: " +
-		    toHexString(buffer.getInt(headerPosition)));
+	    int sessionID = readSessionID(buffer, headerPosition);
+	    if (sessionID < 0) {
+		return false;		// wait for complete header to arrive
 	    }
 	    currentOp = op;
 	    currentSessionID = sessionID;
@@ -982,10 +1053,11 @@ abstract class Mux {
 	  }
 
 	  case Close: {
-	    int sessionID = (buffer.get() & 0xFF);
-	    if (sessionID > MAX_SESSION_ID ||
-		buffer.getShort() != 0)		// ignore sign extension
-	    {
+	    int sessionID = readSessionID(buffer, headerPosition);
+	    if (sessionID < 0) {
+		return false;		// wait for complete header to arrive
+	    }
+	    if (buffer.getShort() != 0) {	// ignore sign extension
 		throw new ProtocolException("bad message header: " +
 		    toHexString(buffer.getInt(headerPosition)));
 	    }
@@ -994,10 +1066,11 @@ abstract class Mux {
 	  }
 
 	  case Acknowledgment: {
-	    int sessionID = (buffer.get() & 0xFF);
-	    if (sessionID > MAX_SESSION_ID ||
-		buffer.getShort() != 0)		// ignore sign extension
-	    {
+	    int sessionID = readSessionID(buffer, headerPosition);
+	    if (sessionID < 0) {
+		return false;		// wait for complete header to arrive
+	    }
+	    if (buffer.getShort() != 0) {	// ignore sign extension
 		throw new ProtocolException("bad message header: " +
 		    toHexString(buffer.getInt(headerPosition)));
 	    }
@@ -1011,6 +1084,30 @@ abstract class Mux {
 	}
     }
 
+    /**
+     * Reads the session ID of a session message whose first byte has
+     * been read.  Returns -1, with the buffer reset to the start of the
+     * message, if the session ID is in the two-byte form of protocol
+     * version 2 and the rest of the header has not arrived.
+     */
+    private int readSessionID(ByteBuffer buffer, int headerPosition)
+	throws ProtocolException
+    {
+	int sessionID = (buffer.get() & 0xFF);
+	if ((sessionID & 0x80) == 0) {
+	    return sessionID;
+	}
+	if (protocolVersion < 2) {
+	    throw new ProtocolException("bad message header: " +
+		toHexString(buffer.getInt(headerPosition)));
+	}
+	if (buffer.remaining() < 3) {
+	    buffer.position(headerPosition);
+	    return -1;
+	}
+	return ((sessionID & 0x7F) << 8) | (buffer.get() & 0xFF);
+    }
+
     private boolean readMessageBody(ByteBuffer buffer)
 	throws ProtocolException
     {
@@ -1217,6 +1314,7 @@ abstract class Mux {
 	}
 
 	getSession(sessionID).handleData(data, eof, close, ackRequired);
+	handleDataReceived(sessionID);
     }
 
     private Session getSession(int sessionID) throws ProtocolException {
@@ -40,6 +40,16 @@ public class MuxClient extends Mux {
 	    "org.apache.river.jeri.connection.mux.client.initialInboundRation",
 	    32768))).intValue();
 
+    /**
+     * maximum concurrent requests as client once protocol version 2 has
+     * been negotiated, default is 1024
+     */
+    private static final int clientMaxRequests = Math.max(MAX_REQUESTS,
+	Math.min(MAX_SESSION_ID_V2 + 1,
+	    ((Integer) AccessController.doPrivileged(new GetIntegerAction(
+		"org.apache.river.jeri.connection.mux.client.maxRequests",
+		1024))).intValue()));
+
     /**
      * Initiates the client side of the multiplexed connection over
      * the given input/output stream pair.
@@ -71,7 +81,7 @@ public class MuxClient extends Mux {
 		throw ioe;
 	    }
 	    int sessionID = busySessions.nextClearBit(0);
-	    if (sessionID > Mux.MAX_SESSION_ID) {
+	    if (sessionID >= maxRequests()) {
 		throw new IOException("no free sessions");
 	    }
 
@@ -81,6 +91,17 @@ public class MuxClient extends Mux {
 	}
     }
 
+    /**
+     * Returns the maximum number of requests that may be in progress
+     * over this connection at once: MAX_REQUESTS, unless the server
+     * agreed to protocol version 2 during the handshake.
+     *
+     * @return the maximum number of concurrent requests
+     **/
+    public int maxRequests() {
+	return protocolVersion >= 2 ? clientMaxRequests : MAX_REQUESTS;
+    }
+
     /**
      * Returns the current number of requests in progress over this
      * connection.
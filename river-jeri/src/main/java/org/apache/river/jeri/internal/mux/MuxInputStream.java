@@ -23,13 +23,17 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.Deque;
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Output stream returned by OutboundRequests and InboundRequests for
  * a session of a multiplexed connection.
  */
 class MuxInputStream extends InputStream {
-    private final Object sessionLock;
+    private final ReentrantLock sessionLock;
+    private final Condition sessionChanged;
     private final Session session;
     private final Mux mux;
     private final Deque<ByteBuffer> inBufQueue;
@@ -40,10 +44,12 @@ class MuxInputStream extends InputStream {
     private boolean inClosed = false;
     private boolean sentAcknowledgment = false;
 
-    MuxInputStream(Mux mux, Session session, Object sessionLock) {
+    MuxInputStream(Mux mux, Session session, ReentrantLock sessionLock,
+                   Condition sessionChanged) {
         this.mux = mux;
         this.session = session;
         this.sessionLock = sessionLock;
+        this.sessionChanged = sessionChanged;
         this.inBufQueue = new LinkedList<ByteBuffer>();
     }
 
@@ -57,7 +63,8 @@ class MuxInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
-        synchronized (sessionLock) {
+        sessionLock.lock();
+        try {
             if (inClosed) {
                 throw new IOException("stream closed");
             }
@@ -70,11 +77,11 @@ class MuxInputStream extends InputStream {
                 }
                 if (!session.inRationInfinite && session.getInRation() == 0) {
                     int inc = mux.initialInboundRation;
-                    mux.asyncSendIncrementRation(session.sessionID, inc);
+                    inc = mux.asyncSendIncrementRation(session.sessionID, inc);
                     session.setInRation(session.getInRation() + inc);
                 }
                 try {
-                    sessionLock.wait(5000L); // REMIND: timeout?
+                    sessionChanged.await(5000L, TimeUnit.MILLISECONDS); // REMIND: timeout?
                 } catch (InterruptedException e) {
                     String message = "request I/O interrupted";
                     session.setDown(message, e);
@@ -113,6 +120,8 @@ class MuxInputStream extends InputStream {
                 checkInboundRation();
             }
             return result;
+        } finally {
+            sessionLock.unlock();
         }
     }
 
@@ -133,7 +142,8 @@ class MuxInputStream extends InputStream {
         } else if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
             throw new IndexOutOfBoundsException();
         }
-        synchronized (sessionLock) {
+        sessionLock.lock();
+        try {
             if (inClosed) {
                 throw new IOException("stream closed");
             } else if (len == 0) {
@@ -153,11 +163,11 @@ class MuxInputStream extends InputStream {
                 }
                 if (!session.inRationInfinite && session.getInRation() == 0) {
                     int inc = mux.initialInboundRation;
-                    mux.asyncSendIncrementRation(session.sessionID, inc);
+                    inc = mux.asyncSendIncrementRation(session.sessionID, inc);
                     session.setInRation(session.getInRation() + inc);
                 }
                 try {
-                    sessionLock.wait(5000L); // REMIND: timeout?
+                    sessionChanged.await(5000L, TimeUnit.MILLISECONDS); // REMIND: timeout?
                 } catch (InterruptedException e) {
                     String message = "request I/O interrupted";
                     session.setDown(message, e);
@@ -199,6 +209,8 @@ class MuxInputStream extends InputStream {
                 checkInboundRation();
             }
             return len - remaining;
+        } finally {
+            sessionLock.unlock();
         }
     }
 
@@ -207,14 +219,14 @@ class MuxInputStream extends InputStream {
      * a certain mark.
      *
      * This method must NOT be invoked if the inbound ration in
-     * infinite, and it must ONLY be invoked while synchronized on
+     * infinite, and it must ONLY be invoked while holding
      * this session's lock.
      *
      * REMIND: The implementation of this action will be a
      * significant area for performance tuning.
      */
     private void checkInboundRation() {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         assert !session.inRationInfinite;
         if (session.getInState() >= Session.FINISHED) {
             return;
@@ -223,14 +235,15 @@ class MuxInputStream extends InputStream {
         int used = inBufRemaining + session.getInRation();
         if (used <= mark) {
             int inc = mux.initialInboundRation - used;
-            mux.asyncSendIncrementRation(session.sessionID, inc);
+            inc = mux.asyncSendIncrementRation(session.sessionID, inc);
             session.setInRation(session.getInRation() + inc);
         }
     }
 
     @Override
     public int available() throws IOException {
-        synchronized (sessionLock) {
+        sessionLock.lock();
+        try {
             if (inClosed) {
                 throw new IOException("stream closed");
             }
@@ -240,12 +253,15 @@ class MuxInputStream extends InputStream {
              *     - session was aborted?
              */
             return inBufRemaining;
+        } finally {
+            sessionLock.unlock();
         }
     }
 
     @Override
     public void close() {
-        synchronized (sessionLock) {
+        sessionLock.lock();
+        try {
             if (inClosed) {
                 return;
             }
@@ -266,7 +282,9 @@ class MuxInputStream extends InputStream {
                     session.setRemoveLater(false);
                 }
             }
-            sessionLock.notifyAll();
+            sessionChanged.signalAll();
+        } finally {
+            sessionLock.unlock();
         }
     }
 
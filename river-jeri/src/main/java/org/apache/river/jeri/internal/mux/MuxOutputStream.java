@@ -21,6 +21,8 @@ package org.apache.river.jeri.internal.mux;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 /**
@@ -29,14 +31,17 @@ import java.util.logging.Level;
  */
 class MuxOutputStream extends OutputStream {
     private final ByteBuffer buffer;
-    private final Object sessionLock;
+    private final ReentrantLock sessionLock;
+    private final Condition sessionChanged;
     private final Session session;
     private final Mux mux;
     private boolean fakeOKtoWrite = false; // REMIND
     private IOException sessionDown = null;
 
-    MuxOutputStream(Mux mux, Session session, Object sessionLock) {
+    MuxOutputStream(Mux mux, Session session, ReentrantLock sessionLock,
+                    Condition sessionChanged) {
         this.sessionLock = sessionLock;
+        this.sessionChanged = sessionChanged;
         this.session = session;
         this.mux = mux;
         this.buffer = mux.directBuffersUseful() 
@@ -61,9 +66,12 @@ class MuxOutputStream extends OutputStream {
         if (!buffer.hasRemaining()) {
             writeBuffer(false);
         } else {
-            synchronized (sessionLock) {
+            sessionLock.lock();
+            try {
                 // REMIND: necessary?
                 ensureOpen();
+            } finally {
+                sessionLock.unlock();
             }
         }
         buffer.put((byte) b);
@@ -76,16 +84,29 @@ class MuxOutputStream extends OutputStream {
         } else if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
             throw new IndexOutOfBoundsException();
         } else if (len == 0) {
-            synchronized (sessionLock) {
+            sessionLock.lock();
+            try {
                 ensureOpen();
+            } finally {
+                sessionLock.unlock();
             }
             return;
         }
+        /*
+         * Bytes are always copied into the fragment buffer, even for large
+         * writes.  Marshalling streams hand over at most a block of 1024
+         * bytes at a time, behind a separate block header, so the buffer
+         * is practically never empty when a whole fragment arrives and a
+         * path that sent straight from the caller's array would not run.
+         */
         while (len > 0) {
             int avail = buffer.remaining();
             if (len <= avail) {
-                synchronized (sessionLock) {
+                sessionLock.lock();
+                try {
                     ensureOpen();
+                } finally {
+                    sessionLock.unlock();
                 }
                 buffer.put(b, off, len);
                 return;
@@ -113,8 +134,11 @@ class MuxOutputStream extends OutputStream {
         if (Session.logger.isLoggable(Level.FINEST)) {
             Session.logger.log(Level.FINEST, "STACK TRACE", new Throwable("STACK TRACE"));
         }
-        synchronized (sessionLock) {
+        sessionLock.lock();
+        try {
             ensureOpen();
+        } finally {
+            sessionLock.unlock();
         }
         while (!writeBuffer(true)) {
         }
@@ -122,11 +146,11 @@ class MuxOutputStream extends OutputStream {
 
     /**
      *
-     * This method must ONLY be invoked while synchronized on
+     * This method must ONLY be invoked while holding
      * this session's lock.
      */
     private void ensureOpen() throws IOException {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         /*
          * While we're faking that the session is still OK when it really
          * isn't (see above comments), return silently from here.
@@ -166,7 +190,8 @@ class MuxOutputStream extends OutputStream {
         int toSend;
         IOFuture future = null;
         boolean eofSent = false;
-        synchronized (sessionLock) {
+        sessionLock.lock();
+        try {
             while (buffer.remaining() > 0 
                     && !session.outRationInfinite 
                     && session.getOutRation() < 1 
@@ -174,7 +199,7 @@ class MuxOutputStream extends OutputStream {
                     && session.getOutState() == Session.OPEN) 
             {
                 try {
-                    sessionLock.wait(); // REMIND: timeout?
+                    sessionChanged.await(); // REMIND: timeout?
                 } catch (InterruptedException e) {
                     String message = "request I/O interrupted";
                     session.setDown(message, e);
@@ -246,8 +271,10 @@ class MuxOutputStream extends OutputStream {
                 if (ackRequired) {
                     session.setSentAckRequired(true);
                 }
-                sessionLock.notifyAll();
+                sessionChanged.signalAll();
             }
+        } finally {
+            sessionLock.unlock();
         }
         if (future != null) {
             /* StreamConnectionIO uses a dedicated thread for sending buffers, 
@@ -271,11 +298,11 @@ class MuxOutputStream extends OutputStream {
 
     /**
      *
-     * This method must NOT be invoked while synchronized on
+     * This method must NOT be invoked while holding
      * this session's lock.
      */
     private boolean waitForIO(IOFuture future) throws IOException {
-        assert !Thread.holdsLock(sessionLock);
+        assert !sessionLock.isHeldByCurrentThread();
         try {
             return future.waitUntilDone();
         } catch (InterruptedException e) {
@@ -21,13 +21,20 @@ package org.apache.river.jeri.internal.mux;
 import org.apache.river.action.GetIntegerAction;
 import org.apache.river.thread.Executor;
 import org.apache.river.thread.GetThreadPoolAction;
+import org.apache.river.thread.NewThreadAction;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.SocketChannel;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.jini.core.constraint.InvocationConstraints;
@@ -40,6 +47,20 @@ import net.jini.security.SecurityContext;
 /**
  * A MuxServer controls the server side of a multiplexed connection.
  *
+ * By default each incoming request is dispatched in a thread of its
+ * own as soon as it is opened.  If the system property
+ * <code>org.apache.river.jeri.connection.mux.server.dispatchThreads</code>
+ * is set to a positive value, requests are instead dispatched by a
+ * pool of at most that many threads, shared by all connections, and only
+ * once their data has been received in full (or has filled the session's
+ * input ration), so that no dispatch thread waits on a slow client.
+ * Requests that arrive when every dispatch thread is busy and
+ * <code>org.apache.river.jeri.connection.mux.server.dispatchQueueSize</code>
+ * (default 1024) requests are already waiting are aborted.  A bounded
+ * pool can deadlock a service whose remote methods wait on incoming
+ * calls to the same virtual machine, so it must be sized with that in
+ * mind.
+ *
  * @author Sun Microsystems, Inc.
  **/
 public class MuxServer extends Mux {
@@ -58,6 +79,19 @@ public class MuxServer extends Mux {
 	AccessController.doPrivileged(
 	    new GetThreadPoolAction(true));
 
+    /** maximum number of threads dispatching requests, 0 if unbounded */
+    private static final int dispatchThreads =
+	AccessController.doPrivileged(new GetIntegerAction(
+	    "org.apache.river.jeri.connection.mux.server.dispatchThreads",
+	    0)).intValue();
+
+    /**
+     * bounded pool of threads for dispatching complete incoming
+     * requests, or null if each request gets a thread of its own
+     **/
+    private static final ThreadPoolExecutor dispatchPool =
+	dispatchThreads > 0 ? createDispatchPool() : null;
+
     /** mux logger */
     private static final Logger logger =
 	Logger.getLogger("net.jini.jeri.connection.mux");
@@ -68,6 +102,15 @@ public class MuxServer extends Mux {
     /** the security context to dispatch incoming requests in */
     private final SecurityContext securityContext;
 
+    /**
+     * requests opened but not yet dispatched to dispatchPool, indexed
+     * by session ID and guarded by muxLock; null if there is no
+     * dispatchPool; grown like the sessions array for protocol
+     * version 2 session IDs
+     **/
+    private Dispatch[] pendingDispatch =
+	dispatchPool != null ? new Dispatch[MAX_SESSION_ID + 1] : null;
+
     /**
      * Initiates the server side of a multiplexed connection over the
      * given input/output stream pair.
@@ -234,25 +277,19 @@ public class MuxServer extends Mux {
 	 */
 	final Session session = new Session(this, sessionID, Session.SERVER);
 	addSession(sessionID, session);
+	if (pendingDispatch != null) {
+	    // dispatched by handleDataReceived once the request is complete
+	    if (sessionID >= pendingDispatch.length) {
+		pendingDispatch = Arrays.copyOf(pendingDispatch,
+		    Math.min(Math.max(sessionID + 1, pendingDispatch.length * 2),
+			     MAX_SESSION_ID_V2 + 1));
+	    }
+	    pendingDispatch[sessionID] = new Dispatch(session);
+	    return;
+	}
 	try {
-	    userThreadPool.execute(new Runnable() {
-                @Override
-		public void run() {
-		    final InboundRequest request = session.getInboundRequest();
-		    try {
-			AccessController.doPrivileged(securityContext.wrap(
-			    new PrivilegedAction() {
-                                @Override
-				public Object run() {
-				    requestDispatcher.dispatch(request);
-				    return null;
-				}
-			    }), securityContext.getAccessControlContext());
-		    } finally {
-			request.abort();
-		    }
-		}
-	    }, "mux request dispatch");
+	    userThreadPool.execute(new Dispatch(session),
+				   "mux request dispatch");
 	} catch (OutOfMemoryError e) {	// assume out of threads
 	    try {
 		logger.log(Level.WARNING,
@@ -263,4 +300,97 @@ public class MuxServer extends Mux {
 	    session.abort();
 	}
     }
+
+    /**
+     * Dispatches the identified session's request to dispatchPool if it
+     * is waiting for its data and that data is now complete.
+     *
+     * This method must NOT be invoked while synchronized on muxLock.
+     **/
+    @Override
+    void handleDataReceived(int sessionID) {
+	assert !Thread.holdsLock(muxLock);
+	if (pendingDispatch == null) {
+	    return;
+	}
+	Dispatch dispatch;
+	synchronized (muxLock) {
+	    if (sessionID >= pendingDispatch.length) {
+		return;
+	    }
+	    dispatch = pendingDispatch[sessionID];
+	}
+	if (dispatch == null || !dispatch.session.inboundRequestReady()) {
+	    return;
+	}
+	synchronized (muxLock) {
+	    if (pendingDispatch[sessionID] != dispatch) {
+		return;
+	    }
+	    pendingDispatch[sessionID] = null;
+	}
+	try {
+	    dispatchPool.execute(dispatch);
+	} catch (RejectedExecutionException e) {
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.log(Level.FINE,
+			   "request dispatch queue full, aborting request");
+	    }
+	    // reject request but preserve connection
+	    dispatch.session.abort();
+	}
+    }
+
+    /**
+     * Dispatches a session's inbound request to the request dispatcher
+     * in the security context of this connection.
+     **/
+    private class Dispatch implements Runnable {
+
+	final Session session;
+
+	Dispatch(Session session) {
+	    this.session = session;
+	}
+
+	@Override
+	public void run() {
+	    final InboundRequest request = session.getInboundRequest();
+	    try {
+		AccessController.doPrivileged(securityContext.wrap(
+		    new PrivilegedAction() {
+			@Override
+			public Object run() {
+			    requestDispatcher.dispatch(request);
+			    return null;
+			}
+		    }), securityContext.getAccessControlContext());
+	    } finally {
+		request.abort();
+	    }
+	}
+    }
+
+    /**
+     * Creates the bounded pool that complete requests are dispatched
+     * to, whose threads are created in the same thread group as those
+     * of the user thread pool and exit after a minute of idleness.
+     **/
+    private static ThreadPoolExecutor createDispatchPool() {
+	int queueSize = AccessController.doPrivileged(new GetIntegerAction(
+	    "org.apache.river.jeri.connection.mux.server.dispatchQueueSize",
+	    1024)).intValue();
+	ThreadPoolExecutor pool = new ThreadPoolExecutor(
+	    dispatchThreads, dispatchThreads, 60L, TimeUnit.SECONDS,
+	    new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+	    new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+		    return AccessController.doPrivileged(new NewThreadAction(
+			r, "mux request dispatch", true, true));
+		}
+	    });
+	pool.allowCoreThreadTimeOut(true);
+	return pool;
+    }
 }
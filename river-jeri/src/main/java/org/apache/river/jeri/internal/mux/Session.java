@@ -18,6 +18,7 @@
 
 package org.apache.river.jeri.internal.mux;
 
+import org.apache.river.jeri.internal.runtime.ClassDescriptorCache;
 import org.apache.river.thread.Executor;
 import org.apache.river.thread.GetThreadPoolAction;
 import java.io.IOException;
@@ -28,6 +29,8 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.jini.core.constraint.InvocationConstraints;
@@ -99,8 +102,14 @@ final class Session {
     private final MuxOutputStream out;
     private final MuxInputStream in;
 
-    /** lock guarding all mutable instance state (below) */
-    private final Object sessionLock;
+    /**
+     * lock guarding all mutable instance state (below); a
+     * ReentrantLock rather than a monitor, so that a virtual thread
+     * waiting for a response does not pin its carrier thread
+     */
+    private final ReentrantLock sessionLock;
+    /** signalled whenever the state guarded by sessionLock changes */
+    private final Condition sessionChanged;
     private boolean sessionDown;
 
     private int outState;
@@ -120,6 +129,9 @@ final class Session {
     private boolean sentAckRequired;
     private boolean receivedAcknowledgment;
 
+    /** class descriptor cache context element, created on first use */
+    private ClassDescriptorCache.Call descriptorCall;
+
     /**
      *
      */
@@ -131,7 +143,8 @@ final class Session {
         this.partialDeliveryStatus = false;
         this.sessionDown = false;
         this.ackListeners = new ArrayList<AcknowledgmentSource.Listener>(3);
-        this.sessionLock = new Object();
+        this.sessionLock = new ReentrantLock();
+        this.sessionChanged = sessionLock.newCondition();
 	this.mux = mux;
 	this.sessionID = sessionID;
 	this.role = role;
@@ -143,8 +156,8 @@ final class Session {
 	inState = (role == CLIENT ? IDLE : OPEN);
 	inRation = mux.initialInboundRation;
 	inRationInfinite = (inRation == 0);
-        out = new MuxOutputStream(mux, this, sessionLock);
-	in = new MuxInputStream(mux, this, sessionLock);
+        out = new MuxOutputStream(mux, this, sessionLock, sessionChanged);
+	in = new MuxInputStream(mux, this, sessionLock, sessionChanged);
     }
 
     /**
@@ -155,6 +168,10 @@ final class Session {
 	return new OutboundRequest() {
             @Override
 	    public void populateContext(Collection context) {
+		ClassDescriptorCache.Call call = getDescriptorCall();
+		if (call != null) {
+		    context.add(call);
+		}
 		((MuxClient) mux).populateContext(context);
 	    }
             @Override
@@ -172,8 +189,11 @@ final class Session {
 	    public InputStream getResponseInputStream() { return in; }
             @Override
 	    public boolean getDeliveryStatus() {
-		synchronized (sessionLock) {
+		sessionLock.lock();
+		try {
 		    return partialDeliveryStatus;
+		} finally {
+		    sessionLock.unlock();
 		}
 	    }
             @Override
@@ -208,16 +228,23 @@ final class Session {
 			if (listener == null) {
 			    throw new NullPointerException();
 			}
-			synchronized (sessionLock) {
+			sessionLock.lock();
+			try {
 			    if (getOutState() < FINISHED) {
 				ackListeners.add(listener);
 				return true;
 			    } else {
 				return false;
 			    }
+			} finally {
+			    sessionLock.unlock();
 			}
 		    }
 		});
+		ClassDescriptorCache.Call call = getDescriptorCall();
+		if (call != null) {
+		    context.add(call);
+		}
 		((MuxServer) mux).populateContext(context);
 	    }
             @Override
@@ -229,11 +256,32 @@ final class Session {
 	};
     }
 
+    /**
+     * Returns the class descriptor cache context element for this
+     * session's request, or null if its connection has no cache.
+     */
+    private ClassDescriptorCache.Call getDescriptorCall() {
+	ClassDescriptorCache cache = mux.descriptorCache;
+	if (cache == null) {
+	    return null;
+	}
+	sessionLock.lock();
+	try {
+	    if (descriptorCall == null) {
+		descriptorCall = cache.newCall();
+	    }
+	    return descriptorCall;
+	} finally {
+	    sessionLock.unlock();
+	}
+    }
+
     /**
      *
      */
     void abort() {
-	synchronized (sessionLock) {
+	sessionLock.lock();
+	try {
 	    if (!sessionDown) {
 		if (logger.isLoggable(Level.FINEST)) {
 		    logger.log(Level.FINEST,
@@ -286,6 +334,8 @@ final class Session {
 		mux.removeSession(sessionID);
 		removeLater = false;
 	    }
+	} finally {
+	    sessionLock.unlock();
 	}
     }
 
@@ -293,14 +343,17 @@ final class Session {
      *
      */
     void setDown(String message, Throwable cause) {
-	synchronized (sessionLock) {
+	sessionLock.lock();
+	try {
 	    if (!sessionDown) {
 		sessionDown = true;
                 IOException ex = new IOException(message, cause);
                 out.down(ex);
                 in.down(ex);
-		sessionLock.notifyAll();
+		sessionChanged.signalAll();
 	    }
+	} finally {
+	    sessionLock.unlock();
 	}
     }
 
@@ -308,7 +361,8 @@ final class Session {
      *
      */
     void handleIncrementRation(int increment) throws ProtocolException {
-	synchronized (sessionLock) {
+	sessionLock.lock();
+	try {
 	    if (inState == IDLE || inState == TERMINATED) {
 		throw new ProtocolException("IncrementRation on " +
 		    stateNames[inState] + " session: " + sessionID);
@@ -320,12 +374,14 @@ final class Session {
 		if (getOutState() == OPEN) {
 		    if (increment > 0) {
 			if (outRation == 0) {
-			    sessionLock.notifyAll();
+			    sessionChanged.signalAll();
 			}
 			outRation += increment;
 		    }
 		}
 	    } // ignore message if outbound ration is infinite
+	} finally {
+	    sessionLock.unlock();
 	}
     }
 
@@ -333,7 +389,8 @@ final class Session {
      *
      */
     void handleAbort(boolean partial) throws ProtocolException {
-	synchronized (sessionLock) {
+	sessionLock.lock();
+	try {
 	    if (inState == IDLE || inState == TERMINATED) {
 		throw new ProtocolException("Abort on " +
 		    stateNames[inState] + " session: " + sessionID);
@@ -370,6 +427,8 @@ final class Session {
 	    }	// REMIND: what about other dangling acknowledgments?
 
 	    mux.removeSession(sessionID);
+	} finally {
+	    sessionLock.unlock();
 	}
     }
 
@@ -381,7 +440,8 @@ final class Session {
 	    throw new ProtocolException("Close sent by client");
 	}
 
-	synchronized (sessionLock) {
+	sessionLock.lock();
+	try {
 	    if (inState != FINISHED) {
 		throw new ProtocolException("Close on " +
 		    stateNames[inState] + " session: " + sessionID);
@@ -430,6 +490,8 @@ final class Session {
 	    } else {
 		removeLater = true;
 	    }
+	} finally {
+	    sessionLock.unlock();
 	}
     }
 
@@ -441,7 +503,8 @@ final class Session {
 	    throw new ProtocolException("Acknowledgment sent by server");
 	}
 
-	synchronized (sessionLock) {
+	sessionLock.lock();
+	try {
 	    if (inState == IDLE || inState == TERMINATED) {
 		throw new ProtocolException("Acknowledgment on " +
 		    stateNames[inState] + " session: " + sessionID);
@@ -459,6 +522,8 @@ final class Session {
 	    receivedAcknowledgment = true;
 
 	    notifyAcknowledgmentListeners(true);
+	} finally {
+	    sessionLock.unlock();
 	}
     }
 
@@ -475,7 +540,8 @@ final class Session {
 	    throw new ProtocolException("Data/ackRequired sent by client");
 	}
 
-	synchronized (sessionLock) {
+	sessionLock.lock();
+	try {
 	    boolean notified = close;	// close always causes notification
 
 	    if (inState != OPEN) {
@@ -489,7 +555,7 @@ final class Session {
 	    if (!in.isClosed() && getOutState() < TERMINATED) {
 		if (length > 0) {
 		    if (in.getBufRemaining() == 0) {
-			sessionLock.notifyAll();
+			sessionChanged.signalAll();
 			notified = true;
 		    }
 		    in.appendToBufQueue(data);
@@ -504,7 +570,7 @@ final class Session {
 		in.setEOF(true);
 		setInState(FINISHED);
 		if (!notified) {
-		    sessionLock.notifyAll();
+		    sessionChanged.signalAll();
 		}
 
 		if (ackRequired) {
@@ -517,6 +583,22 @@ final class Session {
 		}
 		// REMIND: send Close if appropriate?
 	    }
+	} finally {
+	    sessionLock.unlock();
+	}
+    }
+
+    /**
+     * Returns true if the inbound request data has been received in
+     * full, or if no more of it can be received until some is read
+     * because the input ration is exhausted.
+     */
+    boolean inboundRequestReady() {
+	sessionLock.lock();
+	try {
+	    return inState >= FINISHED || (!inRationInfinite && inRation == 0);
+	} finally {
+	    sessionLock.unlock();
 	}
     }
 
@@ -525,7 +607,8 @@ final class Session {
      */
     void handleOpen() throws ProtocolException {
 	assert role == SERVER;
-	synchronized (sessionLock) {
+	sessionLock.lock();
+	try {
 	    if (inState < FINISHED || getOutState() < TERMINATED) {
 		throw new ProtocolException(
                     inState < FINISHED ?
@@ -538,9 +621,11 @@ final class Session {
 	    // REMIND: process dangling acknowledgments here?
 
 	    setDown("old request", null);	// extraneous?
-	    sessionLock.notifyAll();
+	    sessionChanged.signalAll();
 
 	    mux.removeSession(sessionID);
+	} finally {
+	    sessionLock.unlock();
 	}
     }
 
@@ -548,7 +633,7 @@ final class Session {
      *
      */
     void setOutState(int newState) {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
 	assert newState > outState;
 	outState = newState;
     }
@@ -557,13 +642,13 @@ final class Session {
      *
      */
     void setInState(int newState) {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
 	assert newState > inState;
 	inState = newState;
     }
     
     boolean ackListeners(){
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         return !ackListeners.isEmpty();
     }
 
@@ -599,7 +684,7 @@ final class Session {
      * @return the outState
      */
     int getOutState() {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         return outState;
     }
 
@@ -607,7 +692,7 @@ final class Session {
      * @return the outRation
      */
     int getOutRation() {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         return outRation;
     }
 
@@ -615,7 +700,7 @@ final class Session {
      * @param outRation the outRation to set
      */
     void setOutRation(int outRation) {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         this.outRation = outRation;
     }
 
@@ -623,7 +708,7 @@ final class Session {
      * @return the inState
      */
     int getInState() {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         return inState;
     }
 
@@ -631,7 +716,7 @@ final class Session {
      * @param partialDeliveryStatus the partialDeliveryStatus to set
      */
     void setPartialDeliveryStatus(boolean partialDeliveryStatus) {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         this.partialDeliveryStatus = partialDeliveryStatus;
     }
 
@@ -639,7 +724,7 @@ final class Session {
      * @return the sentAckRequired
      */
     boolean isSentAckRequired() {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         return sentAckRequired;
     }
 
@@ -647,7 +732,7 @@ final class Session {
      * @param sentAckRequired the sentAckRequired to set
      */
     void setSentAckRequired(boolean sentAckRequired) {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         this.sentAckRequired = sentAckRequired;
     }
 
@@ -655,7 +740,7 @@ final class Session {
      * @return the inRation
      */
     int getInRation() {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         return inRation;
     }
 
@@ -663,7 +748,7 @@ final class Session {
      * @param inRation the inRation to set
      */
     void setInRation(int inRation) {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         this.inRation = inRation;
     }
 
@@ -671,7 +756,7 @@ final class Session {
      * @return the removeLater
      */
     boolean isRemoveLater() {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         return removeLater;
     }
 
@@ -679,7 +764,7 @@ final class Session {
      * @param removeLater the removeLater to set
      */
     void setRemoveLater(boolean removeLater) {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         this.removeLater = removeLater;
     }
 
@@ -687,7 +772,7 @@ final class Session {
      * @return the receivedAckRequired
      */
     boolean isReceivedAckRequired() {
-        assert Thread.holdsLock(sessionLock);
+        assert sessionLock.isHeldByCurrentThread();
         return receivedAckRequired;
     }
 }
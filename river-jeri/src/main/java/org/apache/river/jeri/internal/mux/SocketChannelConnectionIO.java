@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -42,21 +43,12 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 
     private static final int RECEIVE_BUFFER_SIZE = 4096;
     private static final int IOV_MAX = 16; // max writev iovcnt on Solaris...
+    private static final int MAX_FREE_RECEIVE_BUFFERS = 64;
 
     /** mux logger */
     private static final Logger logger =
 	Logger.getLogger("net.jini.jeri.connection.mux");
 
-    /** selection manager used by this implementation */
-    private static final SelectionManager selectionManager;
-    static {					// REMIND: share more widely?
-	try {
-	    selectionManager = new SelectionManager();
-	} catch (IOException e) {
-	    throw new ExceptionInInitializerError(e);
-	}
-    }
-
     /*
      * Work around 4496906: sun.nio.ch.IOVecWrapper.<clinit> requires
      * permission to read the system property "sun.arch.data.model".
@@ -92,9 +84,19 @@ final class SocketChannelConnectionIO extends ConnectionIO {
      */
     private final Deque notifyQueue = new LinkedList();
 
-    /** buffer for reading incoming data from connection */
-    private final ByteBuffer inputBuffer =
-	ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);	// ready for reading
+    /**
+     * receive buffers not held by any connection, guarded by itself:
+     * a connection only holds one while it has part of a message
+     * buffered, so idle connections do not pin direct memory
+     */
+    private static final Deque<ByteBuffer> freeInputBuffers =
+	new ArrayDeque<ByteBuffer>();
+
+    /**
+     * buffer for reading incoming data from connection, or null if there
+     * is no partial message buffered; only accessed by the read handler
+     */
+    private ByteBuffer inputBuffer = null;
 
     private final ByteBuffer[] bufferPair = new ByteBuffer[2];
 
@@ -110,7 +112,7 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 	super(mux);
 	channel.configureBlocking(false);
 	this.channel = channel;
-	key = selectionManager.register(channel, new Handler());
+	key = SelectionManager.getInstance().register(channel, new Handler());
     }
 
     /**
@@ -132,6 +134,8 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 		if (buffer.hasRemaining()) {
 		    sendQueue.addLast(buffer);
 		    key.renewInterestMask(SelectionKey.OP_WRITE);	// ###
+		} else {
+		    written(buffer);
 		}
 	    } catch (IOException e) {
 		mux.setDown("I/O error writing to mux connection: " +
@@ -170,6 +174,7 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 		    }
 		}
 		if (!first.hasRemaining()) {
+		    written(first);
 		    if (second.hasRemaining()) {
 			sendQueue.addLast(second);
 			key.renewInterestMask(SelectionKey.OP_WRITE);	// ###
@@ -223,6 +228,7 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 		    }
 		}
 		if (!first.hasRemaining()) {
+		    written(first);
 		    if (second.hasRemaining()) {
 			sendQueue.addLast(second);
 			key.renewInterestMask(SelectionKey.OP_WRITE);	// ###
@@ -247,8 +253,8 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 		} catch (IOException ignore) {
 		}
 	    } finally {
-		bufferPair[0] = first;
-		bufferPair[1] = second;
+		bufferPair[0] = null;
+		bufferPair[1] = null;
 	    }
 	    return future;
 	}
@@ -322,6 +328,7 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 			assert bb == sendQueue.getFirst();
 			if (!bb.hasRemaining()) {
 			    sendQueue.removeFirst();
+			    written(bb);
 			    if (!notifyQueue.isEmpty() &&
 				bb == notifyQueue.getFirst())
 			    {
@@ -381,6 +388,9 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 
     private void handleReadReady() {
 	try {
+	    if (inputBuffer == null) {
+		inputBuffer = takeInputBuffer();
+	    }
 	    int n = channel.read(inputBuffer);
 	    if (n == -1) {
 		throw new EOFException();
@@ -389,6 +399,10 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 		mux.processIncomingData(inputBuffer);
 	    }
 	    assert inputBuffer.hasRemaining();
+	    if (inputBuffer.position() == 0) {	// no partial message left
+		releaseInputBuffer(inputBuffer);
+		inputBuffer = null;
+	    }
 	    key.renewInterestMask(SelectionKey.OP_READ);
 	} catch (ProtocolException e) {
 	    IOFuture future = null;
@@ -457,6 +471,32 @@ final class SocketChannelConnectionIO extends ConnectionIO {
 	}
     }
 
+    /**
+     * Returns an empty receive buffer, reused if one is free.
+     */
+    private static ByteBuffer takeInputBuffer() {
+	synchronized (freeInputBuffers) {
+	    ByteBuffer buffer = freeInputBuffers.pollLast();
+	    if (buffer != null) {
+		buffer.clear();
+		return buffer;
+	    }
+	}
+	return ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Keeps an empty receive buffer for reuse, or drops it if enough
+     * are kept.
+     */
+    private static void releaseInputBuffer(ByteBuffer buffer) {
+	synchronized (freeInputBuffers) {
+	    if (freeInputBuffers.size() < MAX_FREE_RECEIVE_BUFFERS) {
+		freeInputBuffers.addLast(buffer);
+	    }
+	}
+    }
+
     private class Handler implements SelectionManager.SelectionHandler {
         @Override
 	public void handleSelection(int readyMask, SelectionManager.Key key) {
@@ -29,6 +29,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.AccessController;
+import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.logging.Level;
@@ -158,7 +159,7 @@ final class StreamConnectionIO extends ConnectionIO {
 
         @Override
 	public void run() {
-	    Deque localQueue = null;
+	    Deque localQueue = new ArrayDeque();
 	    try {
 		while (true) {
 		    synchronized (mux.muxLock) {
@@ -181,8 +182,8 @@ final class StreamConnectionIO extends ConnectionIO {
 				       "down and nothing more to send");
 			    break;
 			}
-                        /* Clone an unshared copy and clear the queue while synchronized */
-			localQueue = new LinkedList(sendQueue);
+                        /* Move to the unshared queue while synchronized */
+			localQueue.addAll(sendQueue);
 			sendQueue.clear();
 		    }
 
@@ -194,6 +195,7 @@ final class StreamConnectionIO extends ConnectionIO {
 			if (next instanceof ByteBuffer) {
                             ByteBuffer buffer = (ByteBuffer) next;
 			    outChannel.write((buffer));
+			    written(buffer);
                             last = buffer;
                             lastIndex = i;
 			    needToFlush = true;
@@ -241,9 +243,7 @@ final class StreamConnectionIO extends ConnectionIO {
 	    } finally {
 		synchronized (mux.muxLock) {
 		    assert mux.muxDown;
-		    if (localQueue != null) {
-			drainQueue(localQueue);
-		    }
+		    drainQueue(localQueue);
 		    drainQueue(sendQueue);
 		}
 		try {
@@ -27,16 +27,24 @@ import java.rmi.ConnectIOException;
 import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * AbstractDgcClient implements the client-side behavior of RMI's
@@ -85,6 +93,19 @@ import java.util.concurrent.atomic.AtomicInteger;
  * type-safe equivalent of "registerRefs" that delegates to this
  * class's "registerRefs" method.
  *
+ * Lease renewals and clean calls for all endpoints are timed by one
+ * scheduler thread shared by all AbstractDgcClients, rather than by a
+ * sleeping thread per endpoint.  When an endpoint's renew/clean task
+ * is due the scheduler hands it to a shared pool, which starts a thread
+ * whenever none is idle and lets threads exit when idle, so calls to an
+ * endpoint that does not respond never hold up those to other
+ * endpoints.  Each endpoint has at most one renew/clean task scheduled
+ * or running at a time, which makes a single dirty call for all of the
+ * endpoint's refs that need one, and the clean calls for all refs found
+ * unreachable since its last run.  One reaper thread per
+ * AbstractDgcClient waits for the phantom references of all endpoints
+ * while it has any.
+ *
  * @author Sun Microsystems, Inc.
  **/
 abstract class AbstractDgcClient {
@@ -116,6 +137,14 @@ abstract class AbstractDgcClient {
     /** constant empty Object array for lease renewal optimization */
     private static final Object[] emptyObjectArray = new Object[0];
 
+    /** scheduler timing the renew/clean tasks of all endpoints */
+    private static final ScheduledThreadPoolExecutor renewCleanScheduler =
+	createScheduler();
+
+    /** pool running the renew/clean tasks that are due */
+    private static final ThreadPoolExecutor renewCleanExecutor =
+	createExecutor();
+
     /** next sequence number for DGC calls (access synchronized on class) */
     private static long nextSequenceNum = Long.MIN_VALUE;
 
@@ -125,6 +154,27 @@ abstract class AbstractDgcClient {
      */
     private final Map endpointTable = new HashMap(5);
 
+    /** reference queue for the phantom references of all endpoints */
+    private final ReferenceQueue refQueue = new ReferenceQueue();
+
+    /**
+     * thread processing the reference queue, running while the endpoint
+     * table is not empty (lock guards endpointTable)
+     */
+    private Thread reaper = null;
+
+    /** true once started has been called (lock guards endpointTable) */
+    private boolean started = false;
+
+    /** number of remote objects with registered refs */
+    private final AtomicInteger referenceCount = new AtomicInteger();
+    /** number of dirty calls made, and how many of them failed */
+    private final AtomicLong dirtyCalls = new AtomicLong();
+    private final AtomicLong dirtyCallFailures = new AtomicLong();
+    /** total and maximum elapsed time of dirty calls, in milliseconds */
+    private final AtomicLong dirtyCallTime = new AtomicLong();
+    private final AtomicLong maxDirtyCallTime = new AtomicLong();
+
     protected AbstractDgcClient() {
     }
 
@@ -149,6 +199,50 @@ abstract class AbstractDgcClient {
     /** Returns the object ID in the given live reference. */
     protected abstract Object getRefObjectID(Object ref);
 
+    /**
+     * Indicates that the first endpoint has been registered, so this
+     * AbstractDgcClient is now in use.  This implementation does
+     * nothing.
+     */
+    protected void started() {
+    }
+
+    /** Returns the number of endpoints with registered refs. */
+    public int getEndpointCount() {
+	synchronized (endpointTable) {
+	    return endpointTable.size();
+	}
+    }
+
+    /** Returns the number of remote objects with registered refs. */
+    public int getReferenceCount() {
+	return referenceCount.get();
+    }
+
+    /** Returns the number of dirty calls made. */
+    public long getDirtyCallCount() {
+	return dirtyCalls.get();
+    }
+
+    /** Returns the number of dirty calls that failed. */
+    public long getDirtyCallFailureCount() {
+	return dirtyCallFailures.get();
+    }
+
+    /**
+     * Returns the mean elapsed time of the dirty calls made, in
+     * milliseconds, or zero if none have been made.
+     */
+    public long getMeanDirtyCallLatency() {
+	long n = dirtyCalls.get();
+	return n == 0 ? 0 : dirtyCallTime.get() / n;
+    }
+
+    /** Returns the longest elapsed time of a dirty call, in milliseconds. */
+    public long getMaxDirtyCallLatency() {
+	return maxDirtyCallTime.get();
+    }
+
     /**
      * Registers the live reference instances in the supplied collection to
      * participate in distributed garbage collection.
@@ -193,6 +287,26 @@ abstract class AbstractDgcClient {
 	return grantTime + (duration / 2);
     }
 
+    /**
+     * Records the completion of a dirty call started at the given time
+     * and returns the time it completed.
+     */
+    private long recordDirtyCall(long startTime, boolean failed) {
+	long endTime = System.currentTimeMillis();
+	long elapsed = endTime - startTime;
+	dirtyCalls.incrementAndGet();
+	if (failed) {
+	    dirtyCallFailures.incrementAndGet();
+	}
+	dirtyCallTime.addAndGet(elapsed);
+	long max;
+	while (elapsed > (max = maxDirtyCallTime.get()) &&
+	       !maxDirtyCallTime.compareAndSet(max, elapsed))
+	{
+	}
+	return endTime;
+    }
+
     /**
      * Looks up the EndpointEntry for the given endpoint.  An entry is
      * created if one does not already exist.
@@ -202,8 +316,17 @@ abstract class AbstractDgcClient {
 	    EndpointEntry entry = (EndpointEntry) endpointTable.get(endpoint);
 	    if (entry == null) {
 		entry = new EndpointEntry(endpoint);
-                entry.start();
 		endpointTable.put(endpoint, entry);
+		if (reaper == null) {
+		    reaper = (Thread) AccessController.doPrivileged(
+			new NewThreadAction(new Reaper(), "RenewClean-Reaper",
+					    true));
+		    reaper.start();
+		    if (!started) {
+			started = true;
+			started();
+		    }
+		}
 		/*
 		 * If the endpoint table was previously empty, we are now
 		 * interested in special assistance from the local garbage
@@ -224,7 +347,7 @@ abstract class AbstractDgcClient {
      * EndpointEntry encapsulates the client-side DGC information specific
      * to a particular endpoint.  Of most significance is the table that
      * maps live reference objects to RefEntry objects and the renew/clean
-     * thread that handles asynchronous client-side DGC operations.
+     * task that handles asynchronous client-side DGC operations.
      */
     private final class EndpointEntry {
 
@@ -232,10 +355,6 @@ abstract class AbstractDgcClient {
 	private final Object endpoint;
 	/** synthesized reference to the remote server-side DGC */
 	private final DgcProxy dgcProxy;
-	/** renew/clean thread for handling lease renewals and clean calls */
-	private final Thread renewCleanThread;
-	/** reference queue for phantom references */
-	private final ReferenceQueue refQueue = new ReferenceQueue();
 
 	/* mutable instance state (below) is guarded by this object's lock */
 
@@ -258,8 +377,16 @@ abstract class AbstractDgcClient {
 	/** (average) elapsed time for recent failed dirty calls */
 	private long dirtyFailureDuration;
 
-	/** true if renew/clean thread may be interrupted */
-	private boolean interruptible = false;
+	/** the scheduled run of the renew/clean task, or null */
+	private ScheduledFuture scheduled = null;
+	/** absolute time of the scheduled run */
+	private long scheduledTime = Long.MAX_VALUE;
+	/** true while the renew/clean task is running */
+	private boolean running = false;
+	/** true if clean requests were added since the task last started */
+	private boolean cleansAdded = false;
+	/** absolute time to retry failed clean calls */
+	private long cleanRetryTime = Long.MAX_VALUE;
 
 	/** set of clean calls that need to be made, changed Set to an
          * underlying ConcurrentHashMap because no lock is held while 
@@ -270,23 +397,12 @@ abstract class AbstractDgcClient {
 	private EndpointEntry(final Object endpoint) {
 	    this.endpoint = endpoint;
 	    dgcProxy = getDgcProxy(endpoint);
-	    renewCleanThread = (Thread)	AccessController.doPrivileged(
-		new NewThreadAction(new RenewCleanThread(),
-				    "RenewClean-" + endpoint, true));
 	}
         
-        private void start(){
-            renewCleanThread.start();
-        }
-        
         boolean pendingCleanCalls(){
             return !pendingCleans.isEmpty();
         }
         
-        boolean removed(){
-            return removed;
-        }
-
 	/**
 	 * Registers the live reference instances in the supplied list to
 	 * participate in distributed garbage collection.
@@ -320,6 +436,7 @@ abstract class AbstractDgcClient {
 		    if (refEntry == null) {
 			refEntry = new RefEntry(objectID);
 			refTable.put(objectID, refEntry);
+			referenceCount.incrementAndGet();
 			if (refsToDirty == null) {
 			    refsToDirty = new HashSet(5);
 			}
@@ -356,6 +473,7 @@ abstract class AbstractDgcClient {
 	    assert refTable.containsKey(refEntry.getObjectID());
 
 	    refTable.remove(refEntry.getObjectID());
+	    referenceCount.decrementAndGet();
 	    invalidRefs.remove(refEntry);
 	    if (refTable.isEmpty()) {
 		synchronized (endpointTable) {
@@ -394,6 +512,7 @@ abstract class AbstractDgcClient {
 	    long startTime = System.currentTimeMillis();
 	    try {
 		long duration = dgcProxy.dirty(sequenceNum, ids, leaseValue);
+		recordDirtyCall(startTime, false);
 
 		synchronized (this) {
 		    dirtyFailures = 0;
@@ -411,12 +530,13 @@ abstract class AbstractDgcClient {
 		}
 
 	    } catch (NoSuchObjectException e) {
+		recordDirtyCall(startTime, true);
 		synchronized (this) {
 		    setRenewTime(Long.MAX_VALUE);
 		    invalidRefs.addAll(refTable.values());
 		}
 	    } catch (Exception e) {
-		long endTime = System.currentTimeMillis();
+		long endTime = recordDirtyCall(startTime, true);
 
 		synchronized (this) {
 		    dirtyFailures++;
@@ -518,106 +638,96 @@ abstract class AbstractDgcClient {
 
 	    if (newRenewTime < renewTime) {
 		renewTime = newRenewTime;
-		if (interruptible) {
-		    AccessController.doPrivileged(new PrivilegedAction() {
-			public Object run() {
-			    renewCleanThread.interrupt();
-			    return null;
-			}
-		    });
-		}
+		schedule();
 	    } else {
 		renewTime = newRenewTime;
 	    }
 	}
 
 	/**
-	 * RenewCleanThread handles the asynchronous client-side DGC activity
-	 * for this entry: renewing the leases and making clean calls.
+	 * Schedules this entry's renew/clean task to run when the lease
+	 * must next be renewed, or clean calls made or retried, unless the
+	 * task is running (it reschedules itself when done) or an earlier
+	 * run is already scheduled.
+	 *
+	 * This method must ONLY be invoked while synchronized on this
+	 * EndpointEntry.
 	 */
-	private class RenewCleanThread implements Runnable {
+	private void schedule() {
+	    assert Thread.holdsLock(this);
 
-	    public void run() {
-		do {
-		    long timeToWait;
-		    RefEntry.PhantomLiveRef phantom = null;
-		    boolean needRenewal = false;
-		    Set refsToDirty = null;
-		    long sequenceNum = Long.MIN_VALUE;
+	    if (running) {
+		return;
+	    }
+	    long time;
+	    if (cleansAdded) {
+		time = System.currentTimeMillis();
+	    } else if (removed) {
+		time = cleanRetryTime;
+	    } else {
+		time = Math.min(renewTime, cleanRetryTime);
+	    }
+	    if (scheduled != null) {
+		if (scheduledTime <= time) {
+		    return;
+		}
+		scheduled.cancel(false);
+		scheduled = null;
+	    }
+	    if (time == Long.MAX_VALUE) {
+		return;
+	    }
+	    scheduledTime = time;
+	    scheduled = renewCleanScheduler.schedule(new Runnable() {
+		    public void run() {
+			renewCleanExecutor.execute(new RenewClean());
+		    }
+		},
+		Math.max(time - System.currentTimeMillis(), 0),
+		TimeUnit.MILLISECONDS);
+	}
 
-		    synchronized (EndpointEntry.this) {
-			/*
-			 * Calculate time to block (waiting for phantom
-			 * reference notifications).  It is the time until the
-			 * lease renewal should be done, bounded on the low
-			 * end by 1 ms so that the reference queue will always
-			 * get processed, and if there are pending clean
-			 * requests (remaining because some clean calls
-			 * failed), bounded on the high end by the maximum
-			 * clean call retry interval.
-			 */
-			long timeUntilRenew =
-			    renewTime - System.currentTimeMillis();
-			timeToWait = Math.max(timeUntilRenew, 1);
-			if (pendingCleanCalls()) {
-			    timeToWait = Math.min(timeToWait, cleanInterval);
-			}
+	/**
+	 * RenewClean handles the asynchronous client-side DGC activity
+	 * for this entry: renewing the lease and making clean calls.
+	 */
+	private class RenewClean implements Runnable {
 
-			/*
-			 * Set flag indicating that it is OK to interrupt this
-			 * thread now, such as if a earlier lease renewal time
-			 * is set, because we are only going to be blocking
-			 * and can deal with interrupts.
-			 */
-			interruptible = true;
-		    }
+	    public void run() {
+		boolean needRenewal = false;
+		Set refsToDirty = null;
+		long sequenceNum = Long.MIN_VALUE;
 
-		    try {
-			/*
-			 * Wait for the duration calculated above for any of
-			 * our phantom references to be enqueued.
-			 */
-			phantom = (RefEntry.PhantomLiveRef)
-			    refQueue.remove(timeToWait);
-		    } catch (InterruptedException e) {
+		synchronized (EndpointEntry.this) {
+		    if (running) {
+			return;		// rescheduled when the running task ends
+		    }
+		    running = true;
+		    if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
 		    }
 
-		    synchronized (EndpointEntry.this) {
-			/*
-			 * Set flag indicating that it is NOT OK to interrupt
-			 * this thread now, because we may be undertaking I/O
-			 * operations that should not be interrupted (and we
-			 * will not be blocking arbitrarily).
-			 */
-			interruptible = false;
-			Thread.interrupted();	// clear interrupted state
-
-			/*
-			 * If there was a phantom reference enqueued, process
-			 * it and all the rest on the queue, generating
-			 * clean requests as necessary.
-			 */
-			if (phantom != null) {
-			    processPhantomRefs(phantom);
+		    /*
+		     * Check if it is time to renew this entry's lease.
+		     */
+		    long currentTime = System.currentTimeMillis();
+		    if (!removed && currentTime >= renewTime) {
+			needRenewal = true;
+			if (currentTime >= expirationTime) {
+			    invalidRefs.addAll(refTable.values());
 			}
-
-			/*
-			 * Check if it is time to renew this entry's lease.
-			 */
-			long currentTime = System.currentTimeMillis();
-			if (currentTime > renewTime) {
-			    needRenewal = true;
-			    if (currentTime >= expirationTime) {
-				invalidRefs.addAll(refTable.values());
-			    }
-			    if (!invalidRefs.isEmpty()) {
-				refsToDirty = new HashSet(invalidRefs);
-				invalidRefs.clear();
-			    }
-			    sequenceNum = getNextSequenceNum();
+			if (!invalidRefs.isEmpty()) {
+			    refsToDirty = new HashSet(invalidRefs);
+			    invalidRefs.clear();
 			}
+			sequenceNum = getNextSequenceNum();
 		    }
+		    cleansAdded = false;
+		    cleanRetryTime = Long.MAX_VALUE;
+		}
 
+		try {
 		    if (needRenewal) {
 			makeDirtyCall(refsToDirty, sequenceNum);
 		    }
@@ -625,7 +735,20 @@ abstract class AbstractDgcClient {
 		    if (pendingCleanCalls()) {
 			makeCleanCalls();
 		    }
-		} while (!removed() || pendingCleanCalls());
+		} finally {
+		    synchronized (EndpointEntry.this) {
+			running = false;
+			if (pendingCleanCalls()) {
+			    /*
+			     * Retry the clean requests that failed, at
+			     * most the maximum retry interval from now.
+			     */
+			    cleanRetryTime =
+				System.currentTimeMillis() + cleanInterval;
+			}
+			schedule();
+		    }
+		}
 	    }
 	}
 
@@ -640,13 +763,15 @@ abstract class AbstractDgcClient {
 	 * This method must ONLY be invoked while synchronized on this
 	 * EndpointEntry.
 	 */
-	private void processPhantomRefs(RefEntry.PhantomLiveRef phantom) {
+	private void processPhantomRefs(List phantoms) {
 	    assert Thread.holdsLock(this);
 
 	    Set strongCleans = null;
 	    Set normalCleans = null;
 
-	    do {
+	    for (int i = 0, n = phantoms.size(); i < n; i++) {
+		RefEntry.PhantomLiveRef phantom =
+		    (RefEntry.PhantomLiveRef) phantoms.get(i);
 		RefEntry refEntry = phantom.getRefEntry();
 		refEntry.removeInstanceFromRefSet(phantom);
 		if (refEntry.isRefSetEmpty()) {
@@ -663,8 +788,7 @@ abstract class AbstractDgcClient {
 		    }
 		    removeRefEntry(refEntry);
 		}
-	    } while ((phantom =
-		(RefEntry.PhantomLiveRef) refQueue.poll()) != null);
+	    }
 
 	    if (strongCleans != null) {
 		pendingCleans.add(
@@ -678,6 +802,10 @@ abstract class AbstractDgcClient {
 				     createObjectIDArray(normalCleans),
 				     false));
 	    }
+	    if (strongCleans != null || normalCleans != null) {
+		cleansAdded = true;
+		schedule();
+	    }
 	}
 
 	/**
@@ -853,16 +981,108 @@ abstract class AbstractDgcClient {
 	    class PhantomLiveRef extends PhantomReference {
 	
 		PhantomLiveRef(Object ref) {
-		    super(ref, EndpointEntry.this.refQueue);
+		    super(ref, refQueue);
 		}
 
 		RefEntry getRefEntry() {
 		    return RefEntry.this;
 		}
+
+		EndpointEntry getEndpointEntry() {
+		    return EndpointEntry.this;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Reaper waits for the phantom references of all endpoints to be
+     * enqueued, and passes each batch found on the queue to the
+     * endpoint entries they belong to, so that each entry makes one
+     * clean request (or one strong and one normal) for its share.  It
+     * exits once the endpoint table is empty, as no phantom references
+     * are left to wait for; the next endpoint entry starts a new one.
+     */
+    private class Reaper implements Runnable {
+
+	public void run() {
+	    Map batches = new HashMap();
+	    while (true) {
+		Object ref;
+		try {
+		    ref = refQueue.remove();
+		} catch (InterruptedException e) {
+		    continue;
+		}
+		do {
+		    EndpointEntry.RefEntry.PhantomLiveRef phantom =
+			(EndpointEntry.RefEntry.PhantomLiveRef) ref;
+		    EndpointEntry entry = phantom.getEndpointEntry();
+		    List batch = (List) batches.get(entry);
+		    if (batch == null) {
+			batch = new ArrayList();
+			batches.put(entry, batch);
+		    }
+		    batch.add(phantom);
+		} while ((ref = refQueue.poll()) != null);
+
+		Iterator iter = batches.entrySet().iterator();
+		while (iter.hasNext()) {
+		    Map.Entry e = (Map.Entry) iter.next();
+		    EndpointEntry entry = (EndpointEntry) e.getKey();
+		    synchronized (entry) {
+			entry.processPhantomRefs((List) e.getValue());
+		    }
+		}
+		batches.clear();
+		synchronized (endpointTable) {
+		    if (endpointTable.isEmpty()) {
+			reaper = null;
+			return;
+		    }
+		}
 	    }
 	}
     }
 
+    /**
+     * Creates the scheduler for renew/clean tasks, whose one thread only
+     * hands due tasks to the renew/clean pool, and exits when it has
+     * been idle for a minute.
+     */
+    private static ScheduledThreadPoolExecutor createScheduler() {
+	ScheduledThreadPoolExecutor scheduler =
+	    new ScheduledThreadPoolExecutor(1,
+		new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			return (Thread) AccessController.doPrivileged(
+			    new NewThreadAction(r, "RenewClean-Scheduler",
+						true));
+		    }
+		});
+	scheduler.setKeepAliveTime(60L, TimeUnit.SECONDS);
+	scheduler.allowCoreThreadTimeOut(true);
+	scheduler.setRemoveOnCancelPolicy(true);
+	return scheduler;
+    }
+
+    /**
+     * Creates the pool running renew/clean tasks, which starts a thread
+     * whenever none is idle, so that a task blocked in a call to one
+     * endpoint never delays the tasks of other endpoints, and whose
+     * threads exit when they have been idle for a minute.
+     */
+    private static ThreadPoolExecutor createExecutor() {
+	return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+	    60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+	    new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    return (Thread) AccessController.doPrivileged(
+			new NewThreadAction(r, "RenewClean", true));
+		}
+	    });
+    }
+
     /**
      * CleanRequest holds the data for the arguments of a clean call
      * that needs to be made.
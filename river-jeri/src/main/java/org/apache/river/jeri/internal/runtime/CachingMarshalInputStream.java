@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.jeri.internal.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.Collection;
+import net.jini.io.MarshalInputStream;
+
+/**
+ * A <code>MarshalInputStream</code> that reads either a stream in the
+ * standard format or one written by a {@link CachingMarshalOutputStream}
+ * for the same connection.
+ *
+ * @see ClassDescriptorCache
+ * @since 3.0
+ */
+public class CachingMarshalInputStream extends MarshalInputStream {
+
+    private final ClassDescriptorCache cache;
+
+    /*
+     * Set by readStreamHeader while the superclass constructor runs, so
+     * it must not have an initializer.
+     */
+    private boolean cached;
+
+    /** number and descriptor last read in full, until annotated */
+    private int pendingId;
+    private ObjectStreamClass pendingDesc;
+
+    /** entry of the descriptor last read by number, until annotated */
+    private ClassDescriptorCache.Entry pendingReference;
+
+    /**
+     * Creates a new <code>CachingMarshalInputStream</code> that reads
+     * from <code>in</code>, using the descriptors numbered in
+     * <code>cache</code>.  The other arguments are as for
+     * {@link MarshalInputStream#MarshalInputStream(InputStream,
+     * ClassLoader, boolean, ClassLoader, Collection) MarshalInputStream}.
+     *
+     * @throws IOException if an I/O exception occurs reading the header
+     * @throws NullPointerException if <code>in</code>,
+     * <code>context</code> or <code>cache</code> is <code>null</code>
+     */
+    public CachingMarshalInputStream(InputStream in,
+				     ClassLoader defaultLoader,
+				     boolean verifyCodebaseIntegrity,
+				     ClassLoader verifierLoader,
+				     Collection context,
+				     ClassDescriptorCache cache)
+	throws IOException
+    {
+	super(in, defaultLoader, verifyCodebaseIntegrity, verifierLoader,
+	      context);
+	if (cache == null) {
+	    throw new NullPointerException();
+	}
+	this.cache = cache;
+	if (cached) {
+	    cache.readConfirmed(this);
+	}
+    }
+
+    /**
+     * Returns true if this stream was written in the caching format.
+     */
+    public boolean isCached() {
+	return cached;
+    }
+
+    /**
+     * Reads a stream header of either the standard or the caching
+     * format.
+     */
+    protected void readStreamHeader() throws IOException {
+	short magic = readShort();
+	short version = readShort();
+	if ((magic != STREAM_MAGIC &&
+	     magic != ClassDescriptorCache.CACHE_MAGIC) ||
+	    version != STREAM_VERSION)
+	{
+	    throw new StreamCorruptedException(String.format(
+		"invalid stream header: %04X%04X", magic, version));
+	}
+	cached = (magic == ClassDescriptorCache.CACHE_MAGIC);
+    }
+
+    /**
+     * Reads a class descriptor written in full or by number.
+     */
+    protected ObjectStreamClass readClassDescriptor()
+	throws IOException, ClassNotFoundException
+    {
+	if (!cached) {
+	    return super.readClassDescriptor();
+	}
+	int tag = readByte();
+	switch (tag) {
+	case ClassDescriptorCache.DESC_PLAIN:
+	    return super.readClassDescriptor();
+	case ClassDescriptorCache.DESC_DEFINE:
+	    pendingId = readUnsignedShort();
+	    pendingDesc = super.readClassDescriptor();
+	    return pendingDesc;
+	case ClassDescriptorCache.DESC_REFERENCE:
+	    int id = readUnsignedShort();
+	    ClassDescriptorCache.Entry entry = cache.inboundEntry(id);
+	    if (entry == null) {
+		throw new StreamCorruptedException(
+		    "unknown class descriptor number: " + id);
+	    }
+	    pendingReference = entry;
+	    return entry.desc;
+	default:
+	    throw new StreamCorruptedException(
+		"invalid class descriptor tag: " + tag);
+	}
+    }
+
+    /**
+     * Returns the cached annotation of a class whose descriptor was read
+     * by number, and otherwise reads the annotation, recording it with a
+     * numbered descriptor just read in full.
+     */
+    protected String readAnnotation()
+	throws IOException, ClassNotFoundException
+    {
+	ClassDescriptorCache.Entry reference = pendingReference;
+	if (reference != null) {
+	    pendingReference = null;
+	    return reference.annotation;
+	}
+	String annotation = super.readAnnotation();
+	if (pendingDesc != null) {
+	    cache.received(pendingId, pendingDesc, annotation);
+	    pendingDesc = null;
+	}
+	return annotation;
+    }
+}
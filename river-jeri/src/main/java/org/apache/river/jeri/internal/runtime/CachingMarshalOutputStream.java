@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.jeri.internal.runtime;
+
+import java.io.IOException;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.Collection;
+import net.jini.io.MarshalOutputStream;
+
+/**
+ * A <code>MarshalOutputStream</code> that writes class descriptors, and
+ * the codebase annotations of their classes, by number once the other
+ * end of its connection has them.  It can only be read by a
+ * {@link CachingMarshalInputStream} for the same connection.
+ *
+ * @see ClassDescriptorCache
+ * @since 3.0
+ */
+public class CachingMarshalOutputStream extends MarshalOutputStream {
+
+    private final ClassDescriptorCache cache;
+
+    /** entry of the class descriptor last written, if numbered */
+    private ClassDescriptorCache.Entry pending;
+
+    /** true if the class descriptor last written was a reference */
+    private boolean pendingReference;
+
+    /**
+     * Creates a new <code>CachingMarshalOutputStream</code> that writes
+     * to <code>out</code>, using the descriptors numbered in
+     * <code>cache</code>.
+     *
+     * @param out the output stream to write to
+     * @param context the collection of context information objects
+     * @param cache the cache of the connection written to
+     * @throws IOException if an I/O exception occurs writing the header
+     * @throws NullPointerException if any argument is <code>null</code>
+     */
+    public CachingMarshalOutputStream(OutputStream out,
+				      Collection context,
+				      ClassDescriptorCache cache)
+	throws IOException
+    {
+	super(out, context);
+	if (cache == null) {
+	    throw new NullPointerException();
+	}
+	this.cache = cache;
+	cache.writeReceived(this);	// confirm descriptors read so far
+    }
+
+    /**
+     * Writes the magic number of the caching format and the stream
+     * version.
+     */
+    protected void writeStreamHeader() throws IOException {
+	writeShort(ClassDescriptorCache.CACHE_MAGIC);
+	writeShort(STREAM_VERSION);
+    }
+
+    /**
+     * Writes a class descriptor by number if the other end has it,
+     * otherwise in full.
+     */
+    protected void writeClassDescriptor(ObjectStreamClass desc)
+	throws IOException
+    {
+	Class cl = desc.forClass();
+	ClassDescriptorCache.Entry entry =
+	    (cl != null) ? cache.outboundEntry(cl, desc) : null;
+	pending = entry;
+	pendingReference = false;
+	if (entry == null) {
+	    writeByte(ClassDescriptorCache.DESC_PLAIN);
+	    super.writeClassDescriptor(desc);
+	} else if (cache.isConfirmed(entry)) {
+	    writeByte(ClassDescriptorCache.DESC_REFERENCE);
+	    writeShort(entry.id);
+	    pendingReference = true;
+	} else {
+	    writeByte(ClassDescriptorCache.DESC_DEFINE);
+	    writeShort(entry.id);
+	    super.writeClassDescriptor(desc);
+	}
+    }
+
+    /**
+     * Writes the cached annotation of a class whose descriptor was
+     * written in full, and nothing for one written by number.
+     */
+    protected void annotateClass(Class cl) throws IOException {
+	ClassDescriptorCache.Entry entry = pending;
+	boolean reference = pendingReference;
+	pending = null;
+	pendingReference = false;
+	if (entry == null) {
+	    super.annotateClass(cl);
+	} else if (!reference) {
+	    writeAnnotation(entry.annotation);
+	}
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.jeri.internal.runtime;
+
+import org.apache.river.action.GetBooleanAction;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.jini.jeri.OutboundRequest;
+import net.jini.loader.ClassLoading;
+
+/**
+ * The class descriptors and codebase annotations exchanged over one
+ * multiplexed connection, so that calls over the connection need only
+ * send each of them once.
+ * <p>
+ * Each end of the connection numbers the class descriptors it writes,
+ * in the order it first writes them.  A descriptor is written in full,
+ * with its number and annotation, until the other end has confirmed
+ * receiving it; after that, only its number is written.  Each stream in
+ * the caching format confirms, in its header, the highest number up to
+ * which its writer has received every descriptor from the other end,
+ * followed by a bit set of the numbers above that it has also received.
+ * A descriptor whose stream never reached the other end, because its
+ * call failed or was aborted, leaves a gap in the numbers received, and
+ * the bit set keeps that gap from holding back the confirmation of the
+ * descriptors numbered after it.  Since calls over a connection are
+ * interleaved, a descriptor is never sent by number alone before the
+ * other end is known to have it.
+ * <p>
+ * A connection has a cache only if both ends enable it with the
+ * <code>org.apache.river.jeri.descriptorCache</code> system property,
+ * and it is used only for calls whose invocation handler and dispatcher
+ * create their marshal streams the default way.
+ *
+ * @see CachingMarshalOutputStream
+ * @see CachingMarshalInputStream
+ * @since 3.0
+ */
+public final class ClassDescriptorCache {
+
+    /** true if connections should offer to cache class descriptors */
+    public static final boolean ENABLED =
+	((Boolean) AccessController.doPrivileged(new GetBooleanAction(
+	    "org.apache.river.jeri.descriptorCache"))).booleanValue();
+
+    /** most class descriptors numbered in each direction */
+    static final int MAX_ENTRIES = 1024;
+
+    /** stream magic number of the caching format */
+    static final short CACHE_MAGIC = (short) 0xACEC;
+
+    /** class descriptor written in full, without a number */
+    static final int DESC_PLAIN = 0;
+
+    /** class descriptor written in full, after its number */
+    static final int DESC_DEFINE = 1;
+
+    /** class descriptor written as its number only */
+    static final int DESC_REFERENCE = 2;
+
+    /**
+     * bit set in the integrity byte of a request whose client can read
+     * a response in the caching format
+     */
+    public static final int READS_CACHED = 0x02;
+
+    /** classes known to create marshal streams the default way or not */
+    private static final Map<Class,Boolean> defaultStreams =
+	Collections.synchronizedMap(new WeakHashMap<Class,Boolean>());
+
+    /** descriptors written to the other end, keyed by class */
+    private final ConcurrentMap<Class,Entry> outbound =
+	new ConcurrentHashMap<Class,Entry>();
+
+    /** descriptors written to the other end, indexed by number */
+    private final Entry[] outboundById = new Entry[MAX_ENTRIES + 1];
+
+    /** last number given to a descriptor written, guarded by outbound */
+    private int lastOutbound = 0;
+
+    /**
+     * highest number up to which the other end has confirmed receiving
+     * every descriptor, guarded by outbound
+     */
+    private int confirmed = 0;
+
+    /** descriptors read from the other end, indexed by number */
+    private final Entry[] inbound = new Entry[MAX_ENTRIES + 1];
+
+    /** highest number up to which all have been read, guarded by inbound */
+    private int received = 0;
+
+    /** highest number read, guarded by inbound */
+    private int highestReceived = 0;
+
+    /**
+     * A class descriptor and the codebase annotation of its class.
+     */
+    static final class Entry {
+	final int id;
+	final ObjectStreamClass desc;
+	final String annotation;
+
+	/** true once the other end has confirmed receiving a descriptor */
+	volatile boolean confirmed = false;
+
+	Entry(int id, ObjectStreamClass desc, String annotation) {
+	    this.id = id;
+	    this.desc = desc;
+	    this.annotation = annotation;
+	}
+    }
+
+    /**
+     * The context element for one request over a connection with a
+     * cache, recording whether the other end of the request can read
+     * the caching format.
+     */
+    public static final class Call {
+	private final ClassDescriptorCache cache;
+	private volatile boolean peerReadsCached = false;
+
+	Call(ClassDescriptorCache cache) {
+	    this.cache = cache;
+	}
+
+	/** Returns the cache of the request's connection. */
+	public ClassDescriptorCache getCache() {
+	    return cache;
+	}
+
+	/**
+	 * Records that the other end of the request can read a stream
+	 * in the caching format.
+	 */
+	public void setPeerReadsCached() {
+	    peerReadsCached = true;
+	}
+
+	/**
+	 * Returns true if the other end of the request can read a
+	 * stream in the caching format.
+	 */
+	public boolean peerReadsCached() {
+	    return peerReadsCached;
+	}
+    }
+
+    /** Returns a new context element for a request. */
+    public Call newCall() {
+	return new Call(this);
+    }
+
+    /**
+     * Returns the cache context element of a request, or
+     * <code>null</code> if the request's connection has no cache.
+     */
+    public static Call getCall(OutboundRequest request) {
+	if (!ENABLED) {
+	    return null;
+	}
+	Collection context = new ArrayList(2);
+	request.populateContext(context);
+	return getCall(context);
+    }
+
+    /**
+     * Returns the cache context element in a context collection, or
+     * <code>null</code> if there is none.
+     */
+    public static Call getCall(Collection context) {
+	if (!ENABLED) {
+	    return null;
+	}
+	for (Iterator i = context.iterator(); i.hasNext();) {
+	    Object element = i.next();
+	    if (element instanceof Call) {
+		return (Call) element;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Returns true if neither <code>cl</code> nor any of its
+     * superclasses below <code>base</code> declares a
+     * <code>createMarshalInputStream</code> or
+     * <code>createMarshalOutputStream</code> method, so that instances
+     * of <code>cl</code> create their marshal streams as
+     * <code>base</code> does.
+     */
+    public static boolean usesDefaultStreams(final Class cl,
+					     final Class base)
+    {
+	Boolean result = defaultStreams.get(cl);
+	if (result == null) {
+	    result = AccessController.doPrivileged(
+		new PrivilegedAction<Boolean>() {
+		    public Boolean run() {
+			for (Class c = cl; c != null && c != base;
+			     c = c.getSuperclass())
+			{
+			    Method[] methods = c.getDeclaredMethods();
+			    for (int i = 0; i < methods.length; i++) {
+				String name = methods[i].getName();
+				if (name.equals("createMarshalInputStream") ||
+				    name.equals("createMarshalOutputStream"))
+				{
+				    return Boolean.FALSE;
+				}
+			    }
+			}
+			return Boolean.TRUE;
+		    }
+		});
+	    defaultStreams.put(cl, result);
+	}
+	return result.booleanValue();
+    }
+
+    /**
+     * Returns the entry for the descriptor of a class written to the
+     * other end, numbering it if it has not been written before, or
+     * <code>null</code> if the class is not numbered because the cache
+     * is full.
+     */
+    Entry outboundEntry(Class cl, ObjectStreamClass desc) {
+	Entry entry = outbound.get(cl);
+	if (entry == null) {
+	    String annotation = ClassLoading.getClassAnnotation(cl);
+	    synchronized (outbound) {
+		entry = outbound.get(cl);
+		if (entry == null) {
+		    if (lastOutbound == MAX_ENTRIES) {
+			return null;
+		    }
+		    entry = new Entry(++lastOutbound, desc, annotation);
+		    outbound.put(cl, entry);
+		    outboundById[entry.id] = entry;
+		}
+	    }
+	}
+	return entry;
+    }
+
+    /**
+     * Returns true if the other end has confirmed it has the
+     * descriptor of an entry.
+     */
+    boolean isConfirmed(Entry entry) {
+	return entry.confirmed;
+    }
+
+    /**
+     * Reads the numbers of the descriptors the other end has received,
+     * as written by {@link #writeReceived writeReceived}, and records
+     * them as confirmed.
+     */
+    void readConfirmed(DataInput in) throws IOException {
+	int prefix = in.readInt();
+	int length = in.readUnsignedShort();
+	if (prefix < 0 || prefix > MAX_ENTRIES ||
+	    length > (MAX_ENTRIES - prefix + 7) / 8)
+	{
+	    throw new StreamCorruptedException(
+		"invalid class descriptor confirmation");
+	}
+	byte[] above = new byte[length];
+	in.readFully(above);
+	synchronized (outbound) {
+	    int last = Math.min(prefix, lastOutbound);
+	    for (int id = confirmed + 1; id <= last; id++) {
+		outboundById[id].confirmed = true;
+	    }
+	    if (last > confirmed) {
+		confirmed = last;
+	    }
+	    for (int i = 0; i < length * 8; i++) {
+		int id = prefix + 1 + i;
+		if ((above[i >> 3] & (1 << (i & 7))) != 0 &&
+		    id <= lastOutbound)
+		{
+		    outboundById[id].confirmed = true;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Records a descriptor read from the other end, with the annotation
+     * read for its class.
+     */
+    void received(int id, ObjectStreamClass desc, String annotation) {
+	if (id < 1 || id > MAX_ENTRIES) {
+	    return;
+	}
+	synchronized (inbound) {
+	    if (inbound[id] == null) {
+		inbound[id] = new Entry(id, desc, annotation);
+		if (id > highestReceived) {
+		    highestReceived = id;
+		}
+		while (received < MAX_ENTRIES && inbound[received + 1] != null) {
+		    received++;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Returns the descriptor read from the other end with a number, or
+     * <code>null</code> if none has been.
+     */
+    Entry inboundEntry(int id) {
+	if (id < 1 || id > MAX_ENTRIES) {
+	    return null;
+	}
+	synchronized (inbound) {
+	    return inbound[id];
+	}
+    }
+
+    /**
+     * Writes the numbers of the descriptors read from the other end: the
+     * highest number up to which every descriptor has been read, then
+     * the length of a bit set and the bit set of the numbers above it
+     * that have been read.
+     */
+    void writeReceived(DataOutput out) throws IOException {
+	int prefix;
+	byte[] above;
+	synchronized (inbound) {
+	    prefix = received;
+	    above = new byte[(highestReceived - prefix + 7) / 8];
+	    for (int id = prefix + 2; id <= highestReceived; id++) {
+		if (inbound[id] != null) {
+		    int i = id - prefix - 1;
+		    above[i >> 3] |= 1 << (i & 7);
+		}
+	    }
+	}
+	out.writeInt(prefix);
+	out.writeShort(above.length);
+	out.write(above);
+    }
+}
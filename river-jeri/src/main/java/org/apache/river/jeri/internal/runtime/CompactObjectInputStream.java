@@ -0,0 +1,643 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.jeri.internal.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+
+/**
+ * An object input stream that reads what a {@link
+ * CompactObjectOutputStream} writes.  Objects that were serialized by
+ * the writer's fallback stream are deserialized by a stream obtained
+ * from a {@link Fallback}.
+ *
+ * <p>The lengths of arrays and strings are read from the stream, so
+ * storage for them is allocated as their content arrives, never more
+ * than twice what has been read.  If the runtime supports
+ * <code>java.io.ObjectInputFilter</code>, the stream's filter is
+ * consulted for each array and <code>Uuid</code> read in the compact
+ * format, as an <code>ObjectInputStream</code> would, and is applied to
+ * objects deserialized by the fallback stream.
+ *
+ * @see CompactObjectOutputStream
+ * @since 3.0
+ */
+public final class CompactObjectInputStream extends ObjectInputStream {
+
+    /** size of the stream's buffer */
+    private static final int BUFFER_SIZE = 512;
+
+    /** most elements allocated for an array or string before it arrives */
+    private static final int INITIAL_CAPACITY = 8192;
+
+    /**
+     * The ObjectInputFilter API, found reflectively so this class still
+     * builds and runs on runtimes without it, in which case all are null.
+     */
+    private static final Method getFilter;
+    private static final Method setFilter;
+    private static final Method checkInput;
+    private static final Class filterInfo;
+    private static final Object REJECTED;
+
+    static {
+	Method get = null;
+	Method set = null;
+	Method check = null;
+	Class info = null;
+	Object rejected = null;
+	try {
+	    Class filter = Class.forName("java.io.ObjectInputFilter");
+	    info = Class.forName("java.io.ObjectInputFilter$FilterInfo");
+	    Class status = Class.forName("java.io.ObjectInputFilter$Status");
+	    get = ObjectInputStream.class.getMethod("getObjectInputFilter");
+	    set = ObjectInputStream.class.getMethod(
+		"setObjectInputFilter", filter);
+	    check = filter.getMethod("checkInput", info);
+	    rejected = status.getField("REJECTED").get(null);
+	} catch (ClassNotFoundException e) {
+	    get = null;
+	} catch (NoSuchMethodException e) {
+	    get = null;
+	} catch (NoSuchFieldException e) {
+	    get = null;
+	} catch (IllegalAccessException e) {
+	    get = null;
+	}
+	getFilter = get;
+	setFilter = get == null ? null : set;
+	checkInput = get == null ? null : check;
+	filterInfo = get == null ? null : info;
+	REJECTED = get == null ? null : rejected;
+    }
+
+    /**
+     * Creates the object input streams that read streams not in the
+     * compact format, and objects of other than compact types.
+     */
+    public interface Fallback {
+
+	/**
+	 * Returns a new object input stream reading from
+	 * <code>in</code>.
+	 */
+	ObjectInputStream newStream(InputStream in) throws IOException;
+    }
+
+    private final InputStream in;
+    private final Fallback fallback;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int count = 0;
+    /** bytes read from the underlying stream */
+    private long bytesRead = 0;
+    /** nesting depth of the object being read */
+    private int depth = 0;
+    /** number of objects read */
+    private long references = 0;
+
+    private CompactObjectInputStream(InputStream in, Fallback fallback)
+	throws IOException
+    {
+	super();
+	this.in = in;
+	this.fallback = fallback;
+    }
+
+    /**
+     * Returns a new object input stream reading from <code>in</code>: a
+     * compact object input stream if the stream begins with {@link
+     * CompactObjectOutputStream#MAGIC}, and otherwise the stream that
+     * <code>fallback</code> returns for the whole of <code>in</code>.
+     */
+    public static ObjectInputStream create(final InputStream in,
+					   final Fallback fallback)
+	throws IOException
+    {
+	if (in == null || fallback == null) {
+	    throw new NullPointerException();
+	}
+	int b1 = in.read();
+	int b2 = b1 < 0 ? -1 : in.read();
+	if (b2 < 0) {
+	    throw new EOFException();
+	}
+	int magic = (b1 << 8) | b2;
+	if (magic != (CompactObjectOutputStream.MAGIC & 0xFFFF)) {
+	    byte[] header = { (byte) b1, (byte) b2 };
+	    return fallback.newStream(new SequenceInputStream(
+		new ByteArrayInputStream(header), in));
+	}
+	try {
+	    return AccessController.doPrivileged(
+		new PrivilegedExceptionAction<CompactObjectInputStream>() {
+		    public CompactObjectInputStream run() throws IOException {
+			return new CompactObjectInputStream(in, fallback);
+		    }
+		});
+	} catch (PrivilegedActionException e) {
+	    throw (IOException) e.getException();
+	}
+    }
+
+    protected Object readObjectOverride()
+	throws IOException, ClassNotFoundException
+    {
+	int tc = readUnsignedByte();
+	if (tc == CompactObjectOutputStream.TC_NULL) {
+	    return null;
+	}
+	depth++;
+	references++;
+	try {
+	    switch (tc) {
+	    case CompactObjectOutputStream.TC_STRING:
+		return readString();
+	    case CompactObjectOutputStream.TC_UUID:
+		return readUuid();
+	    case CompactObjectOutputStream.TC_PRIMITIVE_ARRAY:
+		return readPrimitiveArray();
+	    case CompactObjectOutputStream.TC_STRING_ARRAY:
+	    case CompactObjectOutputStream.TC_UUID_ARRAY:
+		return readObjectArray(tc);
+	    case CompactObjectOutputStream.TC_OBJECT:
+		byte[] bytes = readBytes(readLength());
+		ObjectInputStream oin =
+		    fallback.newStream(new ByteArrayInputStream(bytes));
+		shareFilter(oin);
+		Object obj = oin.readObject();
+		oin.close();
+		return obj;
+	    default:
+		throw new StreamCorruptedException("invalid type code: " + tc);
+	    }
+	} finally {
+	    depth--;
+	}
+    }
+
+    public Object readUnshared() throws IOException, ClassNotFoundException {
+	return readObjectOverride();
+    }
+
+    private Uuid readUuid() throws IOException {
+	checkFilter(Uuid.class, -1);
+	long bits0 = readLong();
+	long bits1 = readLong();
+	return UuidFactory.create(bits0, bits1);
+    }
+
+    private Object[] readObjectArray(int tc)
+	throws IOException, ClassNotFoundException
+    {
+	int length = readLength();
+	Class type = tc == CompactObjectOutputStream.TC_STRING_ARRAY ?
+	    String.class : Uuid.class;
+	int capacity = Math.min(length, INITIAL_CAPACITY);
+	Object[] array = tc == CompactObjectOutputStream.TC_STRING_ARRAY ?
+	    new String[capacity] : new Uuid[capacity];
+	checkFilter(array.getClass(), length);
+	for (int i = 0; i < length; i++) {
+	    if (i == array.length) {
+		array = Arrays.copyOf(array, grow(array.length, length));
+	    }
+	    Object element = readObjectOverride();
+	    if (element != null && !type.isInstance(element)) {
+		throw new StreamCorruptedException(
+		    "invalid array element: " + element.getClass().getName());
+	    }
+	    array[i] = element;
+	}
+	return array;
+    }
+
+    private Object readPrimitiveArray() throws IOException {
+	int type = readUnsignedByte();
+	int length = readLength();
+	ByteBuffer data;
+	switch (type) {
+	case 'B':
+	    checkFilter(byte[].class, length);
+	    return readBytes(length);
+	case 'Z':
+	    checkFilter(boolean[].class, length);
+	    byte[] bytes = readBytes(length);
+	    boolean[] z = new boolean[length];
+	    for (int k = 0; k < length; k++) {
+		z[k] = bytes[k] != 0;
+	    }
+	    return z;
+	case 'I':
+	    checkFilter(int[].class, length);
+	    data = readElements(length, 4);
+	    int[] i = new int[length];
+	    data.asIntBuffer().get(i);
+	    return i;
+	case 'J':
+	    checkFilter(long[].class, length);
+	    data = readElements(length, 8);
+	    long[] j = new long[length];
+	    data.asLongBuffer().get(j);
+	    return j;
+	case 'C':
+	    checkFilter(char[].class, length);
+	    data = readElements(length, 2);
+	    char[] c = new char[length];
+	    data.asCharBuffer().get(c);
+	    return c;
+	case 'S':
+	    checkFilter(short[].class, length);
+	    data = readElements(length, 2);
+	    short[] s = new short[length];
+	    data.asShortBuffer().get(s);
+	    return s;
+	case 'F':
+	    checkFilter(float[].class, length);
+	    data = readElements(length, 4);
+	    float[] f = new float[length];
+	    data.asFloatBuffer().get(f);
+	    return f;
+	case 'D':
+	    checkFilter(double[].class, length);
+	    data = readElements(length, 8);
+	    double[] d = new double[length];
+	    data.asDoubleBuffer().get(d);
+	    return d;
+	default:
+	    throw new StreamCorruptedException("invalid array type: " + type);
+	}
+    }
+
+    /**
+     * Reads the big-endian content of a primitive array of
+     * <code>length</code> elements of <code>size</code> bytes.
+     */
+    private ByteBuffer readElements(int length, int size) throws IOException {
+	if (length > Integer.MAX_VALUE / size) {
+	    throw new StreamCorruptedException("array too long: " + length);
+	}
+	return ByteBuffer.wrap(readBytes(length * size));
+    }
+
+    /**
+     * Reads <code>n</code> bytes, allocating storage for them as they
+     * arrive.
+     */
+    private byte[] readBytes(int n) throws IOException {
+	byte[] b = new byte[Math.min(n, INITIAL_CAPACITY)];
+	int off = 0;
+	while (off < n) {
+	    if (off == b.length) {
+		b = Arrays.copyOf(b, grow(b.length, n));
+	    }
+	    int r = read(b, off, b.length - off);
+	    if (r < 0) {
+		throw new EOFException();
+	    }
+	    off += r;
+	}
+	return b;
+    }
+
+    /**
+     * Returns the capacity to grow storage of <code>capacity</code>
+     * elements to, for an array or string of <code>length</code>.
+     */
+    private static int grow(int capacity, int length) {
+	return (int) Math.min(length, 2L * capacity);
+    }
+
+    private int readLength() throws IOException {
+	int length = readInt();
+	if (length < 0) {
+	    throw new StreamCorruptedException("negative length: " + length);
+	}
+	return length;
+    }
+
+    /** Reads a string written by <code>writeString</code>. */
+    private String readString() throws IOException {
+	int utflen = readLength();
+	char[] chars = new char[Math.min(utflen, INITIAL_CAPACITY)];
+	int n = 0;
+	int end = utflen;
+	while (end > 0) {
+	    if (n == chars.length) {
+		chars = Arrays.copyOf(chars, grow(chars.length, utflen));
+	    }
+	    int c = readUnsignedByte();
+	    end--;
+	    if (c < 0x80) {
+		chars[n++] = (char) c;
+	    } else if ((c & 0xE0) == 0xC0 && end >= 1) {
+		int c2 = readUnsignedByte();
+		end--;
+		if ((c2 & 0xC0) != 0x80) {
+		    throw new UTFDataFormatException();
+		}
+		chars[n++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+	    } else if ((c & 0xF0) == 0xE0 && end >= 2) {
+		int c2 = readUnsignedByte();
+		int c3 = readUnsignedByte();
+		end -= 2;
+		if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) {
+		    throw new UTFDataFormatException();
+		}
+		chars[n++] = (char) (((c & 0x0F) << 12) |
+				     ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+	    } else {
+		throw new UTFDataFormatException();
+	    }
+	}
+	return new String(chars, 0, n);
+    }
+
+    /**
+     * Consults the stream's filter, if any, about an array or object of
+     * the given class about to be read.
+     *
+     * @throws InvalidClassException if the filter rejects it
+     */
+    private void checkFilter(final Class serialClass, final long arrayLength)
+	throws IOException
+    {
+	if (getFilter == null) {
+	    return;
+	}
+	Object filter = invoke(getFilter, this);
+	if (filter == null) {
+	    return;
+	}
+	final long streamBytes = bytesRead - (count - pos);
+	Object info = Proxy.newProxyInstance(
+	    CompactObjectInputStream.class.getClassLoader(),
+	    new Class[] { filterInfo },
+	    new InvocationHandler() {
+		public Object invoke(Object proxy, Method m, Object[] args) {
+		    String name = m.getName();
+		    if (name.equals("serialClass")) {
+			return serialClass;
+		    } else if (name.equals("arrayLength")) {
+			return Long.valueOf(arrayLength);
+		    } else if (name.equals("depth")) {
+			return Long.valueOf(depth);
+		    } else if (name.equals("references")) {
+			return Long.valueOf(references);
+		    } else if (name.equals("streamBytes")) {
+			return Long.valueOf(streamBytes);
+		    } else if (name.equals("hashCode")) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		    } else if (name.equals("equals")) {
+			return Boolean.valueOf(proxy == args[0]);
+		    } else if (name.equals("toString")) {
+			return "FilterInfo[" + serialClass + "]";
+		    }
+		    throw new UnsupportedOperationException(name);
+		}
+	    });
+	Object status = invoke(checkInput, filter, info);
+	if (status == null || status == REJECTED) {
+	    throw new InvalidClassException("filter status: " + status);
+	}
+    }
+
+    /**
+     * Gives a stream created by the fallback this stream's filter, if
+     * any, unless the fallback has already given it a filter of its own.
+     */
+    private void shareFilter(ObjectInputStream oin) throws IOException {
+	if (getFilter == null) {
+	    return;
+	}
+	Object filter = invoke(getFilter, this);
+	if (filter == null || invoke(getFilter, oin) == filter) {
+	    return;
+	}
+	try {
+	    invoke(setFilter, oin, filter);
+	} catch (IllegalStateException e) {
+	    /* the fallback stream's own filter applies */
+	}
+    }
+
+    private static Object invoke(Method m, Object target, Object... args)
+	throws IOException
+    {
+	try {
+	    return m.invoke(target, args);
+	} catch (IllegalAccessException e) {
+	    throw new AssertionError(e);
+	} catch (InvocationTargetException e) {
+	    Throwable t = e.getCause();
+	    if (t instanceof IOException) {
+		throw (IOException) t;
+	    } else if (t instanceof RuntimeException) {
+		throw (RuntimeException) t;
+	    } else if (t instanceof Error) {
+		throw (Error) t;
+	    }
+	    throw new AssertionError(t);
+	}
+    }
+
+    /**
+     * Makes at least one byte available in the buffer, returning false
+     * at the end of the underlying stream.
+     */
+    private boolean fill() throws IOException {
+	if (pos < count) {
+	    return true;
+	}
+	int n = in.read(buf, 0, BUFFER_SIZE);
+	if (n <= 0) {
+	    return false;
+	}
+	bytesRead += n;
+	pos = 0;
+	count = n;
+	return true;
+    }
+
+    /** Makes <code>n</code> bytes available in the buffer. */
+    private void require(int n) throws IOException {
+	if (count - pos >= n) {
+	    return;
+	}
+	System.arraycopy(buf, pos, buf, 0, count - pos);
+	count -= pos;
+	pos = 0;
+	while (count < n) {
+	    int r = in.read(buf, count, BUFFER_SIZE - count);
+	    if (r < 0) {
+		throw new EOFException();
+	    }
+	    bytesRead += r;
+	    count += r;
+	}
+    }
+
+    public int read() throws IOException {
+	return fill() ? buf[pos++] & 0xFF : -1;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+	if (off < 0 || len < 0 || off > b.length - len) {
+	    throw new IndexOutOfBoundsException();
+	} else if (len == 0) {
+	    return 0;
+	}
+	if (pos == count && len >= BUFFER_SIZE) {
+	    int n = in.read(b, off, len);
+	    if (n > 0) {
+		bytesRead += n;
+	    }
+	    return n;
+	}
+	if (!fill()) {
+	    return -1;
+	}
+	int n = Math.min(len, count - pos);
+	System.arraycopy(buf, pos, b, off, n);
+	pos += n;
+	return n;
+    }
+
+    public int available() throws IOException {
+	return (count - pos) + in.available();
+    }
+
+    public void readFully(byte[] b) throws IOException {
+	readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+	while (len > 0) {
+	    int n = read(b, off, len);
+	    if (n < 0) {
+		throw new EOFException();
+	    }
+	    off += n;
+	    len -= n;
+	}
+    }
+
+    public int skipBytes(int len) throws IOException {
+	int skipped = 0;
+	while (skipped < len && fill()) {
+	    int n = Math.min(len - skipped, count - pos);
+	    pos += n;
+	    skipped += n;
+	}
+	return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+	return readUnsignedByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+	return (byte) readUnsignedByte();
+    }
+
+    public int readUnsignedByte() throws IOException {
+	if (!fill()) {
+	    throw new EOFException();
+	}
+	return buf[pos++] & 0xFF;
+    }
+
+    public short readShort() throws IOException {
+	return (short) readUnsignedShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+	require(2);
+	int v = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+	pos += 2;
+	return v;
+    }
+
+    public char readChar() throws IOException {
+	return (char) readUnsignedShort();
+    }
+
+    public int readInt() throws IOException {
+	require(4);
+	int v = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) |
+	    ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+	pos += 4;
+	return v;
+    }
+
+    public long readLong() throws IOException {
+	require(8);
+	long v = 0;
+	for (int i = 0; i < 8; i++) {
+	    v = (v << 8) | (buf[pos++] & 0xFF);
+	}
+	return v;
+    }
+
+    public float readFloat() throws IOException {
+	return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+	return Double.longBitsToDouble(readLong());
+    }
+
+    public String readUTF() throws IOException {
+	return readString();
+    }
+
+    /** @deprecated */
+    @Deprecated
+    public String readLine() throws IOException {
+	StringBuilder sb = new StringBuilder();
+	int c;
+	while ((c = read()) >= 0 && c != '\n') {
+	    if (c != '\r') {
+		sb.append((char) c);
+	    }
+	}
+	return c < 0 && sb.length() == 0 ? null : sb.toString();
+    }
+
+    public void close() throws IOException {
+	in.close();
+    }
+}
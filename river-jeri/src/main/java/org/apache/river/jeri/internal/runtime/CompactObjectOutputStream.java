@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.jeri.internal.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+
+/**
+ * An object output stream that writes the arguments or result of a
+ * remote call in a compact binary form, for remote methods whose
+ * parameter and return types are all compact types: primitive types,
+ * <code>String</code>, {@link Uuid}, arrays of primitive types, and
+ * arrays of <code>String</code> or <code>Uuid</code>.
+ * <p>
+ * Values are written without class descriptors, handles or block data
+ * headers, into a buffer of the stream's own that is written to the
+ * underlying stream only when full, flushed or closed.  Any other
+ * object written, such as an exception thrown by the remote method, is
+ * serialized by a stream obtained from a {@link Fallback}, and written
+ * as a length followed by the bytes of that stream.
+ * <p>
+ * The stream begins with {@link #MAGIC}, so that a reader can tell it
+ * from a stream written by an {@link ObjectOutputStream}.
+ *
+ * @see CompactObjectInputStream
+ * @since 3.0
+ */
+public final class CompactObjectOutputStream extends ObjectOutputStream {
+
+    /** stream magic number of the compact format */
+    public static final short MAGIC = (short) 0xACE0;
+
+    static final int TC_NULL = 0;
+    static final int TC_STRING = 1;
+    static final int TC_UUID = 2;
+    static final int TC_PRIMITIVE_ARRAY = 3;
+    static final int TC_STRING_ARRAY = 4;
+    static final int TC_UUID_ARRAY = 5;
+    static final int TC_OBJECT = 6;
+
+    /** size of the stream's buffer */
+    private static final int BUFFER_SIZE = 512;
+
+    /** class of the Uuid instances that UuidFactory creates */
+    private static final Class UUID_CLASS =
+	UuidFactory.create(0L, 0L).getClass();
+
+    /** methods known to have only compact types or not */
+    private static final Map<Method,Boolean> compactMethods =
+	Collections.synchronizedMap(new WeakHashMap<Method,Boolean>());
+
+    /**
+     * Creates the object output streams that serialize objects of
+     * other than compact types.
+     */
+    public interface Fallback {
+
+	/**
+	 * Returns a new object output stream writing to
+	 * <code>out</code>.
+	 */
+	ObjectOutputStream newStream(OutputStream out) throws IOException;
+    }
+
+    private final OutputStream out;
+    private final Fallback fallback;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int count = 0;
+
+    private CompactObjectOutputStream(OutputStream out, Fallback fallback)
+	throws IOException
+    {
+	super();
+	this.out = out;
+	this.fallback = fallback;
+	writeShort(MAGIC);
+    }
+
+    /**
+     * Returns a new compact object output stream writing to
+     * <code>out</code>, which uses <code>fallback</code> to write
+     * objects of other than compact types.
+     */
+    public static CompactObjectOutputStream create(final OutputStream out,
+						   final Fallback fallback)
+	throws IOException
+    {
+	if (out == null || fallback == null) {
+	    throw new NullPointerException();
+	}
+	try {
+	    return AccessController.doPrivileged(
+		new PrivilegedExceptionAction<CompactObjectOutputStream>() {
+		    public CompactObjectOutputStream run() throws IOException {
+			return new CompactObjectOutputStream(out, fallback);
+		    }
+		});
+	} catch (PrivilegedActionException e) {
+	    throw (IOException) e.getException();
+	}
+    }
+
+    /**
+     * Returns true if the parameter types and return type of a method
+     * are all compact types.
+     */
+    public static boolean isCompact(Method method) {
+	Boolean result = compactMethods.get(method);
+	if (result == null) {
+	    boolean compact = isCompactType(method.getReturnType());
+	    Class[] types = method.getParameterTypes();
+	    for (int i = 0; compact && i < types.length; i++) {
+		compact = isCompactType(types[i]);
+	    }
+	    result = Boolean.valueOf(compact);
+	    compactMethods.put(method, result);
+	}
+	return result.booleanValue();
+    }
+
+    private static boolean isCompactType(Class type) {
+	if (type.isArray()) {
+	    type = type.getComponentType();
+	}
+	return type.isPrimitive() ||
+	    type == String.class || type == Uuid.class;
+    }
+
+    protected void writeObjectOverride(Object obj) throws IOException {
+	if (obj == null) {
+	    writeByte(TC_NULL);
+	    return;
+	}
+	Class cl = obj.getClass();
+	if (cl == String.class) {
+	    writeByte(TC_STRING);
+	    writeString((String) obj);
+	} else if (cl == UUID_CLASS || cl == Uuid.class) {
+	    Uuid uuid = (Uuid) obj;
+	    writeByte(TC_UUID);
+	    writeLong(uuid.getMostSignificantBits());
+	    writeLong(uuid.getLeastSignificantBits());
+	} else if (cl.isArray() && cl.getComponentType().isPrimitive()) {
+	    writeByte(TC_PRIMITIVE_ARRAY);
+	    writePrimitiveArray(obj, cl.getComponentType());
+	} else if (cl == String[].class || cl == Uuid[].class) {
+	    Object[] array = (Object[]) obj;
+	    writeByte(cl == String[].class ? TC_STRING_ARRAY : TC_UUID_ARRAY);
+	    writeInt(array.length);
+	    for (int i = 0; i < array.length; i++) {
+		writeObjectOverride(array[i]);
+	    }
+	} else {
+	    ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+	    ObjectOutputStream oout = fallback.newStream(bout);
+	    oout.writeObject(obj);
+	    oout.close();
+	    writeByte(TC_OBJECT);
+	    writeInt(bout.size());
+	    bout.writeTo(this);
+	}
+    }
+
+    public void writeUnshared(Object obj) throws IOException {
+	writeObjectOverride(obj);
+    }
+
+    private void writePrimitiveArray(Object array, Class type)
+	throws IOException
+    {
+	if (type == byte.class) {
+	    byte[] a = (byte[]) array;
+	    writeByte('B');
+	    writeInt(a.length);
+	    write(a, 0, a.length);
+	} else if (type == int.class) {
+	    int[] a = (int[]) array;
+	    writeByte('I');
+	    writeInt(a.length);
+	    for (int i = 0; i < a.length; i++) {
+		writeInt(a[i]);
+	    }
+	} else if (type == long.class) {
+	    long[] a = (long[]) array;
+	    writeByte('J');
+	    writeInt(a.length);
+	    for (int i = 0; i < a.length; i++) {
+		writeLong(a[i]);
+	    }
+	} else if (type == boolean.class) {
+	    boolean[] a = (boolean[]) array;
+	    writeByte('Z');
+	    writeInt(a.length);
+	    for (int i = 0; i < a.length; i++) {
+		writeBoolean(a[i]);
+	    }
+	} else if (type == char.class) {
+	    char[] a = (char[]) array;
+	    writeByte('C');
+	    writeInt(a.length);
+	    for (int i = 0; i < a.length; i++) {
+		writeChar(a[i]);
+	    }
+	} else if (type == short.class) {
+	    short[] a = (short[]) array;
+	    writeByte('S');
+	    writeInt(a.length);
+	    for (int i = 0; i < a.length; i++) {
+		writeShort(a[i]);
+	    }
+	} else if (type == float.class) {
+	    float[] a = (float[]) array;
+	    writeByte('F');
+	    writeInt(a.length);
+	    for (int i = 0; i < a.length; i++) {
+		writeFloat(a[i]);
+	    }
+	} else {
+	    double[] a = (double[]) array;
+	    writeByte('D');
+	    writeInt(a.length);
+	    for (int i = 0; i < a.length; i++) {
+		writeDouble(a[i]);
+	    }
+	}
+    }
+
+    /**
+     * Writes a string of any length as its length in UTF-8 bytes and
+     * those bytes, in the modified UTF-8 of {@link #writeUTF writeUTF}.
+     */
+    private void writeString(String s) throws IOException {
+	int length = s.length();
+	int utflen = 0;
+	for (int i = 0; i < length; i++) {
+	    char c = s.charAt(i);
+	    if (c >= 0x0001 && c <= 0x007F) {
+		utflen++;
+	    } else if (c > 0x07FF) {
+		utflen += 3;
+	    } else {
+		utflen += 2;
+	    }
+	}
+	writeInt(utflen);
+	for (int i = 0; i < length; i++) {
+	    char c = s.charAt(i);
+	    if (count + 3 > BUFFER_SIZE) {
+		drainBuffer();
+	    }
+	    if (c >= 0x0001 && c <= 0x007F) {
+		buf[count++] = (byte) c;
+	    } else if (c > 0x07FF) {
+		buf[count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+		buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		buf[count++] = (byte) (0x80 | (c & 0x3F));
+	    } else {
+		buf[count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+		buf[count++] = (byte) (0x80 | (c & 0x3F));
+	    }
+	}
+    }
+
+    /** Makes room for <code>n</code> bytes in the buffer. */
+    private void ensure(int n) throws IOException {
+	if (count + n > BUFFER_SIZE) {
+	    drainBuffer();
+	}
+    }
+
+    /** Writes the buffered bytes to the underlying stream. */
+    private void drainBuffer() throws IOException {
+	if (count > 0) {
+	    out.write(buf, 0, count);
+	    count = 0;
+	}
+    }
+
+    public void write(int b) throws IOException {
+	ensure(1);
+	buf[count++] = (byte) b;
+    }
+
+    public void write(byte[] b) throws IOException {
+	write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+	if (off < 0 || len < 0 || off > b.length - len) {
+	    throw new IndexOutOfBoundsException();
+	}
+	if (len > BUFFER_SIZE - count) {
+	    drainBuffer();
+	    if (len >= BUFFER_SIZE) {
+		out.write(b, off, len);
+		return;
+	    }
+	}
+	System.arraycopy(b, off, buf, count, len);
+	count += len;
+    }
+
+    public void writeBoolean(boolean v) throws IOException {
+	write(v ? 1 : 0);
+    }
+
+    public void writeByte(int v) throws IOException {
+	write(v);
+    }
+
+    public void writeShort(int v) throws IOException {
+	ensure(2);
+	buf[count++] = (byte) (v >>> 8);
+	buf[count++] = (byte) v;
+    }
+
+    public void writeChar(int v) throws IOException {
+	writeShort(v);
+    }
+
+    public void writeInt(int v) throws IOException {
+	ensure(4);
+	buf[count++] = (byte) (v >>> 24);
+	buf[count++] = (byte) (v >>> 16);
+	buf[count++] = (byte) (v >>> 8);
+	buf[count++] = (byte) v;
+    }
+
+    public void writeLong(long v) throws IOException {
+	ensure(8);
+	for (int shift = 56; shift >= 0; shift -= 8) {
+	    buf[count++] = (byte) (v >>> shift);
+	}
+    }
+
+    public void writeFloat(float v) throws IOException {
+	writeInt(Float.floatToIntBits(v));
+    }
+
+    public void writeDouble(double v) throws IOException {
+	writeLong(Double.doubleToLongBits(v));
+    }
+
+    public void writeBytes(String s) throws IOException {
+	int length = s.length();
+	for (int i = 0; i < length; i++) {
+	    write(s.charAt(i));
+	}
+    }
+
+    public void writeChars(String s) throws IOException {
+	int length = s.length();
+	for (int i = 0; i < length; i++) {
+	    writeChar(s.charAt(i));
+	}
+    }
+
+    public void writeUTF(String s) throws IOException {
+	writeString(s);
+    }
+
+    /** Does nothing, since the stream keeps no object handles. */
+    public void reset() {
+    }
+
+    public void flush() throws IOException {
+	drainBuffer();
+	out.flush();
+    }
+
+    public void close() throws IOException {
+	drainBuffer();
+	out.close();
+    }
+}
@@ -19,16 +19,19 @@
 package org.apache.river.jeri.internal.runtime;
 
 import org.apache.river.logging.Levels;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 import java.rmi.RemoteException;
 import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.ObjectName;
 import net.jini.id.Uuid;
 import net.jini.id.UuidFactory;
 import net.jini.jeri.BasicInvocationHandler;
@@ -50,9 +53,16 @@ import net.jini.jeri.ObjectEndpoint;
  * DgcProxy's Endpoint and the well-known Uuid for the Jini ERI
  * server-side DGC implementation remote object.
  *
+ * When first used, a DgcClient registers itself with the platform MBean
+ * server, as a DgcClientMXBean named
+ * <code>org.apache.river.jeri:type=DgcClient</code>, if no other
+ * instance has been registered under that name.
+ *
  * @author Sun Microsystems, Inc.
  **/
-public final class DgcClient extends AbstractDgcClient {
+public final class DgcClient extends AbstractDgcClient
+    implements DgcClientMXBean
+{
 
     private static final Logger logger =
 	Logger.getLogger("net.jini.jeri.BasicObjectEndpoint");
@@ -81,6 +91,24 @@ public final class DgcClient extends AbstractDgcClient {
 	return new DgcProxyImpl(proxy);
     }
 
+    protected void started() {
+	AccessController.doPrivileged(new PrivilegedAction() {
+	    public Object run() {
+		try {
+		    ManagementFactory.getPlatformMBeanServer().registerMBean(
+			DgcClient.this,
+			new ObjectName("org.apache.river.jeri:type=DgcClient"));
+		} catch (Exception e) {
+		    if (logger.isLoggable(Levels.HANDLED)) {
+			logger.log(Levels.HANDLED,
+				   "could not register DgcClient MXBean", e);
+		    }
+		}
+		return null;
+	    }
+	});
+    }
+
     protected void freeEndpoint(Object endpoint) {
 	// we don't need to do anything special for freed endpoints
     }
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.jeri.internal.runtime;
+
+/**
+ * Management interface of the Jeri ERI client-side DGC implementation,
+ * registered with the platform MBean server as
+ * <code>org.apache.river.jeri:type=DgcClient</code> once DGC is first
+ * used.
+ *
+ * @see DgcClient
+ **/
+public interface DgcClientMXBean {
+
+    /** Returns the number of endpoints with registered references. */
+    int getEndpointCount();
+
+    /** Returns the number of remote objects with registered references. */
+    int getReferenceCount();
+
+    /** Returns the number of dirty (lease renewal) calls made. */
+    long getDirtyCallCount();
+
+    /** Returns the number of dirty calls that failed. */
+    long getDirtyCallFailureCount();
+
+    /** Returns the mean elapsed time of dirty calls, in milliseconds. */
+    long getMeanDirtyCallLatency();
+
+    /** Returns the longest elapsed time of a dirty call, in milliseconds. */
+    long getMaxDirtyCallLatency();
+}
@@ -36,11 +36,14 @@ final class Jeri {
 	    "org.apache.river.jeri.dgc.leaseValue", 600000)))
 	    .longValue();
 
-    /** period of checking for DGC lease expiration */
-    static final long leaseCheckInterval =		// default 5 minutes
+    /**
+     * period of checking for DGC lease expiration; each check visits
+     * only the leases that have come due, so it can be short
+     **/
+    static final long leaseCheckInterval =		// default 1 second
 	((Long) AccessController.doPrivileged(new GetLongAction(
-	    "org.apache.river.jeri.dgc.checkInterval", leaseValue / 2)))
-	    .longValue();
+	    "org.apache.river.jeri.dgc.checkInterval",
+	    Math.min(1000L, Math.max(1L, leaseValue / 2))))).longValue();
 
     static final int NO_SUCH_OBJECT	= 0x00;
     static final int OBJECT_HERE	= 0x01;
@@ -38,6 +38,10 @@ class Lease {
     /* Once all targets have been removed, Lease is locked for removal.
      */
     private volatile boolean lockForRemoval;
+    /** next lease in the same LeaseWheel slot, guarded by the wheel */
+    Lease wheelNext;
+    /** tick at which the lease comes due in its LeaseWheel */
+    long wheelTick;
 
     Lease(Uuid clientID, long duration) {
         super();
@@ -50,6 +54,12 @@ class Lease {
         return clientID;
     }
 
+    long getExpiration() {
+        synchronized (this) {
+            return expiration;
+        }
+    }
+
     boolean renew(long duration) {
         synchronized (this) {
             if (lockForRemoval) {
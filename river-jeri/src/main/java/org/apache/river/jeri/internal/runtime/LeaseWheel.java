@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.jeri.internal.runtime;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel of DGC leases, ordered by expiration.
+ * <p>
+ * Time is divided into ticks of a fixed number of milliseconds.  The
+ * wheel has {@link #LEVELS} levels of {@link #SLOTS} slots each; a slot
+ * of level <i>n</i> spans <code>SLOTS<sup>n</sup></code> ticks.  A lease
+ * is kept in the slot of the lowest level that can hold its expiration
+ * tick, and is moved down a level each time the wheel turns past the
+ * slot it is in, so adding a lease and advancing the wheel by one tick
+ * both take constant time, and a lease is visited at most once per
+ * level before it comes due.
+ * <p>
+ * Renewing a lease does not move it: a lease only changes its recorded
+ * expiration when renewed, and a lease that has been renewed since it
+ * was added is simply added again, at its new expiration, when its old
+ * slot comes due.  So the cost of checking for expired leases is in
+ * proportion to the number of leases whose lease period has elapsed,
+ * rather than to the number of leases held.
+ * <p>
+ * Leases are linked into their slots through fields of their own, which
+ * are guarded by the wheel's lock.
+ *
+ * @since 3.0
+ */
+final class LeaseWheel {
+
+    /** number of bits of the tick that index a level's slots */
+    private static final int BITS = 6;
+
+    /** number of slots in each level */
+    static final int SLOTS = 1 << BITS;
+
+    /** number of levels */
+    static final int LEVELS = 4;
+
+    private static final int MASK = SLOTS - 1;
+
+    /** farthest a lease may be added ahead of the current tick */
+    private static final long MAX_TICKS = (1L << (BITS * LEVELS)) - 1;
+
+    /** milliseconds per tick */
+    private final long tickMillis;
+
+    /** heads of the slot lists, indexed by level then slot */
+    private final Lease[][] slots = new Lease[LEVELS][SLOTS];
+
+    /** next tick to be processed, guarded by this */
+    private long currentTick;
+
+    /** number of leases in the wheel, guarded by this */
+    private int size;
+
+    LeaseWheel(long tickMillis) {
+	if (tickMillis <= 0) {
+	    throw new IllegalArgumentException("tickMillis must be positive");
+	}
+	this.tickMillis = tickMillis;
+	currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * Adds a lease to the wheel, to come due at the first tick not
+     * before its current expiration.  The lease must not already be in
+     * the wheel.
+     */
+    synchronized void add(Lease lease) {
+	if (size == 0) {
+	    // nothing to process before now, skip any idle ticks
+	    long now = System.currentTimeMillis() / tickMillis;
+	    if (now > currentTick) {
+		currentTick = now;
+	    }
+	}
+	long expiration = lease.getExpiration();
+	long tick = expiration / tickMillis;
+	if (tick * tickMillis < expiration) {
+	    tick++;
+	}
+	lease.wheelTick = tick;
+	insert(lease);
+	size++;
+    }
+
+    /**
+     * Turns the wheel up to and including the tick containing
+     * <code>now</code>, adding the leases that have come due to
+     * <code>due</code>.  The leases added are no longer in the wheel.
+     */
+    synchronized void advance(long now, List<Lease> due) {
+	long nowTick = now / tickMillis;
+	if (size == 0) {
+	    if (nowTick >= currentTick) {
+		currentTick = nowTick + 1;
+	    }
+	    return;
+	}
+	while (currentTick <= nowTick) {
+	    int slot = (int) (currentTick & MASK);
+	    if (slot == 0) {
+		// move leases in the next slot of each higher level down
+		for (int level = 1; level < LEVELS; level++) {
+		    int index = (int) ((currentTick >>> (BITS * level)) & MASK);
+		    cascade(level, index);
+		    if (index != 0) {
+			break;
+		    }
+		}
+	    }
+	    Lease lease = slots[0][slot];
+	    slots[0][slot] = null;
+	    while (lease != null) {
+		Lease next = lease.wheelNext;
+		lease.wheelNext = null;
+		due.add(lease);
+		size--;
+		lease = next;
+	    }
+	    currentTick++;
+	    if (size == 0 && currentTick <= nowTick) {
+		currentTick = nowTick + 1;
+	    }
+	}
+    }
+
+    /** Returns the number of leases in the wheel. */
+    synchronized int size() {
+	return size;
+    }
+
+    /** Reinserts the leases of a higher level slot at lower levels. */
+    private void cascade(int level, int index) {
+	Lease lease = slots[level][index];
+	slots[level][index] = null;
+	while (lease != null) {
+	    Lease next = lease.wheelNext;
+	    insert(lease);
+	    lease = next;
+	}
+    }
+
+    /** Links a lease into the slot for its tick, relative to now. */
+    private void insert(Lease lease) {
+	long tick = lease.wheelTick;
+	long ahead = tick - currentTick;
+	int level;
+	int index;
+	if (ahead < 0) {
+	    // already due, process at the next tick
+	    level = 0;
+	    index = (int) (currentTick & MASK);
+	} else {
+	    if (ahead > MAX_TICKS) {
+		tick = currentTick + MAX_TICKS;
+		ahead = MAX_TICKS;
+	    }
+	    level = 0;
+	    while (ahead >= (1L << (BITS * (level + 1)))) {
+		level++;
+	    }
+	    index = (int) ((tick >>> (BITS * level)) & MASK);
+	}
+	lease.wheelNext = slots[level][index];
+	slots[level][index] = lease;
+    }
+}
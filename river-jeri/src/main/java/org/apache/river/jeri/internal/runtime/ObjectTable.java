@@ -24,8 +24,9 @@ import java.rmi.Remote;
 import java.rmi.server.ExportException;
 import java.rmi.server.Unreferenced;
 import java.security.AccessController;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
@@ -61,6 +62,9 @@ final class ObjectTable {
     /** maps client ID to Lease (lock guards leaseChecker too) */
     private final ConcurrentMap<Uuid,Lease> leaseTable;
 
+    /** leases in the lease table, ordered by expiration */
+    private final LeaseWheel leaseWheel;
+
     /** thread to check for expired leases */
     private Thread leaseChecker;
     
@@ -75,6 +79,7 @@ final class ObjectTable {
         implRefManager = new ImplRefManager();
         keepAliveCount = new JvmLifeSupport();
         leaseTable = new ConcurrentHashMap<Uuid,Lease>(256);//Plenty of capacity to reduce resizing.
+        leaseWheel = new LeaseWheel(Jeri.leaseCheckInterval);
         leaseChecker = null;
         running = false;
         runLock = new Object();
@@ -179,7 +184,9 @@ final class ObjectTable {
             if (lease == null) {
                 lease = new Lease(clientID, duration);
                 Lease existed = leaseTable.putIfAbsent(clientID,lease);
-                if (existed != null){
+                if (existed == null) {
+                    leaseWheel.add(lease);
+                } else {
                     assert clientID.equals(existed.getClientID());
                     boolean renewed = existed.renew(duration);
                     if (!renewed){
@@ -211,7 +218,9 @@ final class ObjectTable {
                     leaseTable.remove(clientID, lease); // Another thread could remove it first.
                     lease = new Lease(clientID, duration);
                     Lease existed = leaseTable.putIfAbsent(clientID, lease);
-                    if (existed != null){
+                    if (existed == null) {
+                        leaseWheel.add(lease);
+                    } else {
                         lease = existed;
                         assert clientID.equals(lease.getClientID());
                         renewed = lease.renew(duration);
@@ -342,19 +351,23 @@ final class ObjectTable {
 
 	public void run() {
 	    boolean done = false;
+            List<Lease> due = new ArrayList<Lease>();
             try {
                 do {
                     Thread.sleep(Jeri.leaseCheckInterval);
-                    long now = System.currentTimeMillis();		
-                    for (Iterator i = leaseTable.values().iterator();
-                         i.hasNext();)
-                    {
-                        Lease lease = (Lease) i.next();
-                        boolean expired = lease.notifyIfExpired(now);
-                        if (expired) {			    
-                            i.remove();
+                    long now = System.currentTimeMillis();
+                    // only leases whose lease period has elapsed come due;
+                    // those renewed since are put back at their new expiry
+                    leaseWheel.advance(now, due);
+                    for (int i = 0, l = due.size(); i < l; i++) {
+                        Lease lease = due.get(i);
+                        if (lease.notifyIfExpired(now)) {
+                            leaseTable.remove(lease.getClientID(), lease);
+                        } else {
+                            leaseWheel.add(lease);
                         }
                     }
+                    due.clear();
                     if (leaseTable.isEmpty()) {
                         done = true;
                     }		
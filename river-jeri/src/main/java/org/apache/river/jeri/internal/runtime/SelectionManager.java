@@ -18,6 +18,7 @@
 
 package org.apache.river.jeri.internal.runtime;
 
+import org.apache.river.action.GetIntegerAction;
 import org.apache.river.logging.Levels;
 import org.apache.river.thread.Executor;
 import org.apache.river.thread.GetThreadPoolAction;
@@ -61,6 +62,14 @@ import java.util.logging.Logger;
  * processing depends on more data that has not yet been read (like the
  * remainder of a partial message).
  *
+ * Rather than creating SelectionManagers of their own, transports share
+ * the instances returned by {@link #getInstance}: a fixed set of
+ * SelectionManagers, each with its own selector and select thread, that
+ * channels are spread over in turn.  The size of the set is given by the
+ * system property <code>org.apache.river.jeri.selectorThreads</code>,
+ * and defaults to the number of available processors, so the number of
+ * threads servicing channels does not grow with the number of channels.
+ *
  * <p>This implementation uses the {@link Logger} named
  * <code>org.apache.river.jeri.internal.runtime.SelectionManager</code> to
  * log information at the following levels:
@@ -85,6 +94,19 @@ public final class SelectionManager {
     private static final Logger logger = Logger.getLogger(
 	"org.apache.river.jeri.internal.runtime.SelectionManager");
 
+    /** number of shared SelectionManagers returned by getInstance */
+    private static final int sharedCount = Math.max(1,
+	AccessController.doPrivileged(new GetIntegerAction(
+	    "org.apache.river.jeri.selectorThreads",
+	    Runtime.getRuntime().availableProcessors())).intValue());
+
+    /** shared SelectionManagers, created as they are first needed */
+    private static final SelectionManager[] shared =
+	new SelectionManager[sharedCount];
+
+    /** index of the shared SelectionManager to return next */
+    private static int nextShared = 0;		// guarded by shared
+
     /** pool of threads for executing tasks in system thread group */
     private static final Executor systemThreadPool = (Executor)
 	AccessController.doPrivileged(new GetThreadPoolAction(false));
@@ -161,6 +183,22 @@ public final class SelectionManager {
 	// REMIND: Should there be an explicit close method?
     }
 
+    /**
+     * Returns one of the shared SelectionManagers, choosing each in turn
+     * so that channels registered with the returned instances are
+     * spread evenly over the select threads.
+     */
+    public static SelectionManager getInstance() throws IOException {
+	synchronized (shared) {
+	    int i = nextShared;
+	    nextShared = (i + 1) % shared.length;
+	    if (shared[i] == null) {
+		shared[i] = new SelectionManager();
+	    }
+	    return shared[i];
+	}
+    }
+
     /**
      * Registers the given SelectableChannel with this SelectionManager.
      * After registration, the returned Key's renewInterestMask method may
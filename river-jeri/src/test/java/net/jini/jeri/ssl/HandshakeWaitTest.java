@@ -0,0 +1,294 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jini.jeri.ssl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.security.auth.Subject;
+import javax.security.auth.x500.X500PrivateCredential;
+import net.jini.jeri.ssl.Utilities.SSLContextInfo;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that client connections with the same call context wait for
+ * each other's SSLContext rather than creating new ones, that a failed or
+ * unauthenticated handshake does not hold up waiting connections, and
+ * that a connection stops waiting after handshakeWait milliseconds.
+ * Contexts are got, released and discarded through Utilities as
+ * SslConnection does.  The build sets
+ * org.apache.river.jeri.ssl.handshakeWait to 2000, which Utilities reads
+ * only once.
+ */
+public class HandshakeWaitTest {
+
+    /** the handshakeWait the test is run with */
+    private static final long WAIT =
+	Long.getLong("org.apache.river.jeri.ssl.handshakeWait", 50);
+    /** connections opened at once to the same endpoint */
+    private static final int CONNECTS = 4;
+    /** how long each connection holds the context while handshaking */
+    private static final long HANDSHAKE = 50;
+    private static final String PASSWORD = "keypass";
+
+    private static X509Certificate cert;
+    private static Subject subject;
+    private static int port = 1;
+
+    /** gets a client SSLContext on its own thread */
+    private static class Connect extends Thread {
+	private final CallContext context;
+	private volatile SSLContextInfo info;
+	private volatile long elapsed;
+
+	Connect(CallContext context) {
+	    this.context = context;
+	    start();
+	}
+
+	public void run() {
+	    long start = System.currentTimeMillis();
+	    info = Utilities.getClientSSLContextInfo(context);
+	    elapsed = System.currentTimeMillis() - start;
+	}
+
+	/** returns the SSLContext once the connection has one */
+	SSLContextInfo info() throws InterruptedException {
+	    join(WAIT * 5);
+	    assertNotNull("connection never got an SSL context", info);
+	    return info;
+	}
+
+	/** checks the connection is still waiting */
+	void checkWaiting() throws InterruptedException {
+	    Thread.sleep(WAIT / 10);
+	    assertTrue("connection did not wait for busy context", isAlive());
+	}
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+	assertTrue("run with a handshakeWait of at least 1000", WAIT >= 1000);
+	createCredentials();
+    }
+
+    /**
+     * Connections opened together share one SSLContext, one at a time,
+     * instead of each creating its own.
+     */
+    @Test
+    public void concurrentConnects() throws Exception {
+	final CallContext context = newCallContext(subject);
+	SSLContextInfo first = Utilities.getClientSSLContextInfo(context);
+	authenticate(first);
+	final SSLContext shared = first.sslContext;
+	final AtomicInteger holders = new AtomicInteger();
+	final AtomicInteger reused = new AtomicInteger();
+	final Throwable[] failure = new Throwable[1];
+	Thread[] connects = new Thread[CONNECTS];
+	for (int i = 0; i < CONNECTS; i++) {
+	    connects[i] = new Thread() {
+		public void run() {
+		    try {
+			SSLContextInfo info =
+			    Utilities.getClientSSLContextInfo(context);
+			if (info.sslContext == shared) {
+			    reused.incrementAndGet();
+			}
+			assertEquals("context shared by two handshakes",
+				     1, holders.incrementAndGet());
+			Thread.sleep(HANDSHAKE);
+			holders.decrementAndGet();
+			Utilities.releaseClientSSLContextInfo(
+			    context, info.sslContext,
+			    (ClientAuthManager) info.authManager);
+		    } catch (Throwable t) {
+			failure[0] = t;
+		    }
+		}
+	    };
+	    connects[i].start();
+	}
+	Thread.sleep(HANDSHAKE);
+	Utilities.releaseClientSSLContextInfo(
+	    context, shared, (ClientAuthManager) first.authManager);
+	for (int i = 0; i < CONNECTS; i++) {
+	    connects[i].join(WAIT * 5);
+	}
+	if (failure[0] != null) {
+	    throw new AssertionError(failure[0]);
+	}
+	assertEquals("concurrent connections that reused the SSL context",
+		     CONNECTS, reused.get());
+    }
+
+    /**
+     * A connection whose handshake fails discards its context, which wakes
+     * the connection waiting for it to create a new one.
+     */
+    @Test
+    public void failedHandshake() throws Exception {
+	CallContext context = newCallContext(subject);
+	SSLContextInfo failed = Utilities.getClientSSLContextInfo(context);
+	Connect waiting = new Connect(context);
+	waiting.checkWaiting();
+	Utilities.discardClientSSLContextInfo(context, failed.sslContext);
+	SSLContextInfo info = waiting.info();
+	assertNotSame("discarded context was reused",
+		      failed.sslContext, info.sslContext);
+	checkPrompt("failed handshake", waiting);
+	authenticate(info);
+	Utilities.releaseClientSSLContextInfo(
+	    context, info.sslContext, (ClientAuthManager) info.authManager);
+	SSLContextInfo next = Utilities.getClientSSLContextInfo(context);
+	assertSame("context after failed handshake not reused",
+		   info.sslContext, next.sslContext);
+    }
+
+    /**
+     * A connection returning a context it did not authenticate with wakes
+     * the connection waiting for it, which cannot reuse it and so creates a
+     * new one at once rather than waiting out handshakeWait.
+     */
+    @Test
+    public void unauthenticatedHandshake() throws Exception {
+	CallContext context = newCallContext(subject);
+	SSLContextInfo first = Utilities.getClientSSLContextInfo(context);
+	Connect waiting = new Connect(context);
+	waiting.checkWaiting();
+	Utilities.releaseClientSSLContextInfo(
+	    context, first.sslContext, (ClientAuthManager) first.authManager);
+	assertNotSame("unauthenticated context was reused",
+		      first.sslContext, waiting.info().sslContext);
+	checkPrompt("unauthenticated handshake", waiting);
+    }
+
+    /**
+     * A connection waiting for a context that is never returned creates its
+     * own once handshakeWait has passed.
+     */
+    @Test
+    public void waitExpires() throws Exception {
+	CallContext context = newCallContext(subject);
+	SSLContextInfo stuck = Utilities.getClientSSLContextInfo(context);
+	authenticate(stuck);
+	Connect waiting = new Connect(context);
+	assertNotSame("context still in use was handed out",
+		      stuck.sslContext, waiting.info().sslContext);
+	assertTrue("stopped waiting after " + waiting.elapsed +
+		   " ms, before handshakeWait " + WAIT + " ms",
+		   waiting.elapsed >= WAIT - 10);
+	assertTrue("waited " + waiting.elapsed +
+		   " ms, handshakeWait is " + WAIT + " ms",
+		   waiting.elapsed <= WAIT * 2);
+    }
+
+    /**
+     * Without a client subject no context can be reused, so a connection
+     * does not wait for a busy one.
+     */
+    @Test
+    public void anonymousClient() throws Exception {
+	CallContext context = newCallContext(null);
+	SSLContextInfo first = Utilities.getClientSSLContextInfo(context);
+	Connect connect = new Connect(context);
+	assertNotSame("context still in use was handed out",
+		      first.sslContext, connect.info().sslContext);
+	checkPrompt("anonymous client", connect);
+    }
+
+    private static void checkPrompt(String test, Connect connect) {
+	assertTrue(test + ": connection waited " + connect.elapsed + " ms",
+		   connect.elapsed <= WAIT / 2);
+    }
+
+    /**
+     * Returns a call context for a new endpoint, so each test has its own
+     * contexts.
+     */
+    private static CallContext newCallContext(Subject clientSubject) {
+	return new CallContext(
+	    SslEndpoint.getInstance("localhost", port++), null,
+	    clientSubject, false, null, null,
+	    Collections.singletonList("TLS_RSA_WITH_AES_128_CBC_SHA"),
+	    false, false, Long.MAX_VALUE);
+    }
+
+    /**
+     * Makes the auth manager authenticate both ends, as a successful
+     * handshake would, so that its context may be reused.
+     */
+    private static void authenticate(SSLContextInfo info) throws Exception {
+	ClientAuthManager authManager = (ClientAuthManager) info.authManager;
+	authManager.checkServerTrusted(new X509Certificate[] { cert }, "RSA");
+	assertNotNull("no client credential chosen: " +
+		      authManager.getClientCredentialException(),
+		      authManager.chooseClientAlias(
+			  new String[] { "RSA" }, null, null));
+    }
+
+    /**
+     * Generates a self-signed key pair, trusts it, and puts it in the
+     * client subject.
+     */
+    private static void createCredentials() throws Exception {
+	File keyStoreFile = File.createTempFile("handshakeWait", ".keystore");
+	keyStoreFile.delete();
+	keyStoreFile.deleteOnExit();
+	Process keytool = new ProcessBuilder(
+	    System.getProperty("java.home") + File.separator + "bin" +
+	    File.separator + "keytool",
+	    "-genkeypair", "-alias", "client", "-keyalg", "RSA",
+	    "-keysize", "2048", "-dname", "CN=HandshakeWait", "-validity", "2",
+	    "-storetype", "JKS", "-keystore", keyStoreFile.getPath(),
+	    "-storepass", PASSWORD, "-keypass", PASSWORD)
+	    .redirectErrorStream(true).start();
+	InputStream out = keytool.getInputStream();
+	while (out.read() >= 0) { }
+	assertEquals("keytool exit status", 0, keytool.waitFor());
+	System.setProperty("javax.net.ssl.trustStore", keyStoreFile.getPath());
+	System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+
+	KeyStore keyStore = KeyStore.getInstance("JKS");
+	InputStream in = new FileInputStream(keyStoreFile);
+	try {
+	    keyStore.load(in, PASSWORD.toCharArray());
+	} finally {
+	    in.close();
+	}
+	cert = (X509Certificate) keyStore.getCertificate("client");
+	PrivateKey key =
+	    (PrivateKey) keyStore.getKey("client", PASSWORD.toCharArray());
+	subject = new Subject();
+	subject.getPrincipals().add(cert.getSubjectX500Principal());
+	subject.getPublicCredentials().add(
+	    CertificateFactory.getInstance("X.509").generateCertPath(
+		Collections.singletonList(cert)));
+	subject.getPrivateCredentials().add(
+	    new X500PrivateCredential(cert, key));
+    }
+}
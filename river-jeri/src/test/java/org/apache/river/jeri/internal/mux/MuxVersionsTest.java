@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.jeri.internal.mux;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import net.jini.core.constraint.InvocationConstraints;
+import net.jini.jeri.InboundRequest;
+import net.jini.jeri.OutboundRequest;
+import net.jini.jeri.RequestDispatcher;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that mux connections negotiate protocol version 2 between
+ * peers of this version and fall back to version 1 with version 1 peers,
+ * played over plain sockets, that more than 128 requests can be in
+ * progress over a version 2 connection, and that shifted IncrementRation
+ * messages are encoded exactly, up to the largest increment.  The build
+ * runs these tests again with a bounded dispatch pool.
+ */
+public class MuxVersionsTest {
+
+    /** more requests than a version 1 connection can have in progress */
+    private static final int REQUESTS = 300;
+
+    private static final byte[] MAGIC = { 'J', 'm', 'u', 'x' };
+
+    /**
+     * A client and server of this version agree on version 2, and can
+     * have more than 128 requests in progress, each of which gets its
+     * own reply.
+     */
+    @Test
+    public void version2() throws Exception {
+	Socket[] pair = socketPair();
+	MuxServer server = new MuxServer(pair[1].getOutputStream(),
+	    pair[1].getInputStream(), new Doubler());
+	server.start();
+	MuxClient client = new MuxClient(pair[0].getOutputStream(),
+	    pair[0].getInputStream(), 15000);
+	client.start();
+	assertEquals("client version", 2, client.protocolVersion);
+	assertEquals("server version", 2, server.protocolVersion);
+	assertTrue("max requests " + client.maxRequests(),
+		   client.maxRequests() > REQUESTS);
+
+	List<OutboundRequest> requests = new ArrayList<OutboundRequest>();
+	for (int i = 0; i < REQUESTS; i++) {
+	    OutboundRequest request = client.newRequest();
+	    DataOutputStream out =
+		new DataOutputStream(request.getRequestOutputStream());
+	    out.writeInt(i);
+	    out.close();
+	    requests.add(request);
+	}
+	/* Replies are not read yet, so few sessions can have finished */
+	assertTrue(client.requestsInProgress() + " requests in progress",
+		   client.requestsInProgress() > Mux.MAX_REQUESTS);
+	for (int i = 0; i < REQUESTS; i++) {
+	    OutboundRequest request = requests.get(i);
+	    DataInputStream in =
+		new DataInputStream(request.getResponseInputStream());
+	    int reply = in.readInt();
+	    assertEquals("reply to request " + i, 2 * i, reply);
+	    assertEquals("reply " + i + " ends", -1, in.read());
+	    in.close();
+	}
+	client.shutdown("done");
+	server.shutdown("done");
+	pair[0].close();
+	pair[1].close();
+    }
+
+    /**
+     * A client of this version talking to a version 1 server uses
+     * version 1, so it has at most 128 requests in progress, all with
+     * one byte session IDs.
+     */
+    @Test
+    public void version1Server() throws Exception {
+	Socket[] pair = socketPair();
+	final Socket peer = pair[1];
+	final byte[] clientHeader = new byte[8];
+	Thread server = new Thread() {
+	    public void run() {
+		try {
+		    new DataInputStream(peer.getInputStream())
+			.readFully(clientHeader);
+		    OutputStream out = peer.getOutputStream();
+		    out.write(header(1, 0));
+		    out.flush();
+		} catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	server.start();
+	MuxClient client = new MuxClient(pair[0].getOutputStream(),
+	    pair[0].getInputStream(), 15000);
+	client.start();
+	server.join();
+	assertEquals("client offers version 2", 2, clientHeader[4]);
+	assertTrue("client asks to negotiate",
+		   (clientHeader[7] & Mux.ClientConnectionHeader_negotiate) != 0);
+	assertEquals("client uses version 1", 1, client.protocolVersion);
+	assertEquals("max requests", Mux.MAX_REQUESTS, client.maxRequests());
+	for (int i = 0; i < Mux.MAX_REQUESTS; i++) {
+	    client.newRequest();
+	}
+	try {
+	    client.newRequest();
+	    fail("request beyond version 1 limit");
+	} catch (IOException e) {
+	    assertEquals("no free sessions", e.getMessage());
+	}
+	client.shutdown("done");
+	pair[0].close();
+	pair[1].close();
+    }
+
+    /**
+     * A server of this version answers a version 1 client with version
+     * 1, serves its requests, and treats a two byte session ID from it
+     * as a protocol error.
+     */
+    @Test
+    public void version1Client() throws Exception {
+	Socket[] pair = socketPair();
+	MuxServer server = new MuxServer(pair[1].getOutputStream(),
+	    pair[1].getInputStream(), new Doubler());
+	server.start();
+	Socket s = pair[0];
+	s.setSoTimeout(15000);
+	DataOutputStream out = new DataOutputStream(s.getOutputStream());
+	DataInputStream in = new DataInputStream(s.getInputStream());
+	out.write(header(1, 0));
+	byte[] serverHeader = new byte[8];
+	in.readFully(serverHeader);
+	assertEquals("server answers version 1", 1, serverHeader[4]);
+	assertEquals("server uses version 1", 1, server.protocolVersion);
+
+	/* A complete request on session 5, as a version 1 client sends it */
+	out.writeByte(Mux.Data | Mux.Data_open | Mux.Data_eof);
+	out.writeByte(5);
+	out.writeShort(4);
+	out.writeInt(21);
+	out.flush();
+	int reply = -1;
+	while (reply == -1) {
+	    int op = in.readUnsignedByte();
+	    int sessionID = in.readUnsignedByte();
+	    int length = in.readUnsignedShort();
+	    assertEquals("reply session", 5, sessionID);
+	    if ((op & 0xE1) == Mux.Data && length == 4) {
+		reply = in.readInt();
+	    } else if ((op & 0xE1) == Mux.Data) {
+		in.skipBytes(length);
+	    }
+	}
+	assertEquals("reply", 42, reply);
+
+	/* A two byte session ID is not valid in version 1 */
+	out.writeByte(Mux.Data | Mux.Data_open | Mux.Data_eof);
+	out.writeByte(0x81);
+	out.writeByte(0x00);
+	out.writeShort(0);
+	out.flush();
+	try {
+	    while (in.read() != -1) {
+	    }
+	} catch (SocketTimeoutException e) {
+	    fail("two byte session ID accepted");
+	} catch (IOException e) {
+	    // connection reset by the server
+	}
+	server.shutdown("done");
+	pair[0].close();
+	pair[1].close();
+    }
+
+    /**
+     * IncrementRation messages carry exactly the increment reported
+     * sent, the largest that fits in 16 bits with the smallest shift,
+     * up to 0xFFFF shifted by 14, for one and two byte session IDs.
+     */
+    @Test
+    public void incrementRation() throws Exception {
+	Socket[] pair = socketPair();
+	MuxServer server = new MuxServer(pair[1].getOutputStream(),
+	    pair[1].getInputStream(), new Doubler());
+	Socket s = pair[0];
+	s.setSoTimeout(15000);
+	DataInputStream in = new DataInputStream(s.getInputStream());
+	OutputStream out = s.getOutputStream();
+	out.write(header(2, Mux.ClientConnectionHeader_negotiate));
+	out.flush();
+	server.start();
+	in.readFully(new byte[8]);
+	int max = 0xFFFF << 14;
+	int[] increments = {
+	    0, 1, 0xFFFF, 0x10000, 0x10003, 0x3FFFF, 0x40000, 0x12345678,
+	    max - 1, max, max + 1, 0x40000000, Integer.MAX_VALUE
+	};
+	int[] sessionIDs = { 3, Mux.MAX_SESSION_ID + 1, 0x1234 };
+	for (int sessionID : sessionIDs) {
+	    for (int increment : increments) {
+		int sent = server.asyncSendIncrementRation(sessionID,
+							   increment);
+		int op = in.readUnsignedByte();
+		int id = in.readUnsignedByte();
+		if ((id & 0x80) != 0) {
+		    id = ((id & 0x7F) << 8) | in.readUnsignedByte();
+		}
+		int units = in.readUnsignedShort();
+		String what = "increment " + Integer.toHexString(increment) +
+		    " on session " + sessionID;
+		assertTrue(what + ": op " + op,
+			   (op & 0xF1) == Mux.IncrementRation);
+		assertEquals(what + ": session", sessionID, id);
+		int shift = op & Mux.IncrementRation_shift;
+		assertEquals(what + ": sent", sent, units << shift);
+		assertTrue(what + ": too large",
+			   sent <= increment && sent >= 0);
+		if (increment <= max) {
+		    assertTrue(what + ": rounded down too far",
+			       increment - sent < (1 << shift));
+		    assertTrue(what + ": shift " + shift + " not the smallest",
+			       shift == 0 || units > 0x3FFF);
+		} else {
+		    assertEquals(what + ": not capped at the largest",
+				 max, sent);
+		}
+	    }
+	}
+	server.shutdown("done");
+	pair[0].close();
+	pair[1].close();
+    }
+
+    /** Replies to a request holding an int with twice the int. */
+    private static class Doubler implements RequestDispatcher {
+	public void dispatch(InboundRequest request) {
+	    try {
+		DataInputStream in =
+		    new DataInputStream(request.getRequestInputStream());
+		int i = in.readInt();
+		in.close();
+		DataOutputStream out =
+		    new DataOutputStream(request.getResponseOutputStream());
+		out.writeInt(2 * i);
+		out.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /** Returns a connection header with the given version and flags. */
+    private static byte[] header(int version, int flags) {
+	return new byte[] {
+	    MAGIC[0], MAGIC[1], MAGIC[2], MAGIC[3],
+	    (byte) version, (byte) 0x00, (byte) 0x80, (byte) flags
+	};
+    }
+
+    /** Returns the client and server ends of a local connection. */
+    private static Socket[] socketPair() throws IOException {
+	ServerSocket ss = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+	try {
+	    Socket client = new Socket(InetAddress.getLoopbackAddress(),
+				       ss.getLocalPort());
+	    Socket server = ss.accept();
+	    client.setTcpNoDelay(true);
+	    server.setTcpNoDelay(true);
+	    return new Socket[] { client, server };
+	} finally {
+	    ss.close();
+	}
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.jeri.internal.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Date;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that CompactObjectInputStream reads what CompactObjectOutputStream
+ * writes, rejects lengths the stream does not back with data without
+ * allocating for them, and applies the stream's ObjectInputFilter.
+ */
+public class CompactObjectInputStreamTest {
+
+    private static final CompactObjectOutputStream.Fallback OUT =
+        new CompactObjectOutputStream.Fallback() {
+            public ObjectOutputStream newStream(OutputStream out)
+                throws IOException
+            {
+                return new ObjectOutputStream(out);
+            }
+        };
+
+    private static final CompactObjectInputStream.Fallback IN =
+        new CompactObjectInputStream.Fallback() {
+            public ObjectInputStream newStream(InputStream in)
+                throws IOException
+            {
+                return new ObjectInputStream(in);
+            }
+        };
+
+    @Test
+    public void testLargeValues() throws Exception {
+        int n = 20000;
+        int[] ints = new int[n];
+        long[] longs = new long[n];
+        char[] chars = new char[n];
+        short[] shorts = new short[n];
+        double[] doubles = new double[n];
+        float[] floats = new float[n];
+        boolean[] booleans = new boolean[n];
+        byte[] bytes = new byte[5 * n];
+        String[] strings = new String[n];
+        Uuid[] uuids = new Uuid[n];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            ints[i] = i * 31;
+            longs[i] = (long) i << 40;
+            chars[i] = (char) (i * 7);
+            shorts[i] = (short) (i * 3);
+            doubles[i] = i / 7.0;
+            floats[i] = i / 3.0f;
+            booleans[i] = i % 3 == 0;
+            strings[i] = i % 5 == 0 ? null : "s" + i;
+            uuids[i] = i % 7 == 0 ? null : UuidFactory.create(i, -i);
+            sb.append(i % 3 == 0 ? 'a' : i % 3 == 1 ? '\u00e9' : '\u20ac');
+        }
+        Arrays.fill(bytes, (byte) 5);
+        String string = sb.toString();
+        Date date = new Date(1234);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = CompactObjectOutputStream.create(bout, OUT);
+        Object[] values = { ints, longs, chars, shorts, doubles, floats,
+                            booleans, bytes, strings, uuids, string, date };
+        for (Object value : values) {
+            out.writeObject(value);
+        }
+        out.close();
+
+        ObjectInputStream in = CompactObjectInputStream.create(
+            new ByteArrayInputStream(bout.toByteArray()), IN);
+        assertArrayEquals(ints, (int[]) in.readObject());
+        assertArrayEquals(longs, (long[]) in.readObject());
+        assertArrayEquals(chars, (char[]) in.readObject());
+        assertArrayEquals(shorts, (short[]) in.readObject());
+        assertTrue(Arrays.equals(doubles, (double[]) in.readObject()));
+        assertTrue(Arrays.equals(floats, (float[]) in.readObject()));
+        assertTrue(Arrays.equals(booleans, (boolean[]) in.readObject()));
+        assertArrayEquals(bytes, (byte[]) in.readObject());
+        assertArrayEquals(strings, (String[]) in.readObject());
+        assertArrayEquals(uuids, (Uuid[]) in.readObject());
+        assertEquals(string, in.readObject());
+        assertEquals(date, in.readObject());
+    }
+
+    @Test
+    public void testUnbackedLengths() throws Exception {
+        int max = Integer.MAX_VALUE;
+        expect(EOFException.class,
+               CompactObjectOutputStream.TC_PRIMITIVE_ARRAY, 'B', max, 3);
+        expect(EOFException.class,
+               CompactObjectOutputStream.TC_PRIMITIVE_ARRAY, 'I', max / 4, 3);
+        expect(StreamCorruptedException.class,
+               CompactObjectOutputStream.TC_PRIMITIVE_ARRAY, 'J', max, 3);
+        expect(StreamCorruptedException.class,
+               CompactObjectOutputStream.TC_PRIMITIVE_ARRAY, 'I', -1, 3);
+        expect(EOFException.class,
+               CompactObjectOutputStream.TC_STRING, -1, max, 3);
+        expect(EOFException.class,
+               CompactObjectOutputStream.TC_STRING_ARRAY, -1, max, 3);
+        expect(EOFException.class,
+               CompactObjectOutputStream.TC_OBJECT, -1, max, 3);
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        Object filter = createFilter("maxarray=100;!net.jini.id.Uuid");
+        Assume.assumeNotNull(filter);
+        Uuid uuid = UuidFactory.create(1, 2);
+        assertArrayEquals(new int[100],
+                          (int[]) readFiltered(filter, new int[100]));
+        try {
+            readFiltered(filter, new int[101]);
+            fail("array longer than maxarray read");
+        } catch (InvalidClassException e) {
+        }
+        try {
+            readFiltered(filter, new String[101]);
+            fail("array longer than maxarray read");
+        } catch (InvalidClassException e) {
+        }
+        try {
+            readFiltered(filter, uuid);
+            fail("rejected class read");
+        } catch (InvalidClassException e) {
+        }
+        try {
+            readFiltered(filter, new Uuid[] { uuid });
+            fail("rejected class read");
+        } catch (InvalidClassException e) {
+        }
+        Object fallbackFilter = createFilter("!java.util.Date");
+        assertEquals("text", readFiltered(fallbackFilter, "text"));
+        try {
+            readFiltered(fallbackFilter, new Date());
+            fail("rejected class read by the fallback stream");
+        } catch (InvalidClassException e) {
+        }
+    }
+
+    /**
+     * Reads a compact stream of the given type code, array type and
+     * length, followed by <code>data</code> bytes, expecting the given
+     * exception.  Negative type codes and array types are not written.
+     */
+    private static void expect(Class<? extends Exception> expected,
+                               int tc, int type, int length, int data)
+        throws Exception
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeShort(CompactObjectOutputStream.MAGIC);
+        out.writeByte(tc);
+        if (type >= 0) {
+            out.writeByte(type);
+        }
+        out.writeInt(length);
+        out.write(new byte[data]);
+        out.close();
+        ObjectInputStream in = CompactObjectInputStream.create(
+            new ByteArrayInputStream(bout.toByteArray()), IN);
+        try {
+            in.readObject();
+            fail("read a " + length + " length value from " + data +
+                 " bytes");
+        } catch (Exception e) {
+            assertEquals(expected, e.getClass());
+        }
+    }
+
+    /**
+     * Creates an ObjectInputFilter from a pattern, or returns null if
+     * the runtime has none.
+     */
+    private static Object createFilter(String pattern) throws Exception {
+        Class<?> config;
+        try {
+            config = Class.forName("java.io.ObjectInputFilter$Config");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        return config.getMethod("createFilter", String.class)
+            .invoke(null, pattern);
+    }
+
+    private static Object readFiltered(Object filter, Object value)
+        throws Exception
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = CompactObjectOutputStream.create(bout, OUT);
+        out.writeObject(value);
+        out.close();
+        ObjectInputStream in = CompactObjectInputStream.create(
+            new ByteArrayInputStream(bout.toByteArray()), IN);
+        Method set = ObjectInputStream.class.getMethod(
+            "setObjectInputFilter",
+            Class.forName("java.io.ObjectInputFilter"));
+        set.invoke(in, filter);
+        return in.readObject();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.jeri.internal.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import net.jini.id.UuidFactory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that a LeaseWheel hands back each lease at the first check
+ * after its expiration, for leases due within one slot, more than 64
+ * ticks and more than 4096 ticks out, and beyond the range of the wheel,
+ * for leases renewed to a later slot, across checks that skip idle
+ * ticks, and for leases already expired when added.  The wheel has one
+ * millisecond ticks and is checked the way the lease checker of
+ * ObjectTable does, at check times chosen by the test.
+ */
+public class LeaseWheelTest {
+
+    /** the wheel checked and the time of its last check */
+    private static class Checker {
+	final LeaseWheel wheel = new LeaseWheel(1);
+	final List<Lease> expired = new ArrayList<Lease>();
+	/** leases added by the test since the last check */
+	final List<Lease> added = new ArrayList<Lease>();
+	long lastCheck = System.currentTimeMillis();
+	/** leases handed back before their expiration, and put back */
+	int early = 0;
+
+	Lease add(long duration) {
+	    Lease lease = new Lease(UuidFactory.generate(), duration);
+	    wheel.add(lease);
+	    added.add(lease);
+	    return lease;
+	}
+
+	/**
+	 * Checks for expired leases at the given time, as the lease
+	 * checker does, and verifies that each lease expired by this
+	 * check was not yet expired at the last one, or was added since.
+	 */
+	void check(long now) {
+	    List<Lease> due = new ArrayList<Lease>();
+	    wheel.advance(now, due);
+	    for (Lease lease : due) {
+		if (lease.notifyIfExpired(now)) {
+		    long expiration = lease.getExpiration();
+		    assertTrue("lease expired at " + expiration +
+			       " handed back late, at " + now +
+			       ", not at " + lastCheck,
+			       expiration >= lastCheck ||
+			       added.contains(lease));
+		    expired.add(lease);
+		} else {
+		    /* a lease expiring at the check itself expires later */
+		    if (lease.getExpiration() > now) {
+			early++;
+		    }
+		    wheel.add(lease);
+		}
+	    }
+	    lastCheck = now;
+	    added.clear();
+	}
+
+	/** Checks at increasing times up to the given one. */
+	void checkUntil(long end, Random random, int maxStep) {
+	    while (lastCheck < end) {
+		check(Math.min(end, lastCheck + 1 + random.nextInt(maxStep)));
+	    }
+	}
+
+	/** Verifies that every lease has expired and left the wheel. */
+	void expectAllExpired(List<Lease> leases) {
+	    assertEquals("leases left", 0, wheel.size());
+	    assertEquals("leases expired", leases.size(), expired.size());
+	}
+    }
+
+    /**
+     * Leases due within the lowest level, and on either side of the
+     * boundaries of the higher levels, come due as the wheel cascades
+     * them down, whether checked every few ticks or many at once.
+     */
+    @Test
+    public void cascade() {
+	long[] durations = {
+	    0, 1, 2, 63, 64, 65, 100, 4095, 4096, 4097, 5000,
+	    262143, 262144, 262145, 300000
+	};
+	Random random = new Random(42);
+	for (int maxStep : new int[] { 3, 700 }) {
+	    Checker checker = new Checker();
+	    List<Lease> leases = new ArrayList<Lease>();
+	    for (long duration : durations) {
+		leases.add(checker.add(duration));
+	    }
+	    for (int i = 0; i < 500; i++) {
+		leases.add(checker.add(random.nextInt(300000)));
+	    }
+	    checker.checkUntil(latest(leases) + 1, random, maxStep);
+	    checker.expectAllExpired(leases);
+	    assertEquals("leases handed back before their expiration",
+			 0, checker.early);
+	}
+    }
+
+    /**
+     * A lease renewed to a later slot, here at a higher level, is not
+     * expired when its old slot comes due, but at its new expiration.
+     */
+    @Test
+    public void renewal() {
+	Random random = new Random(7);
+	Checker checker = new Checker();
+	Lease lease = checker.add(100);
+	long added = lease.getExpiration();
+	checker.check(checker.lastCheck + 50);
+	assertTrue("lease not renewed", lease.renew(5000));
+	assertTrue("renewal did not move the lease to a higher level",
+		   lease.getExpiration() > added + 4096);
+	checker.checkUntil(added + 1, random, 5);
+	assertTrue("renewed lease expired at its old expiration",
+		   checker.expired.isEmpty());
+	assertEquals("renewed lease handed back", 1, checker.early);
+	checker.checkUntil(lease.getExpiration() + 1, random, 50);
+	checker.expectAllExpired(Collections.singletonList(lease));
+    }
+
+    /**
+     * Checks that skip many idle ticks at once, on an empty wheel and
+     * past a single distant lease, neither lose nor delay a lease.
+     */
+    @Test
+    public void idleTicks() {
+	Checker checker = new Checker();
+	checker.check(checker.lastCheck + 10);
+	Lease near = checker.add(1000);
+	checker.check(near.getExpiration() - 1);
+	assertTrue("lease expired early", checker.expired.isEmpty());
+	checker.check(near.getExpiration() + 1);
+	assertEquals("lease not expired", 1, checker.expired.size());
+
+	checker = new Checker();
+	Lease far = checker.add(200000);
+	checker.check(far.getExpiration() - 1);
+	assertTrue("distant lease expired early", checker.expired.isEmpty());
+	checker.check(far.getExpiration() + 1);
+	checker.expectAllExpired(Collections.singletonList(far));
+	assertEquals("distant lease handed back early", 0, checker.early);
+    }
+
+    /**
+     * A lease due beyond the range of the wheel, here twice its range,
+     * is kept at the end of the range until it is in range, and expires
+     * at its own expiration.
+     */
+    @Test
+    public void beyondRange() {
+	Checker checker = new Checker();
+	Lease lease = checker.add(2L << 24);
+	long expiration = lease.getExpiration();
+	while (checker.lastCheck <= expiration) {
+	    checker.check(Math.min(expiration + 1, checker.lastCheck + 100000));
+	}
+	checker.expectAllExpired(Collections.singletonList(lease));
+    }
+
+    /**
+     * A lease already expired when added comes due at the next check,
+     * both on a new wheel and on one checked ahead of the clock.
+     */
+    @Test
+    public void alreadyExpired() {
+	Checker checker = new Checker();
+	Lease lease = checker.add(-5000);
+	/*
+	 * Adding to an empty wheel skips it ahead to the clock, which may
+	 * have passed the last check while the lease was created.
+	 */
+	checker.check(System.currentTimeMillis() + 1);
+	assertEquals("expired lease not handed back",
+		     1, checker.expired.size());
+
+	checker = new Checker();
+	checker.add(100000);
+	checker.check(checker.lastCheck + 50000);
+	lease = checker.add(-5000);
+	checker.check(checker.lastCheck + 1);
+	assertEquals("expired lease not handed back after the wheel moved on",
+		     Collections.singletonList(lease), checker.expired);
+    }
+
+    private static long latest(List<Lease> leases) {
+	long latest = 0;
+	for (Lease lease : leases) {
+	    latest = Math.max(latest, lease.getExpiration());
+	}
+	return latest;
+    }
+
+}
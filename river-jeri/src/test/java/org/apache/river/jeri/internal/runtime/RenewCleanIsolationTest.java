@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.jeri.internal.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that an AbstractDgcClient keeps renewing the leases of a live
+ * endpoint while dirty calls to several other endpoints do not return,
+ * and that its reaper thread exits once no references are registered.
+ * The build sets org.apache.river.jeri.dgc.minimumDuration to 100, so
+ * that the short leases granted here are honored.
+ */
+public class RenewCleanIsolationTest {
+
+    /** more than the threads the renew/clean tasks once shared */
+    private static final int STUCK = 8;
+    /** lease duration granted by every dirty call */
+    private static final long DURATION = 200;
+
+    /** a live reference: the endpoint and object ID it names */
+    private static class Ref {
+	final Object endpoint;
+	final Object id = new Object();
+
+	Ref(Object endpoint) {
+	    this.endpoint = endpoint;
+	}
+    }
+
+    private static class Client extends AbstractDgcClient {
+	final ConcurrentMap<Object,AtomicInteger> dirtyCalls =
+	    new ConcurrentHashMap<Object,AtomicInteger>();
+	final CountDownLatch release = new CountDownLatch(1);
+
+	protected DgcProxy getDgcProxy(final Object endpoint) {
+	    dirtyCalls.putIfAbsent(endpoint, new AtomicInteger());
+	    final AtomicInteger calls = dirtyCalls.get(endpoint);
+	    return new DgcProxy() {
+		public long dirty(long sequenceNum, Object[] ids,
+				  long duration)
+		{
+		    if (calls.incrementAndGet() > 1 &&
+			((String) endpoint).startsWith("stuck"))
+		    {
+			try {
+			    release.await();
+			} catch (InterruptedException e) {
+			    Thread.currentThread().interrupt();
+			}
+		    }
+		    return DURATION;
+		}
+
+		public void clean(long sequenceNum, Object[] ids,
+				  boolean strong)
+		{
+		}
+	    };
+	}
+
+	protected void freeEndpoint(Object endpoint) {
+	}
+
+	protected Object getRefEndpoint(Object ref) {
+	    return ((Ref) ref).endpoint;
+	}
+
+	protected Object getRefObjectID(Object ref) {
+	    return ((Ref) ref).id;
+	}
+
+	void register(Ref ref) {
+	    registerRefs(ref.endpoint, Collections.singleton(ref));
+	}
+
+	int calls(Object endpoint) {
+	    return dirtyCalls.get(endpoint).get();
+	}
+    }
+
+    @Test
+    public void stuckEndpointsIsolated() throws Exception {
+	Client client = new Client();
+	List<Ref> refs = new ArrayList<Ref>();
+	for (int i = 0; i < STUCK; i++) {
+	    refs.add(new Ref("stuck" + i));
+	}
+	refs.add(new Ref("live"));
+	for (Ref ref : refs) {
+	    client.register(ref);
+	}
+
+	/* Wait until a renewal of every stuck endpoint is blocked */
+	long deadline = System.currentTimeMillis() + 30000;
+	for (int i = 0; i < STUCK; i++) {
+	    while (client.calls("stuck" + i) < 2) {
+		if (System.currentTimeMillis() > deadline) {
+		    fail("stuck" + i + " lease never renewed");
+		}
+		Thread.sleep(10);
+	    }
+	}
+	int before = client.calls("live");
+	Thread.sleep(10 * DURATION);
+	int renewals = client.calls("live") - before;
+	System.err.println("live endpoint renewals while " + STUCK +
+			   " endpoints are stuck: " + renewals);
+	assertTrue("live endpoint renewed " + renewals + " times",
+		   renewals >= 5);
+
+	client.release.countDown();
+	refs = null;
+	deadline = System.currentTimeMillis() + 30000;
+	while (client.getEndpointCount() > 0 || reaperRunning()) {
+	    if (System.currentTimeMillis() > deadline) {
+		fail(client.getEndpointCount() + " endpoints registered, " +
+		     "reaper running: " + reaperRunning());
+	    }
+	    System.gc();
+	    Thread.sleep(100);
+	}
+    }
+
+    private static boolean reaperRunning() {
+	for (Thread t : Thread.getAllStackTraces().keySet()) {
+	    // NewThreadAction prefixes thread names with "(JSK) "
+	    if (t.getName().endsWith("RenewClean-Reaper") && t.isAlive()) {
+		return true;
+	    }
+	}
+	return false;
+    }
+}
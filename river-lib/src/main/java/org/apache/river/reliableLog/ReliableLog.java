@@ -19,6 +19,7 @@
 package org.apache.river.reliableLog;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.EOFException;
@@ -28,8 +29,11 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class is a simple implementation of a reliable Log.  The
@@ -63,6 +67,19 @@ import java.io.SyncFailedException;
  * applies the updates to the snapshot to obtain the state that
  * existed before the crash. <p>
  *
+ * A ReliableLog created in <i>group commit</i> mode is synchronized
+ * internally and lets many threads share the cost of forcing updates
+ * to disk.  A thread records an update with {@link #append append},
+ * which only buffers it, typically while still holding whatever lock
+ * orders its updates, and then releases that lock and calls
+ * {@link #sync sync} to wait until the update is stable.  One of the
+ * waiting threads writes every buffered update as a single batch,
+ * forces it to disk, and then writes the one length header that makes
+ * the whole batch visible to recovery, so a crash part way through a
+ * batch loses all of it or none of it and never the updates of an
+ * earlier batch.  A successful return from <code>sync</code> carries
+ * the same guarantee as <code>update(value, true)</code>. <p>
+ *
  * @author Sun Microsystems, Inc.
  *
  * @see LogHandler
@@ -85,11 +102,20 @@ public class ReliableLog {
     private String logName = null;
     private RandomAccessFile log = null;
     private FileDescriptor logFD;
+    private FileChannel logChannel;
     private long snapshotBytes = 0;
     private long logBytes = 0;
     private final LogHandler handler;
     private final byte[] intBuf = new byte[4];
     private final byte[] zeroBuf = new byte[4];
+
+    /* Group commit state, guarded by this */
+    private final boolean groupCommit;
+    private BatchBuffer pending;	// updates appended since last batch
+    private long appended = 0;		// sequence number of last append
+    private long forced = 0;		// sequence number of last forced update
+    private boolean flushing = false;	// true while a batch is written
+    private IOException failure = null;	// set if writing a batch failed
  
     /**
      * Creates a ReliableLog to handle snapshots and logging in a
@@ -105,6 +131,31 @@ public class ReliableLog {
      * @throws IOException if any other I/O error occurs
      */
     public ReliableLog(String dirPath, LogHandler handler) throws IOException {
+	this(dirPath, handler, false);
+    }
+
+    /**
+     * Creates a ReliableLog to handle snapshots and logging in a
+     * stable storage directory, optionally in group commit mode, and
+     * sets up to recover any existing data from the stable storage
+     * directory. If there is no existing data, snapshot must be called
+     * next, otherwise recover must be called next. The log files
+     * written in either mode have the same format.
+     *
+     * @param dirPath path to the stable storage directory
+     * @param handler the handler for log callbacks
+     * @param groupCommit true if updates from concurrent threads should
+     * be forced to disk in batches, see {@link #append append} and
+     * {@link #sync sync}
+     *
+     * @throws LogException if the directory cannot be created or
+     * the current version in the directory is corrupted
+     * @throws IOException if any other I/O error occurs
+     */
+    public ReliableLog(String dirPath, LogHandler handler, boolean groupCommit)
+	throws IOException
+    {
+	this.groupCommit = groupCommit;
 	dir = new File(dirPath);
 	if (!(dir.exists() ? dir.isDirectory() : dir.mkdir())) {
 	    throw new LogException("could not create directory for log: " +
@@ -238,6 +289,13 @@ public class ReliableLog {
      * @throws IOException if any other I/O error occurs
      */
     public void update(Object value, boolean forceToDisk) throws IOException {
+	if (groupCommit) {
+	    long seq = append(value);
+	    if (forceToDisk) {
+		sync(seq);
+	    }
+	    return;
+	}
         /* avoid accessing a null log field */
         if (log == null) {
             throw new LogException("log file for persistent state is "
@@ -286,6 +344,175 @@ public class ReliableLog {
 	}
     }
     
+    /**
+     * Buffers this update to be written by the next batch and returns
+     * its sequence number, without waiting for it to reach the disk.
+     * The update is recorded by calling the client's writeUpdate
+     * callback.  Updates are written to the log in the order they are
+     * appended.  This method must not be called until this log's
+     * recover method has been invoked (and completed).
+     *
+     * @param value the object representing the update
+     * @return the sequence number to pass to {@link #sync sync}
+     *
+     * @throws IllegalStateException if this log is not in group
+     * commit mode
+     * @throws LogException if an exception is thrown by the writeUpdate
+     * callback, or an earlier batch could not be written
+     * @throws IOException if any other I/O error occurs
+     */
+    public synchronized long append(Object value) throws IOException {
+	if (!groupCommit) {
+	    throw new IllegalStateException("not in group commit mode");
+	}
+	if (log == null) {
+            throw new LogException("log file for persistent state is "
+                                   +"inaccessible, it may have been "
+                                   +"corrupted or closed");
+	}
+	if (failure != null) {
+	    throw new LogException("earlier log batch failed", failure);
+	}
+	pending.append(handler, value, format == FORMAT_PADDED);
+	return ++appended;
+    }
+
+    /**
+     * Blocks until the update with the given sequence number, and every
+     * update appended before it, has been forced to disk.  If no other
+     * thread is writing a batch the calling thread writes every
+     * buffered update, otherwise it waits for the batch in progress and
+     * then, if necessary, writes the next one.
+     *
+     * @param seq a sequence number returned by {@link #append append}
+     *
+     * @throws IllegalStateException if this log is not in group
+     * commit mode
+     * @throws LogException if the batch containing the update could not
+     * be forced to disk
+     * @throws InterruptedIOException if the calling thread is
+     * interrupted while waiting for another thread's batch
+     * @throws IOException if any other I/O error occurs
+     */
+    public void sync(long seq) throws IOException {
+	if (!groupCommit) {
+	    throw new IllegalStateException("not in group commit mode");
+	}
+	final BatchBuffer batch;
+	final long start;
+	final long last;
+	synchronized (this) {
+	    while (true) {
+		if (forced >= seq) {
+		    return;
+		}
+		if (failure != null) {
+		    throw new LogException("log batch failed", failure);
+		}
+		if (!flushing) {
+		    break;
+		}
+		try {
+		    wait();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new InterruptedIOException(
+			"interrupted waiting for log batch");
+		}
+	    }
+	    flushing = true;
+	    batch = pending;
+	    pending = new BatchBuffer();
+	    start = logBytes;
+	    last = appended;
+	}
+	long end = start;
+	IOException ex = null;
+	try {
+	    end = writeBatch(batch, start);
+	} catch (IOException e) {
+	    ex = e;
+	}
+	synchronized (this) {
+	    flushing = false;
+	    if (ex == null) {
+		logBytes = end;
+		forced = last;
+	    } else {
+		failure = ex;
+	    }
+	    notifyAll();
+	}
+	if (ex != null) {
+	    throw new LogException("log batch failed", ex);
+	}
+    }
+
+    /**
+     * Writes a batch of updates at the given offset, which holds the
+     * zero length header written by the previous batch or when the
+     * log file was opened, and returns the offset of the zero length
+     * header written after the batch.  The batch is forced to disk
+     * before the first update's length header is written in place of
+     * the zero header, so the batch only becomes visible to recovery
+     * once all of it is stable.
+     *
+     * @param batch the updates to write
+     * @param start the offset of the current zero length header
+     * @throws IOException if an I/O error occurs
+     */
+    private long writeBatch(BatchBuffer batch, long start) throws IOException {
+	if (batch.size() == 0) {
+	    return start;
+	}
+	int firstLen = batch.firstLength();
+	/* zero length header for the next batch */
+	batch.write(zeroBuf);
+	ByteBuffer buf = ByteBuffer.wrap(batch.buffer(), 0, batch.size());
+	long pos = start;
+	while (buf.hasRemaining()) {
+	    pos += logChannel.write(buf, pos);
+	}
+	/* must force contents to disk before writing real length header,
+	 * including the new file length
+	 */
+	logChannel.force(true);
+	buf = ByteBuffer.allocate(4);
+	buf.putInt(firstLen).flip();
+	while (buf.hasRemaining()) {
+	    logChannel.write(buf, start + buf.position());
+	}
+	/* the header is rewritten in place, force the data only */
+	logChannel.force(false);
+	return pos - intBytes;
+    }
+
+    /**
+     * Waits for any batch being written to finish and writes any
+     * buffered updates, so the log file holds every appended update.
+     * Called by operations that replace or close the log file.  The
+     * caller must hold this object's lock.
+     */
+    private void drain() throws IOException {
+	if (!groupCommit || log == null) {
+	    return;
+	}
+	while (flushing) {
+	    try {
+		wait();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException(
+		    "interrupted waiting for log batch");
+	    }
+	}
+	if (failure == null && pending.size() > 0) {
+	    logBytes = writeBatch(pending, logBytes);
+	    pending = new BatchBuffer();
+	    forced = appended;
+	}
+    }
+
     /**
      * Write an int value in single write operation.
      *
@@ -309,7 +536,8 @@ public class ReliableLog {
      * @throws LogException if the snapshot callback throws an exception
      * @throws IOException if any other I/O error occurs
      */
-    public void snapshot() throws IOException {
+    public synchronized void snapshot() throws IOException {
+	drain();
 	int oldVersion = version;
 	version++;
 
@@ -341,12 +569,17 @@ public class ReliableLog {
      *
      * @throws IOException if an I/O error occurs
      */
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
 	if (log == null) return;
 	try {
-	    log.close();
+	    drain();
 	} finally {
-	    log = null;
+	    try {
+		log.close();
+	    } finally {
+		log = null;
+		logChannel = null;
+	    }
 	}
     }
     
@@ -393,7 +626,7 @@ public class ReliableLog {
     /**
      * Returns the current size of the incremental update log file in bytes;
      */
-    public long logSize() { return logBytes; }
+    public synchronized long logSize() { return logBytes; }
 
     /**
      * Generates a filename prepended with the stable storage directory path.
@@ -478,6 +711,9 @@ public class ReliableLog {
 	logName = versionName(logfilePrefix);
 	log = new RandomAccessFile(logName, "rw");
 	logFD = log.getFD();
+	logChannel = log.getChannel();
+	pending = new BatchBuffer();
+	failure = null;
 
 	if (logBytes == 0) {
 	    format = FORMAT_PADDED;
@@ -510,4 +746,95 @@ public class ReliableLog {
 	    out.close();
 	}
     }
+
+    /**
+     * The updates of a group commit batch, each preceded by its length
+     * header and padded like the updates written by <code>update</code>.
+     * The first update's header is left zero; it is written separately
+     * once the rest of the batch has been forced to disk.
+     */
+    private static final class BatchBuffer extends ByteArrayOutputStream {
+	private int firstLen = 0;
+
+	BatchBuffer() {
+	    super(512);
+	}
+
+	/**
+	 * Appends an update recorded by the handler's writeUpdate
+	 * callback, discarding anything it wrote if it fails.
+	 */
+	void append(LogHandler handler, Object value, boolean padded)
+	    throws LogException
+	{
+	    int headerAt = count;
+	    ensureCapacity(headerAt + (int) intBytes);
+	    count = headerAt + (int) intBytes;
+	    try {
+		handler.writeUpdate(new UnclosableOutputStream(this), value);
+	    } catch (Exception e) {
+		count = headerAt;
+		throw new LogException("write update failed", e);
+	    }
+	    int updateLen = count - headerAt - (int) intBytes;
+	    if (headerAt == 0) {
+		firstLen = updateLen;
+		setInt(headerAt, 0);
+	    } else {
+		setInt(headerAt, updateLen);
+	    }
+	    if (padded) {
+		int end = (count + 3) & ~3;
+		ensureCapacity(end);
+		while (count < end) {
+		    buf[count++] = 0;
+		}
+	    }
+	}
+
+	private void ensureCapacity(int capacity) {
+	    if (capacity > buf.length) {
+		byte[] b = new byte[Math.max(buf.length << 1, capacity)];
+		System.arraycopy(buf, 0, b, 0, count);
+		buf = b;
+	    }
+	}
+
+	private void setInt(int pos, int val) {
+	    buf[pos] = (byte) (val >> 24);
+	    buf[pos + 1] = (byte) (val >> 16);
+	    buf[pos + 2] = (byte) (val >> 8);
+	    buf[pos + 3] = (byte) val;
+	}
+
+	/** Returns the length of the first update in the batch. */
+	int firstLength() {
+	    return firstLen;
+	}
+
+	/** Returns the internal buffer, valid up to <code>size()</code>. */
+	byte[] buffer() {
+	    return buf;
+	}
+    }
+
+    /**
+     * Passed to the handler's writeUpdate callback in group commit mode
+     * so that closing the stream, as <code>LogOutputStream</code>
+     * allows, does not affect the batch.
+     */
+    private static final class UnclosableOutputStream
+	extends java.io.FilterOutputStream
+    {
+	UnclosableOutputStream(java.io.OutputStream out) {
+	    super(out);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    out.write(b, off, len);
+	}
+
+	public void close() {
+	}
+    }
 }
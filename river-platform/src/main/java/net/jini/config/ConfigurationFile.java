@@ -50,6 +50,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,6 +61,7 @@ import net.jini.loader.ClassLoading;
 import net.jini.loader.LoadClass;
 import net.jini.security.ProxyPreparer;
 import net.jini.security.Security;
+import org.apache.river.action.GetIntegerAction;
 
 /**
  * Supplies objects needed to configure applications, such as {@link Exporter}
@@ -339,6 +341,15 @@ import net.jini.security.Security;
  * override option results in a <code>ConfigurationException</code> being
  * thrown. <p>
  *
+ * Entries whose expressions are constants, such as literals, are evaluated
+ * only once per instance, as are static entries. If the
+ * <code>net.jini.config.ConfigurationFile.sourceCacheSize</code> system
+ * property is set to a positive value, the tokens read from that many
+ * configuration sources specified as file names are cached, by file name,
+ * modification time and length, and shared by instances created from the
+ * same unmodified file. The caller must still have permission to read the
+ * file. <p>
+ *
  * If there is a security manager, the configuration source refers to the
  * members of a class, and the class is in a named package, then this class
  * calls the security manager's {@link SecurityManager#checkPackageAccess
@@ -491,6 +502,30 @@ public class ConfigurationFile extends AbstractConfiguration {
     static final RuntimePermission getClassLoaderPermission =
 	new RuntimePermission("getClassLoader");
 
+    /**
+     * The maximum number of configuration files whose tokens are cached, or
+     * zero if none are.
+     */
+    private static final int sourceCacheSize =
+	((Integer) Security.doPrivileged(new GetIntegerAction(
+	    "net.jini.config.ConfigurationFile.sourceCacheSize", 0)))
+	.intValue();
+
+    /**
+     * Map from configuration files, as last modified, to the tokens read
+     * from them, in access order.
+     */
+    private static final Map<SourceKey,List<Token>> sourceCache =
+	new LinkedHashMap<SourceKey,List<Token>>(16, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    protected boolean removeEldestEntry(
+		Map.Entry<SourceKey,List<Token>> eldest)
+	    {
+		return size() > sourceCacheSize;
+	    }
+	};
+
     /** Map from entry names to Entry instances. */
     final Map<String,Entry> entries = new HashMap<String,Entry>(11);
 
@@ -529,7 +564,8 @@ public class ConfigurationFile extends AbstractConfiguration {
 
     /**
      * Defines a StreamTokenizer that resets sval, nval, and lineno when the
-     * pushBack method is called.
+     * pushBack method is called.  The tokenizer can also record the tokens
+     * it reads, or replay tokens recorded earlier instead of reading.
      */
     private static class PushbackStreamTokenizer extends StreamTokenizer {
 	private boolean gotToken;
@@ -539,8 +575,30 @@ public class ConfigurationFile extends AbstractConfiguration {
 	private int savedTtype;
 	private int savedLineno;
 
-	PushbackStreamTokenizer(Reader reader) {
+	/* The tokens recorded or to replay, or null */
+	private final List<Token> tokens;
+
+	/* The index of the next token to replay, or -1 if not replaying */
+	private int replay = -1;
+
+	/* The line number of the last token replayed */
+	private int replayLineno = 1;
+
+	PushbackStreamTokenizer(Reader reader, boolean record) {
 	    super(reader);
+	    tokens = record ? new ArrayList<Token>() : null;
+	}
+
+	/** Creates a tokenizer that replays the specified tokens. */
+	PushbackStreamTokenizer(List<Token> tokens) {
+	    super(new StringReader(""));
+	    this.tokens = tokens;
+	    replay = 0;
+	}
+
+	/** Returns the tokens recorded, or null if not recording. */
+	List<Token> getTokens() {
+	    return tokens;
 	}
 
 	public int nextToken() throws IOException {
@@ -556,7 +614,23 @@ public class ConfigurationFile extends AbstractConfiguration {
 		savedSval = sval;
 		savedTtype = ttype;
 		savedLineno = lineno();
-		super.nextToken();
+		if (replay >= 0) {
+		    if (replay < tokens.size()) {
+			Token t = tokens.get(replay++);
+			ttype = t.ttype;
+			sval = t.sval;
+			nval = t.nval;
+			replayLineno = t.lineno;
+		    } else {
+			ttype = TT_EOF;
+			sval = null;
+		    }
+		} else {
+		    super.nextToken();
+		    if (tokens != null) {
+			tokens.add(new Token(ttype, sval, nval, super.lineno()));
+		    }
+		}
 		gotToken = true;
 	    }
 	    return ttype;
@@ -583,7 +657,66 @@ public class ConfigurationFile extends AbstractConfiguration {
 
 	public int lineno() {
 	    /* Use the previous value if pushed back */
-	    return pushedBack ? savedLineno : super.lineno();
+	    if (pushedBack) {
+		return savedLineno;
+	    }
+	    return replay >= 0 ? replayLineno : super.lineno();
+	}
+    }
+
+    /**
+     * Identifies the contents of a configuration file by its location, last
+     * modification time and length.
+     */
+    private static class SourceKey {
+	private final String location;
+	private final long lastModified;
+	private final long length;
+
+	/**
+	 * Creates a key for the file at the specified location, throwing a
+	 * SecurityException if the caller doesn't have permission to read
+	 * the file.
+	 */
+	SourceKey(String location) {
+	    SecurityManager sm = System.getSecurityManager();
+	    if (sm != null) {
+		/* The check FileInputStream makes */
+		sm.checkRead(location);
+	    }
+	    File file = new File(location);
+	    this.location = location;
+	    lastModified = file.lastModified();
+	    length = file.length();
+	}
+
+	public int hashCode() {
+	    return location.hashCode() ^ (int) lastModified;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof SourceKey)) {
+		return false;
+	    }
+	    SourceKey k = (SourceKey) o;
+	    return location.equals(k.location) &&
+		lastModified == k.lastModified &&
+		length == k.length;
+	}
+    }
+
+    /** A token read by a PushbackStreamTokenizer. */
+    private static class Token {
+	final int ttype;
+	final String sval;
+	final double nval;
+	final int lineno;
+
+	Token(int ttype, String sval, double nval, int lineno) {
+	    this.ttype = ttype;
+	    this.sval = sval;
+	    this.nval = nval;
+	    this.lineno = lineno;
 	}
     }
 
@@ -656,13 +789,14 @@ public class ConfigurationFile extends AbstractConfiguration {
 	final boolean isStatic;
 	final boolean isOverride;
 	private Class type;
-	private boolean resolved;	/* resolve done */
+	private volatile boolean resolved;	/* resolve done */
 	private boolean resolving;	/* resolve in progress */
 	private boolean isConstant;
 	private boolean refersToData;	/* computed in parse and resolve */
 	private boolean evaluated;	/* static eval done */
 	private boolean evaluating;	/* static eval in progress */
 	private Object value;
+	private volatile Object constant; /* value of non-static constant */
 
 	Entry(String component,
 	      String fullName,
@@ -698,7 +832,13 @@ public class ConfigurationFile extends AbstractConfiguration {
 	     * determined during this resolve step, there could be a deadlock
 	     * if two threads were to lock different entries at the same time
 	     * that refer to each other.  -tjb[5.Sep.2002]
+	     *
+	     * Once resolved, the type never changes, so return it without
+	     * the lock.
 	     */
+	    if (resolved) {
+		return type;
+	    }
 	    synchronized (resolveLock) {
 		if (!resolved) {
 		    if (resolving) {
@@ -725,7 +865,19 @@ public class ConfigurationFile extends AbstractConfiguration {
 	Object eval(Object data) throws ConfigurationException {
 	    resolve(this);
 	    if (!isStatic) {
-		return node.eval(data);
+		if (!isConstant) {
+		    return node.eval(data);
+		}
+		/*
+		 * Constants are immutable and don't refer to '$data', so
+		 * evaluate them once.  A race only evaluates one again.
+		 */
+		Object result = constant;
+		if (result == null) {
+		    result = node.eval(NO_DATA);
+		    constant = result;
+		}
+		return result;
 	    }
 	    /*
 	     * Grab a separate lock when evaluating each static entry.  Using
@@ -1236,18 +1388,27 @@ public class ConfigurationFile extends AbstractConfiguration {
 	 * with the second element.
 	 */
 	Parser(Reader reader, String[] options) throws ConfigurationException {
+	    this(reader == null ? null : createTokenizer(reader, false),
+		 options);
+	}
+
+	/**
+	 * Adds the imports and entries parsed from the tokens of the specified
+	 * tokenizer, as well as overrides parsed from the specified options,
+	 * starting with the second element.
+	 */
+	Parser(PushbackStreamTokenizer source, String[] options)
+	    throws ConfigurationException
+	{
 	    try {
 		onDemandImports.add("java.lang");
-		if (reader != null) {
-		    if (!(reader instanceof BufferedReader)) {
-			reader = new BufferedReader(reader);
-		    }
-		    createTokenizer(reader);
+		if (source != null) {
+		    st = source;
 		    parseSource();
 		}
 		for (int i = 1; i < options.length; i++) {
 		    override = i;
-		    createTokenizer(new StringReader(options[i]));
+		    st = createTokenizer(new StringReader(options[i]), false);
 		    parseOverride();
 		}
 	    } catch (IOException e) {
@@ -1258,23 +1419,6 @@ public class ConfigurationFile extends AbstractConfiguration {
 	    }
 	}
 
-	/** Creates and sets the tokenizer using the specified reader. */
-	private void createTokenizer(Reader reader) {
-	    reader = new UnicodeEscapesDecodingReader(reader);
-	    st = new PushbackStreamTokenizer(reader);
-	    st.ordinaryChar('.');
-	    st.wordChars('.', '.');
-	    st.ordinaryChars('0', '9');
-	    st.wordChars('0', '9');
-	    st.ordinaryChar('-');
-	    st.wordChars('-', '-');
-	    st.wordChars('_', '_');
-	    st.wordChars('$', '$');
-	    st.ordinaryChar('/');
-	    st.slashSlashComments(true);
-	    st.slashStarComments(true);
-	}
-
 	/**
 	 * Parses imports and components from the source, and stores the
 	 * results.
@@ -1749,6 +1893,57 @@ public class ConfigurationFile extends AbstractConfiguration {
 	}
     }
 
+    /**
+     * Returns the tokens cached for the configuration file with the
+     * specified key, or null if none are cached.
+     */
+    private static List<Token> getCachedSource(SourceKey key) {
+	synchronized (sourceCache) {
+	    return sourceCache.get(key);
+	}
+    }
+
+    /**
+     * Caches the tokens read from the configuration file with the specified
+     * key, unless the file's modification time is unknown.
+     */
+    private static void putCachedSource(SourceKey key, List<Token> tokens) {
+	if (key.lastModified == 0L) {
+	    return;
+	}
+	tokens = Collections.unmodifiableList(tokens);
+	synchronized (sourceCache) {
+	    sourceCache.put(key, tokens);
+	}
+    }
+
+    /**
+     * Creates a tokenizer for configuration sources using the specified
+     * reader, which records the tokens it reads if record is true.
+     */
+    private static PushbackStreamTokenizer createTokenizer(Reader reader,
+							   boolean record)
+    {
+	if (!(reader instanceof BufferedReader)) {
+	    reader = new BufferedReader(reader);
+	}
+	reader = new UnicodeEscapesDecodingReader(reader);
+	PushbackStreamTokenizer st =
+	    new PushbackStreamTokenizer(reader, record);
+	st.ordinaryChar('.');
+	st.wordChars('.', '.');
+	st.ordinaryChars('0', '9');
+	st.wordChars('0', '9');
+	st.ordinaryChar('-');
+	st.wordChars('-', '-');
+	st.wordChars('_', '_');
+	st.wordChars('$', '$');
+	st.ordinaryChar('/');
+	st.slashSlashComments(true);
+	st.slashStarComments(true);
+	return st;
+    }
+
     /* -- Constructors -- */
 
     /**
@@ -1815,17 +2010,33 @@ public class ConfigurationFile extends AbstractConfiguration {
 	this.cl = nonNullLoaderSupplied ? cl
 	    : (ClassLoader) Security.doPrivileged(contextClassLoader);
 	if (location == null) {
-	    new Parser(null, options);
+	    new Parser((Reader) null, options);
 	} else {
 	    InputStream in = null;
 	    try {
+		SourceKey key = null;
 		try {
 		    URL url = new URL(location);
 		    in = url.openStream();
 		} catch (MalformedURLException e) {
+		    if (sourceCacheSize > 0) {
+			key = new SourceKey(location);
+			List<Token> tokens = getCachedSource(key);
+			if (tokens != null) {
+			    new Parser(new PushbackStreamTokenizer(tokens),
+				       options);
+			    logger.log(Level.FINER, "created {0}", this);
+			    return;
+			}
+		    }
 		    in = new FileInputStream(location);
 		}
-		new Parser(new InputStreamReader(in), options);
+		PushbackStreamTokenizer source =
+		    createTokenizer(new InputStreamReader(in), key != null);
+		new Parser(source, options);
+		if (key != null) {
+		    putCachedSource(key, source.getTokens());
+		}
 	    } catch (FileNotFoundException e) {
                 ErrorDescriptor ed = new ErrorDescriptor(0, 0,
                     "configuration file not found", location, e);
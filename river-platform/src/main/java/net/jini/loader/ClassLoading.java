@@ -18,7 +18,6 @@
 
 package net.jini.loader;
 
-import java.lang.ref.SoftReference;
 import java.net.MalformedURLException;
 import java.rmi.server.RMIClassLoader;
 import java.rmi.server.RMIClassLoaderSpi;
@@ -28,10 +27,16 @@ import java.security.PrivilegedAction;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.ServiceLoader;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.jini.security.Security;
+import org.apache.river.action.GetIntegerAction;
+import org.apache.river.concurrent.RC;
+import org.apache.river.concurrent.Ref;
+import org.apache.river.concurrent.Referrer;
 
 /**
  * Provides static methods for loading classes using {@link
@@ -90,6 +95,21 @@ import net.jini.security.Security;
  * {@link RMIClassLoaderSpi} implementations is to set the system property
  * "net.jini.loader.ClassLoading.provider".
  * </p>
+ * <h1>Codebase integrity</h1>
+ * <p>The codebases that {@link #loadClass(String,String,ClassLoader,boolean,ClassLoader)
+ * loadClass} and {@link #loadProxyClass(String,String[],ClassLoader,boolean,ClassLoader)
+ * loadProxyClass} have verified to provide content integrity are remembered
+ * for all threads, for each effective verifier class loader, so that each
+ * codebase is normally verified only once.  Up to 256 codebases are
+ * remembered for each verifier class loader, or the number given by the
+ * system property "net.jini.loader.ClassLoading.integrityCacheSize", after
+ * which the codebases verified earliest are forgotten.  {@link
+ * #invalidateVerifiedCodebases invalidateVerifiedCodebases} forgets
+ * verified codebases, for example after the content at a codebase has
+ * changed, and {@link #getVerifiedCodebaseHits getVerifiedCodebaseHits} and
+ * {@link #getVerifiedCodebaseMisses getVerifiedCodebaseMisses} report how
+ * often verification was avoided.
+ * </p>
  * @author Sun Microsystems, Inc.
  * @since 2.0
  **/
@@ -193,13 +213,34 @@ public final class ClassLoading {
     }
 
     /**
-     * per-thread cache (weakly) mapping verifierLoader values to
-     * (soft) sets of codebase values that have been verified (to
-     * provide content integrity) with the verifierLoader value
+     * maximum number of codebases remembered as verified for each
+     * verifierLoader value
      **/
-    private static final ThreadLocal perThreadCache = new ThreadLocal() {
-	protected Object initialValue() { return new WeakHashMap(); }
-    };
+    private static final int integrityCacheSize =
+	AccessController.doPrivileged(new GetIntegerAction(
+	    "net.jini.loader.ClassLoading.integrityCacheSize", 256)).intValue();
+
+    /**
+     * process-wide cache (weakly) mapping verifierLoader values to
+     * the codebase values that have been verified (to provide content
+     * integrity) with the verifierLoader value, and the times they
+     * were verified
+     **/
+    private static final ConcurrentMap<ClassLoader,ConcurrentMap<String,Long>>
+	verifiedCache = RC.concurrentMap(
+	    new ConcurrentHashMap<Referrer<ClassLoader>,
+		Referrer<ConcurrentMap<String,Long>>>(),
+	    Ref.WEAK_IDENTITY, Ref.STRONG, 10000L, 10000L);
+
+    /** codebase values verified with a null verifierLoader value */
+    private static final ConcurrentMap<String,Long> verifiedByNullLoader =
+	new ConcurrentHashMap<String,Long>();
+
+    /** number of invalidations, to discard verifications they overlap */
+    private static final AtomicLong invalidations = new AtomicLong();
+
+    private static final AtomicLong integrityCacheHits = new AtomicLong();
+    private static final AtomicLong integrityCacheMisses = new AtomicLong();
     
         /**
      * Returns a class loader that loads classes from the given codebase
@@ -482,10 +523,9 @@ public final class ClassLoading {
 	throws MalformedURLException
     {
 	/*
-	 * Check if we've already verified the same codebase in this
-	 * thread using the same verifierLoader value.
+	 * Check if we've already verified the same codebase using the
+	 * same verifierLoader value.
 	 */
-	Map verifierLoaderCache = (Map) perThreadCache.get();
 	// defend against varying context class loader value of thread
 	ClassLoader verifierLoaderKey =
 	    (verifierLoader != null ? verifierLoader :
@@ -495,26 +535,108 @@ public final class ClassLoading {
 			return Thread.currentThread().getContextClassLoader();
 		    }
 		}));
-	Map verifiedCodebases =
-	    (Map) verifierLoaderCache.get(verifierLoaderKey);
+	ConcurrentMap<String,Long> verifiedCodebases =
+	    verifierLoaderKey != null ?
+	    verifiedCache.get(verifierLoaderKey) : verifiedByNullLoader;
 	if (verifiedCodebases != null &&
 	    verifiedCodebases.containsKey(codebase))
 	{
+	    integrityCacheHits.incrementAndGet();
 	    return;
 	}
+	integrityCacheMisses.incrementAndGet();
+	long invalidation = invalidations.get();
 
 	Security.verifyCodebaseIntegrity(codebase, verifierLoader);
 
 	/*
-	 * Remember that we've verified this codebase in this thread
-	 * with the given verifierLoader value.
+	 * Remember that we've verified this codebase with the given
+	 * verifierLoader value, unless it has been invalidated since.
 	 */
 	if (verifiedCodebases == null) {
-	    verifiedCodebases = new WeakHashMap();
-	    verifierLoaderCache.put(verifierLoaderKey, verifiedCodebases);
+	    verifiedCodebases = new ConcurrentHashMap<String,Long>();
+	    ConcurrentMap<String,Long> existing =
+		verifiedCache.putIfAbsent(verifierLoaderKey, verifiedCodebases);
+	    if (existing != null) {
+		verifiedCodebases = existing;
+	    }
 	}
-	verifiedCodebases.put(codebase, new SoftReference(codebase));
-	return;
+	verifiedCodebases.put(codebase, Long.valueOf(System.nanoTime()));
+	if (invalidations.get() != invalidation) {
+	    verifiedCodebases.remove(codebase);
+	} else if (verifiedCodebases.size() > integrityCacheSize) {
+	    removeEarliest(verifiedCodebases);
+	}
+    }
+
+    /**
+     * Removes the codebase verified earliest from the given map of
+     * verified codebases.
+     **/
+    private static void removeEarliest(ConcurrentMap<String,Long> codebases) {
+	String earliest = null;
+	long earliestTime = 0;
+	for (Map.Entry<String,Long> entry : codebases.entrySet()) {
+	    long time = entry.getValue().longValue();
+	    if (earliest == null || time - earliestTime < 0) {
+		earliest = entry.getKey();
+		earliestTime = time;
+	    }
+	}
+	if (earliest != null) {
+	    codebases.remove(earliest);
+	}
+    }
+
+    /**
+     * Forgets that the given codebase, or all codebases, have been
+     * verified to provide content integrity, so that {@link
+     * #loadClass(String,String,ClassLoader,boolean,ClassLoader)
+     * loadClass} and {@link
+     * #loadProxyClass(String,String[],ClassLoader,boolean,ClassLoader)
+     * loadProxyClass} verify them again before they are next used.
+     *
+     * @param codebase the codebase to forget, or <code>null</code> to
+     * forget all codebases
+     * @throws SecurityException if caller doesn't have RuntimePermission "setFactory"
+     * @since 3.0
+     **/
+    public static void invalidateVerifiedCodebases(String codebase) {
+        permission.checkGuard(null);
+	invalidations.incrementAndGet();
+	if (codebase == null) {
+	    verifiedCache.clear();
+	    verifiedByNullLoader.clear();
+	    return;
+	}
+	for (ConcurrentMap<String,Long> codebases : verifiedCache.values()) {
+	    codebases.remove(codebase);
+	}
+	verifiedByNullLoader.remove(codebase);
+    }
+
+    /**
+     * Returns the number of times that verifying a codebase to
+     * provide content integrity was skipped because it had already
+     * been verified.
+     *
+     * @return the number of verifications skipped
+     * @since 3.0
+     **/
+    public static long getVerifiedCodebaseHits() {
+	return integrityCacheHits.get();
+    }
+
+    /**
+     * Returns the number of times that a codebase was verified to
+     * provide content integrity, successfully or not, because it was
+     * not known to have been verified already.
+     *
+     * @return the number of verifications performed
+     * @since 3.0
+     **/
+    public static long getVerifiedCodebaseMisses() {
+	return integrityCacheMisses.get();
     }
 
     private ClassLoading() { throw new AssertionError(); }
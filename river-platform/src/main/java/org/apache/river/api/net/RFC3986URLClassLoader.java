@@ -642,10 +642,7 @@ public class RFC3986URLClassLoader extends java.net.URLClassLoader {
             try {
                 URL jarURL = ((JarURLConnection) url
                         .openConnection()).getJarFileURL();
-                JarURLConnection juc = (JarURLConnection) new URL(
-                        "jar", "", //$NON-NLS-1$ //$NON-NLS-2$
-                        jarURL.toExternalForm() + "!/").openConnection(); //$NON-NLS-1$
-                JarFile jfile = juc.getJarFile();
+                JarFile jfile = loader.openJarFile(jarURL);
                 URLJarHandler jarH = new URLJarHandler(url, jarURL, jfile, prfixName, loader);
                 // TODO : to think what we should do with indexes & manifest.class file here
                 return jarH;
@@ -1284,10 +1281,7 @@ public class RFC3986URLClassLoader extends java.net.URLClassLoader {
         try {
             URL jarURL = ((JarURLConnection) url
                     .openConnection()).getJarFileURL();
-            JarURLConnection juc = (JarURLConnection) new URL(
-                    "jar", "", //$NON-NLS-1$ //$NON-NLS-2$
-                    jarURL.toExternalForm() + "!/").openConnection(); //$NON-NLS-1$
-            JarFile jf = juc.getJarFile();
+            JarFile jf = openJarFile(jarURL);
             URLJarHandler jarH = new URLJarHandler(url, jarURL, jf, prefixName, this);
 
             if (jarH.getIndex() == null) {
@@ -1309,6 +1303,30 @@ public class RFC3986URLClassLoader extends java.net.URLClassLoader {
         return null;
     }
 
+    /**
+     * Returns the JAR file at the specified URL, from which this loader
+     * reads the classes and resources of that URL in its search path.
+     * Classes defined from the JAR file still have a code source with the
+     * URL in the search path, so subclasses may override this method to
+     * obtain the JAR file from somewhere else, such as a local cache.
+     * <p>
+     * This implementation obtains the JAR file from a {@link JarURLConnection}
+     * for the root of the JAR file.
+     *
+     * @param jarURL
+     *            the URL of the JAR file.
+     * @return the JAR file.
+     * @throws IOException
+     *             if the JAR file cannot be obtained.
+     * @since 3.0
+     */
+    protected JarFile openJarFile(URL jarURL) throws IOException {
+        JarURLConnection juc = (JarURLConnection) new URL(
+                "jar", "", //$NON-NLS-1$ //$NON-NLS-2$
+                jarURL.toExternalForm() + "!/").openConnection(); //$NON-NLS-1$
+        return juc.getJarFile();
+    }
+
     /**
      * Defines a new package using the information extracted from the specified
      * manifest.
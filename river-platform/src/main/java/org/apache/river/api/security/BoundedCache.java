@@ -0,0 +1,456 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.api.security;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.river.thread.NamedThreadFactory;
+
+/**
+ * A cache holding at most a fixed number of entries, that keeps the entries
+ * used most often, in the manner of W-TinyLFU.
+ * <p>
+ * New entries enter a small LRU window.  Entries leaving the window are
+ * admitted to the main space only if they have been used more often than
+ * the entry they would evict from it, according to a count-min sketch of
+ * recent use, so a burst of entries used only once, for example
+ * SocketPermission's for many different hosts, cannot flush the entries
+ * that are used all the time.  The main space is a segmented LRU, entries
+ * used again while on probation are promoted to the protected segment.
+ * <p>
+ * Lookups don't block, they read a ConcurrentHashMap.  The eviction order
+ * is maintained under a lock, which is only tried by lookups, so when
+ * contended a use may not be recorded, that's an acceptable loss of
+ * accuracy.  Values are never null.
+ * <p>
+ * A cache may also expire entries that haven't been used for a given
+ * time, these are removed by a background sweep, so a cache that isn't
+ * full doesn't keep its keys and values reachable indefinitely.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ * @author Peter Firmstone.
+ * @since 3.0.0
+ */
+final class BoundedCache<K,V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final ScheduledExecutorService sweeper =
+        Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("BoundedCache sweeper", true));
+
+    private final ConcurrentMap<K,Node<K,V>> map;
+    private final Lock lock;
+    private final FrequencySketch sketch;
+    // Sentinels of the circular LRU lists, guarded by lock.
+    private final Node<K,V> window;
+    private final Node<K,V> probation;
+    private final Node<K,V> protect;
+    private final int maximumSize;
+    private final int maxWindow;
+    private final int maxProtected;
+    private final long expireNanos;
+    private int windowSize;
+    private int mainSize;
+    private int protectedSize;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong expirations;
+
+    /**
+     * @param maximumSize the maximum number of entries, at least 1.
+     */
+    BoundedCache(int maximumSize){
+        this(maximumSize, 0L);
+    }
+
+    /**
+     * @param maximumSize the maximum number of entries, at least 1.
+     * @param expireAfterMillis entries not used for this many milliseconds
+     * are removed, entries don't expire if zero.
+     */
+    BoundedCache(int maximumSize, long expireAfterMillis){
+        if (maximumSize < 1) throw new IllegalArgumentException(
+                "maximumSize must be at least 1: " + maximumSize);
+        if (expireAfterMillis < 0) throw new IllegalArgumentException(
+                "expireAfterMillis must not be negative: " + expireAfterMillis);
+        this.maximumSize = maximumSize;
+        maxWindow = Math.max(1, maximumSize / 100);
+        maxProtected = (maximumSize - maxWindow) * 4 / 5;
+        map = new ConcurrentHashMap<K,Node<K,V>>(Math.min(maximumSize, 1024));
+        lock = new ReentrantLock();
+        sketch = new FrequencySketch(maximumSize);
+        window = new Node<K,V>(null, null);
+        probation = new Node<K,V>(null, null);
+        protect = new Node<K,V>(null, null);
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        expirations = new AtomicLong();
+        expireNanos = TimeUnit.MILLISECONDS.toNanos(expireAfterMillis);
+        if (expireAfterMillis > 0){
+            long period = Math.max(1L, expireAfterMillis / 2);
+            Sweep sweep = new Sweep(this);
+            sweep.future = sweeper.scheduleWithFixedDelay(sweep, period,
+                    period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the value cached for key, or null.
+     */
+    V get(K key){
+        Node<K,V> node = map.get(key);
+        if (node == null){
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if (expireNanos > 0) node.accessed = System.nanoTime();
+        if (lock.tryLock()){
+            try {
+                onAccess(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * Caches value for key, replacing any value already cached, the least
+     * valuable entry is evicted if the cache is full.
+     */
+    void put(K key, V value){
+        if (key == null || value == null) throw new NullPointerException();
+        lock.lock();
+        try {
+            Node<K,V> node = map.get(key);
+            if (node != null){
+                node.value = value;
+                if (expireNanos > 0) node.accessed = System.nanoTime();
+                onAccess(node);
+                return;
+            }
+            node = new Node<K,V>(key, value);
+            if (expireNanos > 0) node.accessed = System.nanoTime();
+            map.put(key, node);
+            sketch.increment(key.hashCode());
+            node.queue = WINDOW;
+            node.linkBefore(window);
+            windowSize++;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the value cached for key, if any, otherwise caches value.
+     */
+    V putIfAbsent(K key, V value){
+        if (key == null || value == null) throw new NullPointerException();
+        lock.lock();
+        try {
+            Node<K,V> node = map.get(key);
+            if (node != null){
+                if (expireNanos > 0) node.accessed = System.nanoTime();
+                onAccess(node);
+                return node.value;
+            }
+            put(key, value);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries, the frequency history is kept.
+     */
+    void clear(){
+        lock.lock();
+        try {
+            map.clear();
+            // Lookups in progress may still hold nodes, unlink them all.
+            unlinkAll(window);
+            unlinkAll(probation);
+            unlinkAll(protect);
+            windowSize = mainSize = protectedSize = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size(){
+        return map.size();
+    }
+
+    int maximumSize(){
+        return maximumSize;
+    }
+
+    long hits(){
+        return hits.get();
+    }
+
+    long misses(){
+        return misses.get();
+    }
+
+    long evictions(){
+        return evictions.get();
+    }
+
+    long expirations(){
+        return expirations.get();
+    }
+
+    /**
+     * Removes the entries that haven't been used within the expiry time,
+     * called periodically by the sweeper.
+     */
+    void expire(){
+        if (expireNanos == 0) return;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            expire(window, now);
+            expire(probation, now);
+            expire(protect, now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with lock held.
+    private void expire(Node<K,V> sentinel, long now){
+        Node<K,V> node = sentinel.next;
+        while (node != sentinel){
+            Node<K,V> next = node.next;
+            if (now - node.accessed > expireNanos){
+                switch (node.queue) {
+                    case WINDOW:
+                        windowSize--;
+                        break;
+                    case PROTECTED:
+                        protectedSize--;
+                        mainSize--;
+                        break;
+                    default:
+                        mainSize--;
+                }
+                node.unlink();
+                map.remove(node.key, node);
+                expirations.incrementAndGet();
+            }
+            node = next;
+        }
+    }
+
+    // Called with lock held.
+    private void onAccess(Node<K,V> node){
+        if (node.prev == null) return; // Evicted or cleared.
+        sketch.increment(node.key.hashCode());
+        switch (node.queue) {
+            case WINDOW:
+                node.unlink();
+                node.linkBefore(window);
+                break;
+            case PROBATION:
+                node.unlink();
+                node.queue = PROTECTED;
+                node.linkBefore(protect);
+                protectedSize++;
+                if (protectedSize > maxProtected){
+                    // Demote the least recently used protected entry.
+                    Node<K,V> demoted = protect.next;
+                    demoted.unlink();
+                    demoted.queue = PROBATION;
+                    demoted.linkBefore(probation);
+                    protectedSize--;
+                }
+                break;
+            default:
+                node.unlink();
+                node.linkBefore(protect);
+        }
+    }
+
+    // Called with lock held.
+    private static <K,V> void unlinkAll(Node<K,V> sentinel){
+        while (sentinel.next != sentinel){
+            sentinel.next.unlink();
+        }
+    }
+
+    // Called with lock held.
+    private void evict(){
+        while (windowSize > maxWindow){
+            // The candidate leaves the window for probation.
+            Node<K,V> candidate = window.next;
+            candidate.unlink();
+            windowSize--;
+            candidate.queue = PROBATION;
+            candidate.linkBefore(probation);
+            mainSize++;
+            if (windowSize + mainSize <= maximumSize) continue;
+            Node<K,V> victim = probation.next;
+            if (victim == candidate && protectedSize > 0) victim = protect.next;
+            if (victim != candidate
+                    && sketch.frequency(candidate.key.hashCode())
+                        > sketch.frequency(victim.key.hashCode()))
+            {
+                remove(victim);
+            } else {
+                remove(candidate);
+            }
+        }
+    }
+
+    // Called with lock held.
+    private void remove(Node<K,V> node){
+        if (node.queue == PROTECTED) protectedSize--;
+        node.unlink();
+        mainSize--;
+        map.remove(node.key, node);
+        evictions.incrementAndGet();
+    }
+
+    private static final class Node<K,V> {
+        final K key;
+        volatile V value;
+        volatile long accessed;
+        int queue;
+        Node<K,V> prev;
+        Node<K,V> next;
+
+        Node(K key, V value){
+            this.key = key;
+            this.value = value;
+            if (key == null){
+                // Sentinel
+                prev = this;
+                next = this;
+            }
+        }
+
+        void linkBefore(Node<K,V> sentinel){
+            prev = sentinel.prev;
+            next = sentinel;
+            prev.next = this;
+            sentinel.prev = this;
+        }
+
+        void unlink(){
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+
+    /**
+     * Periodically expires the entries of a cache, until the cache is
+     * garbage collected, the sweeper doesn't keep it reachable.
+     */
+    private static final class Sweep implements Runnable {
+        private final WeakReference<BoundedCache<?,?>> cache;
+        volatile Future<?> future;
+
+        Sweep(BoundedCache<?,?> cache){
+            this.cache = new WeakReference<BoundedCache<?,?>>(cache);
+        }
+
+        public void run(){
+            BoundedCache<?,?> c = cache.get();
+            if (c != null){
+                c.expire();
+            } else if (future != null){
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A count-min sketch of 4 bit counters, that estimates how often a
+     * key hash has been used recently.  Counters are halved once the
+     * number of uses recorded reaches ten times the cache size, so the
+     * sketch forgets entries that are no longer used.
+     */
+    private static final class FrequencySketch {
+        private static final int [] SEEDS = {
+            0x97cb3127, 0xb3c9e5c7, 0x2ed9b2a3, 0x7c2e1f43
+        };
+        private final byte [] table;
+        private final int mask;
+        private final int sampleSize;
+        private int samples;
+
+        FrequencySketch(int maximumSize){
+            int size = Integer.highestOneBit(Math.max(64, Math.min(maximumSize, 1 << 24)) - 1) << 1;
+            table = new byte[size];
+            mask = size - 1;
+            sampleSize = maximumSize <= Integer.MAX_VALUE / 10 ? 10 * maximumSize : Integer.MAX_VALUE;
+        }
+
+        int frequency(int hash){
+            int min = 15;
+            for (int i = 0; i < SEEDS.length; i++){
+                min = Math.min(min, table[index(hash, i)]);
+            }
+            return min;
+        }
+
+        void increment(int hash){
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++){
+                int index = index(hash, i);
+                if (table[index] < 15){
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++samples >= sampleSize) {
+                for (int i = 0; i < table.length; i++){
+                    table[i] = (byte) (table[i] >>> 1);
+                }
+                samples /= 2;
+            }
+        }
+
+        private int index(int hash, int i){
+            int h = (hash + SEEDS[i]) * SEEDS[i];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
@@ -113,10 +113,18 @@ class CertificateGrant extends PrincipalGrant {
         if ( codeSource == null ) return false;
 	if ( certs.isEmpty() ) return true;
 	Certificate[] signers = codeSource.getCertificates();
+        if ( signers == null ) return false; // Unsigned code.
 	List<Certificate> certificates = Arrays.asList(signers);
         return certificates.containsAll(certs);
     }
     
+    /**
+     * Returns the signer Certificate's a CodeSource must have.
+     */
+    Collection<Certificate> getCertificates(){
+        return certs;
+    }
+    
     @Override
     public PermissionGrantBuilder getBuilderTemplate() {
         PermissionGrantBuilder pgb = super.getBuilderTemplate();
@@ -27,14 +27,12 @@ import java.security.Policy;
 import java.security.PrivilegedAction;
 import java.security.ProtectionDomain;
 import java.security.SecurityPermission;
+import java.security.UnresolvedPermission;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NavigableSet;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -45,22 +43,33 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.security.auth.PrivateCredentialPermission;
 import net.jini.security.Security;
 import net.jini.security.SecurityContext;
-import org.apache.river.concurrent.RC;
-import org.apache.river.concurrent.Ref;
-import org.apache.river.concurrent.Referrer;
+import org.apache.river.action.GetIntegerAction;
 import org.apache.river.thread.NamedThreadFactory;
-import org.cliffc.high_scale_lib.NonBlockingHashMap;
 
 /**
  * CombinerSecurityManager, is intended to be a highly scalable
  * SecurityManager implementation that caches the results of security checks
  * for each context, which may be an instance of SecurityContext or
- * AccessControlContext.  Stale records are pruned from the cache.
+ * AccessControlContext.
  * 
- * The cache utilises Cliff Click's NonBlockingHashMap and Doug Lee's 
- * ConcurrentSkipListSet.
+ * The cache of checked permissions is bounded, it holds the results for at
+ * most 8192 context and Permission pairs, or the number given by the system
+ * property "org.apache.river.api.security.CombinerSecurityManager.checkedCacheSize",
+ * keeping those checked most often, so that many different checks, such as
+ * SocketPermission's for many hosts, cannot grow it without limit.  Up to
+ * 1024 optimised AccessControlContext's are cached, or the number given by
+ * "org.apache.river.api.security.CombinerSecurityManager.contextCacheSize".
+ * Checked permissions not used for 20 seconds, and optimised contexts not
+ * used for 60 seconds, are removed by a background sweep, so the
+ * ProtectionDomain's and ClassLoader's of code no longer running, such as
+ * downloaded proxies, aren't kept reachable by a cache that isn't full.
+ * {@link #getCheckedCacheHits getCheckedCacheHits},
+ * {@link #getCheckedCacheMisses getCheckedCacheMisses} and
+ * {@link #getCheckedCacheEvictions getCheckedCacheEvictions} report how
+ * well the cache is working.
  * 
  * This SecurityManager should be tuned for garbage collection for a large
  * young generation heap, since many young objects are created and discarded.
@@ -70,7 +79,8 @@ import org.cliffc.high_scale_lib.NonBlockingHashMap;
  * 
  * Apart from Permission objects and java.security.Policy.getPolicy() class
  * lock (Bug ID: 7093090 fixed in jdk8(b15), this SecurityManager is non
- * blocking, including the cache it keeps to prevent repeat security checks.
+ * blocking, lookups in the cache it keeps to prevent repeat security checks
+ * don't block, only adding a result does.
  * 
  * @see Security
  * @see SecurityContext
@@ -82,14 +92,16 @@ import org.cliffc.high_scale_lib.NonBlockingHashMap;
 public class CombinerSecurityManager 
 extends SecurityManager implements CachingSecurityManager {
     private static final Logger logger = Logger.getLogger(CombinerSecurityManager.class.getName());
+    private static final Comparator<Permission> permCompare = new PermissionComparator();
     private final DomainCombiner dc;
     // Cache of optimised Delegate AccessControlContext's
-    private final ConcurrentMap<AccessControlContext, AccessControlContext> contextCache;
-    private final ConcurrentMap<Object, NavigableSet<Permission>> checked;
+    private final BoundedCache<AccessControlContext, AccessControlContext> contextCache;
+    // Checked context and Permission pairs, the value is the generation checked in.
+    private final BoundedCache<Check, Object> checked;
+    private volatile Object generation;
     private final Guard g;
     private final Action action;
     private final Executor executor;
-    private final Comparator<Referrer<Permission>> permCompare;
     private final AccessControlContext SMConstructorContext;
     private final AccessControlContext SMPrivilegedContext;
     private final ProtectionDomain privilegedDomain;
@@ -121,15 +133,11 @@ extends SecurityManager implements CachingSecurityManager {
         context[0] = privilegedDomain;
         SMPrivilegedContext = new AccessControlContext(context);
         dc = new DelegateDomainCombiner();
-        ConcurrentMap<Referrer<AccessControlContext>, 
-                Referrer<AccessControlContext>> internal = 
-                new NonBlockingHashMap<Referrer<AccessControlContext>, 
-                Referrer<AccessControlContext>>();
-        contextCache = RC.concurrentMap(internal, Ref.TIME, Ref.STRONG, 60000L, 60000L);
-        ConcurrentMap<Referrer<Object>, Referrer<NavigableSet<Permission>>> refmap 
-                = new NonBlockingHashMap<Referrer<Object>, 
-                Referrer<NavigableSet<Permission>>>();
-        checked = RC.concurrentMap(refmap, Ref.TIME, Ref.STRONG, 20000L, 20000L);
+        contextCache = new BoundedCache<AccessControlContext, AccessControlContext>(
+            cacheSize("contextCacheSize", 1024), 60000L);
+        checked = new BoundedCache<Check, Object>(
+            cacheSize("checkedCacheSize", 8192), 20000L);
+        generation = new Object();
         g = new SecurityPermission("getPolicy");
         Permission createAccPerm = new SecurityPermission("createAccessControlContext");
         action = new Action();
@@ -149,7 +157,6 @@ extends SecurityManager implements CachingSecurityManager {
                 TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), 
                 new NamedThreadFactory("CombinerSecurityManager", true),
                 new ThreadPoolExecutor.CallerRunsPolicy());
-        permCompare = RC.comparator(new PermissionComparator());
         threadContext = new ThreadLocal<SecurityContext>();
         inTrustedCodeRecursiveCall = new ThreadLocal<Boolean>();
         /* Get the policy & refresh, in case it hasn't been initialized. 
@@ -174,6 +181,55 @@ extends SecurityManager implements CachingSecurityManager {
 	constructed = true;
     }
     
+    private static int cacheSize(String property, int defaultSize){
+        int size = AccessController.doPrivileged(new GetIntegerAction(
+            "org.apache.river.api.security.CombinerSecurityManager." + property,
+            defaultSize)).intValue();
+        return size > 0 ? size : defaultSize;
+    }
+    
+    /**
+     * Returns the number of permission checks answered by the cache of
+     * checked permissions.
+     * 
+     * @return the number of cache hits.
+     */
+    public long getCheckedCacheHits(){
+        return checked.hits();
+    }
+    
+    /**
+     * Returns the number of permission checks that were not cached and
+     * had to be checked.
+     * 
+     * @return the number of cache misses.
+     */
+    public long getCheckedCacheMisses(){
+        return checked.misses();
+    }
+    
+    /**
+     * Returns the number of checked permissions evicted from the cache to
+     * keep it within its maximum size.
+     * 
+     * @return the number of cache evictions.
+     */
+    public long getCheckedCacheEvictions(){
+        return checked.evictions();
+    }
+    
+    /**
+     * Returns the fraction of permission checks answered by the cache of
+     * checked permissions.
+     * 
+     * @return the cache hit rate, between 0.0 and 1.0.
+     */
+    public double getCheckedCacheHitRate(){
+        long hits = checked.hits();
+        long total = hits + checked.misses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+    
     @Override
     public Object getSecurityContext() {
 	Object context = null;
@@ -237,39 +293,18 @@ extends SecurityManager implements CachingSecurityManager {
         /* The next line speeds up permission checks related to this SecurityManager. */
         if ( constructed && SMPrivilegedContext.equals(executionContext) || 
                 SMConstructorContext.equals(executionContext)) return; // prevents endless loop in debug.
+        /* IMPORTANT:
+         * The generation must be obtained prior to executing a permission
+         * check and the result cached with the same generation, clearCache
+         * starts a new generation, so results cached in an earlier generation
+         * are ignored, this prevents revoked permissions from entering the
+         * "checked" cache after clear is called and allows tasks to run to
+         * completion without needing to be concerned about revocation.
+         */
+        Object gen = generation;
+        Check check = new Check(context, perm);
         // Checks if Permission has already been checked for this context.
-        NavigableSet<Permission> checkedPerms = checked.get(context);
-        if (checkedPerms == null){
-            /* A ConcurrentSkipListSet is used to avoid blocking during
-             * removal operations that occur while the garbage collector
-             * recovers softly reachable memory.  Since this happens while
-             * the jvm's under stress, it's important that permission checks
-             * continue to perform well.
-             * 
-             * Although I considered a multi read, single write Set, I wanted
-             * to avoid blocking under stress, that would be caused as a result
-             * of garbage collection.
-             * 
-             * IMPORTANT:
-             * The Set "checkedPerms" must be obtained prior to executing a permission
-             * check and the result written to the same Set, interleaved
-             * clear operations may remove the Set from the ConcurrentMap "checked",
-             * this prevents revoked permissions from entering the "checked"
-             * cache after clear is called and allows tasks to run to completion 
-             * without needing to be concerned about revocation.
-             */
-            NavigableSet<Referrer<Permission>> internal = 
-                    new ConcurrentSkipListSet<Referrer<Permission>>(permCompare);
-            checkedPerms = RC.navigableSet(internal, Ref.TIME, 10000L);
-            inTrustedCodeRecursiveCall.set(Boolean.TRUE);
-            try {
-                NavigableSet<Permission> existed = checked.putIfAbsent(context, checkedPerms);
-                if (existed != null) checkedPerms = existed;
-            }finally {
-                inTrustedCodeRecursiveCall.set(Boolean.FALSE); // Must always happen, no matter what.
-            }
-        }
-        if (checkedPerms.contains(perm)) return; // don't need to check again.
+        if (checked.get(check) == gen) return; // don't need to check again.
         // Cache the created AccessControlContext.
         AccessControlContext delegateContext = contextCache.get(executionContext);
         if (delegateContext == null ) {
@@ -308,7 +343,7 @@ extends SecurityManager implements CachingSecurityManager {
         delegateContext.checkPermission(perm); // Throws SecurityException.
         /* It's ok to cache SocketPermission if we use a comparator */
         // If we get to here, no exceptions were thrown, caller has permission.
-        checkedPerms.add(perm);
+        checked.put(check, gen);
     }
     
     /**
@@ -321,17 +356,60 @@ extends SecurityManager implements CachingSecurityManager {
      */
     public void clearCache() throws SecurityException {
         /* Clear the cache, out of date permission check tasks are still
-         * writing to old Set's, while new checks will write to new Sets.
+         * writing results of the old generation, which will be ignored.
          */
         g.checkGuard(this);
         inTrustedCodeRecursiveCall.set(Boolean.TRUE);
         try {
+            generation = new Object();
             checked.clear();
         }finally {
             inTrustedCodeRecursiveCall.set(Boolean.FALSE); // Must always happen, no matter what.
         }
     }
     
+    /**
+     * A context and Permission pair, Permission's are compared with
+     * PermissionComparator, to avoid Permission.equals, which for
+     * SocketPermission may perform DNS lookups.
+     */
+    private static final class Check {
+        private final Object context;
+        private final Permission perm;
+        private final int hash;
+        
+        Check(Object context, Permission perm){
+            this.context = context;
+            this.perm = perm;
+            int h = perm.getClass().hashCode();
+            // PermissionComparator considers more than the name of these.
+            if (!(perm instanceof UnresolvedPermission 
+                    || perm instanceof PrivateCredentialPermission))
+            {
+                String name = perm.getName();
+                String actions = perm.getActions();
+                h = 31 * h + (name != null ? name.hashCode() : 0);
+                h = 31 * h + (actions != null ? actions.hashCode() : 0);
+            }
+            hash = 31 * h + context.hashCode();
+        }
+        
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object o){
+            if (this == o) return true;
+            if (!(o instanceof Check)) return false;
+            Check that = (Check) o;
+            return hash == that.hash
+                && permCompare.compare(perm, that.perm) == 0
+                && context.equals(that.context);
+        }
+    }
+    
     // Action retrieves the optimised AccessControlContext.
     private static class Action implements PrivilegedAction<AccessControlContext> {
         private Action(){}
@@ -45,6 +45,7 @@ import java.security.SecurityPermission;
 import java.security.UnresolvedPermission;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Enumeration;
@@ -62,7 +63,9 @@ import net.jini.security.policy.PolicyInitializationException;
  * Concurrent Policy implementation based on policy configuration URL's,
  * it is intended to provide concurrent implies() for greatly improved
  * throughput.  Caching limits scalability and consumes shared memory,
- * so no cache exists.
+ * so no cache exists.  Instead grants are indexed when the policy is
+ * loaded, by code source location, signer and principal, so that only the
+ * grants that might apply to a ProtectionDomain are evaluated.
  * </p><p>
  * By default all River Policy implementations now utilise ConcurrentPolicyFile.
  * </p>
@@ -193,7 +196,7 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
     private static final Permission ALL_PERMISSION = new AllPermission();
     
     // Reference must be defensively copied before access, once published, never mutated.
-    private volatile PermissionGrant [] grantArray;
+    private volatile GrantIndex grantIndex;
     
     // A specific parser for a particular policy file format.
     private final PolicyParser parser;
@@ -266,7 +269,7 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
          */
         parser = dpr;
         comparator = comp;
-        grantArray = grants;
+        grantIndex = new GrantIndex(grants);
         myPermissions = getP(myDomain);
     }
     
@@ -298,15 +301,16 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
     
     private PermissionCollection getP(ProtectionDomain pd) {
         NavigableSet<Permission> perms = new TreeSet<Permission>(comparator);
-        PermissionGrant [] grantRefCopy = grantArray;
-        int l = grantRefCopy.length;
+        GrantIndex index = grantIndex;
+        PermissionGrant [] grantRefCopy = index.getGrants();
+        BitSet candidates = index.candidates(pd);
         /* Check only privileged grants first, this allows privileged domains
          * to avoid infinite recursion when they implement PermissionGrant
          * and perform privileged actions during an implies call.
          * 
          * It also ensures privileged checks are are fast.
          */ 
-        for ( int j = 0; j < l; j++){
+        for ( int j = candidates.nextSetBit(0); j >= 0; j = candidates.nextSetBit(j + 1)){
             PermissionGrant ge = grantRefCopy[j];
             if (ge.isPrivileged()){
                 if (ge.implies(pd)){
@@ -334,7 +338,7 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
             }
         }       
         /* Now find less privileged cases */
-        for ( int j =0; j < l; j++ ){
+        for ( int j = candidates.nextSetBit(0); j >= 0; j = candidates.nextSetBit(j + 1)){
             PermissionGrant ge = grantRefCopy[j];
             if (!ge.isPrivileged()){
                 if (ge.implies(pd)){
@@ -368,7 +372,7 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
         if (cs == null) throw new NullPointerException("CodeSource cannot be null");
         // for ProtectionDomain AllPermission optimisation.
         /* Infinite recursion is not an issue for CodeSource */
-        PermissionGrant [] grantRefCopy = grantArray;
+        PermissionGrant [] grantRefCopy = grantIndex.getGrants();
         int l = grantRefCopy.length;        
         for ( int j =0; j < l; j++ ){
             PermissionGrant ge = grantRefCopy[j];
@@ -393,11 +397,12 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
         Class klass = permission.getClass();
         // Need to have a list of Permission's we can sort if permission is SocketPermission.
         NavigableSet<Permission> perms = new TreeSet<Permission>(comparator);
-        PermissionGrant [] grantRefCopy = grantArray;
-        int l = grantRefCopy.length;
+        GrantIndex index = grantIndex;
+        PermissionGrant [] grantRefCopy = index.getGrants();
+        BitSet candidates = index.candidates(domain);
         /* Check for privileged grants first to avoid recursion when 
          * privileged domains become involved in policy decisions */
-        for (int j = 0; j < l; j++){
+        for (int j = candidates.nextSetBit(0); j >= 0; j = candidates.nextSetBit(j + 1)){
             PermissionGrant ge = grantRefCopy[j];
             if (ge.isPrivileged()){
                 if (ge.implies(domain)){
@@ -423,7 +428,7 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
             }
         }
         /* Check less privileged grants */
-        for ( int j =0; j < l; j++ ){
+        for ( int j = candidates.nextSetBit(0); j >= 0; j = candidates.nextSetBit(j + 1)){
             PermissionGrant ge = grantRefCopy[j];
             if (!ge.isPrivileged()){
                 if (ge.implies(domain)){
@@ -452,7 +457,7 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
     @Override
     public void refresh() {
         try {
-            grantArray = initialize(parser);
+            grantIndex = new GrantIndex(initialize(parser));
         } catch (Exception ex) {
             System.err.println(ex);
         }
@@ -502,11 +507,13 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
     }
 
     public List<PermissionGrant> getPermissionGrants(ProtectionDomain pd) {
-        PermissionGrant [] grants = grantArray; // copy volatile reference target.
-        int l = grants.length;
+        GrantIndex index = grantIndex; // copy volatile reference target.
+        PermissionGrant [] grants = index.getGrants();
+        /* Only grants that might imply pd need be checked */
+        BitSet candidates = index.candidates(pd);
         List<PermissionGrant> applicable = new LinkedList<PermissionGrant>();
         /* First check for privileged grants */
-        for (int i = 0; i < l; i++){
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)){
             if (grants[i].isPrivileged()){
                 if (grants[i].implies(pd)){
                     applicable.add(grants[i]);
@@ -534,7 +541,7 @@ public class ConcurrentPolicyFile extends Policy implements ScalableNestedPolicy
             if (pg.isPrivileged()) return applicable;
         }
         /* Gather less privileged grants */
-        for (int i =0; i < l; i++){
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)){
             if (!grants[i].isPrivileged()){
                 if (grants[i].implies(pd)){
                     applicable.add(grants[i]);
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.api.security;
+
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.Principal;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.apache.river.api.net.Uri;
+
+/**
+ * An immutable index over the PermissionGrant's of a policy, that finds
+ * the grants that might imply a ProtectionDomain without evaluating every
+ * grant.
+ * <p>
+ * Policy file grants are indexed by what a ProtectionDomain must have to
+ * be implied by them:
+ * <ul>
+ * <li>a URIGrant, by the scheme, host and directory of each of its
+ * code source URI's,</li>
+ * <li>a URIGrant without URI's, or a CertificateGrant, by one of its
+ * signer certificates,</li>
+ * <li>failing either, by the class and name of one of its Principal's,
+ * if that Principal is an UnresolvedPrincipal or of a final class.</li>
+ * </ul>
+ * Grants of other classes, or that a ProtectionDomain need not have
+ * anything in particular to be implied by, such as grants with a host
+ * wildcard or with no code source, signers and principals, are
+ * candidates for every ProtectionDomain.  Keys are case insensitive, so
+ * the index only ever finds too many candidates, never too few; the
+ * candidates must still be checked with
+ * {@link PermissionGrant#implies(ProtectionDomain)}.
+ *
+ * @author Peter Firmstone.
+ * @since 3.0.0
+ */
+final class GrantIndex {
+
+    /** Host key for URI's without a host, which match any host. */
+    private static final String ANY_HOST = "*";
+
+    private final PermissionGrant [] grants;
+    // Grants that are candidates for every ProtectionDomain.
+    private final BitSet unindexed;
+    private final Map<String,int[]> byLocation;
+    private final Map<Certificate,int[]> bySigner;
+    private final Map<String,int[]> byPrincipal;
+
+    GrantIndex(PermissionGrant [] grants){
+        this.grants = grants;
+        unindexed = new BitSet(grants.length);
+        Map<String,List<Integer>> locations = new HashMap<String,List<Integer>>();
+        Map<Certificate,List<Integer>> signers = new HashMap<Certificate,List<Integer>>();
+        Map<String,List<Integer>> principals = new HashMap<String,List<Integer>>();
+        for (int i = 0, l = grants.length; i < l; i++){
+            PermissionGrant g = grants[i];
+            Class c = g.getClass();
+            if (c == URIGrant.class && addLocations(locations, (URIGrant) g, i)) continue;
+            if (c == URIGrant.class || c == CertificateGrant.class){
+                Collection<Certificate> certs = ((CertificateGrant) g).getCertificates();
+                if (!certs.isEmpty()){
+                    add(signers, certs.iterator().next(), i);
+                    continue;
+                }
+            }
+            if (c == URIGrant.class || c == CertificateGrant.class || c == PrincipalGrant.class){
+                String key = principalKey(((PrincipalGrant) g).pals);
+                if (key != null){
+                    add(principals, key, i);
+                    continue;
+                }
+            }
+            unindexed.set(i);
+        }
+        byLocation = toArrays(locations);
+        bySigner = toArrays(signers);
+        byPrincipal = toArrays(principals);
+    }
+
+    /**
+     * Returns the grants that are being indexed, in policy order.
+     */
+    PermissionGrant [] getGrants(){
+        return grants;
+    }
+
+    /**
+     * Returns the indexes of the grants that might imply the given
+     * ProtectionDomain.
+     *
+     * @param pd ProtectionDomain, may be null.
+     * @return a new BitSet, with a bit set for each candidate grant.
+     */
+    BitSet candidates(ProtectionDomain pd){
+        BitSet result = (BitSet) unindexed.clone();
+        if (pd == null) return result;
+        CodeSource cs = pd.getCodeSource();
+        if (cs != null){
+            URL url = cs.getLocation();
+            if (url != null && !byLocation.isEmpty()){
+                try {
+                    addLocationCandidates(result, Uri.urlToUri(url));
+                } catch (URISyntaxException e){
+                    // Let the grants decide.
+                    result.set(0, grants.length);
+                    return result;
+                }
+            }
+            Certificate [] certs = cs.getCertificates();
+            if (certs != null){
+                for (int i = 0; i < certs.length; i++){
+                    set(result, bySigner.get(certs[i]));
+                }
+            }
+        }
+        if (!byPrincipal.isEmpty()){
+            Principal [] pals = getPrincipals(pd);
+            if (pals != null){
+                for (int i = 0; i < pals.length; i++){
+                    Principal p = pals[i];
+                    if (p == null) continue;
+                    String klass = p instanceof UnresolvedPrincipal ?
+                        ((UnresolvedPrincipal) p).getClassName() : p.getClass().getName();
+                    set(result, byPrincipal.get(klass));
+                    set(result, byPrincipal.get(principalKey(klass, p.getName())));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addLocationCandidates(BitSet result, Uri uri){
+        String scheme = uri.getScheme();
+        String path = uri.getRawPath();
+        if (scheme == null || path == null) return;
+        String host = hostKey(uri.getHost());
+        scheme = scheme.toLowerCase(Locale.ENGLISH);
+        path = path.toUpperCase(Locale.ENGLISH);
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)){
+            String dir = path.substring(0, i + 1);
+            set(result, byLocation.get(locationKey(scheme, ANY_HOST, dir)));
+            if (host != null){
+                set(result, byLocation.get(locationKey(scheme, host, dir)));
+            }
+        }
+    }
+
+    /**
+     * Adds a URIGrant to the location index under each of its URI's,
+     * unless any URI cannot be indexed.
+     */
+    private static boolean addLocations(Map<String,List<Integer>> locations,
+                                        URIGrant g, int index)
+    {
+        Collection<Uri> uris = g.getLocations();
+        if (uris.isEmpty()) return false;
+        List<String> keys = new ArrayList<String>(uris.size());
+        Iterator<Uri> it = uris.iterator();
+        while (it.hasNext()){
+            Uri uri = it.next();
+            if (uri == null) return false;
+            String scheme = uri.getScheme();
+            String path = uri.getRawPath();
+            String host = uri.getHost();
+            if (scheme == null || path == null) return false;
+            /* Uri.implies matches "/a/-" and "/a/*" against any path
+             * starting with "/a", including "/ab", so index the
+             * directory containing that prefix. */
+            if (path.endsWith("/-") || path.endsWith("/*")){
+                path = path.substring(0, path.length() - 2);
+            }
+            int dir = path.lastIndexOf('/');
+            if (dir < 0) return false;
+            if (host == null){
+                host = ANY_HOST;
+            } else if (host.length() > 0 && host.charAt(0) == '*'){
+                return false; // Host wildcard.
+            } else {
+                host = hostKey(host);
+            }
+            keys.add(locationKey(scheme.toLowerCase(Locale.ENGLISH), host,
+                path.substring(0, dir + 1).toUpperCase(Locale.ENGLISH)));
+        }
+        Iterator<String> k = keys.iterator();
+        while (k.hasNext()){
+            add(locations, k.next(), index);
+        }
+        return true;
+    }
+
+    private static String locationKey(String scheme, String host, String dir){
+        StringBuilder sb = new StringBuilder(scheme.length() + host.length() + dir.length() + 3);
+        return sb.append(scheme).append("://").append(host).append(dir).toString();
+    }
+
+    /**
+     * An empty host and localhost are the same to Uri.implies.
+     */
+    private static String hostKey(String host){
+        if (host == null) return null;
+        if (host.length() == 0) return "localhost";
+        return host.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the most specific key of the Principal's of a grant,
+     * every one of which a ProtectionDomain must have, or null if
+     * none can be indexed.
+     */
+    private static String principalKey(Set<Principal> pals){
+        String result = null;
+        Iterator<Principal> it = pals.iterator();
+        while (it.hasNext()){
+            Principal p = it.next();
+            if (p instanceof UnresolvedPrincipal){
+                UnresolvedPrincipal up = (UnresolvedPrincipal) p;
+                String klass = up.getClassName();
+                String name = up.getName();
+                if (klass == null || UnresolvedPrincipal.WILDCARD.equals(klass)) continue;
+                if (!UnresolvedPrincipal.WILDCARD.equals(name)) {
+                    return principalKey(klass, name);
+                }
+                result = klass;
+            } else if (p != null && Modifier.isFinal(p.getClass().getModifiers())) {
+                // Such as X500Principal, only equal to instances of its class.
+                result = p.getClass().getName();
+            }
+        }
+        return result;
+    }
+
+    private static String principalKey(String klass, String name){
+        return klass + " \"" + name + "\"";
+    }
+
+    private static Principal [] getPrincipals(ProtectionDomain pd){
+        if (pd instanceof SubjectDomain){
+            Set<Principal> principals = ((SubjectDomain) pd).getSubject().getPrincipals();
+            return principals.toArray(new Principal[principals.size()]);
+        }
+        return pd.getPrincipals();
+    }
+
+    private static <K> void add(Map<K,List<Integer>> map, K key, int index){
+        List<Integer> list = map.get(key);
+        if (list == null){
+            list = new ArrayList<Integer>(4);
+            map.put(key, list);
+        }
+        // A grant may have several keys that are equal once case is ignored.
+        if (!list.isEmpty() && list.get(list.size() - 1).intValue() == index) return;
+        list.add(Integer.valueOf(index));
+    }
+
+    private static <K> Map<K,int[]> toArrays(Map<K,List<Integer>> map){
+        Map<K,int[]> result = new HashMap<K,int[]>(map.size() * 4 / 3 + 1);
+        Iterator<Map.Entry<K,List<Integer>>> it = map.entrySet().iterator();
+        while (it.hasNext()){
+            Map.Entry<K,List<Integer>> e = it.next();
+            List<Integer> list = e.getValue();
+            int [] indexes = new int [list.size()];
+            for (int i = 0; i < indexes.length; i++){
+                indexes[i] = list.get(i).intValue();
+            }
+            result.put(e.getKey(), indexes);
+        }
+        return result;
+    }
+
+    private static void set(BitSet result, int [] indexes){
+        if (indexes == null) return;
+        for (int i = 0; i < indexes.length; i++){
+            result.set(indexes[i]);
+        }
+    }
+}
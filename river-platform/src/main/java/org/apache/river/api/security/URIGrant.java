@@ -142,6 +142,13 @@ class URIGrant extends CertificateGrant {
         return false;
     }
     
+    /**
+     * Returns the Uri's, one of which must imply the CodeSource location.
+     */
+    Collection<Uri> getLocations(){
+        return location;
+    }
+    
     @Override
     public PermissionGrantBuilder getBuilderTemplate() {
         PermissionGrantBuilder pgb = super.getBuilderTemplate();
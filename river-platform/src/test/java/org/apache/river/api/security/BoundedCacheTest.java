@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.api.security;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the size bound and admission policy of BoundedCache.
+ */
+public class BoundedCacheTest {
+
+    @Test
+    public void testBounded() {
+        BoundedCache<Integer,String> cache = new BoundedCache<Integer,String>(100);
+        for (int i = 0; i < 10000; i++){
+            cache.put(Integer.valueOf(i), "v" + i);
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(9900, cache.evictions());
+    }
+
+    @Test
+    public void testGetAndPut() {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10);
+        assertNull(cache.get("a"));
+        assertNull(cache.putIfAbsent("a", "1"));
+        assertEquals("1", cache.putIfAbsent("a", "2"));
+        assertEquals("1", cache.get("a"));
+        cache.put("a", "3");
+        assertEquals("3", cache.get("a"));
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+        cache.put("b", "4");
+        assertEquals("4", cache.get("b"));
+    }
+
+    @Test
+    public void testFrequentEntriesSurviveScan() {
+        BoundedCache<Integer,Integer> cache = new BoundedCache<Integer,Integer>(200);
+        Integer [] hot = new Integer[100];
+        for (int i = 0; i < hot.length; i++){
+            hot[i] = Integer.valueOf(-1 - i);
+        }
+        for (int round = 0; round < 5; round++){
+            for (int i = 0; i < hot.length; i++){
+                if (cache.get(hot[i]) == null) cache.put(hot[i], hot[i]);
+            }
+        }
+        // A scan of keys used only once.
+        for (int i = 0; i < 10000; i++){
+            Integer key = Integer.valueOf(i);
+            if (cache.get(key) == null) cache.put(key, key);
+        }
+        int present = 0;
+        for (int i = 0; i < hot.length; i++){
+            if (cache.get(hot[i]) != null) present++;
+        }
+        assertTrue("hot entries present: " + present, present > 90);
+        assertTrue(cache.size() <= 200);
+    }
+
+    @Test
+    public void testIdleEntriesExpire() throws InterruptedException {
+        BoundedCache<Integer,Integer> cache = new BoundedCache<Integer,Integer>(1000, 200L);
+        for (int i = 0; i < 500; i++){
+            Integer key = Integer.valueOf(i);
+            cache.put(key, key);
+            if (i % 2 == 0) cache.get(key); // Promote some beyond the window.
+        }
+        Thread.sleep(100L);
+        Integer used = Integer.valueOf(7);
+        assertEquals(used, cache.get(used));
+        Thread.sleep(150L);
+        cache.expire();
+        assertEquals(1, cache.size());
+        assertEquals(499, cache.expirations());
+        assertEquals(used, cache.get(used));
+        // Sizes are consistent after expiry, the cache fills up again.
+        for (int i = 1000; i < 3000; i++){
+            cache.put(Integer.valueOf(i), Integer.valueOf(i));
+        }
+        assertEquals(1000, cache.size());
+    }
+
+    @Test
+    public void testSweeperExpires() throws InterruptedException {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10, 50L);
+        cache.put("a", "1");
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (cache.size() > 0 && System.currentTimeMillis() < deadline){
+            Thread.sleep(20L);
+        }
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.expirations());
+    }
+}
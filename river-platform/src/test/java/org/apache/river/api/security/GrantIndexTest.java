@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.api.security;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.Principal;
+import java.security.ProtectionDomain;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PropertyPermission;
+import java.util.Random;
+import javax.security.auth.x500.X500Principal;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that GrantIndex finds every grant that implies a ProtectionDomain,
+ * against a synthetic policy of 1000 grants, and compares the time taken
+ * to find them with and without the index.
+ */
+public class GrantIndexTest {
+
+    private static final int GRANTS = 1000;
+    private static final int DOMAINS = 400;
+    private static final int ROUNDS = 20;
+
+    private Certificate [] signers;
+    private PermissionGrant [] grants;
+    private ProtectionDomain [] domains;
+    private GrantIndex index;
+
+    @Before
+    public void setUp() throws MalformedURLException {
+        Random random = new Random(3L);
+        signers = new Certificate[20];
+        for (int i = 0; i < signers.length; i++){
+            signers[i] = new TestCertificate(i);
+        }
+        Permission [] perms = { new PropertyPermission("grant.index", "read") };
+        PermissionGrantBuilder pgb = PermissionGrantBuilder.newBuilder();
+        List<PermissionGrant> list = new ArrayList<PermissionGrant>(GRANTS);
+        for (int i = 0; i < GRANTS; i++){
+            pgb.reset().permissions(perms);
+            switch (i % 10) {
+                case 0:
+                    pgb.context(PermissionGrantBuilder.CODESOURCE_CERTS)
+                       .certificates(new Certificate[]{signers[random.nextInt(signers.length)]});
+                    break;
+                case 1:
+                    pgb.context(PermissionGrantBuilder.PRINCIPAL)
+                       .principals(new Principal[]{
+                           new UnresolvedPrincipal(X500Principal.class.getName(),
+                                                   "CN=user" + random.nextInt(50))});
+                    break;
+                case 2:
+                    pgb.context(PermissionGrantBuilder.URI)
+                       .uri("http://host" + random.nextInt(50) + ":8080/lib/-")
+                       .certificates(new Certificate[]{signers[random.nextInt(signers.length)]});
+                    break;
+                case 3:
+                    // Host wildcard, can't be indexed.
+                    pgb.context(PermissionGrantBuilder.URI)
+                       .uri("http://*.host" + random.nextInt(50) + "/lib/*");
+                    break;
+                default:
+                    pgb.context(PermissionGrantBuilder.URI)
+                       .uri("file:/opt/app" + random.nextInt(100) + "/lib/jar" + i + ".jar");
+            }
+            list.add(pgb.build());
+        }
+        // A few grants that apply to everything.
+        list.add(pgb.reset().context(PermissionGrantBuilder.URI).permissions(perms).build());
+        list.add(pgb.reset().context(PermissionGrantBuilder.URI)
+                .uri("file:/opt/-").permissions(perms).build());
+        grants = list.toArray(new PermissionGrant[list.size()]);
+        index = new GrantIndex(grants);
+        domains = new ProtectionDomain[DOMAINS];
+        for (int i = 0; i < DOMAINS; i++){
+            URL url;
+            switch (i % 5) {
+                case 0:
+                    url = new URL("http://HOST" + random.nextInt(60) + ":8080/lib/sub/a.jar");
+                    break;
+                case 1:
+                    url = new URL("http://www.host" + random.nextInt(60) + "/lib/b.jar");
+                    break;
+                case 2:
+                    url = new URL("file:/opt/app" + random.nextInt(120) + "/lib/");
+                    break;
+                default:
+                    url = new URL("file:/opt/app" + random.nextInt(120) + "/lib/jar"
+                            + random.nextInt(GRANTS) + ".jar");
+            }
+            Certificate [] certs = i % 3 == 0 ? null :
+                new Certificate[]{signers[random.nextInt(signers.length)]};
+            Principal [] pals = i % 4 == 0 ?
+                new Principal[]{new X500Principal("CN=user" + random.nextInt(60))} : null;
+            domains[i] = new ProtectionDomain(new CodeSource(url, certs), null, null, pals);
+        }
+    }
+
+    private static List<PermissionGrant> scan(PermissionGrant [] grants, ProtectionDomain pd){
+        List<PermissionGrant> result = new ArrayList<PermissionGrant>();
+        for (int i = 0; i < grants.length; i++){
+            if (grants[i].implies(pd)) result.add(grants[i]);
+        }
+        return result;
+    }
+
+    private static List<PermissionGrant> indexed(GrantIndex index, ProtectionDomain pd){
+        PermissionGrant [] grants = index.getGrants();
+        BitSet candidates = index.candidates(pd);
+        List<PermissionGrant> result = new ArrayList<PermissionGrant>();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)){
+            if (grants[i].implies(pd)) result.add(grants[i]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testIndexedMatchesScan() {
+        int implied = 0;
+        int candidates = 0;
+        for (int i = 0; i < domains.length; i++){
+            List<PermissionGrant> expected = scan(grants, domains[i]);
+            assertEquals(domains[i].toString(), expected, indexed(index, domains[i]));
+            implied += expected.size();
+            candidates += index.candidates(domains[i]).cardinality();
+        }
+        // The synthetic policy must exercise more than the catch all grants.
+        assertTrue(implied > 3 * domains.length);
+        assertTrue(candidates < domains.length * grants.length / 4);
+        assertTrue(index.candidates(null).cardinality() < grants.length);
+    }
+
+    @Test
+    public void testWildcards() throws MalformedURLException {
+        PermissionGrantBuilder pgb = PermissionGrantBuilder.newBuilder();
+        PermissionGrant [] g = {
+            pgb.reset().context(PermissionGrantBuilder.URI).uri("file:/a/-").build(),
+            pgb.reset().context(PermissionGrantBuilder.URI).uri("file:/a/b/*").build(),
+            pgb.reset().context(PermissionGrantBuilder.URI).uri("file:/a/b/c").build(),
+            pgb.reset().context(PermissionGrantBuilder.URI).uri("http://localhost/a/").build(),
+            pgb.reset().context(PermissionGrantBuilder.URI).uri("file:/").build()
+        };
+        GrantIndex idx = new GrantIndex(g);
+        String [] urls = {
+            "file:/a/b/c", "file:/a/b/c/", "file:/a/b/c/d", "file:/a/b", "file:/ab/c",
+            "file:/a/bc", "FILE:/a/b/x", "file:/", "http:///a/", "http://LOCALHOST/a/x",
+            "http://other/a/"
+        };
+        for (int i = 0; i < urls.length; i++){
+            ProtectionDomain pd = new ProtectionDomain(
+                new CodeSource(new URL(urls[i]), (Certificate []) null), null);
+            assertEquals(urls[i], scan(g, pd), indexed(idx, pd));
+        }
+    }
+
+    @Test
+    public void benchmark() {
+        for (int warm = 0; warm < 3; warm++){
+            long start = System.nanoTime();
+            int found = 0;
+            for (int r = 0; r < ROUNDS; r++){
+                for (int i = 0; i < domains.length; i++){
+                    found += scan(grants, domains[i]).size();
+                }
+            }
+            long scanned = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++){
+                for (int i = 0; i < domains.length; i++){
+                    found -= indexed(index, domains[i]).size();
+                }
+            }
+            long looked = System.nanoTime() - start;
+            assertEquals(0, found);
+            System.out.println("Grants: " + grants.length
+                + ", full scan: " + scanned / (ROUNDS * domains.length) + "ns"
+                + ", indexed: " + looked / (ROUNDS * domains.length) + "ns per ProtectionDomain");
+        }
+    }
+
+    private static class TestCertificate extends Certificate {
+        private static final long serialVersionUID = 1L;
+
+        private final byte [] encoded;
+
+        TestCertificate(int id){
+            super("TEST");
+            encoded = new byte[]{(byte) (id >>> 8), (byte) id};
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return encoded.clone();
+        }
+
+        @Override
+        public void verify(PublicKey key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void verify(PublicKey key, String sigProvider) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+            return "TestCertificate" + Arrays.toString(encoded);
+        }
+
+        @Override
+        public PublicKey getPublicKey() {
+            return null;
+        }
+    }
+}
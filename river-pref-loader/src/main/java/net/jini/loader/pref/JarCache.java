@@ -0,0 +1,674 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jini.loader.pref;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarFile;
+import java.util.zip.ZipFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.river.action.GetLongAction;
+import org.apache.river.action.GetPropertyAction;
+import org.apache.river.logging.Levels;
+
+/**
+ * An on-disk cache of the JAR files of codebases, which can be shared by
+ * all the JVMs on a host that use the same cache directory.
+ * <p>
+ * The cache is used only if the system property
+ * <code>net.jini.loader.pref.jarCache</code> names a directory, and only
+ * for JAR files at HTTP, HTTPS and HTTPMD URLs.  JAR files are stored in
+ * that directory under names derived from their message digests, so a JAR
+ * file is stored once however many URLs refer to it.  Each time a stored
+ * JAR file is opened it is copied to a private temporary file while its
+ * digest is computed, and only that copy is opened, so a JAR file replaced
+ * in the cache directory after it was checked is never used.  For
+ * an HTTPMD URL, the digest is the one in the URL, and a stored copy is
+ * used without contacting the server.  For an HTTP or HTTPS URL, the
+ * SHA-256 digest of the content is recorded for the URL together with the
+ * entity tag and modification time of the response, and the stored copy is
+ * revalidated with a conditional request the first time the URL is used in
+ * a JVM.
+ * <p>
+ * When the stored JAR files take more bytes than the system property
+ * <code>net.jini.loader.pref.jarCacheSize</code> (256 MB by default), the
+ * least recently used ones are removed.  Files are written under temporary
+ * names and renamed into place, so JVMs sharing the cache never see a
+ * partly written file.  The cache directory is created readable and
+ * writable only by its owner, and should only be shared by JVMs run by
+ * the same user.
+ *
+ * @since 3.0
+ **/
+final class JarCache {
+
+    /** algorithm of the digests of JAR files at non-HTTPMD URLs */
+    private static final String DIGEST = "SHA-256";
+
+    private static final String JAR_SUFFIX = ".jar";
+    private static final String INDEX_SUFFIX = ".url";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** age after which temporary files are assumed to be abandoned */
+    private static final long TEMP_AGE = 24L * 60 * 60 * 1000;
+
+    /** cache directory, or null if the cache is not used */
+    private static final File dir;
+
+    /** maximum bytes of JAR files in the cache */
+    private static final long maxSize;
+
+    static {
+	String name = AccessController.doPrivileged(
+	    new GetPropertyAction("net.jini.loader.pref.jarCache"));
+	dir = (name != null && name.length() > 0) ? new File(name) : null;
+	maxSize = AccessController.doPrivileged(
+	    new GetLongAction("net.jini.loader.pref.jarCacheSize",
+			      256L * 1024 * 1024)).longValue();
+    }
+
+    private static final Logger logger =
+	Logger.getLogger("net.jini.loader.pref.PreferredClassProvider");
+
+    /** cached files verified in this JVM, keyed by URL string */
+    private static final ConcurrentMap<String,Stored> current =
+	new ConcurrentHashMap<String,Stored>();
+
+    /**
+     * locks serializing the fetching of each URL in this JVM, keyed by URL
+     * string while a fetch is in progress
+     */
+    private static final ConcurrentMap<String,Object> locks =
+	new ConcurrentHashMap<String,Object>();
+
+    private JarCache() { throw new AssertionError(); }
+
+    /** A JAR file in the cache and the digest its content must have. */
+    private static final class Stored {
+	final File file;
+	final String algorithm;
+	final String digest;
+
+	Stored(File file, String algorithm, String digest) {
+	    this.file = file;
+	    this.algorithm = algorithm;
+	    this.digest = digest;
+	}
+    }
+
+    /**
+     * Returns true if the JAR file at the specified URL is obtained through
+     * the cache.
+     */
+    static boolean isCached(URL url) {
+	if (dir == null || url.getFile().endsWith("/")) {
+	    return false;
+	}
+	String protocol = url.getProtocol();
+	return protocol.equals("http") || protocol.equals("https") ||
+	    protocol.equals("httpmd");
+    }
+
+    /**
+     * Returns the JAR file at the specified URL from the cache, fetching it
+     * first if necessary.
+     *
+     * @throws FileNotFoundException if the JAR file definitely does not
+     * exist
+     * @throws IOException if the JAR file cannot be obtained
+     */
+    static JarFile openJarFile(final URL url) throws IOException {
+	final AccessControlContext acc = AccessController.getContext();
+	try {
+	    return AccessController.doPrivileged(
+		new PrivilegedExceptionAction<JarFile>() {
+		    public JarFile run() throws IOException {
+			return openJarFile0(url, acc);
+		    }
+		});
+	} catch (PrivilegedActionException e) {
+	    throw (IOException) e.getException();
+	}
+    }
+
+    /**
+     * Opens a private copy of the cached JAR file at the specified URL,
+     * fetching the JAR file again if the cached one no longer has the
+     * expected digest.  The server is contacted in the security context
+     * of the caller.
+     */
+    private static JarFile openJarFile0(URL url, AccessControlContext acc)
+	throws IOException
+    {
+	for (int attempt = 0; ; attempt++) {
+	    Stored stored = getStored(url, acc);
+	    if (stored == null) {
+		throw new FileNotFoundException(url.toString());
+	    }
+	    File copy = copyVerified(stored);
+	    if (copy != null) {
+		return new JarFile(copy, true,
+				   ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
+	    }
+	    current.remove(url.toString(), stored);
+	    if (attempt > 0) {
+		throw new IOException("Cached JAR file for " + url +
+				      " does not have the expected " +
+				      stored.algorithm + " message digest");
+	    }
+	}
+    }
+
+    /**
+     * Returns the cached JAR file at the specified URL, fetching it first
+     * if there is no verified copy, or returns null if the JAR file
+     * definitely does not exist.
+     */
+    private static Stored getStored(URL url, AccessControlContext acc)
+	throws IOException
+    {
+	String key = url.toString();
+	Stored stored = current.get(key);
+	if (stored == null || !stored.file.exists()) {
+	    Object lock = new Object();
+	    synchronized (lock) {
+		/* A lock is only in the map while its owner fetches, and is
+		 * held before it is published, so waiting for the monitor
+		 * of another thread's lock waits until its fetch is done. */
+		for (Object existing;
+		     (existing = locks.putIfAbsent(key, lock)) != null; )
+		{
+		    synchronized (existing) {
+			/* wait for the fetch in progress */
+		    }
+		}
+		try {
+		    stored = current.get(key);
+		    if (stored == null || !stored.file.exists()) {
+			if (url.getProtocol().equals("httpmd")) {
+			    stored = fetchDigest(url, acc);
+			} else {
+			    stored = fetchRevalidate(url, acc);
+			}
+			if (stored == null) {
+			    current.remove(key);
+			    return null;
+			}
+			current.put(key, stored);
+		    }
+		} finally {
+		    locks.remove(key, lock);
+		}
+	    }
+	}
+	stored.file.setLastModified(System.currentTimeMillis());
+	return stored;
+    }
+
+    /**
+     * Copies a cached JAR file to a temporary file that only this user
+     * can access, computing its digest from the bytes copied, and returns
+     * the copy, or returns null, removing the cached file, if it does not
+     * have the expected digest.
+     */
+    private static File copyVerified(Stored stored) throws IOException {
+	MessageDigest md = getMessageDigest(stored.algorithm);
+	File copy = File.createTempFile("jar", JAR_SUFFIX);
+	boolean verified = false;
+	try {
+	    ownerOnly(copy);
+	    InputStream in;
+	    try {
+		in = new FileInputStream(stored.file);
+	    } catch (FileNotFoundException e) {
+		/* removed by another JVM */
+		return null;
+	    }
+	    try {
+		OutputStream out = new FileOutputStream(copy);
+		try {
+		    byte[] buf = new byte[8192];
+		    for (int n; (n = in.read(buf)) != -1; ) {
+			md.update(buf, 0, n);
+			out.write(buf, 0, n);
+		    }
+		} finally {
+		    out.close();
+		}
+	    } finally {
+		in.close();
+	    }
+	    if (stored.digest.equals(normalize(hexString(md.digest())))) {
+		verified = true;
+		return copy;
+	    }
+	    if (logger.isLoggable(Levels.FAILED)) {
+		logger.log(Levels.FAILED,
+			   "removing cached JAR file {0} with the wrong digest",
+			   stored.file);
+	    }
+	    stored.file.delete();
+	    return null;
+	} finally {
+	    if (!verified) {
+		copy.delete();
+	    }
+	}
+    }
+
+    /** Makes a file or directory accessible only to its owner. */
+    private static void ownerOnly(File file) {
+	file.setReadable(false, false);
+	file.setReadable(true, true);
+	file.setWritable(false, false);
+	file.setWritable(true, true);
+	if (file.isDirectory()) {
+	    file.setExecutable(false, false);
+	    file.setExecutable(true, true);
+	}
+    }
+
+    /** Creates the cache directory, accessible only to its owner. */
+    private static void makeDirectory() {
+	if (!dir.exists() && dir.mkdirs()) {
+	    ownerOnly(dir);
+	}
+    }
+
+    /**
+     * Returns a verified copy of the JAR file at an HTTPMD URL, which is
+     * only fetched if there is none in the cache.
+     */
+    private static Stored fetchDigest(URL url, AccessControlContext acc)
+	throws IOException
+    {
+	String path = url.getPath();
+	int semi = path.lastIndexOf(';');
+	int equals = path.indexOf('=', semi);
+	if (semi < 0 || equals < 0) {
+	    throw new MalformedURLException(
+		"Message digest parameter is missing: " + url);
+	}
+	String algorithm = path.substring(semi + 1, equals);
+	String digest = path.substring(equals + 1);
+	int comment = digest.indexOf(',');
+	if (comment >= 0) {
+	    digest = digest.substring(0, comment);
+	}
+	if (!isHex(digest)) {
+	    throw new MalformedURLException(
+		"Message digest parameter is not hexadecimal: " + url);
+	}
+	digest = normalize(digest);
+	File file = new File(dir, fileName(algorithm, digest));
+	if (!file.exists()) {
+	    URLConnection conn = connect(url, null, 0, acc);
+	    if (conn == null) {
+		return null;
+	    }
+	    file = store(conn.getInputStream(), algorithm, digest);
+	}
+	/* the digest is checked each time the file is opened */
+	return new Stored(file, algorithm, digest);
+    }
+
+    /**
+     * Returns a verified copy of the JAR file at an HTTP or HTTPS URL,
+     * which is revalidated with a conditional request if there is one in
+     * the cache.
+     */
+    private static Stored fetchRevalidate(URL url, AccessControlContext acc)
+	throws IOException
+    {
+	File index = new File(dir, hexDigest(url.toString()) + INDEX_SUFFIX);
+	Properties entry = readIndex(index);
+	File file = null;
+	String digest = null;
+	String etag = null;
+	long lastModified = 0;
+	if (entry != null) {
+	    String name = entry.getProperty("file", "");
+	    digest = name.substring(
+		name.lastIndexOf('-') + 1,
+		Math.max(name.length() - JAR_SUFFIX.length(), 0));
+	    file = new File(dir, name);
+	    /* the digest is checked each time the file is opened */
+	    if (isHex(digest) && name.equals(fileName(DIGEST, digest)) &&
+		file.exists())
+	    {
+		etag = entry.getProperty("etag");
+		try {
+		    lastModified =
+			Long.parseLong(entry.getProperty("lastModified", "0"));
+		} catch (NumberFormatException e) {
+		}
+	    } else {
+		file = null;
+	    }
+	}
+	URLConnection conn = connect(url, etag, lastModified, acc);
+	if (conn == null) {
+	    index.delete();
+	    return null;
+	}
+	if (file != null && conn instanceof HttpURLConnection &&
+	    ((HttpURLConnection) conn).getResponseCode() ==
+		HttpURLConnection.HTTP_NOT_MODIFIED)
+	{
+	    try {
+		conn.getInputStream().close();
+	    } catch (IOException e) {
+	    }
+	    return new Stored(file, DIGEST, digest);
+	}
+	file = store(conn.getInputStream(), DIGEST, null);
+	digest = file.getName().substring(
+	    file.getName().lastIndexOf('-') + 1,
+	    file.getName().length() - JAR_SUFFIX.length());
+	entry = new Properties();
+	entry.setProperty("url", url.toString());
+	entry.setProperty("file", file.getName());
+	if (conn.getHeaderField("ETag") != null) {
+	    entry.setProperty("etag", conn.getHeaderField("ETag"));
+	}
+	entry.setProperty("lastModified", String.valueOf(conn.getLastModified()));
+	writeIndex(index, entry);
+	return new Stored(file, DIGEST, digest);
+    }
+
+    /**
+     * Opens a connection to the specified URL in the specified security
+     * context, conditional on the entity tag or modification time if
+     * either is known, and returns it, or returns null if the resource
+     * definitely does not exist.
+     */
+    private static URLConnection connect(final URL url,
+					 final String etag,
+					 final long lastModified,
+					 AccessControlContext acc)
+	throws IOException
+    {
+	try {
+	    return AccessController.doPrivileged(
+		new PrivilegedExceptionAction<URLConnection>() {
+		    public URLConnection run() throws IOException {
+			URLConnection conn = url.openConnection();
+			if (!(conn instanceof HttpURLConnection)) {
+			    conn.connect();
+			    return conn;
+			}
+			HttpURLConnection hconn = (HttpURLConnection) conn;
+			if (etag != null) {
+			    hconn.setRequestProperty("If-None-Match", etag);
+			}
+			if (lastModified > 0) {
+			    hconn.setIfModifiedSince(lastModified);
+			}
+			int responseCode = hconn.getResponseCode();
+			switch (responseCode) {
+			case HttpURLConnection.HTTP_OK:
+			case HttpURLConnection.HTTP_NOT_AUTHORITATIVE:
+			case HttpURLConnection.HTTP_NOT_MODIFIED:
+			    return hconn;
+			case HttpURLConnection.HTTP_NOT_FOUND:
+			case HttpURLConnection.HTTP_FORBIDDEN:
+			case HttpURLConnection.HTTP_GONE:
+			    /* the JAR file definitely does not exist */
+			    return null;
+			default:
+			    throw new IOException(
+				"Indefinite http response for JAR file " +
+				"request: " + hconn.getResponseMessage());
+			}
+		    }
+		}, acc);
+	} catch (PrivilegedActionException e) {
+	    throw (IOException) e.getException();
+	}
+    }
+
+    /**
+     * Copies a JAR file from the specified stream into the cache, checking
+     * that it has the expected digest if that is not null, and returns the
+     * cached file.
+     */
+    private static File store(InputStream in,
+			      String algorithm,
+			      String expected)
+	throws IOException
+    {
+	MessageDigest md = getMessageDigest(algorithm);
+	makeDirectory();
+	File temp = File.createTempFile("jar", TEMP_SUFFIX, dir);
+	try {
+	    try {
+		OutputStream out = new FileOutputStream(temp);
+		try {
+		    byte[] buf = new byte[8192];
+		    for (int n; (n = in.read(buf)) != -1; ) {
+			md.update(buf, 0, n);
+			out.write(buf, 0, n);
+		    }
+		} finally {
+		    out.close();
+		}
+	    } finally {
+		in.close();
+	    }
+	    String digest = normalize(hexString(md.digest()));
+	    if (expected != null && !expected.equals(digest)) {
+		throw new IOException("JAR file has the wrong " + algorithm +
+				      " message digest: " + digest);
+	    }
+	    File file = new File(dir, fileName(algorithm, digest));
+	    if (!temp.renameTo(file) && !file.exists()) {
+		throw new IOException("Unable to store JAR file in cache: " +
+				      file);
+	    }
+	    trim(file);
+	    return file;
+	} finally {
+	    temp.delete();
+	}
+    }
+
+    /**
+     * Removes the least recently used JAR files, other than the one
+     * specified, while the JAR files in the cache take more than the
+     * maximum size, and removes abandoned temporary files.
+     */
+    private static void trim(File keep) {
+	final long now = System.currentTimeMillis();
+	File[] temps = dir.listFiles(new FileFilter() {
+	    public boolean accept(File f) {
+		return f.getName().endsWith(TEMP_SUFFIX) &&
+		    now - f.lastModified() > TEMP_AGE;
+	    }
+	});
+	for (int i = 0; temps != null && i < temps.length; i++) {
+	    temps[i].delete();
+	}
+	File[] jars = dir.listFiles(new FileFilter() {
+	    public boolean accept(File f) {
+		return f.getName().endsWith(JAR_SUFFIX);
+	    }
+	});
+	if (jars == null) {
+	    return;
+	}
+	long total = 0;
+	final long[] used = new long[jars.length];
+	Integer[] order = new Integer[jars.length];
+	for (int i = 0; i < jars.length; i++) {
+	    total += jars[i].length();
+	    used[i] = jars[i].lastModified();
+	    order[i] = Integer.valueOf(i);
+	}
+	if (total <= maxSize) {
+	    return;
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+	    public int compare(Integer a, Integer b) {
+		long x = used[a.intValue()];
+		long y = used[b.intValue()];
+		return x < y ? -1 : (x == y ? 0 : 1);
+	    }
+	});
+	for (int i = 0; i < order.length && total > maxSize; i++) {
+	    File jar = jars[order[i].intValue()];
+	    long length = jar.length();
+	    if (!jar.equals(keep) && jar.delete()) {
+		total -= length;
+		if (logger.isLoggable(Level.FINEST)) {
+		    logger.log(Level.FINEST,
+			       "removed least recently used JAR file {0}",
+			       jar);
+		}
+	    }
+	}
+    }
+
+    /** Reads an index entry, returning null if there is none. */
+    private static Properties readIndex(File index) {
+	try {
+	    InputStream in = new FileInputStream(index);
+	    try {
+		Properties entry = new Properties();
+		entry.load(in);
+		return entry;
+	    } finally {
+		in.close();
+	    }
+	} catch (FileNotFoundException e) {
+	    return null;
+	} catch (IOException e) {
+	    if (logger.isLoggable(Levels.HANDLED)) {
+		logger.log(Levels.HANDLED,
+			   "unable to read JAR cache index " + index, e);
+	    }
+	    return null;
+	} catch (IllegalArgumentException e) {
+	    return null;
+	}
+    }
+
+    /** Writes an index entry, replacing any previous one. */
+    private static void writeIndex(File index, Properties entry)
+	throws IOException
+    {
+	File temp = File.createTempFile("url", TEMP_SUFFIX, dir);
+	try {
+	    OutputStream out = new FileOutputStream(temp);
+	    try {
+		entry.store(out, null);
+	    } finally {
+		out.close();
+	    }
+	    if (!temp.renameTo(index)) {
+		index.delete();
+		temp.renameTo(index);
+	    }
+	} finally {
+	    temp.delete();
+	}
+    }
+
+    /** Returns the name of the file holding a JAR file with a digest. */
+    private static String fileName(String algorithm, String digest) {
+	StringBuilder sb = new StringBuilder(algorithm.length() +
+					     digest.length() + 5);
+	algorithm = algorithm.toLowerCase();
+	for (int i = 0; i < algorithm.length(); i++) {
+	    char c = algorithm.charAt(i);
+	    sb.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ?
+		      c : '_');
+	}
+	return sb.append('-').append(digest).append(JAR_SUFFIX).toString();
+    }
+
+    /**
+     * Returns a hexadecimal digest in lowercase and without leading
+     * zeros, as HTTPMD URLs may write it either way.
+     */
+    private static String normalize(String digest) {
+	int i = 0;
+	while (i < digest.length() - 1 && digest.charAt(i) == '0') {
+	    i++;
+	}
+	return digest.substring(i).toLowerCase();
+    }
+
+    /** Returns true if a string is a non-empty hexadecimal number. */
+    private static boolean isHex(String s) {
+	for (int i = s.length(); --i >= 0; ) {
+	    if (Character.digit(s.charAt(i), 16) < 0) {
+		return false;
+	    }
+	}
+	return s.length() > 0;
+    }
+
+    /** Returns the hexadecimal SHA-256 digest of a string. */
+    private static String hexDigest(String s) throws IOException {
+	return hexString(getMessageDigest(DIGEST).digest(s.getBytes("UTF-8")));
+    }
+
+    private static String hexString(byte[] digest) {
+	StringBuilder sb = new StringBuilder(digest.length * 2);
+	for (int i = 0; i < digest.length; i++) {
+	    byte b = digest[i];
+	    sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+	    sb.append(Character.forDigit(b & 0xf, 16));
+	}
+	return sb.toString();
+    }
+
+    private static MessageDigest getMessageDigest(String algorithm)
+	throws IOException
+    {
+	try {
+	    return MessageDigest.getInstance(algorithm);
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IOException("Message digest algorithm not found: " +
+				  algorithm, e);
+	}
+    }
+}
@@ -18,6 +18,8 @@
 
 package net.jini.loader.pref;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilePermission;
@@ -49,6 +51,8 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.jini.loader.ClassAnnotation;
@@ -527,6 +531,9 @@ public class PreferredClassLoader extends RFC3986URLClassLoader
     private InputStream getPreferredInputStream(URL firstURL)
 	throws IOException
     {
+	if (JarCache.isCached(firstURL)) {
+	    return getCachedPreferredInputStream(firstURL);
+	}
 	URL prefListURL = null;
 	try {
 	    URL baseURL;	// base URL to load PREF_NAME relative to
@@ -581,6 +588,53 @@ public class PreferredClassLoader extends RFC3986URLClassLoader
 	}
     }
 
+    /**
+     * Returns an InputStream from which the preferred list in the JAR
+     * file at the specified URL can be read, or null if there is
+     * definitely no preferred list, reading the JAR file from the
+     * {@link JarCache}.
+     **/
+    private InputStream getCachedPreferredInputStream(URL firstURL)
+	throws IOException
+    {
+	JarFile jar;
+	try {
+	    jar = JarCache.openJarFile(firstURL);
+	} catch (FileNotFoundException e) {
+	    return null;
+	}
+	try {
+	    JarEntry entry = jar.getJarEntry(PREF_NAME);
+	    if (entry == null) {
+		return null;
+	    }
+	    InputStream in = jar.getInputStream(entry);
+	    try {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		for (int n; (n = in.read(buf)) != -1; ) {
+		    out.write(buf, 0, n);
+		}
+		return new ByteArrayInputStream(out.toByteArray());
+	    } finally {
+		in.close();
+	    }
+	} finally {
+	    jar.close();
+	}
+    }
+
+    /**
+     * Returns the JAR file at the specified URL, from the {@link
+     * JarCache} if the JAR file is cached there.
+     **/
+    protected JarFile openJarFile(URL jarURL) throws IOException {
+	if (JarCache.isCached(jarURL)) {
+	    return JarCache.openJarFile(jarURL);
+	}
+	return super.openJarFile(jarURL);
+    }
+
     /* cache existence of jar files referenced by codebase urls */
     private static final Set<String> existSet = new HashSet<String>(11);
 
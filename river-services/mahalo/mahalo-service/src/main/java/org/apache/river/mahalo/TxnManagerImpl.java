@@ -31,6 +31,7 @@ import org.apache.river.mahalo.log.LogRecord;
 import org.apache.river.mahalo.log.LogRecovery;
 import org.apache.river.mahalo.log.MultiLogManager;
 import org.apache.river.mahalo.log.MultiLogManagerAdmin;
+import org.apache.river.mahalo.log.SegmentedLogManager;
 import org.apache.river.start.lifecycle.LifeCycle;
 import org.apache.river.api.util.Startable;
 import org.apache.river.thread.InterruptedStatusThread;
@@ -166,6 +167,10 @@ class TxnManagerImpl /*extends RemoteServer*/
     private final Queue<Long> unsettledtxns = new ConcurrentLinkedQueue<Long>();
     private final InterruptedStatusThread settleThread;
     private final String persistenceDirectory;
+    /** Whether transactions are recorded in one shared, segmented log */
+    private final boolean sharedTransactionLog;
+    /** Size past which the shared log starts a new segment */
+    private final long transactionLogSegmentSize;
     private final ActivationID activationID;
     /** Whether the activation ID has been prepared */
     private final boolean activationPrepared;
@@ -356,6 +361,8 @@ class TxnManagerImpl /*extends RemoteServer*/
                 participantPreparer = init.participantPreparer;
                 txnLeasePeriodPolicy = init.txnLeasePeriodPolicy;
                 persistenceDirectory = init.persistenceDirectory;
+                sharedTransactionLog = init.sharedTransactionLog;
+                transactionLogSegmentSize = init.transactionLogSegmentSize;
                 joinStateManager = init.joinStateManager;
                 settlerpool 
                         = new ExtensibleExecutorService(
@@ -383,6 +390,8 @@ class TxnManagerImpl /*extends RemoteServer*/
                 participantPreparer = null;
                 txnLeasePeriodPolicy = null;
                 persistenceDirectory = null;
+                sharedTransactionLog = false;
+                transactionLogSegmentSize = 0;
                 joinStateManager = null;
                 settlerpool = null;
                 settlerWakeupMgr = null;
@@ -437,7 +446,10 @@ class TxnManagerImpl /*extends RemoteServer*/
                     if(initLogger.isLoggable(Level.FINEST)) {
                         initLogger.log(Level.FINEST, "Setting up log manager");
                     }
-                    if (persistent) {
+                    if (persistent && sharedTransactionLog) {
+                        logmgr = new SegmentedLogManager(TxnManagerImpl.this,
+                            persistenceDirectory, transactionLogSegmentSize);
+                    } else if (persistent) {
                         logmgr = new MultiLogManager(TxnManagerImpl.this, persistenceDirectory);
                     } else {
                         logmgr = new MultiLogManager();
@@ -75,6 +75,8 @@ class TxnManagerImplInitializer {
     ProxyPreparer participantPreparer = null;
     LeasePeriodPolicy txnLeasePeriodPolicy = null;
     String persistenceDirectory = null;
+    boolean sharedTransactionLog = false;
+    long transactionLogSegmentSize = 4L * 1024 * 1024;
     JoinStateManager joinStateManager = null;
     ExecutorService settlerpool = null;
     WakeupManager settlerWakeupMgr = null;
@@ -157,6 +159,11 @@ class TxnManagerImplInitializer {
             if (TxnManagerImpl.initLogger.isLoggable(Level.CONFIG)) {
                 TxnManagerImpl.initLogger.log(Level.CONFIG, "Persistence directory is: {0}", persistenceDirectory);
             }
+            sharedTransactionLog = ((Boolean) config.getEntry(TxnManager.MAHALO, "sharedTransactionLog", boolean.class, Boolean.FALSE)).booleanValue();
+            transactionLogSegmentSize = Config.getLongEntry(config, TxnManager.MAHALO, "transactionLogSegmentSize", transactionLogSegmentSize, 1, Long.MAX_VALUE);
+            if (TxnManagerImpl.initLogger.isLoggable(Level.CONFIG)) {
+                TxnManagerImpl.initLogger.log(Level.CONFIG, "Shared transaction log is: {0}, segment size: {1}", new Object[]{Boolean.valueOf(sharedTransactionLog), Long.valueOf(transactionLogSegmentSize)});
+            }
         } else {
             // just for insurance
             persistenceDirectory = null;
@@ -0,0 +1,968 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.mahalo.log;
+
+import org.apache.river.logging.Levels;
+import org.apache.river.mahalo.log.MultiLogManager.LogRemovalManager;
+import org.apache.river.mahalo.proxy.TxnManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.jini.admin.Administrable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A <code>LogManager</code> that keeps the logs of all transactions in
+ * one shared, append-only log, rather than in a file per transaction as
+ * <code>MultiLogManager</code> does.
+ * <p>
+ * The shared log is a sequence of segment files.  Records are appended
+ * to the newest segment; once it grows past the configured segment size
+ * a new one is started.  Each record is framed with its length, a
+ * checksum, the cookie of the log it belongs to and its sequence number
+ * within that log, so recovery can rebuild each transaction's records
+ * in order and stop at a record torn by a crash.  Invalidating a log
+ * appends a marker record, after which recovery ignores the log.
+ * <p>
+ * Writes are group committed: a writer buffers its record and then
+ * waits until it is stable, and one waiting writer forces every
+ * buffered record to disk with a single write and force on behalf of
+ * all of them.
+ * <p>
+ * A background thread deletes sealed segments once every log with
+ * records in them has been invalidated, and compacts sealed segments in
+ * which few logs are still live by copying their records forward, with
+ * their original sequence numbers, so the segment can be deleted.
+ * <p>
+ * Per-transaction log files left by <code>MultiLogManager</code> in the
+ * same directory are recovered and copied into the shared log, then
+ * deleted, by {@link #recover recover}.
+ *
+ * @see MultiLogManager
+ */
+public class SegmentedLogManager
+        implements LogManager, FileModes, Administrable, MultiLogManagerAdmin {
+    private static final String SEGMENT_FILE = "Segment.";
+    private static final String LEGACY_LOG_FILE = "Log.";
+
+    /** Record type of a <code>LogRecord</code> written to a log */
+    private static final byte RECORD = 1;
+    /** Record type of the marker written when a log is invalidated */
+    private static final byte INVALIDATE = 2;
+    /** Bytes in a record's length and checksum fields */
+    private static final int FRAME_HEADER = 8;
+    /** Bytes in a record's cookie, sequence number and type fields */
+    private static final int BODY_HEADER = 13;
+    private static final byte[] NO_DATA = new byte[0];
+
+    /**
+     * A sealed segment is compacted once fewer than this percentage of
+     * the logs with records in it are still live.
+     */
+    private static final int COMPACT_PERCENT = 25;
+    /** Milliseconds between passes of the compaction thread */
+    private static final long COMPACT_INTERVAL = 10000;
+
+    /** Logger for persistence related messages */
+    private static final Logger persistenceLogger =
+        Logger.getLogger(TxnManager.MAHALO + ".persistence");
+
+    /** Logger for operations related messages */
+    private static final Logger operationsLogger =
+        Logger.getLogger(TxnManager.MAHALO + ".operations");
+
+    private static final FilenameFilter segmentFilter =
+        new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_FILE);
+            }
+        };
+
+    private static final FilenameFilter legacyFilter =
+        new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(LEGACY_LOG_FILE);
+            }
+        };
+
+    /** Client called during log recovery to process log objects */
+    private final LogRecovery client;
+
+    /** Persistence directory */
+    private final File directory;
+
+    /** Size in bytes past which a new segment is started */
+    private final long segmentSize;
+
+    /* The remaining fields are guarded by this */
+
+    /** Map of live logs keyed by their associated cookie */
+    private final Map<Long,SharedLog> logByID = new HashMap<Long,SharedLog>();
+
+    /** Segments keyed by their number, the last being the active one */
+    private final SortedMap<Long,Segment> segments = new TreeMap<Long,Segment>();
+
+    /** Segment new records are written to */
+    private Segment active;
+
+    /** Records appended since the last batch */
+    private FrameBuffer pending = new FrameBuffer();
+
+    /** Sequence number of the last record appended */
+    private long appended = 0;
+
+    /** Sequence number of the last record forced to disk */
+    private long forced = 0;
+
+    /** True while a batch is being written */
+    private boolean flushing = false;
+
+    /** Set if writing a batch failed, after which no more can be written */
+    private IOException failure = null;
+
+    /** Flag that is set to true upon destruction */
+    private boolean destroyed = false;
+
+    /** Deletes and compacts sealed segments */
+    private Thread compactor;
+
+    /**
+     * Create a <code>SegmentedLogManager</code>.
+     *
+     * @param client who to inform during recovery.
+     *
+     * @param path where to store logging information.
+     *
+     * @param segmentSize the size in bytes past which a new segment
+     *        file is started.
+     */
+    public SegmentedLogManager(LogRecovery client, String path,
+                               long segmentSize)
+    {
+	if (path == null)
+	    throw new IllegalArgumentException("SegmentedLogManager: must use " +
+						"non-null path");
+	if (client == null)
+	    throw new IllegalArgumentException("SegmentedLogManager: must use " +
+						"non-null recovery client");
+	if (segmentSize <= 0)
+	    throw new IllegalArgumentException("SegmentedLogManager: segment " +
+						"size must be positive");
+        this.client = client;
+        this.directory = new File(path);
+        this.segmentSize = segmentSize;
+
+	if (persistenceLogger.isLoggable(Level.FINEST)) {
+            persistenceLogger.log(Level.FINEST,
+	    "directory = {0}, segment size = {1}",
+	    new Object[] {directory, Long.valueOf(segmentSize)});
+	}
+        if (!directory.exists() && !directory.mkdirs()) {
+            if (persistenceLogger.isLoggable(Level.SEVERE)) {
+                persistenceLogger.log(Level.SEVERE,
+                "Could not create {0}", directory);
+            }
+        }
+    }
+
+    // javadoc inherited from supertype
+    public synchronized ClientLog logFor(long cookie) throws LogException {
+        if (operationsLogger.isLoggable(Level.FINER)) {
+            operationsLogger.entering(SegmentedLogManager.class.getName(),
+	        "logFor", Long.valueOf(cookie));
+	}
+        if (destroyed)
+            throw new LogException("Manager has been destroyed");
+        Long key = Long.valueOf(cookie);
+        SharedLog log = logByID.get(key);
+        if (log == null) {
+            log = new SharedLog(cookie, 0);
+            logByID.put(key, log);
+        }
+        if (persistenceLogger.isLoggable(Level.FINEST)) {
+            persistenceLogger.log(Level.FINEST,
+            "Currently managing {0} logs.",
+            Integer.valueOf(logByID.size()));
+        }
+        if (operationsLogger.isLoggable(Level.FINER)) {
+            operationsLogger.exiting(SegmentedLogManager.class.getName(),
+	        "logFor", log);
+	}
+        return log;
+    }
+
+    /**
+     * Consumes the shared log, and any per-transaction log files left by
+     * <code>MultiLogManager</code>, and re-constructs a system's state.
+     * Starts a new segment for subsequent records, so any record torn by
+     * a crash is never followed by new ones in the same segment.
+     */
+    public void recover() throws LogException {
+        if (operationsLogger.isLoggable(Level.FINER)) {
+            operationsLogger.entering(SegmentedLogManager.class.getName(),
+	        "recover");
+	}
+        /* Map of cookie to that log's records, keyed by sequence number;
+         * a record copied forward by compaction may be read twice. */
+        Map<Long,SortedMap<Integer,byte[]>> records =
+            new HashMap<Long,SortedMap<Integer,byte[]>>();
+        Map<Long,Set<Segment>> membership = new HashMap<Long,Set<Segment>>();
+        Set<Long> invalidated = new HashSet<Long>();
+        long nextSegment = 0;
+
+        String[] names = directory.list(segmentFilter);
+        if (names == null)
+            names = new String[0];
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            try {
+                numbers[count++] =
+                    Long.parseLong(names[i].substring(SEGMENT_FILE.length()));
+            } catch (NumberFormatException e) {
+                count--;
+                if (persistenceLogger.isLoggable(Level.WARNING)) {
+                    persistenceLogger.log(Level.WARNING,
+                    "Ignoring unexpected file {0}", names[i]);
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+
+        for (int i = 0; i < numbers.length; i++) {
+            Segment segment = new Segment(numbers[i], segmentFile(numbers[i]));
+            if (persistenceLogger.isLoggable(Level.FINEST)) {
+                persistenceLogger.log(Level.FINEST,
+                "Recovering segment: {0}", segment.file);
+            }
+            List<Frame> frames;
+            try {
+                frames = readFrames(segment);
+            } catch (IOException ioe) {
+                /* Torn or corrupt records don't throw, so the file could
+                 * not be read at all.  Don't register the segment, that
+                 * would let compaction delete records that may still be
+                 * salvaged; leave the file for the operator instead. */
+                throw logException("Unable to read log segment " +
+                                   segment.file, ioe);
+            }
+            segments.put(Long.valueOf(segment.number), segment);
+            nextSegment = segment.number + 1;
+            for (Frame f : frames) {
+                Long key = Long.valueOf(f.cookie);
+                Set<Segment> in = membership.get(key);
+                if (in == null) {
+                    in = new HashSet<Segment>();
+                    membership.put(key, in);
+                }
+                in.add(segment);
+                if (f.type == INVALIDATE) {
+                    invalidated.add(key);
+                    continue;
+                }
+                SortedMap<Integer,byte[]> recs = records.get(key);
+                if (recs == null) {
+                    recs = new TreeMap<Integer,byte[]>();
+                    records.put(key, recs);
+                }
+                recs.put(Integer.valueOf(f.seq), f.data);
+            }
+        }
+
+        synchronized (this) {
+            try {
+                openSegment(nextSegment);
+            } catch (IOException ioe) {
+                throw logException("Unable to open log segment", ioe);
+            }
+            for (Map.Entry<Long,Set<Segment>> e : membership.entrySet()) {
+                boolean live = !invalidated.contains(e.getKey()) &&
+                               records.containsKey(e.getKey());
+                for (Segment s : e.getValue()) {
+                    s.total++;
+                    if (live)
+                        s.live++;
+                }
+            }
+        }
+
+        for (Map.Entry<Long,SortedMap<Integer,byte[]>> e : records.entrySet()) {
+            Long key = e.getKey();
+            if (invalidated.contains(key))
+                continue;
+            SortedMap<Integer,byte[]> recs = e.getValue();
+            List<LogRecord> recList = new ArrayList<LogRecord>(recs.size());
+            try {
+                for (byte[] data : recs.values()) {
+                    recList.add(deserialize(data));
+                }
+            } catch (Exception ex) {
+                if (persistenceLogger.isLoggable(Level.WARNING)) {
+                    persistenceLogger.log(Level.WARNING,
+                    "Skipping log recovery for cookie " + key, ex);
+                }
+                /* Mark the log invalidated, or once compaction deletes
+                 * some of its segments the records left in the others
+                 * would be recovered as if they were the whole log. */
+                synchronized (this) {
+                    SharedLog log =
+                        new SharedLog(key.longValue(), recs.lastKey().intValue() + 1);
+                    log.segments.addAll(membership.get(key));
+                    invalidate(log);
+                }
+                continue;
+            }
+            for (LogRecord rec : recList) {
+                client.recover(key.longValue(), rec);
+            }
+            synchronized (this) {
+                SharedLog log =
+                    new SharedLog(key.longValue(), recs.lastKey().intValue() + 1);
+                log.segments.addAll(membership.get(key));
+                logByID.put(key, log);
+            }
+        }
+
+        recoverLegacyLogs(membership.keySet());
+
+        synchronized (this) {
+            compactor = new Thread(new Compactor(), "Mahalo log compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+        if (operationsLogger.isLoggable(Level.FINER)) {
+            operationsLogger.exiting(SegmentedLogManager.class.getName(),
+	        "recover");
+	}
+    }
+
+    /**
+     * Recovers the per-transaction log files written by
+     * <code>MultiLogManager</code>, copies their records into the shared
+     * log and deletes them.  A crash before a file is deleted leaves some
+     * or all of its records already in the shared log; those records
+     * were recovered from the shared log and are skipped.
+     *
+     * @param shared the cookies of the logs found in the shared log
+     */
+    private void recoverLegacyLogs(Set<Long> shared) throws LogException {
+        String[] names = directory.list(legacyFilter);
+        if (names == null)
+            return;
+        LogRemovalManager ignore = new LogRemovalManager() {
+            public void release(long cookie) {
+            }
+        };
+        for (int i = 0; i < names.length; i++) {
+            final List<LogRecord> recList = new ArrayList<LogRecord>();
+            final long[] cookie = new long[1];
+            Log legacy = new SimpleLogFile(
+                new File(directory, names[i]).getPath(), ignore);
+            if (persistenceLogger.isLoggable(Level.FINEST)) {
+                persistenceLogger.log(Level.FINEST,
+                "Migrating log: {0}", names[i]);
+            }
+            try {
+                legacy.recover(new LogRecovery() {
+                    public void recover(long c, LogRecord rec) {
+                        cookie[0] = c;
+                        recList.add(rec);
+                    }
+                });
+            } catch (LogException le) {
+                if (persistenceLogger.isLoggable(Level.WARNING)) {
+                    persistenceLogger.log(Level.WARNING,
+                    "Unable to recover log state", le);
+                }
+                continue;
+            }
+            if (recList.isEmpty())
+                continue;
+            int copied = 0;
+            if (shared.contains(Long.valueOf(cookie[0]))) {
+                SharedLog copy;
+                synchronized (this) {
+                    copy = logByID.get(Long.valueOf(cookie[0]));
+                    if (copy != null)
+                        copied = copy.nextSeq;
+                }
+                if (copy == null) {
+                    /* the copy was invalidated in the shared log */
+                    legacy.invalidate();
+                    continue;
+                }
+            }
+            ClientLog log = logFor(cookie[0]);
+            for (int j = copied; j < recList.size(); j++) {
+                client.recover(cookie[0], recList.get(j));
+                log.write(recList.get(j));
+            }
+            legacy.invalidate();
+        }
+    }
+
+    /**
+     * Retrieves the administration interface for the
+     * <code>SegmentedLogManager</code>
+     *
+     */
+    public Object getAdmin() {
+	return (MultiLogManagerAdmin)this;
+    }
+
+    /**
+     * Stops writing to the shared log and deletes its segment files.
+     *
+     * @see org.apache.river.admin.DestroyAdmin
+     */
+    public void destroy() {
+        if (operationsLogger.isLoggable(Level.FINER)) {
+            operationsLogger.entering(SegmentedLogManager.class.getName(),
+	        "destroy");
+	}
+        synchronized (this) {
+            if (destroyed) // return silently to avoids retries
+                return;
+            destroyed = true;
+            if (compactor != null)
+                compactor.interrupt();
+            while (flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (SharedLog log : logByID.values()) {
+                log.valid = false;
+            }
+            logByID.clear();
+            if (active != null)
+                active.seal();
+            for (Segment s : segments.values()) {
+                if (!s.file.delete() &&
+                    persistenceLogger.isLoggable(Levels.HANDLED))
+                {
+                    persistenceLogger.log(Levels.HANDLED,
+                    "Could not delete log segment {0}", s.file);
+                }
+            }
+            segments.clear();
+        }
+        if (operationsLogger.isLoggable(Level.FINER)) {
+            operationsLogger.exiting(SegmentedLogManager.class.getName(),
+	        "destroy");
+	}
+    }
+
+    /**
+     * Buffers a record to be written by the next batch and returns its
+     * sequence number in the shared log, for {@link #sync sync}.
+     */
+    private synchronized long append(SharedLog log, int seq, byte type,
+                                     byte[] data)
+        throws LogException
+    {
+        if (destroyed)
+            throw new LogException("Manager has been destroyed");
+        if (failure != null)
+            throw logException("Earlier log batch failed", failure);
+        pending.add(log, seq, type, data);
+        return ++appended;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number, and every
+     * record appended before it, has been forced to disk.  If no other
+     * thread is writing a batch the calling thread writes every buffered
+     * record, otherwise it waits for the batch in progress and then, if
+     * necessary, writes the next one.
+     */
+    private void sync(long seq) throws LogException {
+        final FrameBuffer batch;
+        final Segment segment;
+        final long last;
+        synchronized (this) {
+            while (true) {
+                if (forced >= seq)
+                    return;
+                if (failure != null)
+                    throw logException("Log batch failed", failure);
+                if (destroyed)
+                    throw new LogException("Manager has been destroyed");
+                if (!flushing)
+                    break;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LogException(
+                        "Interrupted waiting for log batch");
+                }
+            }
+            flushing = true;
+            batch = pending;
+            pending = new FrameBuffer();
+            segment = active;
+            last = appended;
+        }
+        IOException ex = null;
+        long end = segment.size;
+        Segment next = null;
+        try {
+            end = segment.write(batch);
+            if (end >= segmentSize)
+                next = new Segment(segment.number + 1,
+                                   segmentFile(segment.number + 1));
+        } catch (IOException e) {
+            ex = e;
+        }
+        synchronized (this) {
+            flushing = false;
+            if (ex == null) {
+                segment.size = end;
+                forced = last;
+                for (SharedLog log : batch.logs) {
+                    if (log.segments.add(segment)) {
+                        segment.total++;
+                        if (log.valid)
+                            segment.live++;
+                    }
+                }
+                if (next != null && !destroyed) {
+                    try {
+                        next.open();
+                        segments.put(Long.valueOf(next.number), next);
+                        segment.seal();
+                        active = next;
+                    } catch (IOException e) {
+                        /* keep writing to the current segment */
+                        if (persistenceLogger.isLoggable(Level.WARNING)) {
+                            persistenceLogger.log(Level.WARNING,
+                            "Unable to start log segment", e);
+                        }
+                    }
+                }
+            } else {
+                failure = ex;
+            }
+            notifyAll();
+        }
+        if (ex != null)
+            throw logException("Log batch failed", ex);
+    }
+
+    /**
+     * Appends an invalidation marker for the log and removes it from
+     * the set of live logs.  The marker is forced to disk by the next
+     * batch, and always before any segment holding the log's records is
+     * deleted.
+     */
+    private synchronized void invalidate(SharedLog log) throws LogException {
+        if (!log.valid || destroyed)
+            return;
+        if (persistenceLogger.isLoggable(Level.FINEST)) {
+            persistenceLogger.log(Level.FINEST,
+                "Invalidating log for cookie: {0}", Long.valueOf(log.cookie));
+        }
+        append(log, log.nextSeq++, INVALIDATE, NO_DATA);
+        log.valid = false;
+        logByID.remove(Long.valueOf(log.cookie));
+        for (Segment s : log.segments) {
+            s.live--;
+        }
+        log.segments.clear();
+    }
+
+    /**
+     * Deletes sealed segments with no live logs, first copying forward
+     * the records of the live logs in sparsely used sealed segments.
+     * Segments are only deleted oldest first, since the invalidation
+     * marker of a log may be in a later segment than its records, and
+     * must outlive them.  To let deletion make progress, the oldest
+     * sealed segment is compacted whenever a later one is dead.
+     */
+    private void compact() throws LogException {
+        List<Segment> sparse = new ArrayList<Segment>();
+        synchronized (this) {
+            Segment oldest = null;
+            boolean deadBehindOldest = false;
+            for (Segment s : segments.values()) {
+                if (s == active)
+                    break;
+                if (oldest == null) {
+                    oldest = s;
+                } else if (s.live <= 0) {
+                    deadBehindOldest = true;
+                } else if (s.live * 100 < s.total * COMPACT_PERCENT) {
+                    sparse.add(s);
+                }
+            }
+            if (oldest != null && oldest.live > 0 &&
+                (deadBehindOldest ||
+                 oldest.live * 100 < oldest.total * COMPACT_PERCENT))
+            {
+                sparse.add(0, oldest);
+            }
+        }
+        for (Segment s : sparse) {
+            copyForward(s);
+        }
+        List<Segment> dead = new ArrayList<Segment>();
+        long seq;
+        synchronized (this) {
+            for (Segment s : sparse) {
+                for (SharedLog log : logByID.values()) {
+                    if (log.segments.remove(s))
+                        s.live--;
+                }
+            }
+            for (Iterator<Segment> i = segments.values().iterator();
+                 i.hasNext(); )
+            {
+                Segment s = i.next();
+                if (s == active || s.live > 0)
+                    break;
+                i.remove();
+                dead.add(s);
+            }
+            /* every log with records in a dead segment was invalidated
+             * before it was unlinked, so its marker is appended by now */
+            seq = appended;
+        }
+        /* the invalidation markers and the copies must be stable before
+         * the segments they supersede are deleted */
+        sync(seq);
+        for (Segment s : dead) {
+            if (persistenceLogger.isLoggable(Level.FINEST)) {
+                persistenceLogger.log(Level.FINEST,
+                "Deleting log segment {0}", s.file);
+            }
+            if (!s.file.delete() &&
+                persistenceLogger.isLoggable(Levels.HANDLED))
+            {
+                persistenceLogger.log(Levels.HANDLED,
+                "Could not delete log segment {0}", s.file);
+            }
+        }
+    }
+
+    /**
+     * Appends a copy of every record of a live log in the given sealed
+     * segment, keeping its sequence number.
+     */
+    private void copyForward(Segment segment) throws LogException {
+        List<Frame> frames;
+        try {
+            frames = readFrames(segment);
+        } catch (IOException ioe) {
+            throw logException("Unable to read log segment", ioe);
+        }
+        if (persistenceLogger.isLoggable(Level.FINEST)) {
+            persistenceLogger.log(Level.FINEST,
+            "Compacting log segment {0}", segment.file);
+        }
+        for (Frame f : frames) {
+            SharedLog log;
+            synchronized (this) {
+                log = logByID.get(Long.valueOf(f.cookie));
+                if (log == null || !log.segments.contains(segment))
+                    continue;
+            }
+            append(log, f.seq, f.type, f.data);
+        }
+    }
+
+    /**
+     * Reads the records of a segment, stopping at the end of the file or
+     * at the first record that is incomplete or fails its checksum.
+     */
+    private static List<Frame> readFrames(Segment segment) throws IOException {
+        byte[] buf = readFile(segment.file);
+        List<Frame> frames = new ArrayList<Frame>();
+        ByteBuffer in = ByteBuffer.wrap(buf);
+        CRC32 crc = new CRC32();
+        while (in.remaining() >= FRAME_HEADER) {
+            int pos = in.position();
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length < BODY_HEADER || length > in.remaining())
+                break;
+            crc.reset();
+            crc.update(buf, in.position(), length);
+            if ((int) crc.getValue() != checksum)
+                break;
+            Frame f = new Frame();
+            f.cookie = in.getLong();
+            f.seq = in.getInt();
+            f.type = in.get();
+            f.data = Arrays.copyOfRange(buf, in.position(),
+                                        in.position() + length - BODY_HEADER);
+            in.position(pos + FRAME_HEADER + length);
+            frames.add(f);
+        }
+        if (in.hasRemaining() &&
+            persistenceLogger.isLoggable(Level.FINEST))
+        {
+            persistenceLogger.log(Level.FINEST,
+            "Ignoring {0} trailing bytes of {1}",
+            new Object[] {Integer.valueOf(in.remaining()), segment.file});
+        }
+        return frames;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long len = file.length();
+            byte[] buf = new byte[(int) len];
+            int off = 0;
+            while (off < buf.length) {
+                int n = in.read(buf, off, buf.length - off);
+                if (n < 0)
+                    return Arrays.copyOf(buf, off);
+                off += n;
+            }
+            return buf;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] serialize(LogRecord rec) throws LogException {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+            ObjectOutputStream out = new ObjectOutputStream(bout);
+            out.writeObject(rec);
+            out.close();
+            return bout.toByteArray();
+        } catch (IOException ioe) {
+            throw logException("Problem persisting LogRecord", ioe);
+        }
+    }
+
+    private static LogRecord deserialize(byte[] data)
+        throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream in =
+            new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return (LogRecord) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static LogException logException(String msg, Throwable cause) {
+        LogException le = new LogException(msg);
+        le.initCause(cause);
+        return le;
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, SEGMENT_FILE + number);
+    }
+
+    /** Opens a new, empty active segment. Caller must hold this lock. */
+    private void openSegment(long number) throws IOException {
+        Segment s = new Segment(number, segmentFile(number));
+        s.open();
+        segments.put(Long.valueOf(number), s);
+        active = s;
+    }
+
+    /** The log of one transaction within the shared log. */
+    private final class SharedLog implements ClientLog {
+        final long cookie;
+        /** Sequence number of the next record, guarded by the manager */
+        int nextSeq;
+        /** Segments holding records of this log, guarded by the manager */
+        final Set<Segment> segments = new HashSet<Segment>();
+        /** False once invalidated, guarded by the manager */
+        boolean valid = true;
+
+        SharedLog(long cookie, int nextSeq) {
+            this.cookie = cookie;
+            this.nextSeq = nextSeq;
+        }
+
+        public void write(LogRecord rec) throws LogException {
+            byte[] data = serialize(rec);
+            long seq;
+            synchronized (SegmentedLogManager.this) {
+                if (!valid)
+                    throw new InvalidatedLogException("Cannot write to " +
+                                                      "invalidated log");
+                seq = append(this, nextSeq++, RECORD, data);
+            }
+            sync(seq);
+            if (persistenceLogger.isLoggable(Level.FINEST)) {
+                persistenceLogger.log(Level.FINEST,
+                    "Wrote: {0}", rec);
+            }
+        }
+
+        public void invalidate() throws LogException {
+            SegmentedLogManager.this.invalidate(this);
+        }
+
+        public String toString() {
+            return "SharedLog[cookie=" + cookie + "]";
+        }
+    }
+
+    /** A segment file of the shared log. */
+    private static final class Segment {
+        final long number;
+        final File file;
+        /** Open only while this is the active segment */
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        /** Bytes written, guarded by the manager */
+        long size;
+        /** Number of live logs with records in this segment */
+        int live;
+        /** Number of logs with records in this segment */
+        int total;
+
+        Segment(long number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        void open() throws IOException {
+            raf = new RandomAccessFile(file, READWRITE);
+            raf.setLength(0);
+            channel = raf.getChannel();
+            size = 0;
+        }
+
+        /**
+         * Writes a batch at the end of the segment and forces it to
+         * disk, returning the new size.  Only called by the thread
+         * writing the current batch.
+         */
+        long write(FrameBuffer batch) throws IOException {
+            ByteBuffer buf = batch.toByteBuffer();
+            long pos = size;
+            while (buf.hasRemaining()) {
+                pos += channel.write(buf, pos);
+            }
+            channel.force(true);
+            return pos;
+        }
+
+        void seal() {
+            if (raf == null)
+                return;
+            try {
+                raf.close();
+            } catch (IOException ioe) {
+                if (persistenceLogger.isLoggable(Levels.HANDLED)) {
+                    persistenceLogger.log(Levels.HANDLED,
+                    "Problem closing log segment", ioe);
+                }
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+
+    /** A record read back from a segment. */
+    private static final class Frame {
+        long cookie;
+        int seq;
+        byte type;
+        byte[] data;
+    }
+
+    /** The framed records of a batch, and the logs they belong to. */
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+        final Set<SharedLog> logs = new HashSet<SharedLog>();
+        private final CRC32 crc = new CRC32();
+
+        FrameBuffer() {
+            super(512);
+        }
+
+        void add(SharedLog log, int seq, byte type, byte[] data) {
+            ByteBuffer head = ByteBuffer.allocate(FRAME_HEADER + BODY_HEADER);
+            head.putInt(BODY_HEADER + data.length);
+            head.putInt(0);
+            head.putLong(log.cookie);
+            head.putInt(seq);
+            head.put(type);
+            crc.reset();
+            crc.update(head.array(), FRAME_HEADER, BODY_HEADER);
+            crc.update(data, 0, data.length);
+            head.putInt(4, (int) crc.getValue());
+            write(head.array(), 0, head.capacity());
+            write(data, 0, data.length);
+            logs.add(log);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /** Periodically deletes and compacts sealed segments. */
+    private final class Compactor implements Runnable {
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(COMPACT_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    compact();
+                } catch (LogException le) {
+                    if (persistenceLogger.isLoggable(Level.WARNING)) {
+                        persistenceLogger.log(Level.WARNING,
+                        "Log compaction failed", le);
+                    }
+                }
+            }
+        }
+    }
+}
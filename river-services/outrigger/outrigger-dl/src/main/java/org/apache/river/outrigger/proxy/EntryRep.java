@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -80,6 +81,18 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
     private volatile Uuid	id;		// space-relative storage id
     private volatile transient long	expires;// expiration time
 
+    /**
+     * Where the server keeps the fields of this entry while
+     * <code>values</code> is <code>null</code>, otherwise
+     * <code>null</code>.
+     *
+     * @see EntryRepAccess#detach
+     */
+    private volatile transient EntryRepAccess.FieldStore detached;
+
+    /** The number of fields while detached */
+    private volatile transient int detachedFields;
+
     /** 
      * <code>true</code> if the last time this object was unmarshalled 
      * integrity was being enforced, <code>false</code> otherwise.
@@ -126,6 +139,7 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
     private static final Logger logger = 
 	Logger.getLogger("org.apache.river.outrigger.proxy");
 
+
     /**
      * Set this entry's generic data to be shared with the <code>other</code>
      * object.  Those fields that are object references that will be the same
@@ -402,6 +416,7 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
             Entry entryObj = null;
             int valuesLength = 0;
             int nvals = 0;		// index into this.values[]
+            final MarshalledInstance[] values = values();
                       
             synchronized (this){
                 className = this.className;
@@ -529,6 +544,8 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
 	    return false;
 
 	EntryRep other = (EntryRep) o;
+	final MarshalledInstance[] values = values();
+	final MarshalledInstance[] otherValues = other.values();
 
         synchronized (this){
             // If we're not the same class then we can't be equal
@@ -538,7 +555,7 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
             /* Paranoid check just to make sure we can't get an
              * IndexOutOfBoundsException. Should never happen.
              */
-            if (values.length != other.values.length)
+            if (values.length != otherValues.length)
                 return false;
 
             /* OPTIMIZATION:
@@ -551,9 +568,9 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
              *        non-null or we're out-of-here...
              */
             for (int i = 0; i < values.length; i++) {
-                if ((values[i] == null) && (other.values[i] != null))
+                if ((values[i] == null) && (otherValues[i] != null))
                     return false;
-                if ((values[i] != null) && (other.values[i] == null))
+                if ((values[i] != null) && (otherValues[i] == null))
                     return false;
             }
 
@@ -567,7 +584,7 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
              */
             for (int i = 0; i < values.length; i++) {
                 // Short-circuit evaluation if null, compare otherwise.
-                if (values[i] != null && !values[i].equals(other.values[i]))
+                if (values[i] != null && !values[i].equals(otherValues[i]))
                     return false;
             }
         }
@@ -626,7 +643,41 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
      * Return the <code>MarshalledObject</code> for the given field.
      */
     public MarshalledInstance value(int fieldNum) {
-            return values[fieldNum];
+	final MarshalledInstance[] v = values;
+	if (v != null) return v[fieldNum];
+	synchronized (this){
+	    if (detached != null) return detached.field(fieldNum);
+	    return values[fieldNum];
+	}
+    }
+
+    /**
+     * Return <code>true</code> if the given field of this entry is
+     * equal to the non-<code>null</code> <code>value</code>, comparing
+     * it in the <code>FieldStore</code> if this entry is detached.
+     */
+    private boolean fieldEquals(int fieldNum, MarshalledInstance value) {
+	final MarshalledInstance[] v = values;
+	if (v != null) return value.equals(v[fieldNum]);
+	synchronized (this){
+	    if (detached != null) return detached.fieldEquals(fieldNum, value);
+	    return value.equals(values[fieldNum]);
+	}
+    }
+
+    /**
+     * Return the marshalled fields, reading them back from the
+     * <code>FieldStore</code> if this entry is detached.  The array
+     * must not be modified.
+     */
+    private MarshalledInstance[] values() {
+	final MarshalledInstance[] v = values;
+	if (v != null) return v;
+	synchronized (this){
+	    if (values != null) return values;
+	    if (detached != null) return detached.fields();
+	}
+	return null;
     }
 
     /**
@@ -635,10 +686,38 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
     public int numFields() {
         synchronized (this){
             if (values != null) return values.length;
+            if (detached != null) return detachedFields;
         }
 	return 0;
     }
 
+    /**
+     * Move the fields of this entry to <code>store</code>.
+     *
+     * @see EntryRepAccess#detach
+     */
+    synchronized void detach(EntryRepAccess.FieldStore store) {
+	if (detached != null)
+	    throw new IllegalStateException("already detached");
+	detachedFields = values.length;
+	detached = store;
+	values = null;
+    }
+
+    /**
+     * Read the fields of this entry back from its store.
+     *
+     * @see EntryRepAccess#reattach
+     */
+    synchronized EntryRepAccess.FieldStore reattach() {
+	final EntryRepAccess.FieldStore store = detached;
+	if (store == null)
+	    return null;
+	values = store.fields();
+	detached = null;
+	return store;
+    }
+
     /**
      * Return the class name for this entry.
      */
@@ -683,18 +762,17 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
 
 	//Note: If this object is the MatchAny template then 
 	//      return true (all entries match MatchAny)
-        synchronized (this){
-            if (EntryRep.isMatchAny(this)) return true;
-        
-            for (int f = 0; f < values.length; f++) {
-                if (values[f] == null) {		// skip wildcards
-                    continue;
-                }
-                if (!values[f].equals(other.values[f])) {
-                    return false;
-                }
-            }
-        }
+	if (EntryRep.isMatchAny(this)) return true;
+	// Not synchronized on this, fieldEquals locks other
+	final MarshalledInstance[] values = values();
+	for (int f = 0; f < values.length; f++) {
+	    if (values[f] == null) {		// skip wildcards
+		continue;
+	    }
+	    if (!other.fieldEquals(f, values[f])) {
+		return false;
+	    }
+	}
 	return true;	     // no mismatches, so must be OK
     }
 
@@ -769,6 +847,28 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
 	integrity = MarshalledWrapper.integrityEnforced(in);
     }
 
+    /**
+     * Send a detached entry as a copy with its fields in place, so
+     * <code>values</code> is never written as <code>null</code>.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+	final EntryRepAccess.FieldStore store = detached;
+	if (store == null)
+	    return this;
+	final EntryRep copy = new EntryRep();
+	synchronized (this){
+	    copy.values = values();
+	    copy.superclasses = superclasses;
+	    copy.hashes = hashes;
+	    copy.hash = hash;
+	    copy.className = className;
+	    copy.codebase = codebase;
+	    copy.id = id;
+	    copy.expires = expires;
+	}
+	return copy;
+    }
+
     /** 
      * We should always have data in the stream, if this method
      * gets called there is something wrong.
@@ -820,7 +920,7 @@ public class EntryRep implements StorableResource<EntryRep>, LeasedResource, Ser
 	out.writeObject(codebase);
 	out.writeObject(className);
 	out.writeObject(superclasses);
-	out.writeObject(values);
+	out.writeObject(values());
 	out.writeLong(hash);
 	out.writeObject(hashes);
     }
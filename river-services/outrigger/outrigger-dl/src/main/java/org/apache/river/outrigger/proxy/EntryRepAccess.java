@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.outrigger.proxy;
+
+import net.jini.io.MarshalledInstance;
+
+/**
+ * Server side access to the field storage of an <code>EntryRep</code>,
+ * kept out of the <code>EntryRep</code> API seen by clients.  Used by
+ * servers that keep field data off the Java heap.
+ *
+ * Note that this class cannot be instantiated.
+ */
+public final class EntryRepAccess {
+
+    /**
+     * Storage outside of an <code>EntryRep</code> for the marshalled
+     * fields of an entry held by the server.
+     *
+     * @see #detach
+     */
+    public interface FieldStore {
+	/**
+	 * Return a new array holding the marshalled fields that were
+	 * stored, in the order they were stored.
+	 */
+	MarshalledInstance[] fields();
+
+	/** Return the stored field at <code>index</code>. */
+	MarshalledInstance field(int index);
+
+	/**
+	 * Return <code>true</code> if the stored field at
+	 * <code>index</code> is equal to the non-<code>null</code>
+	 * <code>value</code>, reading back no other field.
+	 */
+	boolean fieldEquals(int index, MarshalledInstance value);
+    }
+
+    /** This class cannot be instantiated. */
+    private EntryRepAccess() {
+	throw new AssertionError("class cannot be instantiated");
+    }
+
+    /**
+     * Move the fields of <code>rep</code> to <code>store</code>, which
+     * must already hold them, so <code>rep</code> no longer references
+     * them.  Fields are read back from the store as needed, and an
+     * <code>EntryRep</code> with its fields in place is sent when
+     * <code>rep</code> is serialized.
+     *
+     * @throws IllegalStateException if <code>rep</code> is already
+     *         detached
+     * @see #reattach
+     */
+    public static void detach(EntryRep rep, FieldStore store) {
+	rep.detach(store);
+    }
+
+    /**
+     * Read the fields of a detached <code>rep</code> back from its
+     * <code>FieldStore</code> so the store may be released, returning
+     * the store, or <code>null</code> if <code>rep</code> is not
+     * detached.
+     *
+     * @see #detach
+     */
+    public static FieldStore reattach(EntryRep rep) {
+	return rep.reattach();
+    }
+}
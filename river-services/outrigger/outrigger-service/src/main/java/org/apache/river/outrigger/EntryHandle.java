@@ -20,6 +20,7 @@ package org.apache.river.outrigger;
 import net.jini.io.MarshalledInstance;
 import org.apache.river.landlord.LeasedResource;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.river.outrigger.proxy.EntryRep;
 
 
@@ -128,6 +129,15 @@ class EntryHandle extends BaseHandle implements LeaseDesc, Transactable {
     private boolean removePending = false;
     private boolean removed = false;
 
+    /**
+     * Set by a work queue take that is attempting to capture this
+     * entry, so competing work queue takes can move on to the next
+     * entry without blocking on this handle's lock.
+     *
+     * @see EntryHolder#hasMatch
+     */
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
     /**
      * Create a new handle, calculating the hash for the object.
      * If <code>mgr</code> is non-<code>null</code> start the entry
@@ -356,6 +366,25 @@ class EntryHandle extends BaseHandle implements LeaseDesc, Transactable {
         }
     }
 
+    /**
+     * Atomically claim this entry for a work queue take. Returns
+     * <code>true</code> if the caller now holds the claim and
+     * <code>false</code> if another take holds it.  Holding the claim
+     * does not make the entry available, the caller must still check
+     * and capture the entry while holding this object's lock.
+     */
+    boolean claim() {
+	return claimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Release a claim obtained with <code>claim</code> after the
+     * entry turned out not to be available.
+     */
+    void releaseClaim() {
+	claimed.set(false);
+    }
+
     /**
      * Returns <code>true</code> it this entry has been removed
      * outside of a transaction, but that removal has not yet been
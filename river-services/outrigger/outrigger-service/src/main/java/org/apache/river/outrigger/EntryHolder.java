@@ -17,8 +17,10 @@
  */
 package org.apache.river.outrigger;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -58,6 +60,26 @@ class EntryHolder implements TransactionConstants {
      */
     private final ConcurrentMap<Uuid, EntryHandle> idMap;
 
+    /**
+     * Index of the handles in <code>content</code> by field value, or
+     * <code>null</code> if field indexing is disabled.
+     */
+    private final FieldIndex fieldIndex;
+
+    /**
+     * <code>true</code> if non-transactional takes with templates that
+     * have no non-wildcard fields treat this holder as a work queue,
+     * claiming the oldest available entry with a CAS rather than
+     * competing for the lock on each entry in turn.
+     */
+    private final boolean workQueue;
+
+    /**
+     * Store the fields of the entries in <code>content</code> are kept
+     * in, or <code>null</code> if they are kept on the heap.
+     */
+    private final OffHeapFieldStore fieldStore;
+
     /** The server we are working for */
     private final OutriggerServerImpl space;
 
@@ -74,11 +96,26 @@ class EntryHolder implements TransactionConstants {
      * <code>idMap</code>, and which will hold classes of the given
      * <code>className</code>.  The <code>idMap</code> is shared with
      * <code>EntryHolderSet</code> so that there is one table that can
-     * map ID to <code>EntryRep</code>
+     * map ID to <code>EntryRep</code>.  If <code>indexFields</code>
+     * is <code>true</code> the holder maintains a {@link FieldIndex}
+     * so templates with non-wildcard fields need only examine entries
+     * with matching field values.  If <code>workQueue</code> is
+     * <code>true</code> non-transactional takes with wildcard templates
+     * claim entries in the order they were written, see
+     * {@link #hasMatch hasMatch}.  If <code>fieldStore</code> is
+     * non-<code>null</code> the fields of added entries are detached
+     * to it.
      */
-    EntryHolder(OutriggerServerImpl space, ConcurrentMap<Uuid,EntryHandle> idMap) {
+    EntryHolder(OutriggerServerImpl space, ConcurrentMap<Uuid,EntryHandle> idMap,
+		boolean indexFields, boolean workQueue,
+		OffHeapFieldStore fieldStore)
+    {
 	this.space = space;
 	this.idMap = idMap;
+	this.fieldIndex =
+	    indexFields ? new FieldIndex(fieldStore != null) : null;
+	this.workQueue = workQueue;
+	this.fieldStore = fieldStore;
     }
     
     EntryHandle newEntryHandle(EntryRep rep, TransactableMgr mgr){
@@ -89,6 +126,15 @@ class EntryHolder implements TransactionConstants {
      * Return an <code>EntryHandle</code> object that matches the given
      * template, or <code>null</code> if none does. Optionally
      * removes (perhaps provisionally) the found entry.
+     * <p>
+     * If this holder is in work queue mode and this is a take outside
+     * of a transaction with a template that matches every entry of
+     * the class, entries are claimed from the head of the holder
+     * with {@link EntryHandle#claim}. A take that loses the claim
+     * on an entry moves straight on to the next one.  Only if no
+     * other entry can be taken does it go back to the entries it
+     * skipped and check them under their locks, as any other take
+     * does, since the competing take may have failed to capture them.
      *
      * @param tmpl	The template to match against
      * @param txn       If non-null the transaction (represented as
@@ -133,10 +179,15 @@ class EntryHolder implements TransactionConstants {
             Set provisionallyRemovedEntrySet)
             throws CannotJoinException {
         matchingLogger.entering("EntryHolder", "hasMatch");
+        if (workQueue && takeIt && txn == null && isWildcard(tmpl)) {
+            return claimFirst(conflictSet, lockedEntrySet,
+                    provisionallyRemovedEntrySet);
+        }
+
         EntryHandleTmplDesc desc = null;
         long startTime = 0;
 
-        for (EntryHandle handle : content) {
+        for (EntryHandle handle : candidates(tmpl)) {
 
             if (startTime == 0) {
                 // First time through
@@ -168,6 +219,90 @@ class EntryHolder implements TransactionConstants {
     }
     
 
+    /**
+     * Take the oldest available entry in this holder, skipping
+     * any entry another work queue take has already claimed, then
+     * checking the skipped entries if no other entry was taken.
+     *
+     * @see #hasMatch
+     */
+    private EntryHandle claimFirst(Set conflictSet, Set lockedEntrySet,
+            Set provisionallyRemovedEntrySet)
+    {
+        final long now = System.currentTimeMillis();
+        List<EntryHandle> skipped = null;
+        for (EntryHandle handle : content) {
+            if (handle.removed())
+                continue;
+
+            if (!handle.claim()) {
+                if (skipped == null)
+                    skipped = new ArrayList<EntryHandle>();
+                skipped.add(handle);
+                continue;
+            }
+
+            boolean captured = false;
+            try {
+                captured = confirmAvailability(handle.rep(), handle, null,
+                        true, now, conflictSet, lockedEntrySet,
+                        provisionallyRemovedEntrySet);
+            } finally {
+                if (!captured) handle.releaseClaim();
+            }
+
+            if (captured)
+                return handle;
+        }
+
+        if (skipped == null)
+            return null;
+
+        /* The claim holders may not have captured these entries, so
+         * check them as a take without a claim would, recording
+         * conflicts and provisional removals as it does. */
+        for (EntryHandle handle : skipped) {
+            if (!handle.removed() && confirmAvailability(handle.rep(),
+                    handle, null, true, now, conflictSet, lockedEntrySet,
+                    provisionallyRemovedEntrySet))
+            {
+                return handle;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Return <code>true</code> if <code>tmpl</code> matches every
+     * entry of its class, that is if it is the match any template or
+     * all of its fields are wildcards.
+     */
+    private static boolean isWildcard(EntryRep tmpl) {
+        if (tmpl == EntryRep.matchAnyEntryRep())
+            return true;
+        final int numFields = tmpl.numFields();
+        for (int i = 0; i < numFields; i++) {
+            if (tmpl.value(i) != null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the handles that need to be examined to find matches for
+     * <code>tmpl</code>: a bucket of the field index if the template
+     * has a non-wildcard field and indexing is enabled, otherwise the
+     * whole contents of the holder.
+     */
+    private Iterable<EntryHandle> candidates(EntryRep tmpl) {
+	if (fieldIndex != null) {
+	    final Iterable<EntryHandle> indexed = fieldIndex.candidates(tmpl);
+	    if (indexed != null) return indexed;
+	}
+	return content;
+    }
+
     /**
      * Debug method:  Dump out the state of this holder, printing out
      * the name of the dump first.
@@ -543,6 +678,8 @@ class EntryHolder implements TransactionConstants {
         synchronized (handle){ //typically synchronized externally anyway.
             if (txn != null) txn.add(handle);
             content.add(handle);
+            if (fieldIndex != null) fieldIndex.add(handle);
+            if (fieldStore != null) fieldStore.detach(rep);
             EntryHandle existed = idMap.putIfAbsent(rep.getCookie(), handle);
             if (existed != null) throw new IllegalStateException("An EntryHandle with that Cookie already exists in idMap");
         }
@@ -684,7 +821,9 @@ class EntryHolder implements TransactionConstants {
 	    this.txn = txn;
 	    this.takeThem = takeThem;
 	    this.now = now;
-	    contentsIterator = content.iterator();
+	    // The index can only narrow a query with a single template
+	    contentsIterator = (tmpls.length == 1 ? candidates(tmpls[0]) :
+				content).iterator();
             descLocal = new ThreadLocal<EntryHandleTmplDesc[]>();
 	}
 
@@ -808,6 +947,9 @@ class EntryHolder implements TransactionConstants {
         synchronized (h){
             ok = h.remove();
             if (!ok) throw new AssertionError("EntryHandle not removed");
+            // Reattach first, the index reads each field
+            if (fieldStore != null) fieldStore.reattach(h.rep());
+            if (fieldIndex != null) fieldIndex.remove(h);
             h.removalComplete();
             // Ensure removal of EntryHandle is atomic.
             boolean removed = idMap.remove(h.rep().getCookie(), h);
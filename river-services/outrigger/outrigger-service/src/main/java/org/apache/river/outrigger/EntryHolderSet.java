@@ -47,8 +47,44 @@ final class EntryHolderSet {
 
     private final OutriggerServerImpl space;
 
-    EntryHolderSet(OutriggerServerImpl space) {
+    /** <code>true</code> if new holders should index entry fields */
+    private final boolean indexFields;
+
+    /** <code>true</code> if new holders should be in work queue mode */
+    private final boolean workQueue;
+
+    /**
+     * Store new holders keep entry fields in, or <code>null</code> to
+     * keep them on the heap
+     */
+    private final OffHeapFieldStore fieldStore;
+
+    /** Cached match plans indexed by template class name */
+    private final ConcurrentMap<String,MatchPlan> plans =
+	new ConcurrentHashMap<String,MatchPlan>();
+
+    /**
+     * The holders that must be searched for a template of a given
+     * class, valid while the <code>TypeTree</code> stays at
+     * <code>version</code>.
+     */
+    private static final class MatchPlan {
+	final int version;
+	final EntryHolder[] holders;
+
+	MatchPlan(int version, EntryHolder[] holders) {
+	    this.version = version;
+	    this.holders = holders;
+	}
+    }
+
+    EntryHolderSet(OutriggerServerImpl space, boolean indexFields,
+		   boolean workQueue, OffHeapFieldStore fieldStore)
+    {
 	this.space = space;
+	this.indexFields = indexFields;
+	this.workQueue = workQueue;
+	this.fieldStore = fieldStore;
     }
 
     /**
@@ -71,13 +107,39 @@ final class EntryHolderSet {
     EntryHolder holderFor(String className) {
         EntryHolder holder = holders.get(className);
         if (holder == null) {
-            holder = new EntryHolder(space, idMap);
+            holder = new EntryHolder(space, idMap, indexFields, workQueue,
+				     fieldStore);
             EntryHolder exists = holders.putIfAbsent(className, holder);
             if (exists != null) holder = exists;
         }
         return holder;
     }
 
+    /**
+     * Return the <code>EntryHolder</code>s for the given class and all
+     * of its subtypes known to <code>types</code>, that is every holder
+     * that may contain a match for a template of class
+     * <code>tmplClass</code>.  The result is cached until
+     * <code>types</code> learns of a new subtype and must not be
+     * modified by the caller.
+     */
+    EntryHolder[] holdersFor(String tmplClass, TypeTree types) {
+	// Read the version first so a concurrent addTypes makes the
+	// plan stale rather than incomplete
+	final int version = types.version();
+	final MatchPlan plan = plans.get(tmplClass);
+	if (plan != null && plan.version == version)
+	    return plan.holders;
+
+	final String[] classes = types.allSubTypes(tmplClass);
+	final EntryHolder[] result = new EntryHolder[classes.length];
+	for (int i = 0; i < classes.length; i++) {
+	    result[i] = holderFor(classes[i]);
+	}
+	plans.put(tmplClass, new MatchPlan(version, result));
+	return result;
+    }
+
     LeasedResource getLeasedResource(Uuid cookie) {
 	final EntryHandle handle = handleFor(cookie);
 	if (handle == null)
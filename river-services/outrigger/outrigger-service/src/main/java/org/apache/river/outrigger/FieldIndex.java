@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.outrigger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jini.io.MarshalledInstance;
+import org.apache.river.outrigger.proxy.EntryRep;
+
+/**
+ * A secondary index over the entries of an <code>EntryHolder</code>,
+ * keyed on the marshalled value of each field. For every field
+ * position there is a map from field value to the bucket of handles
+ * whose entry has that value in that position. A template with at
+ * least one non-wildcard field can then be matched against the
+ * smallest relevant bucket rather than against every entry in the
+ * holder.
+ * <p>
+ * Field values are compared the same way <code>EntryRep.matches</code>
+ * compares them, via <code>MarshalledInstance.equals</code>, so any
+ * entry that could match a template is always present in the bucket
+ * for each of the template's non-wildcard fields. Candidates must still
+ * be confirmed by the caller, since the bucket only guarantees a match
+ * on one field.
+ * <p>
+ * When the fields of the entries are kept off the heap by an
+ * <code>OffHeapFieldStore</code>, buckets are keyed on the hash code of
+ * each value instead, so the index does not keep the values on the heap.
+ * Values with the same hash code then share a bucket, which confirming
+ * the candidates sorts out.
+ * <p>
+ * Handles are added by <code>EntryHolder.add</code> and removed by
+ * <code>EntryHolder.remove</code>, which between them cover writes,
+ * takes, cancels, expirations and transaction commit and abort.
+ *
+ * @see EntryHolder
+ */
+final class FieldIndex {
+    /** Returned when a template can not match any indexed entry */
+    private static final Iterable<EntryHandle> NONE =
+	Collections.<EntryHandle>emptyList();
+
+    /**
+     * One map per field position, created when the first handle is
+     * added, since only then is the number of fields known.
+     */
+    private volatile List<ConcurrentMap<Object,Bucket>> fields;
+
+    /** <code>true</code> if buckets are keyed on value hash codes */
+    private final boolean hashKeys;
+
+    /**
+     * The handles sharing a value in a given field position. A bucket
+     * is retired, and unlinked from its map, once it becomes empty;
+     * additions and removals hold the bucket's lock so a handle is never
+     * added to a retired bucket.
+     */
+    private static final class Bucket {
+	final Queue<EntryHandle> handles =
+	    new ConcurrentLinkedQueue<EntryHandle>();
+	/** Number of handles in the bucket, guarded by this */
+	volatile int size;
+	/** <code>true</code> once unlinked from its map, guarded by this */
+	boolean retired;
+    }
+
+    /**
+     * Create an index keyed on field values, or on their hash codes if
+     * <code>hashKeys</code> is <code>true</code>.
+     */
+    FieldIndex(boolean hashKeys) {
+	this.hashKeys = hashKeys;
+    }
+
+    /** Return the bucket key for the non-<code>null</code> <code>value</code>. */
+    private Object key(MarshalledInstance value) {
+	return hashKeys ? Integer.valueOf(value.hashCode()) : value;
+    }
+
+    /**
+     * Return the per-field maps, creating them for <code>numFields</code>
+     * fields if this is the first call.
+     */
+    private List<ConcurrentMap<Object,Bucket>> fields(int numFields) {
+	List<ConcurrentMap<Object,Bucket>> f = fields;
+	if (f != null) return f;
+	synchronized (this) {
+	    if (fields == null) {
+		f = new ArrayList<ConcurrentMap<Object,Bucket>>(numFields);
+		for (int i = 0; i < numFields; i++) {
+		    f.add(new ConcurrentHashMap<Object,Bucket>());
+		}
+		fields = f;
+	    }
+	    return fields;
+	}
+    }
+
+    /**
+     * Add <code>handle</code> to the bucket of each of its non-null
+     * field values.
+     */
+    void add(EntryHandle handle) {
+	final EntryRep rep = handle.rep();
+	final int numFields = rep.numFields();
+	final List<ConcurrentMap<Object,Bucket>> f = fields(numFields);
+	final int end = Math.min(numFields, f.size());
+	for (int i = 0; i < end; i++) {
+	    final MarshalledInstance value = rep.value(i);
+	    if (value == null) continue;
+	    final Object key = key(value);
+	    final ConcurrentMap<Object,Bucket> map = f.get(i);
+	    while (true) {
+		Bucket bucket = map.get(key);
+		if (bucket == null) {
+		    bucket = new Bucket();
+		    Bucket existed = map.putIfAbsent(key, bucket);
+		    if (existed != null) bucket = existed;
+		}
+		synchronized (bucket) {
+		    if (bucket.retired) continue; // raced with last removal
+		    bucket.handles.add(handle);
+		    bucket.size++;
+		    break;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Remove <code>handle</code> from the bucket of each of its non-null
+     * field values, retiring any bucket left empty.
+     */
+    void remove(EntryHandle handle) {
+	final List<ConcurrentMap<Object,Bucket>> f = fields;
+	if (f == null) return;
+	final EntryRep rep = handle.rep();
+	final int end = Math.min(rep.numFields(), f.size());
+	for (int i = 0; i < end; i++) {
+	    final MarshalledInstance value = rep.value(i);
+	    if (value == null) continue;
+	    final Object key = key(value);
+	    final ConcurrentMap<Object,Bucket> map = f.get(i);
+	    final Bucket bucket = map.get(key);
+	    if (bucket == null) continue;
+	    synchronized (bucket) {
+		if (!bucket.handles.remove(handle)) continue;
+		if (--bucket.size == 0) {
+		    bucket.retired = true;
+		    map.remove(key, bucket);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Return the handles that may match <code>tmpl</code>, or
+     * <code>null</code> if the index can not narrow the search (the
+     * template has only wildcard fields, or nothing has been indexed
+     * yet). The returned handles are those of the smallest bucket
+     * for the template's non-wildcard fields; if any of those fields
+     * has a value no entry in the holder has, an empty
+     * <code>Iterable</code> is returned.
+     */
+    Iterable<EntryHandle> candidates(EntryRep tmpl) {
+	final List<ConcurrentMap<Object,Bucket>> f = fields;
+	if (f == null) return null;
+	final int end = Math.min(tmpl.numFields(), f.size());
+	Bucket best = null;
+	for (int i = 0; i < end; i++) {
+	    final MarshalledInstance value = tmpl.value(i);
+	    if (value == null) continue;
+	    final Bucket bucket = f.get(i).get(key(value));
+	    if (bucket == null) return NONE;
+	    if (best == null || bucket.size < best.size) best = bucket;
+	}
+	return best == null ? null : best.handles;
+    }
+}
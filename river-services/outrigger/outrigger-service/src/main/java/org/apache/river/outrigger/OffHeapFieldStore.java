@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.outrigger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jini.io.MarshalledInstance;
+import net.jini.space.InternalSpaceException;
+import org.apache.river.outrigger.proxy.EntryRep;
+import org.apache.river.outrigger.proxy.EntryRepAccess;
+
+/**
+ * Keeps the marshalled fields of stored entries in direct
+ * <code>ByteBuffer</code> slabs, outside of the Java heap, so a space
+ * holding a great many entries does not have to trace and copy their
+ * field data on every collection.  The <code>EntryRep</code> of each
+ * entry stays on the heap, holding its class information, id and
+ * expiration; its fields are <em>detached</em> to a slot in a slab and
+ * read back only when a template whose hash matches the entry must be
+ * confirmed, or the entry is returned to a client.
+ * <p>
+ * A slot holds one record per field, in field order: the field's hash
+ * code, the length of its serialized form, or -1 for a
+ * <code>null</code> field, and the serialized
+ * <code>MarshalledInstance</code> itself.  Each field is serialized on
+ * its own, with class names in place of class descriptors, so a
+ * template field is confirmed by comparing hash codes in the slab and
+ * reading back only that field, and only when the hash codes are the
+ * same.
+ * <p>
+ * Slots are allocated by bumping an offset in the current slab.  A
+ * slab is reused once every slot in it has been released and it is no
+ * longer the current slab, so long lived entries can pin a slab that is
+ * otherwise empty.  Fields larger than a quarter of a slab get a
+ * buffer of their own.
+ * <p>
+ * Entries are detached by <code>EntryHolder.add</code> and reattached,
+ * releasing their slot, by <code>EntryHolder.remove</code>, so an entry
+ * that has been taken still has its fields when it is returned.
+ *
+ * @see EntryRepAccess#detach
+ * @see EntryHolder
+ */
+final class OffHeapFieldStore {
+    /** The most empty slabs kept for reuse */
+    private static final int MAX_FREE_SLABS = 4;
+
+    /** Bytes before the serialized form in each field record */
+    private static final int FIELD_HEADER = 8;
+
+    /** Size in bytes of each slab */
+    private final int slabSize;
+
+    /** The slab slots are allocated from, guarded by this */
+    private Slab current;
+
+    /** Empty slabs ready for reuse, guarded by this */
+    private final List<Slab> free = new ArrayList<Slab>(MAX_FREE_SLABS);
+
+    /**
+     * A direct buffer slots are allocated from.  Slot contents are
+     * read with absolute gets and written through duplicates, so the
+     * buffer's own position is never used.
+     */
+    private static final class Slab {
+	final ByteBuffer buffer;
+	/** Offset of the next slot, guarded by the store */
+	int top;
+	/** Bytes in unreleased slots, guarded by the store */
+	int live;
+
+	Slab(int size) {
+	    buffer = ByteBuffer.allocateDirect(size);
+	}
+    }
+
+    /** The location of one entry's fields. */
+    private static final class Slot implements EntryRepAccess.FieldStore {
+	final Slab slab;
+	final int offset;
+	final int length;
+	final int numFields;
+
+	Slot(Slab slab, int offset, int length, int numFields) {
+	    this.slab = slab;
+	    this.offset = offset;
+	    this.length = length;
+	    this.numFields = numFields;
+	}
+
+	public MarshalledInstance[] fields() {
+	    final MarshalledInstance[] values =
+		new MarshalledInstance[numFields];
+	    int pos = offset;
+	    for (int i = 0; i < numFields; i++) {
+		values[i] = read(pos);
+		pos = next(pos);
+	    }
+	    return values;
+	}
+
+	public MarshalledInstance field(int index) {
+	    return read(locate(index));
+	}
+
+	public boolean fieldEquals(int index, MarshalledInstance value) {
+	    final int pos = locate(index);
+	    if (slab.buffer.getInt(pos + 4) < 0)
+		return false;
+	    if (slab.buffer.getInt(pos) != value.hashCode())
+		return false;
+	    return value.equals(read(pos));
+	}
+
+	/** Return the offset of the record of field <code>index</code>. */
+	private int locate(int index) {
+	    if (index < 0 || index >= numFields)
+		throw new IndexOutOfBoundsException("field " + index);
+	    int pos = offset;
+	    for (int i = 0; i < index; i++)
+		pos = next(pos);
+	    return pos;
+	}
+
+	/** Return the offset of the record after the one at <code>pos</code>. */
+	private int next(int pos) {
+	    return pos + FIELD_HEADER + Math.max(slab.buffer.getInt(pos + 4), 0);
+	}
+
+	/** Read back the field whose record is at <code>pos</code>. */
+	private MarshalledInstance read(int pos) {
+	    final int len = slab.buffer.getInt(pos + 4);
+	    if (len < 0)
+		return null;
+	    final byte[] bytes = new byte[len];
+	    final ByteBuffer b = slab.buffer.duplicate();
+	    b.position(pos + FIELD_HEADER);
+	    b.get(bytes);
+	    try {
+		final ObjectInputStream in =
+		    new FieldInputStream(new ByteArrayInputStream(bytes));
+		return (MarshalledInstance) in.readObject();
+	    } catch (IOException e) {
+		throw new InternalSpaceException(
+		    "Exception reading off-heap entry fields", e);
+	    } catch (ClassNotFoundException e) {
+		throw new InternalSpaceException(
+		    "Exception reading off-heap entry fields", e);
+	    }
+	}
+    }
+
+    /**
+     * Serializes a single field without a stream header, writing the
+     * names of the classes, which are all system classes, in place of
+     * their descriptors.
+     */
+    private static final class FieldOutputStream extends ObjectOutputStream {
+	FieldOutputStream(OutputStream out) throws IOException {
+	    super(out);
+	}
+
+	protected void writeStreamHeader() {
+	}
+
+	protected void writeClassDescriptor(ObjectStreamClass desc)
+	    throws IOException
+	{
+	    writeUTF(desc.getName());
+	}
+    }
+
+    /** Reads a field written by a <code>FieldOutputStream</code>. */
+    private static final class FieldInputStream extends ObjectInputStream {
+	FieldInputStream(InputStream in) throws IOException {
+	    super(in);
+	}
+
+	protected void readStreamHeader() {
+	}
+
+	protected ObjectStreamClass readClassDescriptor()
+	    throws IOException, ClassNotFoundException
+	{
+	    return ObjectStreamClass.lookup(Class.forName(readUTF(), false,
+		MarshalledInstance.class.getClassLoader()));
+	}
+    }
+
+    /**
+     * Create a store that allocates slabs of <code>slabSize</code>
+     * bytes as they are needed.
+     */
+    OffHeapFieldStore(int slabSize) {
+	this.slabSize = slabSize;
+    }
+
+    /**
+     * Copy the fields of <code>rep</code> into a slot and detach them
+     * from it.
+     */
+    void detach(EntryRep rep) {
+	final int numFields = rep.numFields();
+	final byte[] bytes;
+	try {
+	    final ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+	    final ByteArrayOutputStream field = new ByteArrayOutputStream(64);
+	    final byte[] header = new byte[FIELD_HEADER];
+	    final ByteBuffer h = ByteBuffer.wrap(header);
+	    for (int i = 0; i < numFields; i++) {
+		final MarshalledInstance value = rep.value(i);
+		field.reset();
+		if (value != null) {
+		    final ObjectOutputStream out = new FieldOutputStream(field);
+		    out.writeObject(value);
+		    out.close();
+		}
+		h.clear();
+		h.putInt(value == null ? 0 : value.hashCode());
+		h.putInt(value == null ? -1 : field.size());
+		bout.write(header);
+		field.writeTo(bout);
+	    }
+	    bytes = bout.toByteArray();
+	} catch (IOException e) {
+	    throw new InternalSpaceException(
+		"Exception writing off-heap entry fields", e);
+	}
+	final Slot slot = allocate(bytes.length, numFields);
+	final ByteBuffer b = slot.slab.buffer.duplicate();
+	b.position(slot.offset);
+	b.put(bytes);
+	EntryRepAccess.detach(rep, slot);
+    }
+
+    /**
+     * Read the fields of <code>rep</code> back onto the heap and
+     * release its slot.  Does nothing if <code>rep</code> is not
+     * detached.
+     */
+    void reattach(EntryRep rep) {
+	final EntryRepAccess.FieldStore store = EntryRepAccess.reattach(rep);
+	if (store instanceof Slot)
+	    release((Slot) store);
+    }
+
+    private synchronized Slot allocate(int length, int numFields) {
+	if (length > slabSize / 4) {
+	    final Slab own = new Slab(length);
+	    own.top = length;
+	    own.live = length;
+	    return new Slot(own, 0, length, numFields);
+	}
+	if (current == null || current.top + length > slabSize) {
+	    final Slab old = current;
+	    current = free.isEmpty() ? new Slab(slabSize)
+				     : free.remove(free.size() - 1);
+	    if (old != null && old.live == 0) recycle(old);
+	}
+	final Slot slot = new Slot(current, current.top, length, numFields);
+	current.top += length;
+	current.live += length;
+	return slot;
+    }
+
+    private synchronized void release(Slot slot) {
+	final Slab slab = slot.slab;
+	slab.live -= slot.length;
+	if (slab.live == 0 && slab != current && slab.buffer.capacity() == slabSize)
+	    recycle(slab);
+    }
+
+    /** Keep an empty slab for reuse, or drop it if enough are kept. */
+    private void recycle(Slab slab) {
+	if (free.size() < MAX_FREE_SLABS) {
+	    slab.top = 0;
+	    free.add(slab);
+	}
+    }
+}
@@ -940,10 +940,33 @@ public class OutriggerServerImpl
                 Config.getLongEntry(config, COMPONENT_NAME, 
                     "maxServerQueryTimeout", Long.MAX_VALUE, 1, Long.MAX_VALUE);
 
+            final boolean indexEntryFields = ((Boolean) config.getEntry(
+                COMPONENT_NAME, "indexEntryFields", boolean.class,
+                Boolean.FALSE)).booleanValue();
+
+            final boolean workQueueTakes = ((Boolean) config.getEntry(
+                COMPONENT_NAME, "workQueueTakes", boolean.class,
+                Boolean.FALSE)).booleanValue();
+
+            final boolean offHeapEntryStorage = ((Boolean) config.getEntry(
+                COMPONENT_NAME, "offHeapEntryStorage", boolean.class,
+                Boolean.FALSE)).booleanValue();
+
+            final OffHeapFieldStore fieldStore;
+            if (offHeapEntryStorage) {
+                fieldStore = new OffHeapFieldStore(
+                    Config.getIntEntry(config, COMPONENT_NAME,
+                        "offHeapSlabSize", 1024 * 1024, 4096,
+                        Integer.MAX_VALUE));
+            } else {
+                fieldStore = null;
+            }
+
             /* Initialize various fields that will be filled in during
              * log recovery.
              */
-            h.contents = new EntryHolderSet(this);
+            h.contents = new EntryHolderSet(this, indexEntryFields,
+                workQueueTakes, fieldStore);
             h.templates = new TransitionWatchers(this);
 
             // This takes a while the first time, so let's get it going
@@ -2543,21 +2566,24 @@ public class OutriggerServerImpl
 	final String whichClass = tmplRep.classFor();
 
 	/*
-	 * The iterator returned by subTypes includes both this class
-	 * and all subtypes.
+	 * The match plan includes the holders for both this class
+	 * and all subtypes. Start at a random holder so concurrent
+	 * queries don't all contend on the same one.
 	 */
-	Iterator subtypes = types.subTypes(whichClass);
-	String className = null;
+	final EntryHolder[] holders = contents.holdersFor(whichClass, types);
+	final int length = holders.length;
+	final int start = (length > 1 ? TypeTree.randomIndex(length) : 0);
 	EntryHandle result = null;
-	boolean foundConflicts = false;
-	EntryHolder holder = null;
 
-	while (subtypes.hasNext()) {
-	    className = (String) subtypes.next();
-	    opsLogger.log(Level.FINEST, 
-	        "OutriggerServerImpl: find: className = {0}", className);
+	for (int i = 0; i < length; i++) {
+	    final EntryHolder holder = holders[(start + i) % length];
+	    if (opsLogger.isLoggable(Level.FINEST)) {
+		opsLogger.log(Level.FINEST, 
+		    "OutriggerServerImpl: find: holder {0} of {1} for {2}",
+		    new Object[] {Integer.valueOf(i), Integer.valueOf(length),
+				  whichClass});
+	    }
 
-	    holder = contents.holderFor(className);
 	    result = holder.hasMatch(tmplRep, txn, takeIt, conflictSet,
 				     lockedEntrySet, provisionallyRemovedEntrySet);
 	    if (result != null) {
@@ -26,6 +26,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.river.outrigger.proxy.EntryRep;
 
 
@@ -55,6 +56,33 @@ class TypeTree {
      */
     private final ConcurrentMap<String,Set<String>> subclasses = new ConcurrentHashMap<String,Set<String>>();
 
+    /**
+     * Incremented every time a new subtype is learned, after it has
+     * been added to <code>subclasses</code>.  Anything computed from
+     * the tree is stale once this moves on from the value read before
+     * the computation started.
+     */
+    private final AtomicInteger version = new AtomicInteger();
+
+    /**
+     * For each class, the closure of its known subtypes (including the
+     * class itself) as of a given <code>version</code>, so walking the
+     * tree only happens once per class per new subtype.
+     */
+    private final ConcurrentMap<String,Subtypes> subtypeCache =
+	new ConcurrentHashMap<String,Subtypes>();
+
+    /** A cached subtype closure and the tree version it was taken at */
+    private static final class Subtypes {
+	final int version;
+	final String[] types;
+
+	Subtypes(int version, String[] types) {
+	    this.version = version;
+	    this.types = types;
+	}
+    }
+
     /**
      * A generator used to randomize the order of iterator returns
      */
@@ -156,24 +184,8 @@ class TypeTree {
 	 * including the class itself.  It then randomizes the list.
 	 */
 	private static String [] init(String className, TypeTree tree) {
-            // Use a Linked to avoid resizing.
-            Collection<String> types = new LinkedList<String>();
-            String [] typearray;
-	    if (className.equals(EntryRep.matchAnyClassName())) {
-		// handle "match any" specially" -- search from ROOT
-		// Simplification suggested by 
-		// Lutz Birkhahn <lutz.birkhahn@GMX.DE>
-		className = ROOT;
-	    } else {
-		// add this class
-		types.add(className);
-	    }
-
-	    // add all subclasses
-	    walkTree(tree.classSet(className), types, tree);
-
-	    // Convert it to an array and then randomize
-	    typearray = types.toArray(new String[types.size()]);
+	    // Copy, the cached array is shared
+	    final String[] typearray = tree.allSubTypes(className).clone();
 	    int randnum = 0;
 	    String tmpobj = null;
             int length = typearray.length;
@@ -187,6 +199,61 @@ class TypeTree {
 	}
     }
 
+    /**
+     * Return the names of the given class and all its known subtypes.
+     * The result is cached until a new subtype is added to the tree
+     * and must not be modified by the caller.
+     */
+    String[] allSubTypes(String className) {
+	final int current = version.get();
+	final Subtypes cached = subtypeCache.get(className);
+	if (cached != null && cached.version == current)
+	    return cached.types;
+
+	// Use a Linked to avoid resizing.
+	final Collection<String> types = new LinkedList<String>();
+	String root = className;
+	if (className.equals(EntryRep.matchAnyClassName())) {
+	    // handle "match any" specially" -- search from ROOT
+	    // Simplification suggested by 
+	    // Lutz Birkhahn <lutz.birkhahn@GMX.DE>
+	    root = ROOT;
+	} else {
+	    // add this class
+	    types.add(className);
+	}
+
+	// add all subclasses
+	RandomizedIterator.walkTree(classSet(root), types, this);
+	final String[] result = types.toArray(new String[types.size()]);
+
+	// Tagged with the version read before the walk, so a subtype
+	// added concurrently will cause it to be recomputed next time
+	subtypeCache.put(className, new Subtypes(current, result));
+	return result;
+    }
+
+    /**
+     * Return a random index between zero (inclusive) and
+     * <code>bound</code> (exclusive), used by callers walking the
+     * result of {@link #allSubTypes allSubTypes} to spread concurrent
+     * searches across holders the same way the randomized iterator
+     * does.
+     */
+    static int randomIndex(int bound) {
+	return numgen.nextInt(bound);
+    }
+
+    /**
+     * Return the current version of the tree.  The version changes
+     * whenever a new subtype becomes known, so anything derived from
+     * {@link #allSubTypes allSubTypes} is only valid while the version
+     * stays the same.
+     */
+    int version() {
+	return version.get();
+    }
+
     /**
      * Return an iterator over the subtypes of the given class
      * (including the type itself).  This implementation always returns
@@ -225,6 +292,7 @@ class TypeTree {
 	String prevClass = classFor;
 	for (int i = 0; i < superclasses.length; i++) {
 	    if (!addKnown(superclasses[i], prevClass)) {
+		if (i > 0) version.incrementAndGet();
 		return;
 	    }
 	    prevClass = superclasses[i];
@@ -238,7 +306,12 @@ class TypeTree {
 	// if it does not have any sub-classes.
 	//
 	// Fix suggested by Lutz Birkhahn <lutz.birkhahn@GMX.DE>
-	addKnown(ROOT, prevClass);
+	//
+	// Getting this far means every addKnown above learned something
+	// new, so there is only nothing new if there were no superclasses
+	// and the class was already in the root bucket.
+	if (addKnown(ROOT, prevClass) || superclasses.length > 0)
+	    version.incrementAndGet();
     }
 
     /**
@@ -0,0 +1,422 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.outrigger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.jini.core.entry.Entry;
+import net.jini.id.Uuid;
+import org.apache.river.outrigger.proxy.EntryRep;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that an entry holder with a field index takes exactly the
+ * entries a scan of every entry matches, for templates with wildcard
+ * fields, on entries with null fields and subclass entries, after the
+ * written entry objects are changed, and while takes race with writes,
+ * with index buckets keyed on values or on hash codes.  Set the seed
+ * system property to repeat a run.
+ */
+public class FieldIndexTest {
+
+    private static final int ENTRIES = 150;
+    private static final int TEMPLATES = 60;
+    private static final int WRITERS = 2;
+    private static final int TAKERS = 4;
+    private static final int RACING_ENTRIES = 5000;
+    private static final int ROUNDS = 20000;
+    private static final int SLAB_SIZE = 4096;
+    /* "Aa" and "BB" have marshalled forms with the same hash code */
+    private static final String[] COLORS = { "red", "green", "Aa", "BB" };
+
+    public static class Part implements Entry {
+	public Integer number;
+	public String color;
+	public Integer size;
+
+	public Part() {
+	}
+
+	public Part(Integer number, String color, Integer size) {
+	    this.number = number;
+	    this.color = color;
+	    this.size = size;
+	}
+    }
+
+    public static class Gear extends Part {
+	public String label;
+
+	public Gear() {
+	}
+
+	public Gear(Integer number, String color, Integer size, String label) {
+	    super(number, color, size);
+	    this.label = label;
+	}
+    }
+
+    private static Random random;
+
+    @BeforeClass
+    public static void seed() {
+	long seed = Long.getLong("seed", System.nanoTime()).longValue();
+	System.err.println("seed " + seed);
+	random = new Random(seed);
+    }
+
+    @Test
+    public void matchesLikeScan() throws Exception {
+	matchesLikeScan(false, false);
+	matchesLikeScan(false, true);
+    }
+
+    @Test
+    public void matchesLikeScanHashKeys() throws Exception {
+	matchesLikeScan(true, false);
+	matchesLikeScan(true, true);
+    }
+
+    @Test
+    public void changedAfterWrite() throws Exception {
+	changedAfterWrite(false);
+    }
+
+    @Test
+    public void changedAfterWriteHashKeys() throws Exception {
+	changedAfterWrite(true);
+    }
+
+    @Test
+    public void takesRacingWrites() throws Exception {
+	takesRacingWrites(false);
+    }
+
+    @Test
+    public void takesRacingWritesHashKeys() throws Exception {
+	takesRacingWrites(true);
+    }
+
+    @Test
+    public void writeRacingLastTake() throws Exception {
+	writeRacingLastTake(false);
+    }
+
+    @Test
+    public void writeRacingLastTakeHashKeys() throws Exception {
+	writeRacingLastTake(true);
+    }
+
+    /**
+     * For random templates, some with every field a wildcard, takes the
+     * same entries as a scan of every entry finds to match, including
+     * entries with null fields and, for a holder of subclass entries,
+     * with superclass and subclass templates.
+     */
+    private static void matchesLikeScan(boolean offHeap, boolean subclass)
+	throws Exception
+    {
+	Entry[] entries = new Entry[ENTRIES];
+	for (int i = 0; i < ENTRIES; i++) {
+	    entries[i] = subclass ?
+		new Gear(Integer.valueOf(i), color(4), size(4), label(4)) :
+		new Part(Integer.valueOf(i), color(4), size(4));
+	}
+	for (int t = 0; t < TEMPLATES; t++) {
+	    Entry tmpl = subclass && random.nextBoolean() ?
+		new Gear(null, color(2), size(2), label(2)) :
+		new Part(null, color(2), size(2));
+	    EntryRep tmplRep = new EntryRep(tmpl);
+	    Set<Integer> expected = new HashSet<Integer>();
+	    for (int i = 0; i < ENTRIES; i++) {
+		if (tmplRep.matches(new EntryRep(entries[i]))) {
+		    expected.add(Integer.valueOf(i));
+		}
+	    }
+	    EntryHolder holder = newHolder(offHeap);
+	    Map<EntryHandle,Integer> numbers =
+		new IdentityHashMap<EntryHandle,Integer>();
+	    for (int i = 0; i < ENTRIES; i++) {
+		numbers.put(write(holder, entries[i]), Integer.valueOf(i));
+	    }
+	    Set<Integer> taken = new HashSet<Integer>();
+	    EntryHandle handle;
+	    while ((handle = take(holder, tmplRep)) != null) {
+		assertTrue("entry taken twice",
+			   taken.add(numbers.get(handle)));
+	    }
+	    assertTrue(describe(tmpl) + " took " + taken + ", scan matched " +
+		       expected,
+		       taken.equals(expected));
+	}
+    }
+
+    /**
+     * An entry matches by the fields it had when written, not by those
+     * of the written object after it is changed and written again.
+     */
+    private static void changedAfterWrite(boolean offHeap) throws Exception {
+	EntryHolder holder = newHolder(offHeap);
+	Part part = new Part(Integer.valueOf(1), "red", Integer.valueOf(1));
+	EntryHandle red = write(holder, part);
+	part.color = "green";
+	part.size = null;
+	EntryHandle green = write(holder, part);
+	part.color = null;
+	EntryHandle none = write(holder, part);
+	part.color = "BB";
+
+	assertNull("entry matched by a value it was never written with",
+		   take(holder, new Part(null, "BB", null)));
+	assertSame("entry taken by the value it was written with", red,
+		   take(holder, new Part(null, "red", Integer.valueOf(1))));
+	assertNull("entry taken once",
+		   take(holder, new Part(null, "red", null)));
+	assertNull("null field does not match a value",
+		   take(holder, new Part(null, null, Integer.valueOf(1))));
+	assertSame("entry written again with a changed field taken by it",
+		   green, take(holder, new Part(null, "green", null)));
+	assertSame("entry with null fields taken by a wildcard template", none,
+		   take(holder, new Part(Integer.valueOf(1), null, null)));
+	assertNull("holder empty", take(holder, new Part()));
+    }
+
+    /**
+     * Takes by field value racing with writes of those values take every
+     * entry exactly once, including entries written to a value whose
+     * bucket another take just emptied.
+     */
+    private static void takesRacingWrites(boolean offHeap) throws Exception {
+	final EntryHolder holder = newHolder(offHeap);
+	final Map<EntryHandle,Integer> numbers =
+	    new ConcurrentHashMap<EntryHandle,Integer>();
+	final Set<Integer> taken =
+	    Collections.synchronizedSet(new HashSet<Integer>());
+	final AtomicInteger next = new AtomicInteger();
+	final AtomicInteger duplicates = new AtomicInteger();
+	final AtomicInteger writing = new AtomicInteger(WRITERS);
+	final Throwable[] failure = new Throwable[1];
+	List<Thread> threads = new ArrayList<Thread>();
+	for (int w = 0; w < WRITERS; w++) {
+	    threads.add(new Thread() {
+		public void run() {
+		    try {
+			int n;
+			while ((n = next.getAndIncrement()) < RACING_ENTRIES) {
+			    Part part = new Part(Integer.valueOf(n),
+						 COLORS[n % COLORS.length],
+						 Integer.valueOf(n % 3));
+			    EntryRep rep = new EntryRep(part);
+			    rep.pickID();
+			    rep.setExpiration(Long.MAX_VALUE);
+			    EntryHandle handle =
+				holder.newEntryHandle(rep, null);
+			    numbers.put(handle, Integer.valueOf(n));
+			    holder.add(handle, null);
+			}
+		    } catch (Throwable t) {
+			failure[0] = t;
+		    } finally {
+			writing.decrementAndGet();
+		    }
+		}
+	    });
+	}
+	for (int t = 0; t < TAKERS; t++) {
+	    final int first = t;
+	    threads.add(new Thread() {
+		public void run() {
+		    try {
+			/* stop after finding nothing once writes are done */
+			int i = first;
+			int misses = 0;
+			while (taken.size() < RACING_ENTRIES &&
+			       failure[0] == null &&
+			       (writing.get() > 0 || misses < COLORS.length))
+			{
+			    String color = COLORS[i++ % COLORS.length];
+			    EntryHandle handle =
+				take(holder, new Part(null, color, null));
+			    if (handle == null) {
+				misses = writing.get() > 0 ? 0 : misses + 1;
+			    } else {
+				misses = 0;
+				if (!taken.add(numbers.get(handle))) {
+				    duplicates.incrementAndGet();
+				}
+			    }
+			}
+		    } catch (Throwable t) {
+			failure[0] = t;
+		    }
+		}
+	    });
+	}
+	for (Thread thread : threads) {
+	    thread.start();
+	}
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	if (failure[0] != null) {
+	    throw new AssertionError(failure[0]);
+	}
+	assertEquals("entries taken more than once", 0, duplicates.get());
+	assertEquals("entries taken", RACING_ENTRIES, taken.size());
+	for (int i = 0; i < COLORS.length; i++) {
+	    EntryHandle handle = write(holder, new Part(null, COLORS[i], null));
+	    assertSame("entry written after its value's bucket emptied taken",
+		       handle, take(holder, new Part(null, COLORS[i], null)));
+	}
+	assertNull("holder empty", take(holder, new Part()));
+    }
+
+    /**
+     * An entry written while the only other entry with its value is
+     * taken, emptying that value's bucket, is still found by its value.
+     */
+    private static void writeRacingLastTake(boolean offHeap)
+	throws Exception
+    {
+	final EntryHolder holder = newHolder(offHeap);
+	final CyclicBarrier start = new CyclicBarrier(2);
+	final CyclicBarrier done = new CyclicBarrier(2);
+	final EntryHandle[] written = new EntryHandle[1];
+	final Throwable[] failure = new Throwable[1];
+	Thread writer = new Thread() {
+	    public void run() {
+		try {
+		    Random spins = new Random(random.nextLong());
+		    for (int r = 0; r < ROUNDS; r++) {
+			EntryRep rep = new EntryRep(new Part(null, "red", null));
+			rep.pickID();
+			rep.setExpiration(Long.MAX_VALUE);
+			EntryHandle handle = holder.newEntryHandle(rep, null);
+			start.await();
+			spin(spins.nextInt(200));
+			holder.add(handle, null);
+			written[0] = handle;
+			done.await();
+		    }
+		} catch (Throwable t) {
+		    failure[0] = t;
+		}
+	    }
+	};
+	writer.start();
+	Part red = new Part(null, "red", null);
+	Random spins = new Random(random.nextLong());
+	for (int r = 0; r < ROUNDS && failure[0] == null; r++) {
+	    EntryHandle last = write(holder, red);
+	    start.await();
+	    spin(spins.nextInt(200));
+	    EntryHandle first = take(holder, red);
+	    done.await();
+	    EntryHandle second = take(holder, red);
+	    assertTrue("round " + r + ": entry written as the last was taken " +
+		       "not found",
+		       first != null && second != null && first != second &&
+		       (first == last || second == last) &&
+		       (first == written[0] || second == written[0]));
+	}
+	writer.join();
+	if (failure[0] != null) {
+	    throw new AssertionError(failure[0]);
+	}
+    }
+
+    /** Busy waits for about n iterations to vary thread timing */
+    private static int spinSink;
+    private static void spin(int n) {
+	for (int i = 0; i < n; i++) {
+	    spinSink += i;
+	}
+    }
+
+    private static EntryHolder newHolder(boolean offHeap) {
+	return new EntryHolder(null, new ConcurrentHashMap<Uuid,EntryHandle>(),
+			       true, false,
+			       offHeap ? new OffHeapFieldStore(SLAB_SIZE) : null);
+    }
+
+    private static EntryHandle write(EntryHolder holder, Entry entry)
+	throws Exception
+    {
+	EntryRep rep = new EntryRep(entry);
+	rep.pickID();
+	rep.setExpiration(Long.MAX_VALUE);
+	EntryHandle handle = holder.newEntryHandle(rep, null);
+	holder.add(handle, null);
+	return handle;
+    }
+
+    private static EntryHandle take(EntryHolder holder, Entry tmpl)
+	throws Exception
+    {
+	return take(holder, new EntryRep(tmpl));
+    }
+
+    /** Takes and removes a match for tmpl, returning null if none */
+    private static EntryHandle take(EntryHolder holder, EntryRep tmpl)
+	throws Exception
+    {
+	EntryHandle handle = holder.hasMatch(tmpl, null, true, null, null,
+					     null);
+	if (handle != null) {
+	    holder.remove(handle, true);
+	}
+	return handle;
+    }
+
+    /** Returns null one time in n, else a color */
+    private static String color(int n) {
+	return random.nextInt(n) == 0 ? null :
+	    COLORS[random.nextInt(COLORS.length)];
+    }
+
+    /** Returns null one time in n, else a size */
+    private static Integer size(int n) {
+	return random.nextInt(n) == 0 ? null :
+	    Integer.valueOf(random.nextInt(3));
+    }
+
+    /** Returns null one time in n, else a label */
+    private static String label(int n) {
+	return random.nextInt(n) == 0 ? null :
+	    String.valueOf((char) ('a' + random.nextInt(2)));
+    }
+
+    private static String describe(Entry tmpl) {
+	Part part = (Part) tmpl;
+	return tmpl.getClass().getSimpleName() + "[" + part.color + ", " +
+	    part.size +
+	    (tmpl instanceof Gear ? ", " + ((Gear) tmpl).label : "") + "]";
+    }
+
+}
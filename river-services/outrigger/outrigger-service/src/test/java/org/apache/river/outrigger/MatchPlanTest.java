@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.outrigger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.jini.core.entry.Entry;
+import org.apache.river.outrigger.proxy.EntryRep;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the holders searched for a template class include
+ * subclass holders created after the match plan for that class was
+ * cached, exclude superclass holders, cover every class for a match any
+ * template, and that takes racing with writes of entries of new
+ * subclasses take every entry exactly once.  Set the seed system
+ * property to repeat a run.
+ */
+public class MatchPlanTest {
+
+    private static final int ROUNDS = 500;
+    private static final int WRITERS = 3;
+    private static final int TAKERS = 3;
+    private static final int ENTRIES = 100;
+
+    public static class Part implements Entry {
+	public Integer number;
+
+	public Part() {
+	}
+
+	public Part(Integer number) {
+	    this.number = number;
+	}
+    }
+
+    public static class Gear extends Part {
+	public Gear() {
+	}
+
+	public Gear(Integer number) {
+	    super(number);
+	}
+    }
+
+    public static class Cog extends Gear {
+	public Cog() {
+	}
+
+	public Cog(Integer number) {
+	    super(number);
+	}
+    }
+
+    public static class Bolt extends Part {
+	public Bolt() {
+	}
+
+	public Bolt(Integer number) {
+	    super(number);
+	}
+    }
+
+    public static class Nut implements Entry {
+	public Integer number;
+
+	public Nut() {
+	}
+
+	public Nut(Integer number) {
+	    this.number = number;
+	}
+    }
+
+    private static final String MATCH_ANY = EntryRep.matchAnyClassName();
+    private static final String[] TEMPLATES = {
+	Part.class.getName(), Gear.class.getName(), MATCH_ANY
+    };
+
+    private static Random random;
+
+    @BeforeClass
+    public static void seed() {
+	long seed = Long.getLong("seed", System.nanoTime()).longValue();
+	System.err.println("seed " + seed);
+	random = new Random(seed);
+    }
+
+    /**
+     * A plan cached before a subclass is first written includes that
+     * subclass afterwards, a subclass plan never includes superclass
+     * holders, and a match any plan includes every class.
+     */
+    @Test
+    public void plansFollowNewSubtypes() throws Exception {
+	TypeTree types = new TypeTree();
+	EntryHolderSet set = new EntryHolderSet(null, true, false, null);
+	String part = Part.class.getName();
+	String gear = Gear.class.getName();
+
+	write(types, set, new Part(Integer.valueOf(0)));
+	EntryHolder[] plan = set.holdersFor(part, types);
+	expectHolders(set, plan, part);
+	assertSame("unchanged plan not reused",
+		   plan, set.holdersFor(part, types));
+
+	write(types, set, new Gear(Integer.valueOf(1)));
+	expectHolders(set, set.holdersFor(part, types), part, gear);
+	expectHolders(set, set.holdersFor(gear, types), gear);
+
+	// A deeper subclass is new to the cached Part and Gear plans
+	write(types, set, new Cog(Integer.valueOf(2)));
+	String cog = Cog.class.getName();
+	expectHolders(set, set.holdersFor(part, types), part, gear, cog);
+	expectHolders(set, set.holdersFor(gear, types), gear, cog);
+	expectHolders(set, set.holdersFor(cog, types), cog);
+
+	expectHolders(set, set.holdersFor(MATCH_ANY, types), part, gear, cog);
+	write(types, set, new Nut(Integer.valueOf(3)));
+	String nut = Nut.class.getName();
+	expectHolders(set, set.holdersFor(MATCH_ANY, types),
+		      part, gear, cog, nut);
+	expectHolders(set, set.holdersFor(part, types), part, gear, cog);
+
+	// Writing more of a known class leaves the plans as they are
+	plan = set.holdersFor(part, types);
+	write(types, set, new Cog(Integer.valueOf(4)));
+	assertSame("plan rebuilt for a known subclass",
+		   plan, set.holdersFor(part, types));
+
+	assertNotNull("gear not found", find(types, set, gear));
+	assertNotNull("cog not found", find(types, set, gear));
+	assertNotNull("second cog not found", find(types, set, gear));
+	assertNull("part taken for gear", find(types, set, gear));
+	assertNotNull("part not found", find(types, set, part));
+	assertNull("nut taken for part", find(types, set, part));
+	assertNotNull("nut not found", find(types, set, MATCH_ANY));
+	assertNull("entry taken twice", find(types, set, MATCH_ANY));
+    }
+
+    /**
+     * Writers write entries of classes new to the type tree while
+     * takers search with superclass and match any templates, as
+     * OutriggerServerImpl does; every entry is taken exactly once.
+     */
+    @Test
+    public void takesRacingNewSubtypes() throws Exception {
+	for (int r = 0; r < ROUNDS; r++) {
+	    final TypeTree types = new TypeTree();
+	    final EntryHolderSet set =
+		new EntryHolderSet(null, true, false, null);
+	    final AtomicInteger writing = new AtomicInteger(WRITERS);
+	    final Set<Class<?>> classes =
+		Collections.synchronizedSet(new HashSet<Class<?>>());
+	    final Map<EntryHandle,Boolean> taken = Collections.synchronizedMap(
+		new IdentityHashMap<EntryHandle,Boolean>());
+	    final List<Throwable> failures =
+		Collections.synchronizedList(new ArrayList<Throwable>());
+	    List<Thread> threads = new ArrayList<Thread>();
+	    for (int w = 0; w < WRITERS; w++) {
+		final long seed = random.nextLong();
+		threads.add(new Thread() {
+		    public void run() {
+			try {
+			    Random rand = new Random(seed);
+			    for (int i = 0; i < ENTRIES; i++) {
+				Entry entry = newEntry(rand, i);
+				classes.add(entry.getClass());
+				write(types, set, entry);
+			    }
+			} catch (Throwable t) {
+			    failures.add(t);
+			} finally {
+			    writing.decrementAndGet();
+			}
+		    }
+		});
+	    }
+	    for (int t = 0; t < TAKERS; t++) {
+		threads.add(new Thread() {
+		    public void run() {
+			try {
+			    int misses = 0;
+			    while (misses < TEMPLATES.length) {
+				boolean done = writing.get() == 0;
+				EntryHandle handle = find(types, set,
+				    TEMPLATES[misses]);
+				if (handle != null) {
+				    assertNull("entry taken twice",
+					       taken.put(handle, Boolean.TRUE));
+				    misses = 0;
+				} else if (done) {
+				    misses++;
+				}
+			    }
+			} catch (Throwable t) {
+			    failures.add(t);
+			}
+		    }
+		});
+	    }
+	    for (Thread t : threads) {
+		t.start();
+	    }
+	    for (Thread t : threads) {
+		t.join();
+	    }
+	    if (!failures.isEmpty()) {
+		throw new AssertionError(failures.get(0));
+	    }
+	    assertEquals("round " + r + ": entries taken",
+			 WRITERS * ENTRIES, taken.size());
+	    // Plans cached during the round must not stay stale
+	    for (String tmplClass : TEMPLATES) {
+		expectHolders(set, set.holdersFor(tmplClass, types),
+			      written(classes, tmplClass));
+	    }
+	}
+    }
+
+    /** Returns the written classes a template of tmplClass matches */
+    private static String[] written(Set<Class<?>> classes,
+				    String tmplClass)
+	throws Exception
+    {
+	List<String> result = new ArrayList<String>();
+	for (Class<?> c : classes) {
+	    if (tmplClass.equals(MATCH_ANY) ||
+		Class.forName(tmplClass).isAssignableFrom(c))
+	    {
+		result.add(c.getName());
+	    }
+	}
+	return result.toArray(new String[result.size()]);
+    }
+
+    private static Entry newEntry(Random rand, int i) {
+	Integer number = Integer.valueOf(i);
+	switch (rand.nextInt(5)) {
+	case 0:
+	    return new Part(number);
+	case 1:
+	    return new Gear(number);
+	case 2:
+	    return new Cog(number);
+	case 3:
+	    return new Bolt(number);
+	default:
+	    return new Nut(number);
+	}
+    }
+
+    /** Writes entry the way OutriggerServerImpl does */
+    private static void write(TypeTree types, EntryHolderSet set,
+			      Entry entry)
+	throws Exception
+    {
+	EntryRep rep = new EntryRep(entry);
+	rep.pickID();
+	rep.setExpiration(Long.MAX_VALUE);
+	types.addTypes(rep);
+	EntryHolder holder = set.holderFor(rep);
+	holder.add(holder.newEntryHandle(rep, null), null);
+    }
+
+    /**
+     * Takes and removes an entry matching a template of class
+     * tmplClass with every field a wildcard, searching holders the
+     * way OutriggerServerImpl.find does, returning null if none.
+     */
+    private static EntryHandle find(TypeTree types, EntryHolderSet set,
+				    String tmplClass)
+	throws Exception
+    {
+	EntryRep tmpl = tmplClass.equals(MATCH_ANY) ?
+	    EntryRep.matchAnyEntryRep() :
+	    new EntryRep((Entry) Class.forName(tmplClass).newInstance());
+	EntryHolder[] holders = set.holdersFor(tmplClass, types);
+	int length = holders.length;
+	int start = (length > 1 ? TypeTree.randomIndex(length) : 0);
+	for (int i = 0; i < length; i++) {
+	    EntryHolder holder = holders[(start + i) % length];
+	    EntryHandle handle = holder.hasMatch(tmpl, null, true, null,
+						 null, null);
+	    if (handle != null) {
+		holder.remove(handle, true);
+		return handle;
+	    }
+	}
+	return null;
+    }
+
+    private static void expectHolders(EntryHolderSet set,
+				      EntryHolder[] holders,
+				      String... classes)
+    {
+	assertEquals("holders for " + Arrays.asList(classes),
+		     classes.length, holders.length);
+	List<EntryHolder> list = Arrays.asList(holders);
+	for (String c : classes) {
+	    assertTrue("no holder for " + c + " in " + Arrays.asList(classes),
+		       list.contains(set.holderFor(c)));
+	}
+    }
+}
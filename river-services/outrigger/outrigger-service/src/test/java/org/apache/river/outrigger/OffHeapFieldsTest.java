@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.outrigger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import net.jini.core.entry.Entry;
+import net.jini.id.Uuid;
+import net.jini.io.MarshalledInstance;
+import org.apache.river.outrigger.proxy.EntryRep;
+import org.apache.river.outrigger.proxy.EntryRepAccess;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that entries whose fields are detached to an OffHeapFieldStore
+ * give back the same fields and match the same templates, one field at a
+ * time, when detached, reattached and serialized, including when the
+ * holder's field index is keyed on hash codes.
+ */
+public class OffHeapFieldsTest {
+
+    private static final int SLAB_SIZE = 4096;
+
+    public static class Rec implements Entry {
+	public Integer number;
+	public String name;
+	public String note;
+
+	public Rec() {
+	}
+
+	public Rec(Integer number, String name, String note) {
+	    this.number = number;
+	    this.name = name;
+	    this.note = note;
+	}
+    }
+
+    /** "Aa" and "BB" have marshalled forms with the same hash code */
+    @Test
+    public void namesCollide() throws Exception {
+	assertEquals(new MarshalledInstance("Aa").hashCode(),
+		     new MarshalledInstance("BB").hashCode());
+    }
+
+    /**
+     * A detached entry has the fields it had, and matches templates
+     * exactly as it did, including one whose field has the same hash
+     * code but a different value.
+     */
+    @Test
+    public void detach() throws Exception {
+	OffHeapFieldStore store = new OffHeapFieldStore(SLAB_SIZE);
+	char[] big = new char[SLAB_SIZE];
+	Arrays.fill(big, 'x');
+	Rec[] recs = {
+	    new Rec(Integer.valueOf(1), "Aa", null),
+	    new Rec(null, null, null),
+	    new Rec(Integer.valueOf(3), "BB", new String(big))
+	};
+	for (Rec rec : recs) {
+	    EntryRep rep = new EntryRep(rec);
+	    EntryRep heap = new EntryRep(rec);
+	    store.detach(rep);
+	    sameFields(rep, heap, "detached");
+	    assertEquals("detached entry equals heap entry", heap, rep);
+	    Rec[] templates = {
+		new Rec(), rec,
+		new Rec(rec.number, null, null),
+		new Rec(null, "Aa", null),
+		new Rec(null, "BB", null),
+		new Rec(Integer.valueOf(2), null, null),
+		new Rec(null, null, "note")
+	    };
+	    for (Rec t : templates) {
+		EntryRep tmpl = new EntryRep(t);
+		assertEquals("template " + fields(tmpl) + " against " +
+			     fields(heap),
+			     tmpl.matches(heap), tmpl.matches(rep));
+	    }
+	}
+    }
+
+    /**
+     * A reattached entry has its fields on the heap, and the fields of
+     * entries detached to the slots it released are intact.
+     */
+    @Test
+    public void reattach() throws Exception {
+	OffHeapFieldStore store = new OffHeapFieldStore(SLAB_SIZE);
+	List<EntryRep> reps = new ArrayList<EntryRep>();
+	for (int i = 0; i < 500; i++) {
+	    EntryRep rep = rep(i);
+	    store.detach(rep);
+	    reps.add(rep);
+	}
+	for (int i = 0; i < reps.size(); i += 2) {
+	    EntryRep rep = reps.get(i);
+	    store.reattach(rep);
+	    assertNull("reattached entry not detached",
+		       EntryRepAccess.reattach(rep));
+	    sameFields(rep, rep(i), "reattached");
+	}
+	for (int i = 0; i < reps.size(); i += 2) {
+	    EntryRep rep = rep(i + reps.size());
+	    store.detach(rep);
+	    reps.set(i, rep);
+	}
+	for (int i = 0; i < reps.size(); i++) {
+	    int n = i % 2 == 0 ? i + reps.size() : i;
+	    sameFields(reps.get(i), rep(n), "entry " + n);
+	    store.reattach(reps.get(i));
+	    sameFields(reps.get(i), rep(n), "reattached entry " + n);
+	}
+    }
+
+    /** A detached entry is serialized with its fields in place. */
+    @Test
+    public void writeReplace() throws Exception {
+	OffHeapFieldStore store = new OffHeapFieldStore(SLAB_SIZE);
+	EntryRep rep = rep(7);
+	rep.pickID();
+	store.detach(rep);
+	ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	ObjectOutputStream out = new ObjectOutputStream(bout);
+	out.writeObject(rep);
+	out.close();
+	ObjectInputStream in = new ObjectInputStream(
+	    new ByteArrayInputStream(bout.toByteArray()));
+	EntryRep copy = (EntryRep) in.readObject();
+	assertNull("copy not detached", EntryRepAccess.reattach(copy));
+	assertEquals("copy has the same id", rep.id(), copy.id());
+	sameFields(copy, rep(7), "copy");
+	Rec rec = (Rec) copy.entry();
+	assertEquals("copy unmarshals to the entry written",
+		     Integer.valueOf(7), rec.number);
+	assertEquals("copy unmarshals to the entry written",
+		     "name7", rec.name);
+	store.reattach(rep);
+	sameFields(rep, rep(7), "reattached after serialization");
+    }
+
+    /**
+     * An indexed holder of detached entries, whose index is keyed on
+     * hash codes, finds an entry by each field, and not by a value with
+     * the same hash code.
+     */
+    @Test
+    public void indexed() throws Exception {
+	EntryHolder holder = new EntryHolder(null,
+	    new ConcurrentHashMap<Uuid,EntryHandle>(), true, false,
+	    new OffHeapFieldStore(SLAB_SIZE));
+	EntryHandle aa = write(holder, new Rec(Integer.valueOf(1), "Aa", "a"));
+	EntryHandle bb = write(holder, new Rec(Integer.valueOf(2), "BB", "b"));
+	assertSame("found Aa", aa, find(holder, new Rec(null, "Aa", null)));
+	assertSame("found BB", bb, find(holder, new Rec(null, "BB", null)));
+	assertNull("no entry has both 2 and Aa",
+		   find(holder, new Rec(Integer.valueOf(2), "Aa", null)));
+	assertNull("no entry has Ab",
+		   find(holder, new Rec(null, "Ab", null)));
+	holder.remove(aa, true);
+	sameFields(aa.rep(), new EntryRep(new Rec(Integer.valueOf(1), "Aa", "a")),
+		   "removed entry");
+	assertNull("removed entry not found",
+		   find(holder, new Rec(null, "Aa", null)));
+	assertSame("BB found after Aa removed",
+		   bb, find(holder, new Rec(null, "BB", null)));
+    }
+
+    private static EntryRep rep(int i) throws Exception {
+	return new EntryRep(new Rec(Integer.valueOf(i), "name" + i,
+				    i % 3 == 0 ? null : "note" + i));
+    }
+
+    private static EntryHandle write(EntryHolder holder, Rec rec)
+	throws Exception
+    {
+	EntryRep rep = new EntryRep(rec);
+	rep.pickID();
+	rep.setExpiration(Long.MAX_VALUE);
+	EntryHandle handle = holder.newEntryHandle(rep, null);
+	holder.add(handle, null);
+	return handle;
+    }
+
+    private static EntryHandle find(EntryHolder holder, Rec tmpl)
+	throws Exception
+    {
+	return holder.hasMatch(new EntryRep(tmpl), null, false,
+			       new HashSet(), new HashSet<Uuid>(), null);
+    }
+
+    private static void sameFields(EntryRep rep, EntryRep heap, String what) {
+	assertEquals(what + ": field count", heap.numFields(), rep.numFields());
+	for (int i = 0; i < heap.numFields(); i++) {
+	    MarshalledInstance v = rep.value(i);
+	    MarshalledInstance h = heap.value(i);
+	    assertTrue(what + ": field " + i,
+		       v == null ? h == null : v.fullyEquals(h));
+	}
+    }
+
+    private static List<MarshalledInstance> fields(EntryRep rep) {
+	List<MarshalledInstance> f = new ArrayList<MarshalledInstance>();
+	for (int i = 0; i < rep.numFields(); i++) {
+	    f.add(rep.value(i));
+	}
+	return f;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.outrigger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import net.jini.core.entry.Entry;
+import net.jini.core.transaction.server.ServerTransaction;
+import net.jini.id.Uuid;
+import net.jini.security.ProxyPreparer;
+import org.apache.river.outrigger.proxy.EntryRep;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that work queue takes from an entry holder take an entry
+ * whose claim holder failed to capture it, record the conflicts of a
+ * claimed entry locked by a transaction, and, run concurrently, take
+ * every entry exactly once.
+ */
+public class WorkQueueTakesTest {
+
+    private static final int THREADS = 8;
+    private static final int ENTRIES = 2000;
+
+    public static class Task implements Entry {
+	public Integer number;
+
+	public Task() {
+	}
+
+	public Task(int number) {
+	    this.number = Integer.valueOf(number);
+	}
+    }
+
+    /** A transaction that the test never resolves. */
+    private static class Mgr implements TransactableMgr {
+	public ServerTransaction getTransaction(ProxyPreparer preparer) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public Transactable add(Transactable t) {
+	    return t;
+	}
+    }
+
+    /**
+     * A take that loses the claim on the only entry takes it if the
+     * claim holder never captures it.
+     */
+    @Test
+    public void claimedButNotCaptured() throws Exception {
+	EntryHolder holder = newHolder();
+	EntryHandle handle = write(holder, 1, null);
+	handle.claim();
+	Set<EntryHandle> provisional = new HashSet<EntryHandle>();
+	EntryHandle taken = take(holder, new HashSet(), new HashSet<Uuid>(),
+				 provisional);
+	assertSame("claimed entry taken when not captured", handle, taken);
+	assertTrue("no provisional removal recorded", provisional.isEmpty());
+    }
+
+    /**
+     * A take that loses the claim on an entry locked by a transaction
+     * records the conflict, as a take that did not lose the claim would.
+     */
+    @Test
+    public void claimedAndLocked() throws Exception {
+	EntryHolder holder = newHolder();
+	Mgr mgr = new Mgr();
+	EntryHandle handle = write(holder, 1, mgr);
+	handle.claim();
+	Set conflicts = new HashSet();
+	Set<Uuid> locked = new HashSet<Uuid>();
+	Set<EntryHandle> provisional = new HashSet<EntryHandle>();
+	EntryHandle taken = take(holder, conflicts, locked, provisional);
+	assertNull("locked entry not taken", taken);
+	assertTrue("conflicting transaction recorded",
+		   conflicts.contains(mgr));
+	assertTrue("locked entry recorded",
+		   locked.contains(handle.rep().id()));
+	assertTrue("locked entry not provisional", provisional.isEmpty());
+    }
+
+    /**
+     * Concurrent takes take each entry exactly once, and none finds the
+     * holder empty while entries are left.
+     */
+    @Test
+    public void concurrentTakes() throws Exception {
+	final EntryHolder holder = newHolder();
+	for (int i = 0; i < ENTRIES; i++) {
+	    write(holder, i, null);
+	}
+	final List<Integer> taken =
+	    Collections.synchronizedList(new ArrayList<Integer>());
+	final Throwable[] failure = new Throwable[1];
+	Thread[] threads = new Thread[THREADS];
+	for (int t = 0; t < THREADS; t++) {
+	    threads[t] = new Thread() {
+		public void run() {
+		    try {
+			EntryHandle handle;
+			while ((handle = take(holder, null, null, null)) != null)
+			{
+			    taken.add(((Task) handle.rep().entry()).number);
+			    holder.remove(handle, true);
+			}
+		    } catch (Throwable e) {
+			synchronized (failure) {
+			    failure[0] = e;
+			}
+		    }
+		}
+	    };
+	    threads[t].start();
+	}
+	for (int t = 0; t < THREADS; t++) {
+	    threads[t].join();
+	}
+	synchronized (failure) {
+	    if (failure[0] != null) {
+		throw new AssertionError(failure[0]);
+	    }
+	}
+	assertEquals("entries taken", ENTRIES, taken.size());
+	assertEquals("entries taken once",
+		     ENTRIES, new HashSet<Integer>(taken).size());
+	assertNull("holder empty", take(holder, null, null, null));
+    }
+
+    private static EntryHolder newHolder() {
+	return new EntryHolder(null, new ConcurrentHashMap<Uuid,EntryHandle>(),
+			       false, true, null);
+    }
+
+    private static EntryHandle write(EntryHolder holder, int number,
+				     TransactableMgr mgr)
+	throws Exception
+    {
+	EntryRep rep = new EntryRep(new Task(number));
+	rep.pickID();
+	rep.setExpiration(Long.MAX_VALUE);
+	EntryHandle handle = holder.newEntryHandle(rep, mgr);
+	holder.add(handle, mgr);
+	return handle;
+    }
+
+    private static EntryHandle take(EntryHolder holder, Set conflicts,
+				    Set<Uuid> locked,
+				    Set<EntryHandle> provisional)
+	throws Exception
+    {
+	return holder.hasMatch(new EntryRep(new Task()), null, true,
+			       conflicts, locked, provisional);
+    }
+}
@@ -42,6 +42,14 @@ class BaseObject<T extends StorableObject<T>> implements StoredObject<T>, Serial
      */
     private final byte[]	blob;
 
+    /**
+     * Create a <code>BaseObject</code> from a blob read back from a
+     * log written in group commit mode.
+     */
+    BaseObject(byte[] blob) {
+	this.blob = blob;
+    }
+
     BaseObject(T object) {
 	try {
 	    ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -55,6 +63,10 @@ class BaseObject<T extends StorableObject<T>> implements StoredObject<T>, Serial
 	}
     }
 
+    byte[] getBlob() {
+	return blob;
+    }
+
     public T restore(T object)
       throws IOException, ClassNotFoundException {
 	ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(blob));
@@ -64,6 +64,12 @@ class LogFile {
      */
     protected static final int LOG_VERSION = 3;
 
+    /**
+     * The version of log streams written in group commit mode, whose
+     * records are in a compact binary form and carry a checksum.
+     */
+    protected static final int BATCH_LOG_VERSION = 4;
+
     /** A log entry that records a boot. */
     protected static final byte BOOT_OP		= 1;
     /** A log entry that records the join state. */
@@ -20,6 +20,7 @@ package org.apache.river.outrigger.snaplogstore;
 import org.apache.river.outrigger.OutriggerServerImpl;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -31,6 +32,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import net.jini.space.InternalSpaceException;
 
@@ -157,9 +159,19 @@ class LogInputFile extends LogFile {
 	    DataInputStream din = 
 		new DataInputStream(new BufferedInputStream(
 					new FileInputStream(file)));
-	    ObjectInputStream in = new ObjectInputStream(din);
 
 	    long length = file.length();
+
+	    // Logs written in group commit mode start with their version,
+	    // others with an object stream header
+	    din.mark(4);
+	    if (din.readInt() == BATCH_LOG_VERSION) {
+		consumeBatch(din, length, opOn);
+		return;
+	    }
+	    din.reset();
+	    ObjectInputStream in = new ObjectInputStream(din);
+
 	    int fileVer = din.readInt();
 
 	    if (fileVer != LOG_VERSION)
@@ -302,6 +314,193 @@ class LogInputFile extends LogFile {
 	}
     }
 
+    /**
+     * Consume the records of a log written in group commit mode,
+     * positioned just after its version.  A record that is incomplete
+     * or fails its checksum ends the log: it can only be part of the
+     * last batch, which was never forced, so none of its operations
+     * were acknowledged.
+     */
+    private void consumeBatch(DataInputStream din, long length,
+			      BackEnd opOn)
+	throws IOException, ClassNotFoundException
+    {
+	final CRC32 crc = new CRC32();
+	long logBytes = intBytes;
+	int updateLen = din.readInt();
+
+	while (updateLen != 0) {	/* 0 is expected termination case */
+
+	    if (updateLen < 0 ||
+		length - logBytes - 2 * intBytes < updateLen)
+	    {
+		torn(logBytes);
+		return;
+	    }
+
+	    final int checksum = din.readInt();
+	    final byte[] record = new byte[updateLen];
+	    din.readFully(record);
+	    crc.reset();
+	    crc.update(record, 0, record.length);
+	    if ((int) crc.getValue() != checksum) {
+		torn(logBytes);
+		return;
+	    }
+
+	    apply(new DataInputStream(new ByteArrayInputStream(record)), opOn);
+
+	    logBytes += (2 * intBytes + updateLen);
+
+	    // deal with padding
+	    int offset = (int)logBytes & 3;
+	    if (offset > 0) {
+		offset = 4 - offset;
+		logBytes += offset;
+		din.skipBytes(offset);
+	    }
+	    if (length - logBytes < intBytes) {
+		torn(logBytes);
+		return;
+	    }
+	    updateLen = din.readInt();
+	}
+    }
+
+    /**
+     * Invoke the operation encoded in a group commit mode record on the
+     * given object.
+     */
+    private void apply(DataInputStream in, BackEnd opOn)
+	throws IOException, ClassNotFoundException
+    {
+	Long txnId;
+	int  count;
+	byte[] cookie;
+
+	int op = in.readByte();
+
+	switch (op) {
+	  case BOOT_OP:
+	    long time = in.readLong();
+	    long sessionId = in.readLong();
+	    opOn.bootOp(time, sessionId);
+	    break;
+
+	  case JOINSTATE_OP:
+	    opOn.joinStateOp(new BaseObject(readBlob(in)));
+	    break;
+
+	  case WRITE_OP:
+	    Resource rep = readResource(in);
+	    txnId = readTxnId(in);
+	    opOn.writeOp(rep, txnId);
+	    break;
+
+	  case BATCH_WRITE_OP:
+	    txnId = readTxnId(in);
+	    count = in.readInt();
+	    for (int i=0; i<count; i++) {
+		opOn.writeOp(readResource(in), txnId);
+	    }
+	    break;
+
+	  case TAKE_OP:
+	    cookie = readCookie(in);
+	    txnId = readTxnId(in);
+	    opOn.takeOp(cookie, txnId);
+	    break;
+
+	  case BATCH_TAKE_OP:
+	    txnId = readTxnId(in);
+	    count = in.readInt();
+	    for (int i=0; i<count; i++) {
+		opOn.takeOp(readCookie(in), txnId);
+	    }
+	    break;
+
+	  case REGISTER_OP:
+	    cookie = readCookie(in);
+	    long expiration = in.readLong();
+	    byte[] blob = readBlob(in);
+	    String type = in.readUTF();
+	    BaseObject[] templates = new BaseObject[in.readInt()];
+	    for (int i=0; i<templates.length; i++) {
+		templates[i] = new BaseObject(readBlob(in));
+	    }
+	    opOn.registerOp(
+		new Registration(blob, cookie, expiration, type, templates));
+	    break;
+
+	  case RENEW_OP:
+	    cookie = readCookie(in);
+	    long expires = in.readLong();
+	    opOn.renewOp(cookie, expires);
+	    break;
+
+	  case CANCEL_OP:
+	    opOn.cancelOp(readCookie(in));
+	    break;
+
+	  case PREPARE_OP:
+	    txnId = readTxnId(in);
+	    opOn.prepareOp(txnId, new BaseObject(readBlob(in)));
+	    break;
+
+	  case COMMIT_OP:
+	    opOn.commitOp(readTxnId(in));
+	    break;
+
+	  case ABORT_OP:
+	    opOn.abortOp(readTxnId(in));
+	    break;
+
+	  case UUID_OP:
+	    opOn.uuidOp(readCookie(in));
+	    break;
+
+	  default:
+	    failure("log record corrupted, unknown opcode");
+
+	}  // case
+    }
+
+    private static byte[] readCookie(DataInputStream in) throws IOException {
+	final byte[] cookie = new byte[16];
+	in.readFully(cookie);
+	return cookie;
+    }
+
+    private static byte[] readBlob(DataInputStream in) throws IOException {
+	final byte[] blob = new byte[in.readInt()];
+	in.readFully(blob);
+	return blob;
+    }
+
+    private static Long readTxnId(DataInputStream in) throws IOException {
+	return in.readBoolean() ? Long.valueOf(in.readLong()) : null;
+    }
+
+    private static Resource readResource(DataInputStream in)
+	throws IOException
+    {
+	final byte[] cookie = readCookie(in);
+	final long expiration = in.readLong();
+	return new Resource(readBlob(in), cookie, expiration);
+    }
+
+    /**
+     * Log that the rest of the file, from <code>logBytes</code>, holds
+     * an unforced, partially written batch and is ignored.
+     */
+    private void torn(long logBytes) {
+	if (logger.isLoggable(Level.WARNING)) {
+	    logger.log(Level.WARNING, "Ignoring partially written batch " +
+		       "at {0} in log file {1}",
+		       new Object[]{Long.valueOf(logBytes), file});
+	}
+    }
+
     /**
      * Report a failure consuming the log file and throw an
      * <code>InternalSpaceException</code> containing <code>message</code>.
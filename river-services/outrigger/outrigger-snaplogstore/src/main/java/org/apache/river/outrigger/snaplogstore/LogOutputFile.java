@@ -23,6 +23,8 @@ import org.apache.river.outrigger.proxy.StorableObject;
 import org.apache.river.outrigger.proxy.StorableResource;
 import net.jini.id.Uuid;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
@@ -32,6 +34,7 @@ import java.util.ArrayList;
 import java.util.Observable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import net.jini.space.InternalSpaceException;
 
@@ -48,6 +51,14 @@ import net.jini.space.InternalSpaceException;
  * "observable part", which is an object that reports observable
  * events.  Right now the only observable event is the switching to a
  * new physical file when the current one becomes full.
+ * <p>
+ * In group commit mode each operation is encoded in a compact binary
+ * record, framed with its length and a checksum, and appended to a
+ * buffer shared by all threads.  A thread logging an operation that
+ * must be forced to disk waits until its record is stable; one waiting
+ * thread writes every buffered record and forces the file once on
+ * behalf of all of them.  Such files are written with
+ * <code>BATCH_LOG_VERSION</code>.
  *
  * @author Sun Microsystems, Inc.
  * @see LogInputFile
@@ -71,6 +82,30 @@ class LogOutputFile extends LogFile implements LogOps {
 
     private static final long intBytes = 4;
 
+    /**
+     * Size past which records that need not be forced to disk are
+     * written anyway, in group commit mode.
+     */
+    private static final int UNFORCED_LIMIT = 64 * 1024;
+
+    /** <code>true</code> if writing in group commit mode */
+    private final boolean groupCommit;
+
+    /** Records not yet written, in group commit mode, guarded by this */
+    private Batch pending = new Batch();
+
+    /** Sequence number of the last record appended, guarded by this */
+    private long appended = 0;
+
+    /** Sequence number of the last record forced, guarded by this */
+    private long forced = 0;
+
+    /** <code>true</code> while a batch is being written, guarded by this */
+    private boolean flushing = false;
+
+    /** Set if writing a batch failed, guarded by this */
+    private IOException failure = null;
+
     /** Logger for logging persistent store related information */
     private static final Logger logger = 
 	Logger.getLogger(OutriggerServerImpl.storeLoggerName);
@@ -90,7 +125,20 @@ class LogOutputFile extends LogFile implements LogOps {
      */
     //@see org.apache.river.mercury.LogStream#LogStream(String)
     LogOutputFile(String basePath, int maxOps) throws IOException {
+	this(basePath, maxOps, false);
+    }
+
+    /**
+     * Create a <code>LogOutputFile</code> object as described above,
+     * optionally writing in group commit mode.
+     *
+     * @see LogOutputFile#LogOutputFile(String, int)
+     */
+    LogOutputFile(String basePath, int maxOps, boolean groupCommit)
+	throws IOException
+    {
 	super(basePath);
+	this.groupCommit = groupCommit;
 	ArrayList inDir = new ArrayList();
 	suffix = existingLogs(inDir);
 	this.maxOps = maxOps;
@@ -135,7 +183,9 @@ class LogOutputFile extends LogFile implements LogOps {
 		writeInt((int)deferedUpdateLength);
 	    }
 	    try {
-		close();   	        // close the stream and the file
+		// close the stream and the file, without waiting for the
+		// batch being written, which may be what got us here
+		closeFile();
 	    } catch (IOException ignore) { } // assume this is okay
 	    completed = true;
 	}
@@ -144,9 +194,13 @@ class LogOutputFile extends LogFile implements LogOps {
 	logFile = new RandomAccessFile(baseDir.getPath() + File.separator +
 				       baseFile + suffix, "rw");
 	logFD = logFile.getFD();
-	out = new ObjectOutputStream(new LogOutputStream(logFile));
-
-	writeInt(LOG_VERSION);
+	if (groupCommit) {
+	    out = null;
+	    writeInt(BATCH_LOG_VERSION);
+	} else {
+	    out = new ObjectOutputStream(new LogOutputStream(logFile));
+	    writeInt(LOG_VERSION);
+	}
 
 	logBytes = logFile.getFilePointer();
 	logFile.setLength(logBytes);
@@ -173,9 +227,28 @@ class LogOutputFile extends LogFile implements LogOps {
      * Close the log, but don't remove it.
      */
     synchronized void close() throws IOException {
+	// let a batch being written finish
+	boolean interrupted = false;
+	while (flushing) {
+	    try {
+		wait();
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+	closeFile();
+    }
+
+    /**
+     * Close the stream and the current file, if any.
+     */
+    private void closeFile() throws IOException {
 	if (logFile != null) {
 	    try {
-		out.close();
+		if (out != null)
+		    out.close();
 		logFile.close();
 	    } finally {
 		logFile = null;
@@ -199,12 +272,21 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a server boot.
      */
-    public synchronized void bootOp(long time, long sessionId) {
+    public void bootOp(long time, long sessionId) {
 	try {
-	    out.writeByte(BOOT_OP);
-	    out.writeLong(time);
-	    out.writeLong(sessionId);
-	    flush();
+	    if (groupCommit) {
+		Record rec = new Record(BOOT_OP);
+		rec.writeLong(time);
+		rec.writeLong(sessionId);
+		commit(rec, true, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(BOOT_OP);
+		out.writeLong(time);
+		out.writeLong(sessionId);
+		flush();
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -213,11 +295,19 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a change in join state
      */
-    public synchronized void joinStateOp(StorableObject state) {
+    public void joinStateOp(StorableObject state) {
 	try {
-	    out.writeByte(JOINSTATE_OP);
-	    out.writeObject(new BaseObject(state));
-	    flush();
+	    if (groupCommit) {
+		Record rec = new Record(JOINSTATE_OP);
+		rec.writeBaseObject(new BaseObject(state));
+		commit(rec, true, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(JOINSTATE_OP);
+		out.writeObject(new BaseObject(state));
+		flush();
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -226,38 +316,59 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a <code>write</code> operation.
      */
-    public synchronized void writeOp(StorableResource entry, Long txnId) {
+    public void writeOp(StorableResource entry, Long txnId) {
 	try {
-	    out.writeByte(WRITE_OP);
-	    out.writeObject(new Resource(entry));
-	    out.writeObject(txnId);
-
-	    // A write operation under a transaction does not need to be
-	    // flushed until it is prepared.
-	    //
-	    flush(txnId == null);
+	    if (groupCommit) {
+		Record rec = new Record(WRITE_OP);
+		rec.writeResource(new Resource(entry));
+		rec.writeTxnId(txnId);
+		commit(rec, txnId == null, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(WRITE_OP);
+		out.writeObject(new Resource(entry));
+		out.writeObject(txnId);
+
+		// A write operation under a transaction does not need to be
+		// flushed until it is prepared.
+		//
+		flush(txnId == null);
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
     }
 
     // Inherit java doc from supertype
-    public synchronized void writeOp(StorableResource entries[], Long txnId) {
+    public void writeOp(StorableResource entries[], Long txnId) {
 	try {
-	    out.writeByte(BATCH_WRITE_OP);
-	    out.writeObject(txnId);
-
-	    // In the middle of records we need to use the stream's
-	    // writeInt, not our private one	    
-	    out.writeInt(entries.length);
-	    for (int i=0; i<entries.length; i++) {
-		out.writeObject(new Resource(entries[i]));
+	    if (groupCommit) {
+		Record rec = new Record(BATCH_WRITE_OP);
+		rec.writeTxnId(txnId);
+		rec.writeInt(entries.length);
+		for (int i=0; i<entries.length; i++) {
+		    rec.writeResource(new Resource(entries[i]));
+		}
+		commit(rec, txnId == null, entries.length);
+		return;
 	    }
+	    synchronized (this) {
+		out.writeByte(BATCH_WRITE_OP);
+		out.writeObject(txnId);
+
+		// In the middle of records we need to use the stream's
+		// writeInt, not our private one	    
+		out.writeInt(entries.length);
+		for (int i=0; i<entries.length; i++) {
+		    out.writeObject(new Resource(entries[i]));
+		}
 
-	    // A write operation under a transaction does not need to be
-	    // flushed until it is prepared.
-	    //
-	    flush(txnId == null, entries.length);
+		// A write operation under a transaction does not need to be
+		// flushed until it is prepared.
+		//
+		flush(txnId == null, entries.length);
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -266,38 +377,59 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a <code>take</code> operation.
      */
-    public synchronized void takeOp(Uuid cookie, Long txnId) {
+    public void takeOp(Uuid cookie, Long txnId) {
 	try {
-	    out.writeByte(TAKE_OP);
-	    cookie.write(out);
-	    out.writeObject(txnId);
-
-	    // A take operation under a transaction does not need to be
-	    // flushed until it is prepared.
-	    //
-	    flush(txnId == null);
+	    if (groupCommit) {
+		Record rec = new Record(TAKE_OP);
+		cookie.write(rec);
+		rec.writeTxnId(txnId);
+		commit(rec, txnId == null, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(TAKE_OP);
+		cookie.write(out);
+		out.writeObject(txnId);
+
+		// A take operation under a transaction does not need to be
+		// flushed until it is prepared.
+		//
+		flush(txnId == null);
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
     }
 
     // Inherit java doc from supertype
-    public synchronized void takeOp(Uuid cookies[], Long txnId) {
+    public void takeOp(Uuid cookies[], Long txnId) {
 	try {
-	    out.writeByte(BATCH_TAKE_OP);
-	    out.writeObject(txnId);
-
-	    // In the middle of records we need to use the stream's
-	    // writeInt, not our private one	    
-	    out.writeInt(cookies.length);
-	    for (int i=0; i<cookies.length; i++) {
-		cookies[i].write(out);
+	    if (groupCommit) {
+		Record rec = new Record(BATCH_TAKE_OP);
+		rec.writeTxnId(txnId);
+		rec.writeInt(cookies.length);
+		for (int i=0; i<cookies.length; i++) {
+		    cookies[i].write(rec);
+		}
+		commit(rec, txnId == null, cookies.length);
+		return;
 	    }
+	    synchronized (this) {
+		out.writeByte(BATCH_TAKE_OP);
+		out.writeObject(txnId);
+
+		// In the middle of records we need to use the stream's
+		// writeInt, not our private one	    
+		out.writeInt(cookies.length);
+		for (int i=0; i<cookies.length; i++) {
+		    cookies[i].write(out);
+		}
 
-	    // A take operation under a transaction does not need to be
-	    // flushed until it is prepared.
-	    //
-	    flush(txnId == null, cookies.length);
+		// A take operation under a transaction does not need to be
+		// flushed until it is prepared.
+		//
+		flush(txnId == null, cookies.length);
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -306,13 +438,21 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a <code>notify</code> operation.
      */
-    public synchronized void registerOp(StorableResource registration,
+    public void registerOp(StorableResource registration,
 					String type, StorableObject[] templates) 
     {
 	try {
-	    out.writeByte(REGISTER_OP);
-	    out.writeObject(new Registration(registration, type, templates));
-	    flush();
+	    if (groupCommit) {
+		Record rec = new Record(REGISTER_OP);
+		rec.writeRegistration(new Registration(registration, type, templates));
+		commit(rec, true, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(REGISTER_OP);
+		out.writeObject(new Registration(registration, type, templates));
+		flush();
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -321,12 +461,21 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a <code>renew</code> operation.
      */
-    public synchronized void renewOp(Uuid cookie, long expiration) {
+    public void renewOp(Uuid cookie, long expiration) {
 	try {
-	    out.writeByte(RENEW_OP);
-	    cookie.write(out);
-	    out.writeLong(expiration);
-	    flush();
+	    if (groupCommit) {
+		Record rec = new Record(RENEW_OP);
+		cookie.write(rec);
+		rec.writeLong(expiration);
+		commit(rec, true, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(RENEW_OP);
+		cookie.write(out);
+		out.writeLong(expiration);
+		flush();
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -335,14 +484,22 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a <code>cancel</code> operation.
      */
-    public synchronized void cancelOp(Uuid cookie, boolean expired) {
+    public void cancelOp(Uuid cookie, boolean expired) {
 	try {
-	    out.writeByte(CANCEL_OP);
-	    cookie.write(out);
+	    if (groupCommit) {
+		Record rec = new Record(CANCEL_OP);
+		cookie.write(rec);
+		commit(rec, !expired, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(CANCEL_OP);
+		cookie.write(out);
 
-	    // cancels due to expiration don't need to be flushed
-	    // right away
-	    flush(!expired);
+		// cancels due to expiration don't need to be flushed
+		// right away
+		flush(!expired);
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -351,13 +508,22 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a transaction <code>prepare</code> operation.
      */
-    public synchronized void prepareOp(Long txnId,
+    public void prepareOp(Long txnId,
 				       StorableObject transaction) {
 	try {
-	    out.writeByte(PREPARE_OP);
-	    out.writeObject(txnId);
-	    out.writeObject(new BaseObject(transaction));
-	    flush();
+	    if (groupCommit) {
+		Record rec = new Record(PREPARE_OP);
+		rec.writeTxnId(txnId);
+		rec.writeBaseObject(new BaseObject(transaction));
+		commit(rec, true, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(PREPARE_OP);
+		out.writeObject(txnId);
+		out.writeObject(new BaseObject(transaction));
+		flush();
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -366,11 +532,19 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a transaction <code>commit</code> operation.
      */
-    public synchronized void commitOp(Long txnId) {
+    public void commitOp(Long txnId) {
 	try {
-	    out.writeByte(COMMIT_OP);
-	    out.writeObject(txnId);
-	    flush();
+	    if (groupCommit) {
+		Record rec = new Record(COMMIT_OP);
+		rec.writeTxnId(txnId);
+		commit(rec, true, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(COMMIT_OP);
+		out.writeObject(txnId);
+		flush();
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -379,21 +553,37 @@ class LogOutputFile extends LogFile implements LogOps {
     /**
      * Log a transaction <code>abort</code> operation.
      */
-    public synchronized void abortOp(Long txnId) {
+    public void abortOp(Long txnId) {
 	try {
-	    out.writeByte(ABORT_OP);
-	    out.writeObject(txnId);
-	    flush();
+	    if (groupCommit) {
+		Record rec = new Record(ABORT_OP);
+		rec.writeTxnId(txnId);
+		commit(rec, true, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(ABORT_OP);
+		out.writeObject(txnId);
+		flush();
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
     }
 
-    public synchronized void uuidOp(Uuid uuid) {
+    public void uuidOp(Uuid uuid) {
 	try {
-	    out.writeByte(UUID_OP);
-	    uuid.write(out);
-	    flush();
+	    if (groupCommit) {
+		Record rec = new Record(UUID_OP);
+		uuid.write(rec);
+		commit(rec, true, 1);
+		return;
+	    }
+	    synchronized (this) {
+		out.writeByte(UUID_OP);
+		uuid.write(out);
+		flush();
+	    }
 	} catch (IOException e) {
 	    failed(e);
 	}
@@ -493,6 +683,109 @@ class LogOutputFile extends LogFile implements LogOps {
 	    out.reset();		// not critical to flush this
     }
 
+    /**
+     * Append a record to the next batch, in group commit mode, and if
+     * <code>forceToDisk</code> is <code>true</code> block until it is
+     * stable.  A record that need not be forced is written with the
+     * next batch, unless too many such records are buffered.
+     */
+    private void commit(Record rec, boolean forceToDisk,
+			int effectiveOpCount)
+	throws IOException
+    {
+	assert effectiveOpCount > 0;
+
+	final long seq;
+	synchronized (this) {
+	    if (failure != null)
+		throw new IOException("earlier log batch failed", failure);
+	    pending.add(rec, effectiveOpCount);
+	    seq = ++appended;
+	    if (!forceToDisk && pending.size() < UNFORCED_LIMIT)
+		return;
+	}
+	sync(seq);
+    }
+
+    /**
+     * Block until the record with sequence number <code>seq</code>,
+     * and every record appended before it, is stable.  If no other
+     * thread is writing a batch the calling thread writes every
+     * buffered record, otherwise it waits for the batch in progress
+     * and then, if necessary, writes the next one.  Once a batch fails
+     * no record that is not yet stable ever will be, the failure is
+     * thrown to every thread waiting for one.
+     */
+    private void sync(long seq) throws IOException {
+	final Batch batch;
+	final long last;
+	boolean interrupted = false;
+	synchronized (this) {
+	    try {
+		while (true) {
+		    if (forced >= seq)
+			return;
+		    if (failure != null)
+			throw new IOException("log batch failed", failure);
+		    if (!flushing)
+			break;
+		    try {
+			wait();
+		    } catch (InterruptedException e) {
+			interrupted = true;
+		    }
+		}
+	    } finally {
+		if (interrupted)
+		    Thread.currentThread().interrupt();
+	    }
+	    flushing = true;
+	    batch = pending;
+	    pending = new Batch();
+	    last = appended;
+	}
+
+	IOException ex = null;
+	boolean done = false;
+	try {
+	    writeBatch(batch);
+	    done = true;
+	} catch (IOException e) {
+	    ex = e;
+	} finally {
+	    synchronized (this) {
+		flushing = false;
+		if (done) {
+		    forced = last;
+		} else if (failure == null) {
+		    failure = (ex != null) ? ex :
+			new IOException("log batch failed");
+		}
+		notifyAll();
+	    }
+	}
+	if (ex != null)
+	    throw ex;
+    }
+
+    /**
+     * Write a batch of framed records at the end of the current file,
+     * followed by a zero length header, and force them to disk.  If the
+     * number of operations is exceeded, shift over to the next path.
+     * Called only by the thread writing the current batch.
+     */
+    private void writeBatch(Batch batch) throws IOException {
+	logFile.seek(logBytes);
+	batch.writeTo(logFile);
+	logFile.write(zeroBuf);
+	logFD.sync();
+	logBytes += batch.size();
+
+	opCnt += batch.ops;
+	if (opCnt >= maxOps)
+	    nextPath();
+    }
+
     /**
      * Write an int value in single write operation. Note we only use
      * this method when writing log file and recored headers.  We
@@ -511,6 +804,95 @@ class LogOutputFile extends LogFile implements LogOps {
 	logFile.write(intBuf);
     }
 
+    /**
+     * An operation encoded in the compact binary form used in group
+     * commit mode.  Stored objects are written as their serialized
+     * blobs, so only their contents use object serialization.
+     */
+    private static final class Record extends DataOutputStream {
+	Record(byte op) throws IOException {
+	    super(new ByteArrayOutputStream(128));
+	    writeByte(op);
+	}
+
+	void writeTxnId(Long txnId) throws IOException {
+	    writeBoolean(txnId != null);
+	    if (txnId != null)
+		writeLong(txnId.longValue());
+	}
+
+	void writeBaseObject(BaseObject obj) throws IOException {
+	    final byte[] blob = obj.getBlob();
+	    writeInt(blob.length);
+	    write(blob);
+	}
+
+	void writeResource(Resource resource) throws IOException {
+	    write(resource.getCookie());
+	    writeLong(resource.getExpiration());
+	    writeBaseObject(resource);
+	}
+
+	void writeRegistration(Registration registration)
+	    throws IOException
+	{
+	    writeResource(registration);
+	    writeUTF(registration.getType());
+	    final BaseObject[] templates = registration.getTemplates();
+	    writeInt(templates.length);
+	    for (int i=0; i<templates.length; i++) {
+		writeBaseObject(templates[i]);
+	    }
+	}
+
+	ByteArrayOutputStream bytes() {
+	    return (ByteArrayOutputStream) out;
+	}
+    }
+
+    /**
+     * Records waiting to be written, each framed with its length and
+     * the CRC-32 of its contents, and padded so the next length header
+     * does not span disk blocks.
+     */
+    private static final class Batch extends ByteArrayOutputStream {
+	private final CRC32 crc = new CRC32();
+	private final byte[] header = new byte[8];
+
+	/** Number of operations in the batch */
+	int ops = 0;
+
+	Batch() {
+	    super(512);
+	}
+
+	void add(Record rec, int effectiveOpCount) {
+	    final ByteArrayOutputStream bytes = rec.bytes();
+	    final byte[] data = bytes.toByteArray();
+	    crc.reset();
+	    crc.update(data, 0, data.length);
+	    putInt(header, 0, data.length);
+	    putInt(header, 4, (int) crc.getValue());
+	    write(header, 0, header.length);
+	    write(data, 0, data.length);
+	    // pad out record
+	    for (int pad = (4 - (data.length & 3)) & 3; pad > 0; pad--)
+		write(0);
+	    ops += effectiveOpCount;
+	}
+
+	void writeTo(RandomAccessFile file) throws IOException {
+	    file.write(buf, 0, count);
+	}
+
+	private static void putInt(byte[] b, int off, int val) {
+	    b[off]     = (byte) (val >> 24);
+	    b[off + 1] = (byte) (val >> 16);
+	    b[off + 2] = (byte) (val >> 8);
+	    b[off + 3] = (byte) val;
+	}
+    }
+
     private void failed(Exception e) throws InternalSpaceException {
 	logger.log(Level.SEVERE, 
 		   "Unexpected I/O error while persisting Space data",
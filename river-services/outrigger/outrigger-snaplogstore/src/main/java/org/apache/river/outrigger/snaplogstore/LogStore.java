@@ -43,6 +43,7 @@ public class LogStore implements Store {
     private final String	path;
     private final BackEnd		be;
     private final int			maxOps;
+    private final boolean		groupCommit;
 
     /** Logger for logging persistent store related information */
     private static final Logger logger = 
@@ -68,6 +69,14 @@ public class LogStore implements Store {
 				OutriggerServerImpl.COMPONENT_NAME,
 				"maxOps",
 				1000, 1, Integer.MAX_VALUE);
+
+	groupCommit = ((Boolean)config.getEntry(
+				OutriggerServerImpl.COMPONENT_NAME,
+				"groupCommitLog", boolean.class,
+				Boolean.FALSE)).booleanValue();
+
+	logger.log(Level.CONFIG, "group commit log: {0}",
+		   Boolean.valueOf(groupCommit));
     }
 
     /**
@@ -85,7 +94,7 @@ public class LogStore implements Store {
 	    //
 	    log = new LogOutputFile(
 		new File(path, LogFile.LOG_TYPE).getAbsolutePath(),
-		maxOps);
+		maxOps, groupCommit);
 
 	    log.observable().addObserver(be);
 	} catch (IOException e) {
@@ -40,6 +40,18 @@ class Registration extends Resource {
 	}
     }
 
+    /**
+     * Create a <code>Registration</code> from its parts as read back
+     * from a log written in group commit mode.
+     */
+    Registration(byte[] blob, byte[] cookie, long expiration, String type,
+		 BaseObject[] templates)
+    {
+	super(blob, cookie, expiration);
+	this.type = type;
+	this.templates = templates;
+    }
+
     BaseObject[] getTemplates() {
 	return templates;
     }
@@ -44,6 +44,24 @@ class Resource extends BaseObject implements StoredResource {
 	expiration = resource.getExpiration();
     }
 
+    /**
+     * Create a <code>Resource</code> from its parts as read back from a
+     * log written in group commit mode.
+     */
+    Resource(byte[] blob, byte[] cookie, long expiration) {
+	super(blob);
+	this.cookie = cookie;
+	this.expiration = expiration;
+    }
+
+    byte[] getCookie() {
+	return cookie;
+    }
+
+    long getExpiration() {
+	return expiration;
+    }
+
     ByteArrayWrapper getCookieAsWrapper() {
 	return new ByteArrayWrapper(cookie);
     }
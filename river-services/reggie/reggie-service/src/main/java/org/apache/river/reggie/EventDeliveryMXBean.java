@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.reggie;
+
+/**
+ * Management interface for the delivery of remote events by a Reggie
+ * instance, registered with the platform MBean server as
+ * <code>org.apache.river.reggie:type=EventDelivery,name=</code><i>id</i>,
+ * where <i>id</i> is the lookup service's service ID, while the lookup
+ * service is running.  An event for a service that already has an event
+ * waiting to be sent to the same event registration is merged into the
+ * waiting one, which then carries the latest state of the service.
+ */
+public interface EventDeliveryMXBean {
+
+    /** Returns the number of events waiting to be sent. */
+    int getWaitingEventCount();
+
+    /** Returns the number of events sent. */
+    long getSentEventCount();
+
+    /** Returns the number of events that could not be sent. */
+    long getFailedEventCount();
+
+    /**
+     * Returns the number of events merged into an event already waiting,
+     * or dropped along with it because the service neither matched before
+     * nor matches now.
+     */
+    long getCoalescedEventCount();
+
+    /**
+     * Returns the mean time from the event occurring to its being sent,
+     * in milliseconds.
+     */
+    long getMeanEventLatency();
+
+    /**
+     * Returns the longest time from an event occurring to its being sent,
+     * in milliseconds.
+     */
+    long getMaxEventLatency();
+}
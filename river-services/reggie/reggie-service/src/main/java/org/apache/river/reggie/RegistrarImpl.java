@@ -47,6 +47,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
@@ -76,17 +77,16 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutorService;
@@ -101,6 +101,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.ObjectName;
 import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
 import javax.security.auth.Subject;
@@ -244,9 +245,10 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     private final Map<ServiceID,SvcReg> serviceByID = new HashMap<ServiceID,SvcReg>(200);
     /**
      * Identity map from SvcReg to SvcReg, ordered by lease expiration.
-     * Every service is in this map.
+     * Every service is in this map.  Lease renewals re-sort it while
+     * holding only the read lock, so it must be a concurrent set.
      */
-    private final SortedSet<SvcReg> serviceByTime = new TreeSet<SvcReg>();
+    private final SortedSet<SvcReg> serviceByTime = new ConcurrentSkipListSet<SvcReg>();
     /**
      * Map from String to HashMap mapping ServiceID to SvcReg.  Every service 
      * is in this map under its types.
@@ -283,20 +285,15 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     private final Map<Long,EventReg> eventByID = new HashMap<Long,EventReg>(200);
     /**
      * Identity map from EventReg to EventReg, ordered by lease expiration.
-     * Every event registration is in this map.
+     * Every event registration is in this map.  Lease renewals re-sort it
+     * while holding only the read lock, so it must be a concurrent queue.
      */
-    private final Queue<EventReg> eventByTime = new PriorityQueue<EventReg>();
+    private final Queue<EventReg> eventByTime = new PriorityBlockingQueue<EventReg>();
     /**
-     * Map from ServiceID to EventReg or EventReg[].  An event
-     * registration is in this map if its template matches on (at least)
-     * a specific serviceID.
+     * The event registrations to consider when an item changes, indexed
+     * by the items they may match.
      */
-    private final Map<ServiceID,Object> subEventByService = new HashMap<ServiceID,Object>(200);
-    /**
-     * Map from Long(eventID) to EventReg.  An event registration is in
-     * this map if its template matches on ANY_SERVICE_ID.
-     */
-    private final Map<Long,EventReg> subEventByID = new HashMap<Long,EventReg>(200);
+    private final EventIndex subEvents = new EventIndex();
 
     /** Generator for resource (e.g., registration, lease) Uuids */
     private final UuidGenerator resourceIdGenerator;
@@ -324,6 +321,16 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     private long minSvcExpiration = Long.MAX_VALUE;
     /** Earliest expiration time of an EventReg */
     private long minEventExpiration = Long.MAX_VALUE;
+    /**
+     * Set when a lease renewal, made under the read lock, may have moved
+     * a lease expiration before minSvcExpiration or minEventExpiration.
+     */
+    private volatile boolean expireSignalPending;
+    /**
+     * Set when a log record written under the read lock made a snapshot
+     * due.
+     */
+    private volatile boolean snapshotSignalPending;
 
     /** Manager for discovering other lookup services */
     private final DiscoveryManagement discoer;
@@ -331,7 +338,11 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     private volatile JoinManager joiner; // accessed without lock from DestroyThread
     /** Executors for sending events and discovery responses */
     private final SynchronousExecutors eventNotifierExec;
-    private final Map<EventReg,ExecutorService> eventTaskMap;
+    private final Map<EventReg,EventQueue> eventTaskMap;
+    /** Counters of event delivery, published as an EventDeliveryMXBean */
+    private final EventStats eventStats = new EventStats();
+    /** The name eventStats is registered under, or null */
+    private volatile ObjectName eventStatsName;
 //    private final EventTaskQueue eventTaskQueue;
     private final ExecutorService discoveryResponseExec;
     /** Service lease expiration thread */
@@ -549,7 +560,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
         unicastDiscoveryConstraints = init.unicastDiscoveryConstraints;
         context = init.context;
         eventNotifierExec = new SynchronousExecutors(init.scheduledExecutor);
-        eventTaskMap = new HashMap<EventReg,ExecutorService>(200);
+        eventTaskMap = new HashMap<EventReg,EventQueue>(200);
         discoveryResponseExec = init.executor;
         ReliableLog log = null;
         Thread serviceExpirer = null;
@@ -597,7 +608,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
             announcer = threads.get(4);
             snapshotter = threads.get(5);
             if (init.persistent){
-                log = new ReliableLog(init.persistenceDirectory, new LocalLogHandler(this));
+                log = new ReliableLog(init.persistenceDirectory, new LocalLogHandler(this), true);
                 if (logger.isLoggable(Level.CONFIG)) {
                     logger.log(Level.CONFIG, "using persistence directory {0}",
                                new Object[]{ init.persistenceDirectory });
@@ -689,7 +700,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     }
 
     /** An event registration record. */
-    private final static class EventReg implements Comparable, Serializable {
+    final static class EventReg implements Comparable, Serializable {
 
 	private static final long serialVersionUID = 2L;
 
@@ -751,11 +762,11 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	    this.leaseExpiration = leaseExpiration;
 	}
         
-        long incrementAndGetSeqNo(){
+        synchronized long incrementAndGetSeqNo(){
             return ++seqNo;
         }
         
-        long getSeqNo(){
+        synchronized long getSeqNo(){
             return seqNo;
         }
 
@@ -1354,8 +1365,11 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     }
 
     /**
-     * LogObj class whose instances are recorded to the log file whenever
-     * a leases in the Registrar is renewed via a LeaseMap.
+     * LogObj class whose instances were recorded to the log file whenever
+     * a leases in the Registrar is renewed via a LeaseMap.  Such renewals
+     * are now logged one lease at a time, so that they are ordered with
+     * concurrent renewals of the same leases; this class is kept to
+     * recover existing log files.
      * 
      * @see RegistrarImpl.LocalLogHandler
      */
@@ -2050,44 +2064,500 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	}
     }
 
+    /**
+     * The event registrations of a lookup service, indexed by the items
+     * their templates may match, so that generateEvents need only
+     * evaluate the registrations that an item change may concern.
+     * Guarded by the registrar's concurrency lock, like the rest of its
+     * state.
+     */
+    static final class EventIndex {
+	/**
+	 * Map from ServiceID to EventReg or EventReg[].  An event
+	 * registration is in this map if its template matches on (at least)
+	 * a specific serviceID.
+	 */
+	private final Map<ServiceID,Object> subEventByService = new HashMap<ServiceID,Object>(200);
+	/**
+	 * Map from Long(eventID) to EventReg.  An event registration is in
+	 * this map if its template matches on ANY_SERVICE_ID.
+	 */
+	private final Map<Long,EventReg> subEventByID = new HashMap<Long,EventReg>(200);
+	/**
+	 * Map from EntryClass to HashMap[] where each HashMap is a map from
+	 * Object (field value) to ArrayList(EventReg), laid out as in
+	 * serviceByAttr.  An event registration in subEventByID is in this
+	 * map once, under the first non-null field of its attribute set
+	 * templates, if it has one.
+	 */
+	private final Map<EntryClass,Map<Object,List<EventReg>>[]> subEventByAttr
+		= new HashMap<EntryClass,Map<Object,List<EventReg>>[]>(23);
+	/**
+	 * Map from String to ArrayList(EventReg).  An event registration in
+	 * subEventByID that is not in subEventByAttr is in this map under the
+	 * name of the first of its template's service types, if it has one.
+	 */
+	private final Map<String,List<EventReg>> subEventByTypeName
+		= new HashMap<String,List<EventReg>>(200);
+	/**
+	 * Map from Long(eventID) to EventReg.  An event registration in
+	 * subEventByID is in this map if it is in neither subEventByAttr nor
+	 * subEventByTypeName, and so must be considered for every item.
+	 */
+	private final Map<Long,EventReg> subEventUnindexed = new HashMap<Long,EventReg>(200);
+
+	/**
+	 * Add an event registration to subEventByService if its template
+	 * is for a specific service id, or else to subEventByID and its
+	 * index.  Since we expect in most cases there will only ever be a
+	 * single event registration for a given service id, we avoid
+	 * creating a singleton array in that case.
+	 */
+	void add(EventReg reg) {
+	    if (reg.tmpl.serviceID != null) {
+		Object val = subEventByService.get(reg.tmpl.serviceID);
+		if (val == null)
+		    val = reg;
+		else if (val instanceof EventReg)
+		    val = new EventReg[]{(EventReg)val, reg};
+		else
+		    val = arrayAdd((EventReg[])val, reg);
+		subEventByService.put(reg.tmpl.serviceID, val);
+	    } else {
+		subEventByID.put(Long.valueOf(reg.eventID), reg);
+		indexEvent(reg, true);
+	    }
+	}
+
+	/** Remove an event registration added by add. */
+	void remove(EventReg reg) {
+	    if (reg.tmpl.serviceID != null) {
+		Object val = subEventByService.get(reg.tmpl.serviceID);
+		if (val == reg) {
+		    subEventByService.remove(reg.tmpl.serviceID);
+		} else {
+		    Object[] array = (EventReg[])val;
+		    array = arrayDel(array, indexOf(array, reg));
+		    if (array.length == 1)
+			val = array[0];
+		    else
+			val = array;
+		    subEventByService.put(reg.tmpl.serviceID, val);
+		}
+	    } else {
+		subEventByID.remove(Long.valueOf(reg.eventID));
+		indexEvent(reg, false);
+	    }
+	}
+
+	/** Returns true if every registration added has been removed. */
+	boolean isEmpty() {
+	    return subEventByService.isEmpty() && subEventByID.isEmpty() &&
+		subEventByAttr.isEmpty() && subEventByTypeName.isEmpty() &&
+		subEventUnindexed.isEmpty();
+	}
+
+	/**
+	 * Add to regs the event registrations whose template may match the
+	 * item for service sid before or after it changed.  A null pre
+	 * represents creation of a new item, a null post represents
+	 * deletion of an item.
+	 */
+	void addCandidates(ServiceID sid,
+			   Item pre,
+			   Item post,
+			   Set<EventReg> regs)
+	{
+	    Object val = subEventByService.get(sid);
+	    if (val instanceof EventReg) {
+		regs.add((EventReg)val);
+	    } else if (val instanceof EventReg[]) {
+		regs.addAll(Arrays.asList((EventReg[])val));
+	    }
+	    if (!subEventByID.isEmpty()) {
+		regs.addAll(subEventUnindexed.values());
+		if (pre != null)
+		    addEventCandidates(pre, regs);
+		if (post != null)
+		    addEventCandidates(post, regs);
+	    }
+	}
+
+	/**
+	 * Add an event registration that matches on ANY_SERVICE_ID to, or
+	 * delete it from, subEventByAttr under the first non-null field of
+	 * its attribute set templates, or else subEventByTypeName under its
+	 * first service type, or else subEventUnindexed.  Any item the
+	 * template matches has that field value or that type, so
+	 * generateEvents need only consider the registrations found under
+	 * the item's attribute values and types.
+	 */
+	private void indexEvent(EventReg reg, boolean add) {
+	    EntryRep[] tmpls = reg.tmpl.attributeSetTemplates;
+	    if (tmpls != null) {
+		for (int i = 0; i < tmpls.length; i++) {
+		    Object[] fields = tmpls[i].fields;
+		    for (int fldidx = 0; fldidx < fields.length; fldidx++) {
+			Object value = fields[fldidx];
+			if (value == null)
+			    continue;
+			EntryClass eclass = getDefiningClass(tmpls[i].eclass, fldidx);
+			Map<Object,List<EventReg>>[] attrMaps =
+			    subEventByAttr.get(eclass);
+			if (attrMaps == null) {
+			    if (!add)
+				return;
+			    attrMaps = new HashMap[eclass.getNumFields()];
+			    subEventByAttr.put(eclass, attrMaps);
+			}
+			Map<Object,List<EventReg>> map = attrMaps[fldidx];
+			if (map == null) {
+			    if (!add)
+				return;
+			    map = new HashMap<Object,List<EventReg>>(11);
+			    attrMaps[fldidx] = map;
+			}
+			if (add) {
+			    addEventToList(map, value, reg);
+			} else if (deleteEventFromList(map, value, reg) &&
+				   map.isEmpty()) {
+			    attrMaps[fldidx] = null;
+			    if (allNull(attrMaps))
+				subEventByAttr.remove(eclass);
+			}
+			return;
+		    }
+		}
+	    }
+	    ServiceType[] types = reg.tmpl.serviceTypes;
+	    if (types != null && types.length > 0) {
+		if (add)
+		    addEventToList(subEventByTypeName, types[0].getName(), reg);
+		else
+		    deleteEventFromList(subEventByTypeName, types[0].getName(), reg);
+		return;
+	    }
+	    if (add)
+		subEventUnindexed.put(Long.valueOf(reg.eventID), reg);
+	    else
+		subEventUnindexed.remove(Long.valueOf(reg.eventID));
+	}
+
+	/** Add an event registration to the list mapped to by key. */
+	private static <K> void addEventToList(Map<K,List<EventReg>> map,
+					       K key,
+					       EventReg reg)
+	{
+	    List<EventReg> regs = map.get(key);
+	    if (regs == null) {
+		regs = new ArrayList<EventReg>(2);
+		map.put(key, regs);
+	    }
+	    regs.add(reg);
+	}
+
+	/**
+	 * Delete an event registration from the list mapped to by key,
+	 * removing the mapping if the list becomes empty.  Returns true if
+	 * the mapping was removed.  Registrations are compared by identity,
+	 * since EventReg.equals compares listeners and handbacks.
+	 */
+	private static <K> boolean deleteEventFromList(Map<K,List<EventReg>> map,
+						       K key,
+						       EventReg reg)
+	{
+	    List<EventReg> regs = map.get(key);
+	    if (regs == null)
+		return false;
+	    for (int i = regs.size(); --i >= 0; ) {
+		if (regs.get(i) == reg) {
+		    regs.remove(i);
+		    break;
+		}
+	    }
+	    if (!regs.isEmpty())
+		return false;
+	    map.remove(key);
+	    return true;
+	}
+
+	/**
+	 * Add to regs the event registrations in subEventByAttr and
+	 * subEventByTypeName whose template may match the given item.
+	 */
+	private void addEventCandidates(Item item, Set<EventReg> regs) {
+	    if (!subEventByAttr.isEmpty()) {
+		EntryRep[] entries = item.attributeSets;
+		for (int i = entries.length; --i >= 0; ) {
+		    EntryClass eclass = entries[i].eclass;
+		    Object[] fields = entries[i].fields;
+		    /* walk backwards to make getDefiningClass more efficient */
+		    for (int fldidx = fields.length; --fldidx >= 0; ) {
+			eclass = getDefiningClass(eclass, fldidx);
+			if (fields[fldidx] == null)
+			    continue;
+			Map<Object,List<EventReg>>[] attrMaps =
+			    subEventByAttr.get(eclass);
+			if (attrMaps == null || attrMaps[fldidx] == null)
+			    continue;
+			List<EventReg> list = attrMaps[fldidx].get(fields[fldidx]);
+			if (list != null)
+			    regs.addAll(list);
+		    }
+		}
+	    }
+	    if (!subEventByTypeName.isEmpty())
+		addEventCandidatesByTypes(item.serviceType, regs);
+	}
+
+	/**
+	 * Add to regs the event registrations in subEventByTypeName under
+	 * the given type and all types in its hierarchy.
+	 */
+	private void addEventCandidatesByTypes(ServiceType type,
+					       Set<EventReg> regs)
+	{
+	    List<EventReg> list = subEventByTypeName.get(type.getName());
+	    if (list != null)
+		regs.addAll(list);
+	    ServiceType[] ifaces = type.getInterfaces();
+	    for (int i = ifaces.length; --i >= 0; ) {
+		addEventCandidatesByTypes(ifaces[i], regs);
+	    }
+	    ServiceType sup = type.getSuperclass();
+	    if (sup != null)
+		addEventCandidatesByTypes(sup, regs);
+	}
+    }
+
+    /**
+     * The events waiting to be sent to the listener of one event
+     * registration, which a serial executor sends one at a time, in order.
+     * An event for a service that already has an event waiting to be sent
+     * is merged into the waiting one, so a listener that falls behind a
+     * flapping service is sent the service's latest state rather than
+     * every state in between.  Sequence numbers are assigned as events
+     * are sent, so merging leaves no gap for the listener to mistake for
+     * a lost event.
+     */
+    static final class EventQueue {
+	/** The executor sending the events */
+	private final ExecutorService executor;
+	/** The counters of all event queues of the lookup service */
+	private final EventStats stats;
+	/**
+	 * Map from ServiceID to the EventTask for that service that has
+	 * not yet been started, guarded by this.
+	 */
+	private final Map<ServiceID,EventTask> waiting =
+	    new HashMap<ServiceID,EventTask>();
+	/** Orders tasks submitted at the same time, guarded by this */
+	private long order;
+
+	EventQueue(ExecutorService executor, EventStats stats) {
+	    this.executor = executor;
+	    this.stats = stats;
+	}
+
+	/**
+	 * Submit an event, merging it into an event for the same service
+	 * that is still waiting if the merged transition is one the
+	 * registration asked for, or dropping both if the service neither
+	 * matched before the waiting event nor matches now.
+	 */
+	synchronized void submit(EventReg reg,
+				 ServiceID sid,
+				 Item item,
+				 int transition,
+				 RegistrarProxy proxy,
+				 Registrar registrar,
+				 long now)
+	{
+	    EventTask task = waiting.get(sid);
+	    if (task != null) {
+		boolean preMatch =
+		    task.transition != ServiceRegistrar.TRANSITION_NOMATCH_MATCH;
+		boolean postMatch =
+		    transition != ServiceRegistrar.TRANSITION_MATCH_NOMATCH;
+		int merged = preMatch ?
+		    (postMatch ? ServiceRegistrar.TRANSITION_MATCH_MATCH :
+				 ServiceRegistrar.TRANSITION_MATCH_NOMATCH) :
+		    (postMatch ? ServiceRegistrar.TRANSITION_NOMATCH_MATCH : 0);
+		if (merged == 0) {
+		    task.cancelled = true;
+		    waiting.remove(sid);
+		    stats.waiting.decrementAndGet();
+		    stats.coalesced.addAndGet(2);
+		    return;
+		}
+		if ((reg.transitions & merged) != 0) {
+		    task.transition = merged;
+		    task.item = item;
+		    stats.coalesced.incrementAndGet();
+		    return;
+		}
+	    }
+	    task = new EventTask(this, reg, sid, item, transition, proxy,
+				 registrar, now, order++);
+	    waiting.put(sid, task);
+	    stats.waiting.incrementAndGet();
+	    executor.submit(task);
+	}
+
+	/**
+	 * Called by a task before its first attempt to send, after which
+	 * no further events may be merged into it.
+	 */
+	synchronized void started(EventTask task) {
+	    if (waiting.get(task.sid) == task)
+		waiting.remove(task.sid);
+	}
+
+	/** Record that a task has finished with its event. */
+	void finished(EventTask task, boolean delivered) {
+	    stats.finished(task.reg.eventID, task.now, delivered);
+	}
+    }
+
+    /**
+     * The counters of event delivery for all event registrations of a
+     * lookup service, published through the platform MBean server.
+     */
+    static final class EventStats implements EventDeliveryMXBean {
+	/** Number of events submitted and not yet sent */
+	final AtomicInteger waiting = new AtomicInteger();
+	/** Number of events merged into an event already waiting */
+	final AtomicLong coalesced = new AtomicLong();
+	/** Number of events sent */
+	private final AtomicLong sent = new AtomicLong();
+	/** Number of events that could not be sent */
+	private final AtomicLong failed = new AtomicLong();
+	/** Sum of the delivery latencies of the events sent, in ms */
+	private final AtomicLong totalLatency = new AtomicLong();
+	/** Largest delivery latency of an event sent, in ms */
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	/**
+	 * Record that an event that occurred at the given time has been
+	 * sent, or could not be sent.
+	 */
+	void finished(long eventID, long time, boolean delivered) {
+	    int remaining = waiting.decrementAndGet();
+	    if (!delivered) {
+		failed.incrementAndGet();
+		return;
+	    }
+	    long latency = System.currentTimeMillis() - time;
+	    long count = sent.incrementAndGet();
+	    long total = totalLatency.addAndGet(latency);
+	    long max;
+	    while ((max = maxLatency.get()) < latency &&
+		   !maxLatency.compareAndSet(max, latency))
+		;
+	    if (logger.isLoggable(Level.FINER)) {
+		logger.log(
+		    Level.FINER,
+		    "sent event {0} after {1} ms, {2} events waiting, " +
+		    "{3} sent, {4} merged, {5} ms mean latency, " +
+		    "{6} ms max latency",
+		    new Object[]{ Long.valueOf(eventID),
+				  Long.valueOf(latency),
+				  Integer.valueOf(remaining),
+				  Long.valueOf(count),
+				  Long.valueOf(coalesced.get()),
+				  Long.valueOf(total / count),
+				  Long.valueOf(Math.max(max, latency)) });
+	    }
+	}
+
+	public int getWaitingEventCount() {
+	    return waiting.get();
+	}
+
+	public long getSentEventCount() {
+	    return sent.get();
+	}
+
+	public long getFailedEventCount() {
+	    return failed.get();
+	}
+
+	public long getCoalescedEventCount() {
+	    return coalesced.get();
+	}
+
+	public long getMeanEventLatency() {
+	    long count = sent.get();
+	    return count == 0 ? 0 : totalLatency.get() / count;
+	}
+
+	public long getMaxEventLatency() {
+	    return maxLatency.get();
+	}
+    }
+
     /** An event to be sent, and the listener to send it to. */
     private static final class EventTask implements Callable<Boolean>, Comparable<EventTask> {
 
+	/** The queue this task belongs to */
+	private final EventQueue queue;
 	/** The event registration */
 	private final EventReg reg;
-	/** The sequence number of this event */
-	private final long seqNo;
+	/** The sequence number of this event, assigned when first sent */
+	private long seqNo;
 	/** The service id */
 	private final ServiceID sid;
-	/** The new state of the item, or null if deleted */
-	private final Item item;
-	/** The transition that fired */
-	private final int transition;
+	/** The new state of the item, or null if deleted, guarded by queue */
+	private Item item;
+	/** The transition that fired, guarded by queue */
+	private int transition;
+	/** True once the event has been merged away, guarded by queue */
+	private boolean cancelled;
+	/** True once the first attempt to send has been made */
+	private boolean started;
         
         private final RegistrarProxy proxy;
         private final Registrar registrar;
         /* the time of the event */
         private final long now;
+        /* orders tasks with the same time */
+        private final long order;
         /* The listener */
         private final RemoteEventListener listener;
 
-	/** Simple constructor, except increments reg.seqNo. */
-	public EventTask(EventReg reg, ServiceID sid, Item item, int transition, RegistrarProxy proxy, Registrar registrar, long now)
+	/** Simple constructor. */
+	public EventTask(EventQueue queue, EventReg reg, ServiceID sid, Item item, int transition, RegistrarProxy proxy, Registrar registrar, long now, long order)
 	{
+	    this.queue = queue;
 	    this.reg = reg;
             this.listener = reg.listener;
-            seqNo = reg.incrementAndGetSeqNo();
 	    this.sid = sid;
 	    this.item = item;
 	    this.transition = transition;
             this.proxy = proxy;
             this.registrar = registrar;
             this.now = now;
+            this.order = order;
 	}
 
 	/** Send the event */
         @Override
 	public Boolean call() throws Exception {
+	    long seqNo;
+	    Item item;
+	    int transition;
+	    synchronized (queue) {
+		if (cancelled)
+		    return Boolean.TRUE;
+		if (!started) {
+		    started = true;
+		    queue.started(this);
+		    this.seqNo = reg.incrementAndGetSeqNo();
+		}
+		seqNo = this.seqNo;
+		item = this.item;
+		transition = this.transition;
+	    }
 	    if (logger.isLoggable(Level.FINE)) {
 		logger.log(
 		    Level.FINE,
@@ -2098,6 +2568,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 		listener.notify(new RegistrarEvent(proxy, reg.eventID,
 						       seqNo, reg.handback,
 						       sid, transition, item));
+		queue.finished(this, true);
                 return Boolean.TRUE;
 	    } catch (Throwable e) {
 		switch (ThrowableConstants.retryable(e)) {
@@ -2127,6 +2598,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 			    e);
 		    }
 		}
+		queue.finished(this, false);
                 return Boolean.FALSE;
 	    }
 	}
@@ -2142,8 +2614,8 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
         public int compareTo(EventTask o) {
             if (this.now < o.now) return -1;
             if (this.now > o.now) return 1;
-            if (this.seqNo < o.seqNo) return -1;
-            if (this.seqNo > o.seqNo) return 1;
+            if (this.order < o.order) return -1;
+            if (this.order > o.order) return 1;
             return 0;
         }
     }
@@ -2468,8 +2940,8 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 		while (!Thread.currentThread().isInterrupted()) {
 		    long now = System.currentTimeMillis();
 		    reggie.minEventExpiration = Long.MAX_VALUE;
-		    for (EventReg reg = reggie.eventByTime.poll();
-                            reg != null; reg = reggie.eventByTime.poll()) {
+		    for (EventReg reg = reggie.eventByTime.peek();
+                            reg != null; reg = reggie.eventByTime.peek()) {
 			if (reg.getLeaseExpiration() > now) {
 			    reggie.minEventExpiration = reg.getLeaseExpiration();
 			    break;
@@ -2542,6 +3014,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	    reggie.announcer.interrupt();
 	    reggie.snapshotter.interrupt();
             reggie.eventNotifierExec.shutdown();
+	    reggie.unregisterEventStats();
             List<Runnable> cancelledTasks = reggie.discoveryResponseExec.shutdownNow();
 	    reggie.joiner.terminate();
 	    reggie.discoer.terminate();
@@ -3365,12 +3838,15 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 				  long renewDuration)
 	throws NoSuchObjectException, UnknownLeaseException
     {	
-	concurrentObj.priorityWriteLock();
+	/* renewals of distinct leases proceed concurrently, and alongside
+	 * lookups, since they only re-sort serviceByTime and eventByTime */
+	concurrentObj.readLock();
 	try {
 	    return renewServiceLeaseDo(serviceID, leaseID, renewDuration);
 	    /* addLogRecord is in renewServiceLeaseDo */
 	} finally {
-	    concurrentObj.writeUnlock();
+	    concurrentObj.readUnlock();
+	    signalWaiters();
 	}
     }
 
@@ -3397,12 +3873,13 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     public long renewEventLease(long eventID, Uuid leaseID, long renewDuration)
 	throws NoSuchObjectException, UnknownLeaseException
     {	
-	concurrentObj.priorityWriteLock();
+	concurrentObj.readLock();
 	try {
 	    return renewEventLeaseDo(eventID, leaseID, renewDuration);
 	    /* addLogRecord is in renewEventLeaseDo */
 	} finally {
-	    concurrentObj.writeUnlock();
+	    concurrentObj.readUnlock();
+	    signalWaiters();
 	}
     }
 
@@ -3412,12 +3889,13 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 				    long[] renewDurations)
         throws NoSuchObjectException
     {	
-	concurrentObj.priorityWriteLock();
+	concurrentObj.readLock();
 	try {
 	    return renewLeasesDo(regIDs, leaseIDs, renewDurations);
-	    /* addLogRecord is in renewLeasesDo */
+	    /* log records are added in renewLeasesDo */
 	} finally {
-	    concurrentObj.writeUnlock();
+	    concurrentObj.readUnlock();
+	    signalWaiters();
 	}
     }
 
@@ -3969,7 +4447,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
      * Test if an item matches a template.  This would be a method on
      * Template, but we want to minimize code downloaded into the client.
      */
-    private static boolean matchItem(Template tmpl, Item item) {
+    static boolean matchItem(Template tmpl, Item item) {
 	return ((tmpl.serviceID == null ||
 		 tmpl.serviceID.equals(item.serviceID)) &&
 		matchType(tmpl.serviceTypes, item.serviceType) &&
@@ -4311,11 +4789,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     /**
      * Add an event registration to our state.  This includes adding a
      * template of each EntryClass, putting the registration in the
-     * eventByID map, in the eventByTime map, and in either
-     * subEventByService (if the template is for a specific service id)
-     * or subEventByID.  Since we expect in most cases there will only
-     * ever be a single event registration for a given service id, we
-     * avoid creating a singleton array in that case.
+     * eventByID map, in the eventByTime map, and in subEvents.
      */
     private void addEvent(EventReg reg) {
 	if (reg.listener == null)
@@ -4330,27 +4804,17 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	Long id = Long.valueOf(reg.eventID);
 	eventByID.put(id, reg);
 	eventByTime.offer(reg);
-        eventTaskMap.put(reg, eventNotifierExec.newSerialExecutor(new PriorityBlockingQueue()) );
-	if (reg.tmpl.serviceID != null) {
-	    Object val = subEventByService.get(reg.tmpl.serviceID);
-	    if (val == null)
-		val = reg;
-	    else if (val instanceof EventReg)
-		val = new EventReg[]{(EventReg)val, reg};
-	    else
-		val = arrayAdd((EventReg[])val, reg);
-	    subEventByService.put(reg.tmpl.serviceID, val);
-	} else {
-	    subEventByID.put(id, reg);
-	}
+        eventTaskMap.put(reg, new EventQueue(
+                eventNotifierExec.newSerialExecutor(new PriorityBlockingQueue()),
+                eventStats));
+	subEvents.add(reg);
 	computeMaxLeases();
     }
 
     /**
      * Remove an event registration from our state.  This includes deleting
      * a template of each EntryClass, deleting the registration from the
-     * eventByID map, the eventByTime map, and either the subEventByService
-     * or subEventByID map.
+     * eventByID map, the eventByTime map, and subEvents.
      */
     private void deleteEvent(EventReg reg) {
 	EntryRep[] tmpls = reg.tmpl.attributeSetTemplates;
@@ -4364,22 +4828,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	eventByID.remove(id);
 	eventByTime.remove(reg);
         eventTaskMap.remove(reg);
-	if (reg.tmpl.serviceID != null) {
-	    Object val = subEventByService.get(reg.tmpl.serviceID);
-	    if (val == reg) {
-		subEventByService.remove(reg.tmpl.serviceID);
-	    } else {
-		Object[] array = (EventReg[])val;
-		array = arrayDel(array, indexOf(array, reg));
-		if (array.length == 1)
-		    val = array[0];
-		else
-		    val = array;
-		subEventByService.put(reg.tmpl.serviceID, val);
-	    }
-	} else {
-	    subEventByID.remove(id);
-	}
+	subEvents.remove(reg);
 	computeMaxLeases();
     }
 
@@ -5137,6 +5586,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
                     }));
 
                     snapshotter.start();
+                    registerEventStats();
                     if (logger.isLoggable(Level.INFO)) {
                         logger.log(Level.INFO, "started Reggie: {0}, {1}, {2}",
                                    new Object[]{ myServiceID,
@@ -5610,10 +6060,10 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	throws UnknownLeaseException
     {
 	long now = System.currentTimeMillis();
+	long[] logSeq = new long[1];
 	long renewExpiration = renewServiceLeaseInt(serviceID, leaseID,
-						    renewDuration, now);
-	addLogRecord(new ServiceLeaseRenewedLogObj(serviceID, leaseID,
-						   renewExpiration));
+						    renewDuration, now, logSeq);
+	syncRenewals(logSeq[0]);
 	return renewExpiration - now;
     }
     
@@ -5638,11 +6088,18 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
         return reg;
     }
 
-    /** Renew a service lease for a relative duration from now. */
+    /**
+     * Renew a service lease for a relative duration from now.  The
+     * renewal is appended to the log while the registration is locked,
+     * so that concurrent renewals of the same lease are logged in the
+     * order they are applied; logSeq[0] is raised to the sequence
+     * number to sync.
+     */
     private long renewServiceLeaseInt(ServiceID serviceID,
 				      Uuid leaseID,
 				      long renewDuration,
-				      long now)
+				      long now,
+				      long[] logSeq)
 	throws UnknownLeaseException
     {
 	if (serviceID.equals(myServiceID))
@@ -5652,19 +6109,29 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	else if (renewDuration < 0)
 	    throw new IllegalArgumentException("negative lease duration");
         SvcReg reg = checkLease(serviceID, leaseID, now);
-	if (renewDuration > maxServiceLease &&
-	    renewDuration > reg.leaseExpiration - now)
-	    renewDuration = Math.max(reg.leaseExpiration - now,
-				     maxServiceLease);
-	long renewExpiration = now + renewDuration;
-	/* force a re-sort: must remove before changing, then reinsert */
-	serviceByTime.remove(reg);
-	reg.leaseExpiration = renewExpiration;
-	serviceByTime.add(reg);
-	/* see if the expire thread needs to wake up earlier */
-	if (renewExpiration < minSvcExpiration) {
-	    minSvcExpiration = renewExpiration;
-            serviceNotifier.signal();
+	long renewExpiration;
+	/* only the read lock is held: renewals of the same lease must
+	 * not interleave their re-sorts */
+	synchronized (reg) {
+	    if (renewDuration > maxServiceLease &&
+		renewDuration > reg.leaseExpiration - now)
+		renewDuration = Math.max(reg.leaseExpiration - now,
+					 maxServiceLease);
+	    renewExpiration = now + renewDuration;
+	    /* force a re-sort: must remove before changing, then reinsert;
+	     * a concurrent insert may still be comparing against the
+	     * removed node, so re-sorts of different leases must not
+	     * overlap either */
+	    synchronized (serviceByTime) {
+		serviceByTime.remove(reg);
+		reg.leaseExpiration = renewExpiration;
+		serviceByTime.add(reg);
+	    }
+	    /* see if the expire thread needs to wake up earlier */
+	    if (renewExpiration < minSvcExpiration)
+		expireSignalPending = true;
+	    appendRenewal(new ServiceLeaseRenewedLogObj(
+		serviceID, leaseID, renewExpiration), logSeq);
 	}
 	return renewExpiration;
     }
@@ -5707,17 +6174,22 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	throws UnknownLeaseException
     {
 	long now = System.currentTimeMillis();
+	long[] logSeq = new long[1];
 	long renewExpiration = renewEventLeaseInt(eventID, leaseID,
-						  renewDuration, now);
-	addLogRecord(new EventLeaseRenewedLogObj(eventID, leaseID,
-						 renewExpiration));
+						  renewDuration, now, logSeq);
+	syncRenewals(logSeq[0]);
 	return renewExpiration - now;
     }
 
+    /**
+     * Renew an event lease for a relative duration from now, appending
+     * the renewal to the log as renewServiceLeaseInt does.
+     */
     private long renewEventLeaseInt(long eventID,
 				    Uuid leaseID,
 				    long renewDuration,
-				    long now)
+				    long now,
+				    long[] logSeq)
 	throws UnknownLeaseException
     {
 	if (renewDuration == Lease.ANY)
@@ -5725,22 +6197,63 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	else if (renewDuration < 0)
 	    throw new IllegalArgumentException("negative lease duration");
 	EventReg reg = checkEvent(leaseID, eventID, now);
-	if (renewDuration > maxEventLease &&
-	    renewDuration > reg.getLeaseExpiration() - now)
-	    renewDuration = Math.max(reg.getLeaseExpiration() - now, maxEventLease);
-	long renewExpiration = now + renewDuration;
-	/* force a re-sort: must remove before changing, then reinsert */
-	eventByTime.remove(reg);
-	reg.setLeaseExpiration(renewExpiration);
-	eventByTime.offer(reg);
-	/* see if the expire thread needs to wake up earlier */
-	if (renewExpiration < minEventExpiration) {
-	    minEventExpiration = renewExpiration;
-            eventNotifier.signal();
+	long renewExpiration;
+	/* only the read lock is held: renewals of the same lease must
+	 * not interleave their re-sorts */
+	synchronized (reg) {
+	    if (renewDuration > maxEventLease &&
+		renewDuration > reg.getLeaseExpiration() - now)
+		renewDuration = Math.max(reg.getLeaseExpiration() - now, maxEventLease);
+	    renewExpiration = now + renewDuration;
+	    /* force a re-sort: must remove before changing, then reinsert */
+	    eventByTime.remove(reg);
+	    reg.setLeaseExpiration(renewExpiration);
+	    eventByTime.offer(reg);
+	    /* see if the expire thread needs to wake up earlier */
+	    if (renewExpiration < minEventExpiration)
+		expireSignalPending = true;
+	    appendRenewal(new EventLeaseRenewedLogObj(
+		eventID, leaseID, renewExpiration), logSeq);
 	}
 	return renewExpiration;
     }
 
+    /**
+     * Wakes the expire threads if a renewal moved the earliest lease
+     * expiration forward, and the snapshot thread if a renewal made a
+     * snapshot due.  Conditions can only be signalled under the write
+     * lock, which renewals do not hold, so they call this once they
+     * have released the read lock.
+     */
+    private void signalWaiters() {
+	if (!expireSignalPending && !snapshotSignalPending)
+	    return;
+	concurrentObj.writeLock();
+	try {
+	    if (expireSignalPending) {
+		expireSignalPending = false;
+		if (!serviceByTime.isEmpty()) {
+		    long first = serviceByTime.first().leaseExpiration;
+		    if (first < minSvcExpiration) {
+			minSvcExpiration = first;
+			serviceNotifier.signal();
+		    }
+		}
+		EventReg reg = eventByTime.peek();
+		if (reg != null && reg.getLeaseExpiration() < minEventExpiration) {
+		    minEventExpiration = reg.getLeaseExpiration();
+		    eventNotifier.signal();
+		}
+	    }
+	    if (snapshotSignalPending) {
+		snapshotSignalPending = false;
+		snapshotNotifier.signal();
+	    }
+	} finally {
+	    concurrentObj.writeUnlock();
+	}
+    }
+
     /** Renew the event lease for an absolute expiration time. */
     private void renewEventLeaseAbs(long eventID,
 				    Uuid leaseID,
@@ -5772,6 +6285,8 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
     {
 	long now = System.currentTimeMillis();
 	Exception[] exceptions = null;
+	/* each renewal is logged as it is applied; sync them all at once */
+	long[] logSeq = new long[1];
         int l = regIDs.length;
 	for (int i = 0; i < l; i++) {
 	    Object id = regIDs[i];
@@ -5779,11 +6294,12 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 		if (id instanceof ServiceID)
 		    renewals[i] = renewServiceLeaseInt((ServiceID)id,
 						       leaseIDs[i],
-						       renewals[i], now);
+						       renewals[i], now,
+						       logSeq);
 		else
 		    renewals[i] = renewEventLeaseInt(((Long)id).longValue(),
 						     leaseIDs[i], renewals[i],
-						     now);
+						     now, logSeq);
 	    } catch (Exception e) {
 		renewals[i] = -1;
 		if (exceptions == null)
@@ -5792,8 +6308,7 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 		    exceptions = (Exception[])arrayAdd(exceptions, e);
 	    }
 	}
-	/* don't bother to weed out problem leases */
-	addLogRecord(new LeasesRenewedLogObj(regIDs, leaseIDs, renewals));
+	syncRenewals(logSeq[0]);
 	for (int i = regIDs.length; --i >= 0; ) {
 	    if (renewals[i] >= 0)
 		renewals[i] -= now;
@@ -5857,62 +6372,92 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
 	if (inRecovery)
 	    return;
 	ServiceID sid = (pre != null) ? pre.serviceID : post.serviceID;
-	Object val = subEventByService.get(sid);
-	if (val instanceof EventReg) {
-	    generateEvent((EventReg)val, pre, post, sid, now);
-	} else if (val instanceof EventReg[]) {
-	    EventReg[] regs = (EventReg[])val;
-	    for (int i = regs.length; --i >= 0; ) {
-		generateEvent(regs[i], pre, post, sid, now);
-	    }
-	}
-	for (Iterator iter = subEventByID.values().iterator();
-	     iter.hasNext(); )
-	{
-	    generateEvent((EventReg)iter.next(), pre, post, sid, now);
+	/* a registration may be found through both pre and post */
+	Set<EventReg> regs =
+	    Collections.newSetFromMap(new IdentityHashMap<EventReg,Boolean>());
+	subEvents.addCandidates(sid, pre, post, regs);
+	/* the copy of post is shared by the events of all registrations */
+	Item item = null;
+	for (EventReg reg : regs) {
+	    int transition = eventTransition(reg, pre, post, now);
+	    if (transition == 0)
+		continue;
+	    if (item == null && post != null)
+		item = copyItem(post);
+	    pendingEvent(reg, sid, item, transition, now);
 	}
     }
 
     /**
-     * Generate an event if the event registration matches.  A null pre
-     * represents creation of a new item, a null post represents deletion
-     * of an item.  sid is the serviceID of the item.
+     * Return the transition for which the event registration should be
+     * sent an event, or 0 if none.  A null pre represents creation of a
+     * new item, a null post represents deletion of an item.
      */
-    private void generateEvent(EventReg reg,
-			       Item pre,
-			       Item post,
-			       ServiceID sid,
-			       long now)
+    private static int eventTransition(EventReg reg,
+				       Item pre,
+				       Item post,
+				       long now)
     {
 	if (reg.getLeaseExpiration() <= now)
-	    return;
+	    return 0;
+	boolean preMatch = pre != null && matchItem(reg.tmpl, pre);
+	boolean postMatch = post != null && matchItem(reg.tmpl, post);
 	if ((reg.transitions &
 		  ServiceRegistrar.TRANSITION_NOMATCH_MATCH) != 0 &&
-		 (pre == null || !matchItem(reg.tmpl, pre)) &&
-		 (post != null && matchItem(reg.tmpl, post)))
-	    pendingEvent(reg, sid, post,
-			 ServiceRegistrar.TRANSITION_NOMATCH_MATCH, now);
+		 !preMatch && postMatch)
+	    return ServiceRegistrar.TRANSITION_NOMATCH_MATCH;
 	else if ((reg.transitions &
 		  ServiceRegistrar.TRANSITION_MATCH_NOMATCH) != 0 &&
-		 (pre != null && matchItem(reg.tmpl, pre)) &&
-		 (post == null || !matchItem(reg.tmpl, post)))
-	    pendingEvent(reg, sid, post,
-			 ServiceRegistrar.TRANSITION_MATCH_NOMATCH, now);
+		 preMatch && !postMatch)
+	    return ServiceRegistrar.TRANSITION_MATCH_NOMATCH;
 	else if ((reg.transitions &
 		  ServiceRegistrar.TRANSITION_MATCH_MATCH) != 0 &&
-		 (pre != null && matchItem(reg.tmpl, pre)) &&
-		 (post != null && matchItem(reg.tmpl, post)))
-	    pendingEvent(reg, sid, post,
-			 ServiceRegistrar.TRANSITION_MATCH_MATCH, now);
+		 preMatch && postMatch)
+	    return ServiceRegistrar.TRANSITION_MATCH_MATCH;
+	return 0;
     }
 
-    /** Add a pending EventTask for this event registration. */
+    /**
+     * Add a pending EventTask for this event registration.  The item,
+     * if not null, is a copy of the new state of the service that may
+     * be shared with the events of other registrations.
+     */
     private void pendingEvent(EventReg reg, ServiceID sid, Item item, int transition, long now)
     {
-	if (item != null)
-	    item = copyItem(item);
         // Should never be null.
-	eventTaskMap.get(reg).submit(new EventTask(reg, sid, item, transition, proxy, this, now));
+	eventTaskMap.get(reg).submit(reg, sid, item, transition, proxy, this, now);
+    }
+
+    /**
+     * Register eventStats with the platform MBean server, named for this
+     * lookup service's service ID.
+     */
+    private void registerEventStats() {
+	try {
+	    ObjectName name = new ObjectName(
+		"org.apache.river.reggie:type=EventDelivery,name=" +
+		myServiceID);
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(
+		eventStats, name);
+	    eventStatsName = name;
+	} catch (Exception e) {
+	    logger.log(Levels.HANDLED,
+		       "could not register EventDelivery MXBean", e);
+	}
+    }
+
+    /** Unregister eventStats, if it was registered. */
+    private void unregisterEventStats() {
+	ObjectName name = eventStatsName;
+	if (name == null)
+	    return;
+	eventStatsName = null;
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	} catch (Exception e) {
+	    logger.log(Levels.HANDLED,
+		       "could not unregister EventDelivery MXBean", e);
+	}
     }
 
     /** Generate a new service ID */
@@ -6099,25 +6644,81 @@ class RegistrarImpl implements Registrar, ProxyAccessor, ServerProxyTrust, Start
      * @see RegistrarImpl.LocalLogHandler
      */
     private void addLogRecord(LogRecord rec) {
-	if (log == null) {
-	    return;
-	}
 	try {
-	    log.update(rec, true);
-	    if (logger.isLoggable(Level.FINER)) {
-		logger.log(Level.FINER, "wrote log record {0}",
-			   new Object[]{ rec });
+	    syncLogRecord(appendLogRecord(rec));
+	} catch (Exception e) {
+	    if (!Thread.currentThread().isInterrupted()) {
+		logger.log(Level.WARNING, "log update failed", e);
 	    }
-	    if (logFileSize.incrementAndGet() >= persistenceSnapshotThreshold) {
-		int snapshotSize = serviceByID.size() + eventByID.size();
-		if (logFileSize.get() >= persistenceSnapshotWeight * snapshotSize) {
-                    snapshotNotifier.signal();
-		}
+	}
+    }
+
+    /**
+     * Appends the log record of a lease renewal, raising logSeq[0] to its
+     * sequence number so that one sync covers every renewal of a call,
+     * including those appended before a failed append.  As with other
+     * log updates, a failure is logged and the renewal still stands.
+     */
+    private void appendRenewal(LogRecord rec, long[] logSeq) {
+	try {
+	    logSeq[0] = Math.max(logSeq[0], appendLogRecord(rec));
+	} catch (Exception e) {
+	    if (!Thread.currentThread().isInterrupted()) {
+		logger.log(Level.WARNING, "log update failed", e);
 	    }
+	}
+    }
+
+    /**
+     * Forces the renewals appended by a call to disk.  As with other log
+     * updates, a failure is logged and the renewals still stand.
+     */
+    private void syncRenewals(long seq) {
+	try {
+	    syncLogRecord(seq);
 	} catch (Exception e) {
 	    if (!Thread.currentThread().isInterrupted()) {
 		logger.log(Level.WARNING, "log update failed", e);
 	    }
 	}
     }
+
+    /**
+     * Appends a log record to the log without forcing it to disk, so
+     * that it can be appended while the state it records is locked.
+     * Returns the sequence number to pass to syncLogRecord, or 0 if
+     * there is no log.
+     */
+    private long appendLogRecord(LogRecord rec) throws IOException {
+	if (log == null) {
+	    return 0;
+	}
+	long seq = log.append(rec);
+	if (logger.isLoggable(Level.FINER)) {
+	    logger.log(Level.FINER, "wrote log record {0}",
+		       new Object[]{ rec });
+	}
+	if (logFileSize.incrementAndGet() >= persistenceSnapshotThreshold) {
+	    int snapshotSize = serviceByID.size() + eventByID.size();
+	    if (logFileSize.get() >= persistenceSnapshotWeight * snapshotSize) {
+		/* renewals hold only the read lock; see signalWaiters */
+		if (concurrentObj.isWriteLockedByCurrentThread())
+		    snapshotNotifier.signal();
+		else
+		    snapshotSignalPending = true;
+	    }
+	}
+	return seq;
+    }
+
+    /**
+     * Forces the log records appended up to and including the one with
+     * the given sequence number to disk.
+     */
+    private void syncLogRecord(long seq) throws IOException {
+	if (log == null || seq == 0) {
+	    return;
+	}
+	log.sync(seq);
+    }
 }
@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.reggie;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import net.jini.core.event.RemoteEvent;
+import net.jini.core.event.RemoteEventListener;
+import net.jini.core.lookup.ServiceID;
+import net.jini.id.UuidFactory;
+import org.apache.river.reggie.RegistrarImpl.EventQueue;
+import org.apache.river.reggie.RegistrarImpl.EventReg;
+import org.apache.river.reggie.RegistrarImpl.EventStats;
+import org.apache.river.reggie.proxy.Item;
+import org.apache.river.reggie.proxy.RegistrarEvent;
+import org.apache.river.reggie.proxy.RegistrarProxy;
+import org.junit.Test;
+
+import static net.jini.core.lookup.ServiceRegistrar.TRANSITION_MATCH_MATCH;
+import static net.jini.core.lookup.ServiceRegistrar.TRANSITION_MATCH_NOMATCH;
+import static net.jini.core.lookup.ServiceRegistrar.TRANSITION_NOMATCH_MATCH;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the events waiting to be sent to an event registration
+ * for one service are merged into a single event carrying the service's
+ * latest state, and counted in the EventDeliveryMXBean.  Events are
+ * submitted to the EventQueues of event registrations while their
+ * executor is held up, as a slow listener would.
+ */
+public class EventCoalescingTest {
+
+    private static final int ALL_TRANSITIONS = TRANSITION_MATCH_MATCH |
+	TRANSITION_MATCH_NOMATCH | TRANSITION_NOMATCH_MATCH;
+
+    /** collects the events it is sent */
+    private static class Listener implements RemoteEventListener {
+	final List<RegistrarEvent> events = new ArrayList<RegistrarEvent>();
+
+	public synchronized void notify(RemoteEvent event) {
+	    events.add((RegistrarEvent) event);
+	}
+
+	synchronized List<RegistrarEvent> events() {
+	    return new ArrayList<RegistrarEvent>(events);
+	}
+    }
+
+    private static final EventStats stats = new EventStats();
+    private static final RegistrarProxy proxy =
+	RegistrarProxy.getInstance(null, newServiceID());
+    private static final Field serviceItem;
+    static {
+	try {
+	    serviceItem = RegistrarEvent.class.getDeclaredField("serviceItem");
+	    serviceItem.setAccessible(true);
+	} catch (NoSuchFieldException e) {
+	    throw new ExceptionInInitializerError(e);
+	}
+    }
+    private static long eventID;
+    private static long now = System.currentTimeMillis();
+
+    @Test
+    public void coalescesWaitingEvents() throws Exception {
+	ObjectName name = new ObjectName(
+	    "org.apache.river.reggie:type=EventDelivery,name=test");
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	server.registerMBean(stats, name);
+
+	ExecutorService executor = Executors.newSingleThreadExecutor();
+	CountDownLatch release = new CountDownLatch(1);
+	hold(executor, release);
+
+	Listener all = new Listener();
+	EventReg allReg = newEventReg(ALL_TRANSITIONS, all);
+	EventQueue allQueue = new EventQueue(executor, stats);
+	Listener other = new Listener();
+	EventReg otherReg = newEventReg(ALL_TRANSITIONS, other);
+	EventQueue otherQueue = new EventQueue(executor, stats);
+	Listener noMatchMatch = new Listener();
+	EventReg noMatchMatchReg = newEventReg(
+	    TRANSITION_MATCH_NOMATCH | TRANSITION_NOMATCH_MATCH, noMatchMatch);
+	EventQueue noMatchMatchQueue = new EventQueue(executor, stats);
+
+	/* a new service modified repeatedly: one event for the latest item */
+	ServiceID added = newServiceID();
+	Item addedLatest = null;
+	submit(allQueue, allReg, added, TRANSITION_NOMATCH_MATCH);
+	for (int i = 0; i < 5; i++) {
+	    addedLatest =
+		submit(allQueue, allReg, added, TRANSITION_MATCH_MATCH);
+	}
+	/* the same service, for another registration, is sent separately */
+	Item otherLatest =
+	    submit(otherQueue, otherReg, added, TRANSITION_NOMATCH_MATCH);
+
+	/* a matching service that flaps: one MATCH_MATCH event */
+	ServiceID flapping = newServiceID();
+	Item flappingLatest = null;
+	for (int i = 0; i < 5; i++) {
+	    submit(allQueue, allReg, flapping, TRANSITION_MATCH_NOMATCH);
+	    flappingLatest =
+		submit(allQueue, allReg, flapping, TRANSITION_NOMATCH_MATCH);
+	}
+
+	/* a service added and then removed again: no event */
+	ServiceID transient_ = newServiceID();
+	submit(allQueue, allReg, transient_, TRANSITION_NOMATCH_MATCH);
+	submit(allQueue, allReg, transient_, TRANSITION_MATCH_MATCH);
+	submit(allQueue, allReg, transient_, TRANSITION_MATCH_NOMATCH);
+
+	/* a merge the registration did not ask for: both events sent */
+	ServiceID unmerged = newServiceID();
+	submit(noMatchMatchQueue, noMatchMatchReg, unmerged,
+	       TRANSITION_MATCH_NOMATCH);
+	Item unmergedLatest = submit(noMatchMatchQueue, noMatchMatchReg,
+				     unmerged, TRANSITION_NOMATCH_MATCH);
+
+	checkAttribute(server, name, "WaitingEventCount", 5);
+	release.countDown();
+	long deadline = System.currentTimeMillis() + 30000;
+	while (stats.getWaitingEventCount() > 0) {
+	    if (System.currentTimeMillis() > deadline) {
+		fail("events never sent: " +
+		     stats.getWaitingEventCount() + " waiting");
+	    }
+	    Thread.sleep(10);
+	}
+
+	List<RegistrarEvent> events = all.events();
+	checkCount("registration", events, 2);
+	check(events.get(0), 1, added, TRANSITION_NOMATCH_MATCH, addedLatest);
+	check(events.get(1), 2, flapping, TRANSITION_MATCH_MATCH,
+	      flappingLatest);
+	events = other.events();
+	checkCount("other registration", events, 1);
+	check(events.get(0), 1, added, TRANSITION_NOMATCH_MATCH, otherLatest);
+	events = noMatchMatch.events();
+	checkCount("registration without MATCH_MATCH", events, 2);
+	check(events.get(0), 1, unmerged, TRANSITION_MATCH_NOMATCH, null);
+	check(events.get(1), 2, unmerged, TRANSITION_NOMATCH_MATCH,
+	      unmergedLatest);
+
+	/* added: 5 merged; flapping: 9 merged; transient_: 1 merged, 2 dropped */
+	checkAttribute(server, name, "SentEventCount", 5);
+	checkAttribute(server, name, "CoalescedEventCount", 5 + 9 + 3);
+	checkAttribute(server, name, "WaitingEventCount", 0);
+	checkAttribute(server, name, "FailedEventCount", 0);
+	server.unregisterMBean(name);
+	executor.shutdown();
+    }
+
+    /** Blocks the executor until released. */
+    private static void hold(ExecutorService executor,
+			     final CountDownLatch release)
+    {
+	executor.submit(new Runnable() {
+	    public void run() {
+		try {
+		    release.await();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+	});
+    }
+
+    /**
+     * Submits an event with a new item, or none if the service no longer
+     * matches, and returns the item.
+     */
+    private static Item submit(EventQueue queue,
+			       EventReg reg,
+			       ServiceID sid,
+			       int transition)
+    {
+	Item item = transition == TRANSITION_MATCH_NOMATCH ? null :
+	    new Item(sid, null, null, null, null);
+	queue.submit(reg, sid, item, transition, proxy, null, now++);
+	return item;
+    }
+
+    private static void checkCount(String test,
+				   List<RegistrarEvent> events,
+				   int expected)
+    {
+	assertEquals("events sent to " + test, expected, events.size());
+    }
+
+    private static void check(RegistrarEvent event,
+			      long seqNo,
+			      ServiceID sid,
+			      int transition,
+			      Item item)
+	throws IllegalAccessException
+    {
+	assertEquals("sequence number", seqNo, event.getSequenceNumber());
+	assertEquals("service ID", sid, event.getServiceID());
+	assertEquals("transition for " + sid,
+		     transition, event.getTransition());
+	assertSame("state of " + sid, item, serviceItem.get(event));
+    }
+
+    private static void checkAttribute(MBeanServer server,
+				       ObjectName name,
+				       String attribute,
+				       long expected)
+	throws Exception
+    {
+	long value = ((Number) server.getAttribute(name, attribute))
+	    .longValue();
+	assertEquals(attribute, expected, value);
+    }
+
+    private static EventReg newEventReg(int transitions,
+					RemoteEventListener listener)
+    {
+	return new EventReg(++eventID, UuidFactory.generate(), null,
+			    transitions, listener, null, Long.MAX_VALUE);
+    }
+
+    private static ServiceID newServiceID() {
+	java.util.UUID uuid = java.util.UUID.randomUUID();
+	return new ServiceID(uuid.getMostSignificantBits(),
+			     uuid.getLeastSignificantBits());
+    }
+}
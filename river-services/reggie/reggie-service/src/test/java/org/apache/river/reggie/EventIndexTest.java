@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.reggie;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.id.UuidFactory;
+import net.jini.lookup.entry.Comment;
+import net.jini.lookup.entry.Location;
+import net.jini.lookup.entry.Name;
+import org.apache.river.reggie.RegistrarImpl.EventIndex;
+import org.apache.river.reggie.RegistrarImpl.EventReg;
+import org.apache.river.reggie.proxy.Item;
+import org.apache.river.reggie.proxy.Template;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the event registrations an EventIndex finds for an item
+ * change include every registration a full scan of all registrations
+ * finds to match, for templates by service ID, by types, by attributes
+ * and wildcard templates, as registrations are added and as they are
+ * cancelled or expire.  Set the seed system property to repeat a run.
+ */
+public class EventIndexTest {
+
+    private static final int REGISTRATIONS = 400;
+    private static final int CHANGES = 2000;
+
+    public interface Device { }
+    public interface Printer extends Device { }
+    public static class Laser implements Printer, Serializable { }
+    public static class ColorLaser extends Laser { }
+    public static class Scanner implements Device, Serializable { }
+
+    /** a subclass entry, whose inherited fields are indexed by Location */
+    public static class Site extends Location {
+	public String campus;
+
+	public Site() {
+	}
+
+	public Site(String floor, String room, String building,
+		    String campus)
+	{
+	    super(floor, room, building);
+	    this.campus = campus;
+	}
+    }
+
+    private static final Class[] TYPES = {
+	Device.class, Printer.class, Laser.class, ColorLaser.class,
+	Scanner.class, Serializable.class
+    };
+    private static final Object[] SERVICES = {
+	new Laser(), new ColorLaser(), new Scanner()
+    };
+    private static final ServiceID[] SIDS = new ServiceID[8];
+
+    private static Random random;
+    private static long eventID;
+
+    @Test
+    public void findsEveryMatch() throws Exception {
+	long seed = Long.getLong("seed", System.nanoTime()).longValue();
+	System.err.println("seed " + seed);
+	random = new Random(seed);
+	for (int i = 0; i < SIDS.length; i++) {
+	    SIDS[i] = new ServiceID(random.nextLong(), random.nextLong());
+	}
+
+	EventIndex index = new EventIndex();
+	List<EventReg> regs = new ArrayList<EventReg>();
+	/* wildcard templates */
+	add(index, regs, new ServiceTemplate(null, null, null));
+	add(index, regs, new ServiceTemplate(
+	    null, null, new Entry[] { new Location() }));
+	add(index, regs, new ServiceTemplate(
+	    null, null, new Entry[] { new Site() }));
+	add(index, regs, new ServiceTemplate(
+	    null, new Class[0], new Entry[0]));
+	/* one of each kind */
+	add(index, regs, new ServiceTemplate(SIDS[0], null, null));
+	add(index, regs, new ServiceTemplate(
+	    null, new Class[] { Printer.class }, null));
+	add(index, regs, new ServiceTemplate(
+	    null, null, new Entry[] { new Name("a") }));
+	add(index, regs, new ServiceTemplate(
+	    null, null,
+	    new Entry[] { new Site(null, null, "b", null), new Name("b") }));
+	while (regs.size() < REGISTRATIONS) {
+	    add(index, regs, randomTemplate());
+	}
+	compare("registered", index, regs);
+
+	/* cancel or expire half, then the rest */
+	Collections.shuffle(regs, random);
+	while (regs.size() > REGISTRATIONS / 2) {
+	    index.remove(regs.remove(regs.size() - 1));
+	}
+	compare("after removing half", index, regs);
+	while (!regs.isEmpty()) {
+	    index.remove(regs.remove(regs.size() - 1));
+	}
+	assertTrue("index empty after removing every registration",
+		   index.isEmpty());
+    }
+
+    /**
+     * Checks that the candidates found for random item changes include
+     * every registration that matches the item before or after.
+     */
+    private static void compare(String when,
+				EventIndex index,
+				List<EventReg> regs)
+	throws Exception
+    {
+	long candidates = 0;
+	long matches = 0;
+	for (int i = 0; i < CHANGES; i++) {
+	    ServiceID sid = SIDS[random.nextInt(SIDS.length)];
+	    int kind = random.nextInt(3);
+	    Item pre = kind == 0 ? null : randomItem(sid);
+	    Item post = kind == 1 ? null : randomItem(sid);
+	    Set<EventReg> found = Collections.newSetFromMap(
+		new IdentityHashMap<EventReg,Boolean>());
+	    index.addCandidates(sid, pre, post, found);
+	    candidates += found.size();
+	    for (EventReg reg : regs) {
+		if ((pre == null || !RegistrarImpl.matchItem(reg.tmpl, pre)) &&
+		    (post == null || !RegistrarImpl.matchItem(reg.tmpl, post)))
+		{
+		    continue;
+		}
+		matches++;
+		if (!found.contains(reg)) {
+		    fail(when + ": index missed " +
+			 "registration " + reg.eventID + " matching " +
+			 (pre == null ? "" : "pre " + describe(pre) + " ") +
+			 (post == null ? "" : "post " + describe(post)));
+		}
+	    }
+	}
+	System.err.println(
+	    when + ": " + regs.size() + " registrations, " +
+	    (candidates / CHANGES) + " candidates and " +
+	    (matches / CHANGES) + " matches per change");
+    }
+
+    private static void add(EventIndex index,
+			    List<EventReg> regs,
+			    ServiceTemplate tmpl)
+	throws Exception
+    {
+	EventReg reg = new EventReg(++eventID, UuidFactory.generate(),
+				    new Template(tmpl), 7, null, null,
+				    Long.MAX_VALUE);
+	index.add(reg);
+	regs.add(reg);
+    }
+
+    private static ServiceTemplate randomTemplate() {
+	ServiceID sid = random.nextInt(6) == 0 ?
+	    SIDS[random.nextInt(SIDS.length)] : null;
+	Class[] types = null;
+	if (random.nextInt(3) == 0) {
+	    types = new Class[1 + random.nextInt(2)];
+	    for (int i = 0; i < types.length; i++) {
+		types[i] = TYPES[random.nextInt(TYPES.length)];
+	    }
+	}
+	Entry[] attrs = null;
+	if (random.nextInt(3) != 0) {
+	    attrs = new Entry[1 + random.nextInt(2)];
+	    for (int i = 0; i < attrs.length; i++) {
+		attrs[i] = randomEntry(true);
+	    }
+	}
+	return new ServiceTemplate(sid, types, attrs);
+    }
+
+    private static Item randomItem(ServiceID sid) throws Exception {
+	Entry[] attrs = new Entry[random.nextInt(4)];
+	for (int i = 0; i < attrs.length; i++) {
+	    attrs[i] = randomEntry(false);
+	}
+	return new Item(new ServiceItem(
+	    sid, SERVICES[random.nextInt(SERVICES.length)], attrs));
+    }
+
+    /** Returns an entry whose fields are each null or one of a few values */
+    private static Entry randomEntry(boolean template) {
+	switch (random.nextInt(4)) {
+	case 0:
+	    return new Name(value(template));
+	case 1:
+	    return new Comment(value(template));
+	case 2:
+	    return new Location(value(template), value(template),
+				value(template));
+	default:
+	    return new Site(value(template), value(template),
+			    value(template), value(template));
+	}
+    }
+
+    /** Templates are more often wildcards than items are unset */
+    private static String value(boolean template) {
+	if (random.nextInt(template ? 2 : 5) == 0) {
+	    return null;
+	}
+	return String.valueOf((char) ('a' + random.nextInt(3)));
+    }
+
+    private static String describe(Item item) {
+	StringBuffer buf = new StringBuffer(item.serviceType.getName());
+	for (int i = 0; i < item.attributeSets.length; i++) {
+	    buf.append(' ').append(item.attributeSets[i].eclass.getName());
+	    buf.append(java.util.Arrays.asList(item.attributeSets[i].fields));
+	}
+	return buf.toString();
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.river.reggie;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationProvider;
+import net.jini.core.event.RemoteEvent;
+import net.jini.core.event.RemoteEventListener;
+import net.jini.core.lease.Lease;
+import net.jini.core.lease.LeaseMap;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceMatches;
+import net.jini.core.lookup.ServiceRegistrar;
+import net.jini.core.lookup.ServiceRegistration;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.id.ReferentUuid;
+import net.jini.id.Uuid;
+import org.apache.river.reggie.proxy.RenewResults;
+import org.apache.river.reliableLog.ReliableLog;
+import org.apache.river.start.lifecycle.LifeCycle;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Renews the leases of a persistent RegistrarImpl through its proxy,
+ * while lookups run concurrently and after its log has failed.
+ */
+public class LeaseRenewalTest {
+
+    private static final int SERVICES = 40;
+    private static final int RENEWERS = 4;
+    private static final int LOOKERS = 4;
+    private static final long RUN_MILLIS = 2000L;
+    private static final long LEASE = 60000L;
+
+    /** Registrations of equal service objects replace each other */
+    public static class Widget implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int id;
+
+        Widget(int id) {
+            this.id = id;
+        }
+    }
+
+    public static class Listener implements RemoteEventListener, Serializable {
+        private static final long serialVersionUID = 1L;
+        public void notify(RemoteEvent ev) {
+        }
+    }
+
+    private final CountDownLatch destroyed = new CountDownLatch(1);
+    private RegistrarImpl reggie;
+    private ServiceRegistrar registrar;
+    private ServiceTemplate widgets;
+
+    /** Starts a registrar, persistent or not, with multicast disabled */
+    private void start(boolean persistent) throws Exception {
+        String c = "org.apache.river.reggie.";
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "LeaseRenewalTest" + System.nanoTime());
+        Configuration config = ConfigurationProvider.getInstance(
+            new String[] {
+                "-",
+                c + "persistenceDirectory=\"" +
+                    dir.getPath().replace("\\", "\\\\") + "\"",
+                c + "unicastDiscoveryHost=\"localhost\"",
+                c + "multicastInterfaces=new java.net.NetworkInterface[] {}",
+                c + "unexportTimeout=0L"
+            },
+            LeaseRenewalTest.class.getClassLoader());
+        LifeCycle lifeCycle = new LifeCycle() {
+            public boolean unregister(Object impl) {
+                destroyed.countDown();
+                return true;
+            }
+        };
+        reggie = new RegistrarImpl(config, null, persistent, lifeCycle);
+        reggie.start();
+        registrar = (ServiceRegistrar) reggie.getServiceProxy();
+        widgets = new ServiceTemplate(null, new Class[] { Widget.class }, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (reggie != null) {
+            reggie.destroy();
+            assertTrue("not destroyed",
+                       destroyed.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Lookups through the proxy, running alongside concurrent renewals
+     * of the same leases made directly, singly and many at a time,
+     * always find every service, every renewal is granted, and the
+     * expiration order stays intact.
+     */
+    @Test
+    public void renewWhileLookingUp() throws Exception {
+        /* without a log to sync, renewals overlap far more often */
+        start(false);
+        List<ServiceRegistration> regs = register(SERVICES);
+        final ServiceID[] ids = new ServiceID[SERVICES];
+        final Uuid[] leaseIDs = new Uuid[SERVICES];
+        for (int i = 0; i < SERVICES; i++) {
+            ids[i] = regs.get(i).getServiceID();
+            leaseIDs[i] =
+                ((ReferentUuid) regs.get(i).getLease()).getReferentUuid();
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Throwable> failures =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        final long[] renewals = new long[RENEWERS];
+        final long[] lookups = new long[LOOKERS];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < RENEWERS; i++) {
+            final int n = i;
+            threads.add(new Thread() {
+                public void run() {
+                    Random random = new Random(n);
+                    try {
+                        while (!stop.get()) {
+                            long duration = LEASE + random.nextInt(1000);
+                            if (n % 2 == 0) {
+                                int i = random.nextInt(SERVICES);
+                                assertEquals(duration,
+                                             reggie.renewServiceLease(
+                                                 ids[i], leaseIDs[i],
+                                                 duration));
+                                renewals[n]++;
+                            } else {
+                                /* every lease in one call */
+                                long[] durations = new long[SERVICES];
+                                Arrays.fill(durations, duration);
+                                RenewResults results = reggie.renewLeases(
+                                    ids, leaseIDs, durations);
+                                assertNull(Arrays.toString(results.exceptions),
+                                           results.exceptions);
+                                for (long granted : results.durations) {
+                                    assertEquals(duration, granted);
+                                }
+                                renewals[n] += SERVICES;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < LOOKERS; i++) {
+            final int n = i;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            ServiceMatches matches =
+                                registrar.lookup(widgets, SERVICES + 1);
+                            if (matches.totalMatches != SERVICES ||
+                                matches.items.length != SERVICES)
+                            {
+                                throw new AssertionError(
+                                    "lookup found " + matches.totalMatches +
+                                    " of " + SERVICES + " services");
+                            }
+                            lookups[n]++;
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+        for (int i = 0; i < RENEWERS; i++) {
+            assertTrue("renewer " + i + " made no progress", renewals[i] > 0);
+        }
+        for (int i = 0; i < LOOKERS; i++) {
+            assertTrue("looker " + i + " made no progress", lookups[i] > 0);
+        }
+        assertExpirationOrder(SERVICES + 1);
+    }
+
+    /**
+     * When the log can no longer be written, renewals of service and
+     * event leases, singly and through a LeaseMap, are still granted,
+     * as every other update is, and lookups carry on.
+     */
+    @Test
+    public void renewAfterLogFailure() throws Exception {
+        start(true);
+        List<Lease> leases = new ArrayList<Lease>();
+        for (ServiceRegistration reg : register(2)) {
+            leases.add(reg.getLease());
+        }
+        Lease eventLease = registrar.notify(
+            widgets, ServiceRegistrar.TRANSITION_MATCH_NOMATCH,
+            new Listener(), null, LEASE).getLease();
+        closeLog();
+
+        long before = System.currentTimeMillis();
+        leases.get(0).renew(2 * LEASE);
+        assertGranted(leases.get(0), before, 2 * LEASE);
+
+        before = System.currentTimeMillis();
+        eventLease.renew(2 * LEASE);
+        assertGranted(eventLease, before, 2 * LEASE);
+
+        LeaseMap map = leases.get(1).createLeaseMap(3 * LEASE);
+        map.put(eventLease, Long.valueOf(3 * LEASE));
+        before = System.currentTimeMillis();
+        map.renewAll();
+        assertTrue("lease map renewal failed", map.size() == 2);
+        assertGranted(leases.get(1), before, 3 * LEASE);
+        assertGranted(eventLease, before, 3 * LEASE);
+
+        assertEquals(2, registrar.lookup(widgets, 3).totalMatches);
+    }
+
+    private List<ServiceRegistration> register(int count) throws Exception {
+        List<ServiceRegistration> regs =
+            new ArrayList<ServiceRegistration>(count);
+        for (int i = 0; i < count; i++) {
+            regs.add(registrar.register(
+                new ServiceItem(null, new Widget(i), null), LEASE));
+        }
+        return regs;
+    }
+
+    /**
+     * Checks that the registrar's expiration order holds each of count
+     * registrations, including the registrar's own, once and in order.
+     */
+    private void assertExpirationOrder(int count) throws Exception {
+        Field field = RegistrarImpl.class.getDeclaredField("serviceByTime");
+        field.setAccessible(true);
+        Set<?> byTime = (Set<?>) field.get(reggie);
+        Set<Object> seen =
+            Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+        Comparable previous = null;
+        for (Object reg : byTime) {
+            assertTrue("registration held twice", seen.add(reg));
+            assertTrue("registrations out of order",
+                       previous == null || previous.compareTo(reg) < 0);
+            previous = (Comparable) reg;
+        }
+        assertEquals(count, seen.size());
+    }
+
+    /** Closes the registrar's log, so that appending to it fails */
+    private void closeLog() throws Exception {
+        Field field = RegistrarImpl.class.getDeclaredField("log");
+        field.setAccessible(true);
+        ((ReliableLog) field.get(reggie)).close();
+    }
+
+    /* renewals by other threads may have moved the expiration on */
+    private static void assertGranted(Lease lease, long before, long duration) {
+        long granted = lease.getExpiration() - before;
+        assertTrue("asked for " + duration + " ms, got " + granted + " ms",
+                   granted >= duration - 1000 && granted <= duration + 5000);
+    }
+}